@@ -0,0 +1,68 @@
+package com.alfredvc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of boxing arguments: the same function called with new boxed arguments on every call,
+ * with a prebuilt Object[], through an ArgumentBuffer and with primitive arguments. Run with
+ * -prof gc to see the allocation rate of each.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BoxingBenchmark {
+    private double x = 3.0;
+    private double y = 4.0;
+    private Object[] prebuilt;
+    private ParsedFunction<?> boxed;
+    private ParsedFunction<?> primitive;
+    private ArgumentBuffer buffer;
+
+    @Setup
+    public void setUp() {
+        FunctionParser.setLoadingMode(LoadingMode.ISOLATED);
+        boxed = FunctionParser.fromString("double(Double x, y)->x * y + x");
+        primitive = FunctionParser.fromString("double(double x, y)->x * y + x");
+        prebuilt = new Object[]{x, y};
+        buffer = ArgumentLayout.of(primitive).newBuffer();
+    }
+
+    @Benchmark
+    public double boxedPerCall() {
+        return boxed.evaluateToDouble(new Object[]{x, y});
+    }
+
+    @Benchmark
+    public double boxedPrebuilt() {
+        return boxed.evaluateToDouble(prebuilt);
+    }
+
+    @Benchmark
+    public double primitivePerCallBoxed() {
+        return primitive.evaluateToDouble(new Object[]{x, y});
+    }
+
+    @Benchmark
+    public double argumentBuffer() {
+        return primitive.evaluateToDouble(buffer.set(0, x).set(1, y));
+    }
+
+    @Benchmark
+    public double primitive() {
+        return primitive.evaluateToDouble(x, y);
+    }
+}
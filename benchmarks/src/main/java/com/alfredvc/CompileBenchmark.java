@@ -0,0 +1,101 @@
+package com.alfredvc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compile latency of function strings, with the function cache disabled so every call compiles.
+ * Classes are defined in isolated class loaders so they can be unloaded during the run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CompileBenchmark {
+    private static final int BATCH_SIZE = 256;
+    private static final int PARAMETER_COUNT = 64;
+
+    private final List<String> batch = new ArrayList<>();
+    private final Map<String, String> replacements = new HashMap<>();
+    private String largeFunction;
+
+    @Setup
+    public void setUp() {
+        FunctionParser.setCacheEnabled(false);
+        FunctionParser.setLoadingMode(LoadingMode.ISOLATED);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add("double(Double x,y)->x * y + " + i);
+        }
+        StringBuilder function = new StringBuilder("double(Double ");
+        for (int i = 0; i < PARAMETER_COUNT; i++) {
+            function.append(i == 0 ? "" : ", ").append('v').append(i);
+            replacements.put("v" + i, "(((Double) o[" + i + "]).doubleValue())");
+        }
+        function.append(")->");
+        for (int repeat = 0; repeat < 20; repeat++) {
+            for (int i = 0; i < PARAMETER_COUNT; i++) {
+                function.append(repeat + i == 0 ? "" : " + ").append('v').append(i)
+                        .append(" * Math.sin(v").append((i + 1) % PARAMETER_COUNT).append(')');
+            }
+        }
+        largeFunction = function.toString();
+    }
+
+    @TearDown
+    public void tearDown() {
+        FunctionParser.setCacheEnabled(true);
+        FunctionParser.setLoadingMode(LoadingMode.SHARED);
+    }
+
+    @Benchmark
+    public ParsedFunction<?> fromStringBoxed() {
+        return FunctionParser.fromString("double(Double x,y)->x * y + x");
+    }
+
+    @Benchmark
+    public ParsedFunction<?> fromStringPrimitive() {
+        return FunctionParser.fromString("double(double x,y)->x * y + x");
+    }
+
+    @Benchmark
+    public ParsedFunction<?> fromStringOptimized() {
+        FunctionParser.setOptimizationEnabled(true);
+        try {
+            return FunctionParser.fromString("double(double x,y)->Math.sqrt(x * x + y * y) * 2 * Math.PI / Math.sqrt(x * x + y * y)");
+        } finally {
+            FunctionParser.setOptimizationEnabled(false);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<ParsedFunction<Object>> fromStrings() {
+        return FunctionParser.fromStrings(batch);
+    }
+
+    /**
+     * Parsing and variable substitution alone, on a body of 27k characters with 64 parameters.
+     */
+    @Benchmark
+    public String parseLargeBody() {
+        return FunctionDeclaration.parse(largeFunction).substitute(replacements);
+    }
+}
@@ -0,0 +1,87 @@
+package com.alfredvc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-threaded evaluation: one shared function evaluated from four threads, and a column sum
+ * split across the common pool by ParallelEvaluator compared with a single batch call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConcurrentEvaluateBenchmark {
+    private static final int ROWS = 1 << 20;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        ParsedFunction<?> primitive;
+        ParsedFunction<?> boxed;
+        double[][] columns;
+        double[] out;
+        ParallelEvaluator evaluator;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            FunctionParser.setLoadingMode(LoadingMode.ISOLATED);
+            primitive = FunctionParser.fromString("double(double x, y)->x * y + x");
+            boxed = FunctionParser.fromString("double(Double x, y)->x * y + x");
+            columns = new double[2][ROWS];
+            for (int i = 0; i < ROWS; i++) {
+                columns[0][i] = ThreadLocalRandom.current().nextDouble();
+                columns[1][i] = ThreadLocalRandom.current().nextDouble();
+            }
+            out = new double[ROWS];
+            evaluator = new ParallelEvaluator();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Arguments {
+        double x = 3.0;
+        double y = 4.0;
+        Object[] boxed = {3.0, 4.0};
+    }
+
+    @Benchmark
+    @Threads(4)
+    public double primitiveFourThreads(Shared shared, Arguments arguments) {
+        return shared.primitive.evaluateToDouble(arguments.x, arguments.y);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public double boxedFourThreads(Shared shared, Arguments arguments) {
+        return shared.boxed.evaluateToDouble(arguments.boxed);
+    }
+
+    @Benchmark
+    public double columnSumSequential(Shared shared) {
+        shared.primitive.evaluateToDouble(shared.columns, shared.out, 0, ROWS);
+        double sum = 0;
+        for (double value : shared.out) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double columnSumParallel(Shared shared) {
+        return shared.evaluator.sum(shared.primitive, shared.columns);
+    }
+}
@@ -0,0 +1,154 @@
+package com.alfredvc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * Evaluation cost of parsed functions for every return type, compared with a handwritten lambda
+ * and a MethodHandle to a handwritten method.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EvaluateBenchmark {
+    private static final MethodHandle HANDWRITTEN;
+    private static final String MATH_BODY = "->Math.sqrt(x * x + y * y) * 2 * Math.PI / (1 + Math.sqrt(x * x + y * y)) + Math.pow(x, 2.0) / 4";
+
+    static {
+        try {
+            HANDWRITTEN = MethodHandles.lookup().findStatic(EvaluateBenchmark.class, "handwritten",
+                    MethodType.methodType(double.class, double.class, double.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private double x = 3.0;
+    private double y = 4.0;
+    private Object[] doubleArgs;
+    private Object[] longArgs;
+    private Object[] intArgs;
+    private double[] primitiveArgs;
+
+    private DoubleBinaryOperator lambda;
+    private ParsedFunction<?> primitive;
+    private DoubleBinaryOperator functionalInterface;
+    private ParsedFunction<?> toDouble;
+    private ParsedFunction<?> toFloat;
+    private ParsedFunction<?> toBoolean;
+    private ParsedFunction<?> toLong;
+    private ParsedFunction<?> toInteger;
+    private ParsedFunction<Double> toObject;
+    private ParsedFunction<?> unoptimized;
+    private ParsedFunction<?> optimized;
+
+    static double handwritten(double x, double y) {
+        return x * y + x;
+    }
+
+    @Setup
+    public void setUp() {
+        FunctionParser.setLoadingMode(LoadingMode.ISOLATED);
+        doubleArgs = new Object[]{x, y};
+        longArgs = new Object[]{3L, 4L};
+        intArgs = new Object[]{3, 4};
+        primitiveArgs = new double[]{x, y};
+        lambda = (a, b) -> a * b + a;
+        primitive = FunctionParser.fromString("double(double x, y)->x * y + x");
+        functionalInterface = FunctionParser.fromString("double(double x, y)->x * y + x", DoubleBinaryOperator.class);
+        toDouble = FunctionParser.fromString("double(Double x, y)->x * y + x");
+        toFloat = FunctionParser.fromString("float(Double x, y)->(float) (x * y + x)");
+        toBoolean = FunctionParser.fromString("boolean(Double x, y)->x * y + x > 10");
+        toLong = FunctionParser.fromString("long(Long x, y)->x * y + x");
+        toInteger = FunctionParser.fromString("int(Integer x, y)->x * y + x");
+        toObject = FunctionParser.fromString("Double(Double x, y)->x * y + x");
+        unoptimized = FunctionParser.fromString("double(double x, y)" + MATH_BODY);
+        FunctionParser.setOptimizationEnabled(true);
+        FunctionParser.setCacheEnabled(false);
+        optimized = FunctionParser.fromString("double(double x, y)" + MATH_BODY);
+        FunctionParser.setCacheEnabled(true);
+        FunctionParser.setOptimizationEnabled(false);
+    }
+
+    @Benchmark
+    public double baselineLambda() {
+        return lambda.applyAsDouble(x, y);
+    }
+
+    @Benchmark
+    public double baselineMethodHandle() throws Throwable {
+        return (double) HANDWRITTEN.invokeExact(x, y);
+    }
+
+    @Benchmark
+    public double primitiveParameters() {
+        return primitive.evaluateToDouble(x, y);
+    }
+
+    @Benchmark
+    public double primitiveArray() {
+        return primitive.evaluateToDouble(primitiveArgs);
+    }
+
+    @Benchmark
+    public double functionalInterface() {
+        return functionalInterface.applyAsDouble(x, y);
+    }
+
+    @Benchmark
+    public double evaluateToDouble() {
+        return toDouble.evaluateToDouble(doubleArgs);
+    }
+
+    @Benchmark
+    public float evaluateToFloat() {
+        return toFloat.evaluateToFloat(doubleArgs);
+    }
+
+    @Benchmark
+    public boolean evaluateToBoolean() {
+        return toBoolean.evaluateToBoolean(doubleArgs);
+    }
+
+    @Benchmark
+    public long evaluateToLong() {
+        return toLong.evaluateToLong(longArgs);
+    }
+
+    @Benchmark
+    public int evaluateToInteger() {
+        return toInteger.evaluateToInteger(intArgs);
+    }
+
+    @Benchmark
+    public Double evaluate() {
+        return toObject.evaluate(doubleArgs);
+    }
+
+    @Benchmark
+    public double mathUnoptimized() {
+        return unoptimized.evaluateToDouble(x, y);
+    }
+
+    @Benchmark
+    public double mathOptimized() {
+        return optimized.evaluateToDouble(x, y);
+    }
+}
@@ -0,0 +1,86 @@
+package com.alfredvc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of evaluating related functions over the same arguments one by one, and as a single
+ * function group sharing the unboxing and the common subexpressions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class GroupBenchmark {
+    private static final List<String> FUNCTIONS = Arrays.asList(
+            "double(double x, y, z)->Math.log(x) * (y / z)",
+            "double(double x, y, z)->Math.log(x) + y / z",
+            "double(double x, y, z)->Math.exp(y / z) - Math.log(x)",
+            "double(double x, y, z)->Math.sqrt(x * x + y * y) / z");
+
+    private ParsedFunction<?>[] functions;
+    private FunctionGroup group;
+    private final Object[] boxedArgs = {1.5, 2.5, 3.5};
+    private final double[] args = {1.5, 2.5, 3.5};
+    private final double[] out = new double[FUNCTIONS.size()];
+
+    @Setup
+    public void setUp() {
+        FunctionParser.setOptimizationEnabled(true);
+        FunctionParser.setLoadingMode(LoadingMode.ISOLATED);
+        functions = new ParsedFunction<?>[FUNCTIONS.size()];
+        for (int i = 0; i < functions.length; i++) {
+            functions[i] = FunctionParser.fromString(FUNCTIONS.get(i));
+        }
+        group = FunctionParser.fromStringsAsGroup(FUNCTIONS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FunctionParser.setOptimizationEnabled(false);
+        FunctionParser.setLoadingMode(LoadingMode.SHARED);
+    }
+
+    @Benchmark
+    public double[] individualBoxed() {
+        for (int i = 0; i < functions.length; i++) {
+            out[i] = functions[i].evaluateToDouble(boxedArgs);
+        }
+        return out;
+    }
+
+    @Benchmark
+    public double[] groupBoxed() {
+        group.evaluateToDouble(boxedArgs, out);
+        return out;
+    }
+
+    @Benchmark
+    public double[] individualPrimitive() {
+        for (int i = 0; i < functions.length; i++) {
+            out[i] = functions[i].evaluateToDouble(args[0], args[1], args[2]);
+        }
+        return out;
+    }
+
+    @Benchmark
+    public double[] groupPrimitive() {
+        group.evaluateToDouble(args, out);
+        return out;
+    }
+}
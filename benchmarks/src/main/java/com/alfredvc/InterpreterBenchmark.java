@@ -0,0 +1,68 @@
+package com.alfredvc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a one-shot function, parsed and evaluated once, when interpreted and when compiled, and
+ * the evaluation cost of the interpreter once parsed compared with the compiled class.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class InterpreterBenchmark {
+    private static final String FUNCTION = "double(double x,y)->x * y + Math.sqrt(x) - y / 2";
+
+    private ParsedFunction<?> interpreted;
+    private ParsedFunction<?> compiled;
+    private double x = 1.5;
+    private double y = 2.5;
+
+    @Setup
+    public void setUp() {
+        FunctionParser.setCacheEnabled(false);
+        FunctionParser.setLoadingMode(LoadingMode.ISOLATED);
+        interpreted = FunctionParser.fromStringInterpreted(FUNCTION);
+        compiled = FunctionParser.fromString(FUNCTION);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FunctionParser.setCacheEnabled(true);
+        FunctionParser.setLoadingMode(LoadingMode.SHARED);
+    }
+
+    @Benchmark
+    public double oneShotInterpreted() {
+        return FunctionParser.fromStringInterpreted(FUNCTION).evaluateToDouble(x, y);
+    }
+
+    @Benchmark
+    public double oneShotCompiled() {
+        return FunctionParser.fromString(FUNCTION).evaluateToDouble(x, y);
+    }
+
+    @Benchmark
+    public double evaluateInterpreted() {
+        return interpreted.evaluateToDouble(x, y);
+    }
+
+    @Benchmark
+    public double evaluateCompiled() {
+        return compiled.evaluateToDouble(x, y);
+    }
+}
@@ -0,0 +1,68 @@
+package com.alfredvc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compile latency and evaluation of functions defined by Javassist's toClass (SHARED), in their own
+ * class loader (ISOLATED) and as hidden classes (HIDDEN). Needs Java 15 or later; the forked JVM
+ * opens java.lang so toClass works on Java 17.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LoadingModeBenchmark {
+    @Param({"SHARED", "ISOLATED", "HIDDEN"})
+    public LoadingMode mode;
+
+    private ParsedFunction<?> function;
+    private MethodHandle handle;
+    private double x = 1.5;
+    private double y = 2.5;
+
+    @Setup
+    public void setUp() {
+        FunctionParser.setCacheEnabled(false);
+        FunctionParser.setLoadingMode(mode);
+        function = FunctionParser.fromString("double(double x,y)->x * y + x");
+        handle = FunctionParser.toMethodHandle(function);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FunctionParser.setCacheEnabled(true);
+        FunctionParser.setLoadingMode(LoadingMode.SHARED);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ParsedFunction<?> compile() {
+        return FunctionParser.fromString("double(double x,y)->x * y + x");
+    }
+
+    @Benchmark
+    public double evaluate() {
+        return function.evaluateToDouble(x, y);
+    }
+
+    @Benchmark
+    public double evaluateMethodHandle() throws Throwable {
+        return (double) handle.invokeExact(x, y);
+    }
+}
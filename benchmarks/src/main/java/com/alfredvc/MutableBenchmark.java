@@ -0,0 +1,56 @@
+package com.alfredvc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluation of a MutableParsedFunction through its ParsedFunction methods and through its dynamic
+ * invoker held in a static final field, against the compiled function it currently holds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MutableBenchmark {
+    private static final MutableParsedFunction<Double> MUTABLE;
+    private static final MethodHandle INVOKER;
+
+    static {
+        FunctionParser.setLoadingMode(LoadingMode.ISOLATED);
+        MUTABLE = FunctionParser.fromStringMutable("double(double x,y)->x * y + x");
+        MUTABLE.set(FunctionParser.fromString("double(double x,y)->x * y + y"));
+        INVOKER = MUTABLE.dynamicInvoker();
+    }
+
+    private final ParsedFunction<Double> compiled = MUTABLE.get();
+    private final ParsedFunction<Double> mutable = MUTABLE;
+    private double x = 1.5;
+    private double y = 2.5;
+
+    @Benchmark
+    public double compiled() {
+        return compiled.evaluateToDouble(x, y);
+    }
+
+    @Benchmark
+    public double mutable() {
+        return mutable.evaluateToDouble(x, y);
+    }
+
+    @Benchmark
+    public double staticInvoker() throws Throwable {
+        return (double) INVOKER.invokeExact(x, y);
+    }
+}
@@ -0,0 +1,53 @@
+package com.alfredvc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of getting a function with the cache disabled when it was precompiled at build time, by
+ * the annotation below, and when it is compiled at runtime.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PrecompiledBenchmark {
+    @Precompile
+    static final String PRECOMPILED = "double(double x,y)->x * y + Math.sqrt(x) - y / 2";
+    private static final String COMPILED = "double(double x,y)->x * y + Math.sqrt(x) - y / 3";
+
+    @Setup
+    public void setUp() {
+        FunctionParser.setCacheEnabled(false);
+        FunctionParser.setLoadingMode(LoadingMode.ISOLATED);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FunctionParser.setCacheEnabled(true);
+        FunctionParser.setLoadingMode(LoadingMode.SHARED);
+    }
+
+    @Benchmark
+    public ParsedFunction<?> precompiled() {
+        return FunctionParser.fromString(PRECOMPILED);
+    }
+
+    @Benchmark
+    public ParsedFunction<?> compiled() {
+        return FunctionParser.fromString(COMPILED);
+    }
+}
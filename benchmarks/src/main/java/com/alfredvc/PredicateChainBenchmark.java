@@ -0,0 +1,93 @@
+package com.alfredvc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rows per second filtered by a chain of predicates, evaluated one function at a time with
+ * short-circuiting, and as a predicate chain that is reordered so the most selective predicate,
+ * given last, runs first.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PredicateChainBenchmark {
+    private static final int ROWS = 65536;
+    private static final List<String> PREDICATES = Arrays.asList(
+            "boolean(double x, y)->Math.sqrt(x * x + y * y) < 2",
+            "boolean(double x)->Math.log(x + 1) > 0.001",
+            "boolean(double x, z)->x * z < 0.99",
+            "boolean(double y)->Math.exp(y) > 1",
+            "boolean(double x, y, z)->x + y + z > 0.01",
+            "boolean(double z)->z < 0.05");
+
+    private ParsedFunction<?>[] functions;
+    private PredicateChain chain;
+    private final double[][] columns = new double[3][ROWS];
+    private final int[] selected = new int[ROWS];
+
+    @Setup
+    public void setUp() {
+        FunctionParser.setLoadingMode(LoadingMode.ISOLATED);
+        Random random = new Random(42);
+        for (double[] column : columns) {
+            for (int i = 0; i < ROWS; i++) {
+                column[i] = random.nextDouble();
+            }
+        }
+        functions = new ParsedFunction<?>[PREDICATES.size()];
+        for (int i = 0; i < functions.length; i++) {
+            functions[i] = FunctionParser.fromString(PREDICATES.get(i));
+        }
+        chain = FunctionParser.fromStringsAsPredicateChain(PredicateChain.Operator.AND, PREDICATES);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FunctionParser.setLoadingMode(LoadingMode.SHARED);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int individual() {
+        int count = 0;
+        for (int i = 0; i < ROWS; i++) {
+            double x = columns[0][i];
+            double y = columns[1][i];
+            double z = columns[2][i];
+            if (functions[0].evaluateToBoolean(x, y)
+                    && functions[1].evaluateToBoolean(x)
+                    && functions[2].evaluateToBoolean(x, z)
+                    && functions[3].evaluateToBoolean(y)
+                    && functions[4].evaluateToBoolean(x, y, z)
+                    && functions[5].evaluateToBoolean(z)) {
+                selected[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int chain() {
+        return chain.filter(columns, 0, ROWS, selected);
+    }
+}
@@ -0,0 +1,150 @@
+package com.alfredvc;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A reusable argument array for the functions of one {@link ArgumentLayout}. Buffers are not
+ * thread safe; use one buffer per thread.
+ * <p>
+ * Setting arguments by slot does no lookups. Setting them by name looks the slot up in the
+ * layout, and {@link #setAll(Map)} does one map lookup per variable.
+ */
+public final class ArgumentBuffer {
+    private final ArgumentLayout layout;
+    private final double[] doubles;
+    private final Object[] objects;
+
+    ArgumentBuffer(ArgumentLayout layout) {
+        this.layout = layout;
+        this.doubles = layout.isPrimitive() ? new double[layout.size()] : null;
+        this.objects = new Object[layout.size()];
+    }
+
+    public ArgumentLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Sets a numeric argument, converted to the type of the parameter.
+     *
+     * @param slot  the slot of the variable, see {@link ArgumentLayout#slot(String)}.
+     * @param value the value of the variable.
+     * @return this buffer.
+     * @throws IllegalArgumentException if the parameter is integral and the value is not.
+     */
+    public ArgumentBuffer set(int slot, double value) {
+        if (doubles != null) {
+            doubles[slot] = value;
+        } else {
+            objects[slot] = layout.box(slot, value);
+        }
+        return this;
+    }
+
+    /**
+     * Sets an integral argument, converted to the type of the parameter.
+     *
+     * @param slot  the slot of the variable, see {@link ArgumentLayout#slot(String)}.
+     * @param value the value of the variable.
+     * @return this buffer.
+     * @throws IllegalArgumentException if the value does not fit an int or short parameter.
+     */
+    public ArgumentBuffer set(int slot, long value) {
+        if (doubles != null) {
+            doubles[slot] = value;
+        } else {
+            objects[slot] = layout.box(slot, value);
+        }
+        return this;
+    }
+
+    /**
+     * Sets an argument. Numbers are converted to the type of numeric parameters, and buffers of
+     * primitive layouts only accept numbers.
+     *
+     * @param slot  the slot of the variable, see {@link ArgumentLayout#slot(String)}.
+     * @param value the value of the variable.
+     * @return this buffer.
+     * @throws IllegalArgumentException if the layout is primitive and the value is not a number,
+     *                                  or if the number does not fit an integral parameter.
+     */
+    public ArgumentBuffer set(int slot, Object value) {
+        if (doubles == null) {
+            objects[slot] = layout.convert(slot, value);
+        } else if (value instanceof Number) {
+            doubles[slot] = ((Number) value).doubleValue();
+        } else {
+            throw new IllegalArgumentException("Variable " + layout.name(slot) + " takes a double, got " + value);
+        }
+        return this;
+    }
+
+    public ArgumentBuffer set(String name, double value) {
+        return set(layout.slot(name), value);
+    }
+
+    public ArgumentBuffer set(String name, long value) {
+        return set(layout.slot(name), value);
+    }
+
+    public ArgumentBuffer set(String name, Object value) {
+        return set(layout.slot(name), value);
+    }
+
+    /**
+     * Sets every argument from a map of variable names to values.
+     *
+     * @param values the values of the variables.
+     * @return this buffer.
+     * @throws IllegalArgumentException if a variable has no value in the map.
+     */
+    public ArgumentBuffer setAll(Map<String, ?> values) {
+        for (int i = 0; i < layout.size(); i++) {
+            Object value = values.get(layout.name(i));
+            if (value == null && !values.containsKey(layout.name(i))) {
+                throw new IllegalArgumentException("Missing value for variable " + layout.name(i));
+            }
+            set(i, value);
+        }
+        return this;
+    }
+
+    /**
+     * Clears all arguments, so no references to previous arguments are kept.
+     *
+     * @return this buffer.
+     */
+    public ArgumentBuffer reset() {
+        if (doubles != null) {
+            Arrays.fill(doubles, 0.0);
+        }
+        Arrays.fill(objects, null);
+        return this;
+    }
+
+    boolean isPrimitive() {
+        return doubles != null;
+    }
+
+    double[] doubleArguments() {
+        return doubles;
+    }
+
+    /**
+     * Returns the arguments as an Object[], boxing them if the layout is primitive.
+     */
+    Object[] objectArguments() {
+        if (doubles != null) {
+            for (int i = 0; i < doubles.length; i++) {
+                objects[i] = doubles[i];
+            }
+        }
+        return objects;
+    }
+
+    @Override
+    public String toString() {
+        return "ArgumentBuffer" + (doubles != null ? Arrays.toString(doubles) : Arrays.toString(objects));
+    }
+}
@@ -0,0 +1,188 @@
+package com.alfredvc;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The positions of the variables of a function in its argument array, computed once so callers do
+ * not have to search {@link ParsedFunction#getVariableSet()} on every evaluation.
+ * <p>
+ * Arguments are filled into an {@link ArgumentBuffer} created by {@link #newBuffer()}, either by
+ * slot, by name or from a map, and evaluated with for example
+ * {@link ParsedFunction#evaluateToDouble(ArgumentBuffer)}:
+ * <pre>
+ * ParsedFunction f = FunctionParser.fromString("double(double x, y)-&gt;x * y");
+ * ArgumentLayout layout = ArgumentLayout.of(f);
+ * int x = layout.slot("x");
+ * int y = layout.slot("y");
+ * ArgumentBuffer arguments = layout.newBuffer();
+ * for (...) {
+ *     arguments.set(x, 3.0).set(y, 4.0);
+ *     double result = f.evaluateToDouble(arguments);
+ * }
+ * </pre>
+ * Functions whose parameters are all primitive doubles keep their arguments unboxed, so filling
+ * the buffer by slot and evaluating it does not allocate. For other functions, numbers set for
+ * numeric parameters are converted to the type of the parameter, so set(slot, 2) works for an int,
+ * a long or a Double parameter alike.
+ */
+public final class ArgumentLayout {
+    private final String[] names;
+    private final String[] types;
+    private final Map<String, Integer> slots;
+    private final boolean primitive;
+
+    private ArgumentLayout(String[] names, String[] types, boolean primitive) {
+        this.names = names;
+        this.types = types;
+        this.primitive = primitive;
+        Map<String, Integer> map = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            map.put(names[i], i);
+        }
+        this.slots = map;
+    }
+
+    /**
+     * Computes the layout of the arguments of the given function.
+     *
+     * @param function the function.
+     * @return the layout of its arguments.
+     */
+    public static ArgumentLayout of(ParsedFunction<?> function) {
+        String[] names = function.getVariableSet().toArray(new String[0]);
+        Map<String, String> parameterTypes = new HashMap<>();
+        boolean primitive = names.length > 0;
+        for (FunctionDeclaration.Parameter parameter : FunctionDeclaration.parse(function.getFunctionString()).getParameters()) {
+            String type = parameter.getErasedType();
+            primitive &= type.equals("double");
+            String simpleName = type.startsWith("java.lang.") ? type.substring("java.lang.".length()) : type;
+            parameterTypes.put(parameter.name, FunctionParser.getValueType(simpleName));
+        }
+        String[] types = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            types[i] = parameterTypes.get(names[i]);
+        }
+        return new ArgumentLayout(names, types, primitive);
+    }
+
+    /**
+     * Returns the position of a variable in the argument array.
+     *
+     * @param name the name of the variable.
+     * @return the slot of the variable.
+     * @throws IllegalArgumentException if the function has no such variable.
+     */
+    public int slot(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            throw new IllegalArgumentException("Unknown variable " + name + ", expected one of " + Arrays.toString(names));
+        }
+        return slot;
+    }
+
+    public String name(int slot) {
+        return names[slot];
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public List<String> getNames() {
+        return Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    /**
+     * Whether all parameters of the function are primitive doubles, in which case the buffers of
+     * this layout store the arguments unboxed.
+     *
+     * @return whether arguments are stored as doubles.
+     */
+    public boolean isPrimitive() {
+        return primitive;
+    }
+
+    /**
+     * Boxes a number as the type of the parameter in the given slot. Parameters of other types,
+     * such as Object or Number, get a Double.
+     *
+     * @throws IllegalArgumentException if the value does not fit an integral parameter.
+     */
+    Object box(int slot, double value) {
+        String type = types[slot];
+        if (type == null) {
+            return value;
+        }
+        switch (type) {
+            case "int":
+            case "short":
+            case "long":
+                if (value != (long) value) {
+                    throw new IllegalArgumentException("Variable " + names[slot] + " takes a " + type + ", got " + value);
+                }
+                return box(slot, (long) value);
+            case "float":
+                return (float) value;
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Boxes an integer as the type of the parameter in the given slot. Parameters of other types,
+     * such as Object or Number, get a Long.
+     *
+     * @throws IllegalArgumentException if the value does not fit an integral parameter.
+     */
+    Object box(int slot, long value) {
+        String type = types[slot];
+        if (type == null) {
+            return value;
+        }
+        switch (type) {
+            case "int":
+                if (value != (int) value) {
+                    throw new IllegalArgumentException("Variable " + names[slot] + " takes an int, got " + value);
+                }
+                return (int) value;
+            case "short":
+                if (value != (short) value) {
+                    throw new IllegalArgumentException("Variable " + names[slot] + " takes a short, got " + value);
+                }
+                return (short) value;
+            case "float":
+                return (float) value;
+            case "double":
+                return (double) value;
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Converts a number to the type of a numeric parameter, and returns other values unchanged.
+     */
+    Object convert(int slot, Object value) {
+        String type = types[slot];
+        if (!(value instanceof Number) || type == null || type.equals("boolean") || !FunctionParser.supportedPrimitives.contains(type)) {
+            return value;
+        }
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return box(slot, ((Number) value).longValue());
+        }
+        return box(slot, ((Number) value).doubleValue());
+    }
+
+    public ArgumentBuffer newBuffer() {
+        return new ArgumentBuffer(this);
+    }
+
+    @Override
+    public String toString() {
+        return "ArgumentLayout" + Arrays.toString(names);
+    }
+}
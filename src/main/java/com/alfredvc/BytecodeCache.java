@@ -0,0 +1,413 @@
+package com.alfredvc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of the bytecode generated by FunctionParser, stored in a single pack file in a
+ * cache directory.
+ * <p>
+ * Entries are keyed by a SHA-256 hash of the whitespace normalized function string, the target
+ * interface, whether optimization is enabled and the library version. When a function string is
+ * found in the cache its class is defined straight from the memory mapped pack file, skipping
+ * parsing and Javassist compilation entirely. Every entry carries a CRC32 checksum; corrupt
+ * entries are dropped when the pack is opened, and entries written by another version of the
+ * library never match, so in both cases the function is recompiled and written to the pack again.
+ * <p>
+ * A function string is only appended once per open cache. Entries written by another version of
+ * the library, and entries superseded by a later entry for the same key, are dead. When the pack
+ * is opened with dead entries it is compacted: the live entries are copied into a new file that
+ * atomically replaces the pack. Other processes that still have the old pack open keep reading it,
+ * but entries they append to it afterwards are lost.
+ * <p>
+ * Cached classes are always defined in their own class loader, as in {@link LoadingMode#ISOLATED},
+ * because the class names stored in the pack may clash with classes generated by the running JVM.
+ * Functions compiled with {@link FunctionParser#fromStrings(java.util.Collection)} are loaded from
+ * the cache, but the batch classes they are compiled into are not stored in it.
+ * <p>
+ * For example: FunctionParser.setBytecodeCache(BytecodeCache.open(Paths.get("/var/cache/functions")));
+ */
+public final class BytecodeCache implements Closeable {
+    public static final String PACK_FILE_NAME = "functions.pack";
+    /**
+     * Version of the generated code, part of every key. Must be increased whenever FunctionParser
+     * changes the classes it generates.
+     */
+    static final int GENERATOR_VERSION = 1;
+    private static final int MAGIC = 0x46504B31;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int ENTRY_HEADER_SIZE = 8;
+
+    private final Path packFile;
+    private final FileChannel channel;
+    private final Map<String, Entry> index = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong corruptEntries = new AtomicLong();
+    private int deadEntries;
+    private boolean compacted;
+
+    private BytecodeCache(Path packFile, FileChannel channel) {
+        this.packFile = packFile;
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the pack file in the given directory, creating the directory and the file if they do
+     * not exist, compacts it if it has dead entries, and indexes the entries in it.
+     *
+     * @param directory the cache directory.
+     * @return the opened cache.
+     * @throws IOException if the pack file cannot be read or created.
+     */
+    public static BytecodeCache open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path packFile = directory.resolve(PACK_FILE_NAME);
+        BytecodeCache cache = openPack(packFile, true);
+        if (cache.compacted) {
+            long corrupt = cache.getCorruptEntryCount();
+            cache.close();
+            cache = openPack(packFile, false);
+            cache.corruptEntries.addAndGet(corrupt);
+        }
+        return cache;
+    }
+
+    private static BytecodeCache openPack(Path packFile, boolean compact) throws IOException {
+        FileChannel channel = FileChannel.open(packFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        BytecodeCache cache = new BytecodeCache(packFile, channel);
+        try (FileLock ignored = channel.lock()) {
+            cache.readPack();
+            cache.compacted = compact && cache.deadEntries > 0 && cache.compact();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return cache;
+    }
+
+    /**
+     * Writes the live entries into a new file and moves it over the pack, while the pack is locked.
+     *
+     * @return whether the pack was replaced.
+     */
+    private boolean compact() {
+        Path compacted = null;
+        try {
+            compacted = Files.createTempFile(packFile.getParent(), PACK_FILE_NAME, ".tmp");
+            try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(FORMAT_VERSION);
+                header.flip();
+                out.write(header);
+                for (Entry entry : index.values()) {
+                    ByteBuffer record = entry.record.duplicate();
+                    while (record.hasRemaining()) {
+                        out.write(record);
+                    }
+                }
+                out.force(false);
+            }
+            Files.move(compacted, packFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            // Some file systems cannot replace an open file, keep using the pack as it is.
+            if (compacted != null) {
+                try {
+                    Files.deleteIfExists(compacted);
+                } catch (IOException ignored) {
+                    // Left behind in the cache directory.
+                }
+            }
+            return false;
+        }
+    }
+
+    public Path getPackFile() {
+        return packFile;
+    }
+
+    public int size() {
+        synchronized (index) {
+            return index.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of entries that were found to be corrupt, either because their checksum
+     * did not match when the pack was opened or because their class could not be defined.
+     *
+     * @return the number of corrupt entries.
+     */
+    public long getCorruptEntryCount() {
+        return corruptEntries.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "BytecodeCache[" + packFile + ", size=" + size() + ", hits=" + getHitCount() + ", misses="
+                + getMissCount() + ", corrupt=" + getCorruptEntryCount() + "]";
+    }
+
+    /**
+     * Defines the cached class of a function string and returns a new instance of it, or null if
+     * the function is not cached or its cached class cannot be used.
+     */
+    <T> ParsedFunction<T> load(String functionString, Class<?> targetInterface) {
+        String key = key(functionString, targetInterface);
+        Entry entry;
+        synchronized (index) {
+            entry = index.get(key);
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            Class<?> clazz = new FunctionClassLoader(FunctionClassLoader.parentLoader()).define(entry.className, entry.bytecode.duplicate());
+            ParsedFunction<T> function = FunctionParser.instantiate(clazz,
+                    new LinkedHashSet<>(Arrays.asList(entry.variables)), functionString);
+            hits.incrementAndGet();
+            return function;
+        } catch (LinkageError | IllegalArgumentException | ClassCastException e) {
+            synchronized (index) {
+                index.remove(key, entry);
+            }
+            corruptEntries.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Appends the bytecode of a newly compiled function to the pack, unless it is already in the
+     * pack. Failures to write are ignored, the function is then simply compiled again by the next
+     * JVM.
+     */
+    void store(String functionString, Class<?> targetInterface, String className, LinkedHashSet<String> variables, byte[] bytecode) {
+        String key = key(functionString, targetInterface);
+        synchronized (index) {
+            if (index.containsKey(key)) {
+                return;
+            }
+        }
+        byte[] keyBytes = hexToBytes(key);
+        byte[] stamp = stamp().getBytes(StandardCharsets.UTF_8);
+        byte[] name = className.getBytes(StandardCharsets.UTF_8);
+        byte[][] variableNames = new byte[variables.size()][];
+        int length = keyBytes.length + 4 + stamp.length + 4 + name.length + 4 + 4 + bytecode.length;
+        int i = 0;
+        for (String variable : variables) {
+            variableNames[i] = variable.getBytes(StandardCharsets.UTF_8);
+            length += 4 + variableNames[i++].length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(ENTRY_HEADER_SIZE + length);
+        record.position(ENTRY_HEADER_SIZE);
+        ByteBuffer payload = record.slice();
+        payload.put(keyBytes);
+        payload.putInt(stamp.length).put(stamp);
+        payload.putInt(name.length).put(name);
+        payload.putInt(variableNames.length);
+        for (byte[] variableName : variableNames) {
+            payload.putInt(variableName.length).put(variableName);
+        }
+        payload.putInt(bytecode.length).put(bytecode);
+        payload.flip();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        record.putInt(0, length).putInt(4, (int) crc.getValue());
+        record.position(0);
+
+        try {
+            synchronized (channel) {
+                try (FileLock ignored = channel.lock()) {
+                    write(record.duplicate(), channel.size());
+                }
+            }
+        } catch (IOException e) {
+            return;
+        }
+        Entry entry = new Entry(className, variables.toArray(new String[variables.size()]), ByteBuffer.wrap(bytecode).asReadOnlyBuffer(),
+                record.asReadOnlyBuffer());
+        synchronized (index) {
+            index.put(key, entry);
+        }
+    }
+
+    private int write(ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    private void readPack() throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(packFile + " is too large to be mapped");
+        }
+        if (size < HEADER_SIZE) {
+            resetPack();
+            return;
+        }
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (map.getInt(0) != MAGIC || map.getInt(4) != FORMAT_VERSION) {
+            resetPack();
+            return;
+        }
+        int position = HEADER_SIZE;
+        while (position + ENTRY_HEADER_SIZE <= size) {
+            int length = map.getInt(position);
+            int checksum = map.getInt(position + 4);
+            if (length <= 0 || position + ENTRY_HEADER_SIZE + (long) length > size) {
+                corruptEntries.incrementAndGet();
+                break;
+            }
+            ByteBuffer payload = slice(map, position + ENTRY_HEADER_SIZE, length);
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum || !readEntry(payload, slice(map, position, ENTRY_HEADER_SIZE + length))) {
+                corruptEntries.incrementAndGet();
+                break;
+            }
+            position += ENTRY_HEADER_SIZE + length;
+        }
+        if (position < size) {
+            // Drop the corrupt tail so entries appended from now on can be read again.
+            channel.truncate(position);
+        }
+    }
+
+    /**
+     * Indexes an entry, counting it as dead if it was written by another version of the library.
+     * Entries for the same key replace the earlier ones, which become dead.
+     */
+    private boolean readEntry(ByteBuffer payload, ByteBuffer record) {
+        try {
+            byte[] keyBytes = new byte[32];
+            payload.get(keyBytes);
+            boolean current = readString(payload).equals(stamp());
+            String className = readString(payload);
+            String[] variables = new String[payload.getInt()];
+            for (int i = 0; i < variables.length; i++) {
+                variables[i] = readString(payload);
+            }
+            int bytecodeLength = payload.getInt();
+            if (bytecodeLength != payload.remaining()) {
+                return false;
+            }
+            ByteBuffer bytecode = slice(payload, payload.position(), bytecodeLength);
+            if (!current || index.put(bytesToHex(keyBytes), new Entry(className, variables, bytecode, record)) != null) {
+                deadEntries++;
+            }
+            return true;
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            return false;
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.limit(position + length);
+        return duplicate.slice().asReadOnlyBuffer();
+    }
+
+    private void resetPack() throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION);
+        header.flip();
+        write(header, 0);
+    }
+
+    /**
+     * The generator and library version the entries are written by.
+     */
+    private static String stamp() {
+        String version = FunctionParser.class.getPackage() == null ? null : FunctionParser.class.getPackage().getImplementationVersion();
+        return GENERATOR_VERSION + "\u0000" + version;
+    }
+
+    static String key(String functionString, Class<?> targetInterface) {
+        String content = stamp() + "\u0000" + FunctionParser.isOptimizationEnabled() + "\u0000"
+                + (targetInterface == null ? "" : targetInterface.getName()) + "\u0000" + FunctionCache.normalize(functionString);
+        try {
+            return bytesToHex(MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String bytesToHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static final class Entry {
+        final String className;
+        final String[] variables;
+        final ByteBuffer bytecode;
+        /**
+         * The entry as it is stored in the pack, with its header.
+         */
+        final ByteBuffer record;
+
+        Entry(String className, String[] variables, ByteBuffer bytecode, ByteBuffer record) {
+            this.className = className;
+            this.variables = variables;
+            this.bytecode = bytecode;
+            this.record = record;
+        }
+    }
+}
@@ -0,0 +1,920 @@
+package com.alfredvc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Expression trees of function bodies, built by a recursive descent parser over the tokens of
+ * {@link FunctionLexer}. {@link ExpressionOptimizer} rewrites and prints the trees, and
+ * {@link InterpretedFunction} evaluates them.
+ * <p>
+ * Nodes know the numeric type of their value where Java's binary numeric promotion determines it,
+ * and whether evaluating them has no side effects. Calls of java.lang.Math functions are typed
+ * with the overload Java picks for their arguments; every other call, member access and array
+ * access is kept as an opaque node of unknown type.
+ */
+final class Expression {
+    /**
+     * The java.lang.Math functions taking and returning doubles only.
+     */
+    static final Map<String, DoubleUnaryOperator> UNARY_MATH_FUNCTIONS = new HashMap<>();
+    static final Map<String, DoubleBinaryOperator> BINARY_MATH_FUNCTIONS = new HashMap<>();
+    /**
+     * The java.lang.Math functions with int, long, float and double overloads.
+     */
+    static final Set<String> POLYMORPHIC_MATH_FUNCTIONS = new HashSet<>(Arrays.asList("abs", "max", "min"));
+    /**
+     * The java.lang.Math functions with float and double overloads. Math.round returns an int or a
+     * long, the others a float or a double.
+     */
+    static final Set<String> FLOAT_MATH_FUNCTIONS = new HashSet<>(Arrays.asList("signum", "ulp", "copySign", "round"));
+    private static final Map<String, Integer> PRECEDENCE = new HashMap<>();
+    private static final Token END = new Token(Token.Kind.WHITESPACE, "", -1);
+
+    static {
+        String[][] levels = {{"||"}, {"&&"}, {"|"}, {"^"}, {"&"}, {"==", "!="}, {"<", ">", "<=", ">="},
+                {"<<", ">>", ">>>"}, {"+", "-"}, {"*", "/", "%"}};
+        for (int i = 0; i < levels.length; i++) {
+            for (String operator : levels[i]) {
+                PRECEDENCE.put(operator, i + 1);
+            }
+        }
+
+        UNARY_MATH_FUNCTIONS.put("sqrt", Math::sqrt);
+        UNARY_MATH_FUNCTIONS.put("cbrt", Math::cbrt);
+        UNARY_MATH_FUNCTIONS.put("sin", Math::sin);
+        UNARY_MATH_FUNCTIONS.put("cos", Math::cos);
+        UNARY_MATH_FUNCTIONS.put("tan", Math::tan);
+        UNARY_MATH_FUNCTIONS.put("asin", Math::asin);
+        UNARY_MATH_FUNCTIONS.put("acos", Math::acos);
+        UNARY_MATH_FUNCTIONS.put("atan", Math::atan);
+        UNARY_MATH_FUNCTIONS.put("sinh", Math::sinh);
+        UNARY_MATH_FUNCTIONS.put("cosh", Math::cosh);
+        UNARY_MATH_FUNCTIONS.put("tanh", Math::tanh);
+        UNARY_MATH_FUNCTIONS.put("exp", Math::exp);
+        UNARY_MATH_FUNCTIONS.put("expm1", Math::expm1);
+        UNARY_MATH_FUNCTIONS.put("log", Math::log);
+        UNARY_MATH_FUNCTIONS.put("log10", Math::log10);
+        UNARY_MATH_FUNCTIONS.put("log1p", Math::log1p);
+        UNARY_MATH_FUNCTIONS.put("floor", Math::floor);
+        UNARY_MATH_FUNCTIONS.put("ceil", Math::ceil);
+        UNARY_MATH_FUNCTIONS.put("rint", Math::rint);
+        UNARY_MATH_FUNCTIONS.put("toRadians", Math::toRadians);
+        UNARY_MATH_FUNCTIONS.put("toDegrees", Math::toDegrees);
+        BINARY_MATH_FUNCTIONS.put("pow", Math::pow);
+        BINARY_MATH_FUNCTIONS.put("atan2", Math::atan2);
+        BINARY_MATH_FUNCTIONS.put("hypot", Math::hypot);
+        BINARY_MATH_FUNCTIONS.put("IEEEremainder", Math::IEEEremainder);
+    }
+
+    private Expression() {
+        //Intentionally empty.
+    }
+
+    /**
+     * Types of expressions. The numeric types are in the order of binary numeric promotion.
+     */
+    enum Type {
+        INT, LONG, FLOAT, DOUBLE, BOOLEAN;
+
+        /**
+         * Binary numeric promotion, or null if one of the types is not numeric.
+         */
+        static Type promote(Type a, Type b) {
+            if (a == null || b == null || a == BOOLEAN || b == BOOLEAN) {
+                return null;
+            }
+            Type promoted = a.compareTo(b) > 0 ? a : b;
+            return promoted.compareTo(INT) < 0 ? INT : promoted;
+        }
+
+        /**
+         * The type of a primitive type or its wrapper, or null for other types.
+         */
+        static Type ofName(String name) {
+            switch (name) {
+                case "int":
+                case "Integer":
+                case "java.lang.Integer":
+                    return INT;
+                case "long":
+                case "Long":
+                case "java.lang.Long":
+                    return LONG;
+                case "float":
+                case "Float":
+                case "java.lang.Float":
+                    return FLOAT;
+                case "double":
+                case "Double":
+                case "java.lang.Double":
+                    return DOUBLE;
+                case "boolean":
+                case "Boolean":
+                case "java.lang.Boolean":
+                    return BOOLEAN;
+                default:
+                    return null;
+            }
+        }
+
+        boolean isNumeric() {
+            return this != BOOLEAN;
+        }
+
+        boolean isIntegral() {
+            return this == INT || this == LONG;
+        }
+
+        String javaName() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Thrown by the parser for syntax outside of the supported expressions.
+     */
+    static final class UnsupportedExpressionException extends RuntimeException {
+        UnsupportedExpressionException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * Parses the significant tokens of an expression.
+     *
+     * @param tokens     the tokens, without whitespace and comments.
+     * @param parameters the type of every variable by name, null for variables of other types.
+     * @return the root of the tree.
+     * @throws UnsupportedExpressionException if the tokens are not a single supported expression.
+     */
+    static Node parse(List<Token> tokens, Map<String, Type> parameters) {
+        Parser parser = new Parser(tokens, parameters);
+        Node root = parser.parseExpression();
+        if (!parser.atEnd()) {
+            throw new UnsupportedExpressionException(parser.peek(0).text);
+        }
+        return root;
+    }
+
+    /**
+     * Creates a call node. Calls of java.lang.Math functions are typed, and pure if their arguments
+     * are; all other calls are opaque.
+     */
+    static Call call(Node receiver, String name, List<Node> arguments) {
+        if (!isMathCall(receiver, name, arguments.size())) {
+            return new Call(receiver, name, arguments, null, false);
+        }
+        boolean pure = true;
+        for (Node argument : arguments) {
+            pure &= argument.isPure();
+        }
+        Type first = arguments.get(0).type();
+        Type last = arguments.get(arguments.size() - 1).type();
+        Type type;
+        if (POLYMORPHIC_MATH_FUNCTIONS.contains(name)) {
+            type = Type.promote(first, last);
+        } else if (FLOAT_MATH_FUNCTIONS.contains(name)) {
+            Type promoted = Type.promote(first, last);
+            // The float overload is picked unless an argument is a double.
+            Type argumentType = promoted == null ? null : promoted == Type.DOUBLE ? Type.DOUBLE : Type.FLOAT;
+            type = argumentType == null || !name.equals("round") ? argumentType
+                    : argumentType == Type.FLOAT ? Type.INT : Type.LONG;
+        } else {
+            type = Type.DOUBLE;
+        }
+        return new Call(receiver, name, arguments, type, pure);
+    }
+
+    /**
+     * Whether the call is one of the supported java.lang.Math functions. A variable named Math
+     * shadows the class.
+     */
+    static boolean isMathCall(Call call) {
+        return isMathCall(call.receiver, call.name, call.arguments.size());
+    }
+
+    private static boolean isMathCall(Node receiver, String name, int arity) {
+        if (!(receiver instanceof Name) || ((Name) receiver).isPure()) {
+            return false;
+        }
+        String receiverName = ((Name) receiver).name;
+        if (!receiverName.equals("Math") && !receiverName.equals("java.lang.Math")) {
+            return false;
+        }
+        return UNARY_MATH_FUNCTIONS.containsKey(name) && arity == 1
+                || BINARY_MATH_FUNCTIONS.containsKey(name) && arity == 2
+                || (name.equals("abs") || name.equals("signum") || name.equals("ulp") || name.equals("round")) && arity == 1
+                || (name.equals("max") || name.equals("min") || name.equals("copySign")) && arity == 2;
+    }
+
+    static boolean isPrimitiveTypeName(String typeName) {
+        return Character.isLowerCase(typeName.charAt(0)) && typeName.indexOf('.') < 0;
+    }
+
+    /**
+     * Recursive descent parser of Java expressions, without assignments, object creation, lambdas
+     * and increments.
+     */
+    private static final class Parser {
+        private final List<Token> tokens;
+        private final Map<String, Type> parameters;
+        private int position;
+
+        Parser(List<Token> tokens, Map<String, Type> parameters) {
+            this.tokens = tokens;
+            this.parameters = parameters;
+        }
+
+        boolean atEnd() {
+            return position >= tokens.size();
+        }
+
+        Node parseExpression() {
+            Node condition = parseBinary(1);
+            if (accept("?")) {
+                Node whenTrue = parseExpression();
+                expect(":");
+                Node whenFalse = parseExpression();
+                return new Ternary(condition, whenTrue, whenFalse);
+            }
+            return condition;
+        }
+
+        private Node parseBinary(int minimumPrecedence) {
+            Node left = parseUnary();
+            while (!atEnd()) {
+                Token token = peek(0);
+                Integer precedence = token.kind == Token.Kind.OPERATOR ? PRECEDENCE.get(token.text) : null;
+                if (token.kind == Token.Kind.IDENTIFIER && token.text.equals("instanceof")) {
+                    throw new UnsupportedExpressionException("instanceof");
+                }
+                if (precedence == null || precedence < minimumPrecedence) {
+                    break;
+                }
+                position++;
+                left = new Binary(token.text, left, parseBinary(precedence + 1));
+            }
+            return left;
+        }
+
+        private Node parseUnary() {
+            Token token = next();
+            if (token.is("-") || token.is("+") || token.is("!") || token.is("~")) {
+                return new Unary(token.text, parseUnary());
+            }
+            if (token.is("(") && isCast()) {
+                StringBuilder typeName = new StringBuilder();
+                while (!peek(0).is(")")) {
+                    typeName.append(next().text);
+                }
+                position++;
+                return new Cast(typeName.toString(), parseUnary());
+            }
+            position--;
+            return parsePostfix(parsePrimary());
+        }
+
+        /**
+         * Whether the parenthesis just read starts a cast: a primitive type, or a qualified name
+         * followed by something that cannot continue a binary expression, as in the Java grammar.
+         */
+        private boolean isCast() {
+            int i = 0;
+            if (peek(i).kind != Token.Kind.IDENTIFIER || parameters.containsKey(peek(i).text)) {
+                return false;
+            }
+            if (Type.ofName(peek(i).text) != null && isPrimitiveTypeName(peek(i).text) || isOtherPrimitive(peek(i).text)) {
+                return peek(i + 1).is(")");
+            }
+            while (peek(i + 1).is(".") && peek(i + 2).kind == Token.Kind.IDENTIFIER) {
+                i += 2;
+            }
+            if (!peek(i + 1).is(")")) {
+                return false;
+            }
+            Token after = peek(i + 2);
+            return after.kind == Token.Kind.IDENTIFIER || after.kind == Token.Kind.NUMBER || after.kind == Token.Kind.STRING
+                    || after.kind == Token.Kind.CHARACTER || after.is("(") || after.is("!") || after.is("~");
+        }
+
+        private boolean isOtherPrimitive(String name) {
+            return name.equals("short") || name.equals("byte") || name.equals("char");
+        }
+
+        private Node parsePrimary() {
+            Token token = next();
+            switch (token.kind) {
+                case NUMBER:
+                    return Literal.parse(token.text, false);
+                case STRING:
+                case CHARACTER:
+                    return new Literal(token.text, null, false, false, 0, 0);
+                case IDENTIFIER:
+                    return parseName(token);
+                default:
+                    if (token.is("(")) {
+                        Node inner = parseExpression();
+                        expect(")");
+                        return inner;
+                    }
+                    throw new UnsupportedExpressionException(token.text);
+            }
+        }
+
+        private Node parseName(Token first) {
+            switch (first.text) {
+                case "true":
+                case "false":
+                    return new Literal(first.text, Type.BOOLEAN, false, false, 0, 0);
+                case "null":
+                    return new Literal(first.text, null, false, false, 0, 0);
+                case "new":
+                case "this":
+                case "super":
+                case "switch":
+                    throw new UnsupportedExpressionException(first.text);
+                default:
+                    break;
+            }
+            StringBuilder name = new StringBuilder(first.text);
+            if (peek(0).is("(")) {
+                position++;
+                return call(null, first.text, parseArguments());
+            }
+            // Qualified names end before a method name, which is handled as a postfix call.
+            while (peek(0).is(".") && peek(1).kind == Token.Kind.IDENTIFIER && !peek(2).is("(")) {
+                name.append('.').append(peek(1).text);
+                position += 2;
+            }
+            String text = name.toString();
+            if (parameters.containsKey(text)) {
+                return new Name(text, parameters.get(text), true);
+            }
+            if (!parameters.containsKey("Math") && (text.equals("Math.PI") || text.equals("java.lang.Math.PI"))) {
+                return Literal.of(Type.DOUBLE, Math.PI, 0);
+            }
+            if (!parameters.containsKey("Math") && (text.equals("Math.E") || text.equals("java.lang.Math.E"))) {
+                return Literal.of(Type.DOUBLE, Math.E, 0);
+            }
+            return new Name(text, null, false);
+        }
+
+        private Node parsePostfix(Node primary) {
+            Node node = primary;
+            while (!atEnd()) {
+                if (peek(0).is(".") && peek(1).kind == Token.Kind.IDENTIFIER) {
+                    String name = peek(1).text;
+                    position += 2;
+                    if (accept("(")) {
+                        node = call(node, name, parseArguments());
+                    } else {
+                        node = new Member(node, name);
+                    }
+                } else if (accept("[")) {
+                    Node index = parseExpression();
+                    expect("]");
+                    node = new Index(node, index);
+                } else if (peek(0).is("++") || peek(0).is("--") || peek(0).is("=") || peek(0).is("->") || peek(0).is("::")) {
+                    throw new UnsupportedExpressionException(peek(0).text);
+                } else {
+                    break;
+                }
+            }
+            return node;
+        }
+
+        private List<Node> parseArguments() {
+            List<Node> arguments = new ArrayList<>();
+            if (accept(")")) {
+                return arguments;
+            }
+            do {
+                arguments.add(parseExpression());
+            } while (accept(","));
+            expect(")");
+            return arguments;
+        }
+
+        private Token peek(int offset) {
+            int i = position + offset;
+            return i < tokens.size() ? tokens.get(i) : END;
+        }
+
+        private Token next() {
+            Token token = peek(0);
+            position++;
+            if (token == END) {
+                throw new UnsupportedExpressionException("end of expression");
+            }
+            return token;
+        }
+
+        private boolean accept(String operator) {
+            if (peek(0).is(operator)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String operator) {
+            if (!accept(operator)) {
+                throw new UnsupportedExpressionException(atEnd() ? "end of expression" : peek(0).text);
+            }
+        }
+    }
+
+    /*
+     * Expression tree.
+     */
+
+    abstract static class Node {
+        private String source;
+
+        /**
+         * @return the type of the value, or null if it is not known.
+         */
+        abstract Type type();
+
+        /**
+         * @return whether evaluating the node has no side effects and cannot throw.
+         */
+        abstract boolean isPure();
+
+        abstract void print(StringBuilder sb);
+
+        List<Node> children() {
+            return Collections.emptyList();
+        }
+
+        boolean isAtomic() {
+            return false;
+        }
+
+        final String source() {
+            if (source == null) {
+                StringBuilder sb = new StringBuilder();
+                print(sb);
+                source = sb.toString();
+            }
+            return source;
+        }
+
+        final void printOperand(StringBuilder sb) {
+            if (isAtomic()) {
+                sb.append(source());
+            } else {
+                sb.append('(').append(source()).append(')');
+            }
+        }
+    }
+
+    static final class Literal extends Node {
+        final String text;
+        final Type type;
+        final boolean known;
+        final boolean parsed;
+        final double doubleValue;
+        final long longValue;
+
+        Literal(String text, Type type, boolean known, boolean parsed, double doubleValue, long longValue) {
+            this.text = text;
+            this.type = type;
+            this.known = known;
+            this.parsed = parsed;
+            this.doubleValue = doubleValue;
+            this.longValue = longValue;
+        }
+
+        static Literal of(Type type, double doubleValue, long longValue) {
+            switch (type) {
+                case INT:
+                    return new Literal(Integer.toString((int) longValue), type, true, true, (int) longValue, (int) longValue);
+                case LONG:
+                    return new Literal(longValue + "L", type, true, true, longValue, longValue);
+                case FLOAT:
+                    return new Literal(Float.toString((float) doubleValue) + "f", type, true, true, (float) doubleValue, 0);
+                default:
+                    return new Literal(Double.toString(doubleValue), type, true, true, doubleValue, 0);
+            }
+        }
+
+        /**
+         * Parses a numeric literal, negated if it follows a unary minus so that the smallest int
+         * and long literals can be read. Octal, hexadecimal and binary integers are parsed but not
+         * known, so they keep their spelling.
+         */
+        static Literal parse(String text, boolean negative) {
+            String digits = text.replace("_", "");
+            String lower = digits.toLowerCase();
+            char last = lower.charAt(lower.length() - 1);
+            boolean hex = lower.startsWith("0x");
+            boolean floating = hex ? lower.indexOf('p') >= 0
+                    : last == 'f' || last == 'd' || lower.indexOf('.') >= 0 || lower.indexOf('e') >= 0;
+            try {
+                if (floating) {
+                    if (last == 'f') {
+                        float value = Float.parseFloat(digits);
+                        return new Literal(text, Type.FLOAT, true, true, negative ? -value : value, 0);
+                    }
+                    double value = Double.parseDouble(digits);
+                    return new Literal(text, Type.DOUBLE, true, true, negative ? -value : value, 0);
+                }
+                boolean isLong = last == 'l';
+                Type type = isLong ? Type.LONG : Type.INT;
+                String number = isLong ? lower.substring(0, lower.length() - 1) : lower;
+                int radix = 10;
+                if (hex) {
+                    radix = 16;
+                    number = number.substring(2);
+                } else if (number.startsWith("0b")) {
+                    radix = 2;
+                    number = number.substring(2);
+                } else if (number.length() > 1 && number.startsWith("0")) {
+                    radix = 8;
+                    number = number.substring(1);
+                }
+                long value;
+                if (radix == 10) {
+                    value = isLong ? Long.parseLong(negative ? "-" + number : number)
+                            : Integer.parseInt(negative ? "-" + number : number);
+                    return new Literal(text, type, true, true, value, value);
+                }
+                value = isLong ? Long.parseUnsignedLong(number, radix) : Integer.parseUnsignedInt(number, radix);
+                if (negative) {
+                    value = isLong ? -value : -(int) value;
+                }
+                return new Literal(text, type, false, true, value, value);
+            } catch (NumberFormatException e) {
+                return new Literal(text, floating ? Type.DOUBLE : null, false, false, 0, 0);
+            }
+        }
+
+        /**
+         * @return whether the value is known and can be folded and printed in decimal.
+         */
+        boolean isKnown() {
+            return known;
+        }
+
+        @Override
+        Type type() {
+            return type;
+        }
+
+        @Override
+        boolean isPure() {
+            return true;
+        }
+
+        @Override
+        boolean isAtomic() {
+            return !text.startsWith("-");
+        }
+
+        @Override
+        void print(StringBuilder sb) {
+            sb.append(text);
+        }
+    }
+
+    /**
+     * A variable, or any other name. Only variables are pure.
+     */
+    static final class Name extends Node {
+        final String name;
+        final Type type;
+        final boolean pure;
+
+        Name(String name, Type type, boolean pure) {
+            this.name = name;
+            this.type = type;
+            this.pure = pure;
+        }
+
+        @Override
+        Type type() {
+            return type;
+        }
+
+        @Override
+        boolean isPure() {
+            return pure;
+        }
+
+        @Override
+        boolean isAtomic() {
+            return true;
+        }
+
+        @Override
+        void print(StringBuilder sb) {
+            sb.append(name);
+        }
+    }
+
+    static final class Unary extends Node {
+        final String operator;
+        final Node operand;
+
+        Unary(String operator, Node operand) {
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        Type type() {
+            if (operator.equals("!")) {
+                return operand.type() == Type.BOOLEAN ? Type.BOOLEAN : null;
+            }
+            Type type = Type.promote(operand.type(), Type.INT);
+            return operator.equals("~") && type != null && !type.isIntegral() ? null : type;
+        }
+
+        @Override
+        boolean isPure() {
+            return operand.isPure();
+        }
+
+        @Override
+        List<Node> children() {
+            return Collections.singletonList(operand);
+        }
+
+        @Override
+        void print(StringBuilder sb) {
+            sb.append(operator);
+            operand.printOperand(sb);
+        }
+    }
+
+    static final class Binary extends Node {
+        final String operator;
+        final Node left;
+        final Node right;
+
+        Binary(String operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * The type of arithmetic, bitwise and shift operations. Comparisons and logical operations
+         * have no numeric type.
+         */
+        @Override
+        Type type() {
+            switch (operator) {
+                case "+":
+                case "-":
+                case "*":
+                case "/":
+                case "%":
+                    return Type.promote(left.type(), right.type());
+                case "&":
+                case "|":
+                case "^": {
+                    Type type = Type.promote(left.type(), right.type());
+                    return type != null && type.isIntegral() ? type : null;
+                }
+                case "<<":
+                case ">>":
+                case ">>>": {
+                    Type type = Type.promote(left.type(), Type.INT);
+                    return type != null && type.isIntegral() ? type : null;
+                }
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        boolean isPure() {
+            if (!left.isPure() || !right.isPure()) {
+                return false;
+            }
+            Type type = type();
+            // Integral division by zero throws.
+            return !((operator.equals("/") || operator.equals("%")) && (type == null || type.isIntegral()));
+        }
+
+        @Override
+        List<Node> children() {
+            return Arrays.asList(left, right);
+        }
+
+        @Override
+        void print(StringBuilder sb) {
+            left.printOperand(sb);
+            sb.append(' ').append(operator).append(' ');
+            right.printOperand(sb);
+        }
+    }
+
+    static final class Ternary extends Node {
+        final Node condition;
+        final Node whenTrue;
+        final Node whenFalse;
+
+        Ternary(Node condition, Node whenTrue, Node whenFalse) {
+            this.condition = condition;
+            this.whenTrue = whenTrue;
+            this.whenFalse = whenFalse;
+        }
+
+        @Override
+        Type type() {
+            return whenTrue.type() == whenFalse.type() ? whenTrue.type() : null;
+        }
+
+        @Override
+        boolean isPure() {
+            return condition.isPure() && whenTrue.isPure() && whenFalse.isPure();
+        }
+
+        @Override
+        List<Node> children() {
+            return Arrays.asList(condition, whenTrue, whenFalse);
+        }
+
+        @Override
+        void print(StringBuilder sb) {
+            condition.printOperand(sb);
+            sb.append(" ? ");
+            whenTrue.printOperand(sb);
+            sb.append(" : ");
+            whenFalse.printOperand(sb);
+        }
+    }
+
+    static final class Cast extends Node {
+        final String typeName;
+        final Node operand;
+
+        Cast(String typeName, Node operand) {
+            this.typeName = typeName;
+            this.operand = operand;
+        }
+
+        @Override
+        Type type() {
+            return isPrimitiveTypeName(typeName) ? Type.ofName(typeName) : null;
+        }
+
+        @Override
+        boolean isPure() {
+            return isPrimitiveTypeName(typeName) && operand.isPure();
+        }
+
+        @Override
+        List<Node> children() {
+            return Collections.singletonList(operand);
+        }
+
+        @Override
+        void print(StringBuilder sb) {
+            sb.append('(').append(typeName).append(") ");
+            operand.printOperand(sb);
+        }
+    }
+
+    static final class Call extends Node {
+        final Node receiver;
+        final String name;
+        final List<Node> arguments;
+        final Type type;
+        final boolean pure;
+
+        Call(Node receiver, String name, List<Node> arguments, Type type, boolean pure) {
+            this.receiver = receiver;
+            this.name = name;
+            this.arguments = arguments;
+            this.type = type;
+            this.pure = pure;
+        }
+
+        @Override
+        Type type() {
+            return type;
+        }
+
+        @Override
+        boolean isPure() {
+            return pure;
+        }
+
+        @Override
+        List<Node> children() {
+            if (receiver == null) {
+                return arguments;
+            }
+            List<Node> children = new ArrayList<>(arguments.size() + 1);
+            children.add(receiver);
+            children.addAll(arguments);
+            return children;
+        }
+
+        @Override
+        boolean isAtomic() {
+            return true;
+        }
+
+        @Override
+        void print(StringBuilder sb) {
+            if (receiver != null) {
+                receiver.printOperand(sb);
+                sb.append('.');
+            }
+            sb.append(name).append('(');
+            for (int i = 0; i < arguments.size(); i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(arguments.get(i).source());
+            }
+            sb.append(')');
+        }
+    }
+
+    static final class Member extends Node {
+        final Node receiver;
+        final String name;
+
+        Member(Node receiver, String name) {
+            this.receiver = receiver;
+            this.name = name;
+        }
+
+        @Override
+        Type type() {
+            return null;
+        }
+
+        @Override
+        boolean isPure() {
+            return false;
+        }
+
+        @Override
+        List<Node> children() {
+            return Collections.singletonList(receiver);
+        }
+
+        @Override
+        boolean isAtomic() {
+            return true;
+        }
+
+        @Override
+        void print(StringBuilder sb) {
+            receiver.printOperand(sb);
+            sb.append('.').append(name);
+        }
+    }
+
+    static final class Index extends Node {
+        final Node array;
+        final Node index;
+
+        Index(Node array, Node index) {
+            this.array = array;
+            this.index = index;
+        }
+
+        @Override
+        Type type() {
+            return null;
+        }
+
+        @Override
+        boolean isPure() {
+            return false;
+        }
+
+        @Override
+        List<Node> children() {
+            return Arrays.asList(array, index);
+        }
+
+        @Override
+        boolean isAtomic() {
+            return true;
+        }
+
+        @Override
+        void print(StringBuilder sb) {
+            array.printOperand(sb);
+            sb.append('[').append(index.source()).append(']');
+        }
+    }
+}
@@ -0,0 +1,589 @@
+package com.alfredvc;
+
+import com.alfredvc.Expression.Binary;
+import com.alfredvc.Expression.Call;
+import com.alfredvc.Expression.Cast;
+import com.alfredvc.Expression.Index;
+import com.alfredvc.Expression.Literal;
+import com.alfredvc.Expression.Member;
+import com.alfredvc.Expression.Name;
+import com.alfredvc.Expression.Node;
+import com.alfredvc.Expression.Ternary;
+import com.alfredvc.Expression.Type;
+import com.alfredvc.Expression.Unary;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional optimization pass over the body of a function, run between parsing the function string
+ * and building the method string. See {@link FunctionParser#setOptimizationEnabled(boolean)}.
+ * <p>
+ * The body is parsed into an {@link Expression} tree, which is then rewritten with:
+ * <ul>
+ * <li>constant folding of arithmetic, casts, Math.PI, Math.E and pure java.lang.Math calls on
+ * constants, so 2 * Math.PI * r becomes 6.283185307179586 * r.</li>
+ * <li>algebraic simplification, such as x * 1 and x / 1 to x. Additions of zero are only removed
+ * for integral types, because -0.0 + 0.0 is 0.0.</li>
+ * <li>strength reduction: Math.pow(x, 2) to x * x, x * 2.0 to x + x, division by a power of two
+ * to a multiplication and integral multiplication by a power of two to a shift.</li>
+ * <li>common subexpression elimination of pure java.lang.Math calls, which are computed once into
+ * a local variable.</li>
+ * </ul>
+ * Every rewrite gives the same result as the original expression in Java arithmetic, except
+ * Math.pow(x, 2), which the Math specification allows to differ from x * x by one ulp. Bodies
+ * containing statements, or expressions the optimizer does not understand such as object
+ * creation or assignments, are left unchanged.
+ */
+final class ExpressionOptimizer {
+    private static final String LOCAL_PREFIX = "__cse";
+    /**
+     * The optimized body: local variable declarations to run first, followed by the expression.
+     */
+    static final class Result {
+        final String prelude;
+        final String expression;
+
+        Result(String prelude, String expression) {
+            this.prelude = prelude;
+            this.expression = expression;
+        }
+    }
+
+    private final Map<String, Type> parameters = new HashMap<>();
+    private final List<Local> locals = new ArrayList<>();
+    private int localCount;
+
+    /**
+     * The optimized bodies of a group of functions: local variable declarations shared by all of
+     * them, followed by one expression per function.
+     */
+    static final class GroupResult {
+        final String prelude;
+        final List<String> expressions;
+
+        GroupResult(String prelude, List<String> expressions) {
+            this.prelude = prelude;
+            this.expressions = expressions;
+        }
+    }
+
+    private ExpressionOptimizer(FunctionDeclaration declaration) {
+        for (FunctionDeclaration.Parameter parameter : declaration.getParameters()) {
+            parameters.put(parameter.name, Type.ofName(parameter.getErasedType()));
+        }
+    }
+
+    private ExpressionOptimizer(Map<String, String> parameterTypes) {
+        for (Map.Entry<String, String> parameter : parameterTypes.entrySet()) {
+            parameters.put(parameter.getKey(), Type.ofName(parameter.getValue()));
+        }
+    }
+
+    /**
+     * Optimizes the body of the given function.
+     *
+     * @param declaration the parsed function.
+     * @return the optimized body, or null if the body could not be optimized.
+     */
+    static Result optimize(FunctionDeclaration declaration) {
+        if (declaration.hasReturnStatement()) {
+            return null;
+        }
+        List<Token> tokens = new ArrayList<>();
+        for (Token token : declaration.getBodyTokens()) {
+            if (token.isSignificant()) {
+                tokens.add(token);
+            }
+        }
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        ExpressionOptimizer optimizer = new ExpressionOptimizer(declaration);
+        Node root = optimizer.parse(tokens);
+        if (root == null) {
+            return null;
+        }
+        Node simplified = optimizer.eliminateCommonSubexpressions(
+                Collections.singletonList(optimizer.simplify(root)), false).get(0);
+        if (optimizer.locals.isEmpty() && simplified.source().equals(root.source())) {
+            return null;
+        }
+        return new Result(optimizer.prelude(), simplified.source());
+    }
+
+    /**
+     * Optimizes the bodies of functions that are evaluated together over the same arguments.
+     * Besides pure Math calls, pure arithmetic that occurs more than once in the group, as y / z
+     * in x + y / z and Math.log(y / z), is computed once into locals shared by all functions.
+     *
+     * @param declarations   the parsed functions.
+     * @param parameterTypes the erased type of every parameter of the group, by name.
+     * @param simplify       whether to fold constants and simplify the expressions as well.
+     * @return the shared locals and the expression of every function, which is null where the
+     *         body has statements or could not be parsed.
+     */
+    static GroupResult optimizeGroup(List<FunctionDeclaration> declarations, Map<String, String> parameterTypes, boolean simplify) {
+        ExpressionOptimizer optimizer = new ExpressionOptimizer(parameterTypes);
+        List<Node> roots = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < declarations.size(); i++) {
+            FunctionDeclaration declaration = declarations.get(i);
+            if (declaration.hasReturnStatement()) {
+                continue;
+            }
+            List<Token> tokens = new ArrayList<>();
+            for (Token token : declaration.getBodyTokens()) {
+                if (token.isSignificant()) {
+                    tokens.add(token);
+                }
+            }
+            Node root = tokens.isEmpty() ? null : optimizer.parse(tokens);
+            if (root != null) {
+                roots.add(simplify ? optimizer.simplify(root) : root);
+                positions.add(i);
+            }
+        }
+        List<String> expressions = new ArrayList<>(Collections.nCopies(declarations.size(), (String) null));
+        List<Node> rewritten = optimizer.eliminateCommonSubexpressions(roots, true);
+        for (int i = 0; i < rewritten.size(); i++) {
+            expressions.set(positions.get(i), rewritten.get(i).source());
+        }
+        return new GroupResult(optimizer.prelude(), expressions);
+    }
+
+    /**
+     * Parses an expression, or returns null if it is not an expression the optimizer understands.
+     */
+    private Node parse(List<Token> tokens) {
+        try {
+            return Expression.parse(tokens, parameters);
+        } catch (Expression.UnsupportedExpressionException e) {
+            return null;
+        }
+    }
+
+    private String prelude() {
+        StringBuilder prelude = new StringBuilder();
+        for (Local local : locals) {
+            prelude.append(local.type.javaName()).append(' ').append(local.name).append(" = ")
+                    .append(local.definition.source()).append("; ");
+        }
+        return prelude.toString();
+    }
+
+    /*
+     * Rewriting.
+     */
+
+    private Node simplify(Node node) {
+        if (node instanceof Unary) {
+            Unary unary = (Unary) node;
+            return simplifyUnary(unary.operator, simplify(unary.operand));
+        } else if (node instanceof Binary) {
+            Binary binary = (Binary) node;
+            return simplifyBinary(binary.operator, simplify(binary.left), simplify(binary.right));
+        } else if (node instanceof Ternary) {
+            Ternary ternary = (Ternary) node;
+            return new Ternary(simplify(ternary.condition), simplify(ternary.whenTrue), simplify(ternary.whenFalse));
+        } else if (node instanceof Cast) {
+            Cast cast = (Cast) node;
+            return simplifyCast(cast.typeName, simplify(cast.operand));
+        } else if (node instanceof Call) {
+            Call call = (Call) node;
+            List<Node> arguments = new ArrayList<>(call.arguments.size());
+            for (Node argument : call.arguments) {
+                arguments.add(simplify(argument));
+            }
+            return simplifyCall(Expression.call(call.receiver == null ? null : simplify(call.receiver), call.name, arguments));
+        } else if (node instanceof Member) {
+            Member member = (Member) node;
+            return new Member(simplify(member.receiver), member.name);
+        } else if (node instanceof Index) {
+            Index index = (Index) node;
+            return new Index(simplify(index.array), simplify(index.index));
+        }
+        return node;
+    }
+
+    private Node simplifyUnary(String operator, Node operand) {
+        if (operand instanceof Literal && ((Literal) operand).isKnown() && operand.type() != null) {
+            Literal literal = (Literal) operand;
+            if (operator.equals("-")) {
+                return Literal.of(literal.type(), -literal.doubleValue, -literal.longValue);
+            } else if (operator.equals("+")) {
+                return Literal.of(literal.type(), literal.doubleValue, literal.longValue);
+            }
+        }
+        if (operator.equals("-") && operand instanceof Unary && ((Unary) operand).operator.equals("-")
+                && operand.type() != null && ((Unary) operand).operand.type() == operand.type()) {
+            return ((Unary) operand).operand;
+        }
+        return new Unary(operator, operand);
+    }
+
+    private Node simplifyBinary(String operator, Node left, Node right) {
+        Type type = Type.promote(left.type(), right.type());
+        Literal leftLiteral = knownLiteral(left);
+        Literal rightLiteral = knownLiteral(right);
+        if (type != null && leftLiteral != null && rightLiteral != null) {
+            Literal folded = fold(operator, type, leftLiteral, rightLiteral);
+            if (folded != null) {
+                return folded;
+            }
+        }
+        switch (operator) {
+            case "*":
+                if (isValue(rightLiteral, 1) && hasType(left, type)) {
+                    return left;
+                }
+                if (isValue(leftLiteral, 1) && hasType(right, type)) {
+                    return right;
+                }
+                if (type != null && type.isIntegral() && (isValue(rightLiteral, 0) && left.isPure() || isValue(leftLiteral, 0) && right.isPure())) {
+                    return Literal.of(type, 0, 0);
+                }
+                if (isValue(rightLiteral, 2) && hasType(left, type) && !type.isIntegral() && left instanceof Name) {
+                    return new Binary("+", left, left);
+                }
+                if (isValue(leftLiteral, 2) && hasType(right, type) && !type.isIntegral() && right instanceof Name) {
+                    return new Binary("+", right, right);
+                }
+                if (type != null && type.isIntegral() && hasType(left, type) && rightLiteral != null && powerOfTwo(rightLiteral) > 0) {
+                    return new Binary("<<", left, Literal.of(Type.INT, 0, powerOfTwo(rightLiteral)));
+                }
+                if (type != null && type.isIntegral() && hasType(right, type) && leftLiteral != null && powerOfTwo(leftLiteral) > 0) {
+                    return new Binary("<<", right, Literal.of(Type.INT, 0, powerOfTwo(leftLiteral)));
+                }
+                break;
+            case "/":
+                if (isValue(rightLiteral, 1) && hasType(left, type)) {
+                    return left;
+                }
+                if (type != null && !type.isIntegral() && rightLiteral != null && rightLiteral.doubleValue != 0) {
+                    double reciprocal = 1.0 / rightLiteral.doubleValue;
+                    if (Math.getExponent(rightLiteral.doubleValue) > Double.MIN_EXPONENT
+                            && Math.abs(rightLiteral.doubleValue) == Math.scalb(1.0, Math.getExponent(rightLiteral.doubleValue))
+                            && Math.getExponent(reciprocal) > (type == Type.FLOAT ? Float.MIN_EXPONENT : Double.MIN_EXPONENT)) {
+                        return new Binary("*", left, Literal.of(type, reciprocal, 0));
+                    }
+                }
+                break;
+            case "+":
+                if (type != null && type.isIntegral() && isValue(rightLiteral, 0) && hasType(left, type)) {
+                    return left;
+                }
+                if (type != null && type.isIntegral() && isValue(leftLiteral, 0) && hasType(right, type)) {
+                    return right;
+                }
+                break;
+            case "-":
+                if (isValue(rightLiteral, 0) && hasType(left, type)
+                        && (type.isIntegral() || 1.0 / rightLiteral.doubleValue > 0)) {
+                    return left;
+                }
+                break;
+            default:
+                break;
+        }
+        return new Binary(operator, left, right);
+    }
+
+    private Node simplifyCast(String typeName, Node operand) {
+        Type type = Type.ofName(typeName);
+        Literal literal = knownLiteral(operand);
+        if (type != null && type.isNumeric() && literal != null && operand.type() != null && Expression.isPrimitiveTypeName(typeName)) {
+            if (type.isIntegral()) {
+                long value = operand.type().isIntegral() ? literal.longValue
+                        : type == Type.INT ? (int) literal.doubleValue : (long) literal.doubleValue;
+                return Literal.of(type, 0, type == Type.INT ? (int) value : value);
+            }
+            double value = operand.type().isIntegral() ? literal.longValue : literal.doubleValue;
+            return Literal.of(type, type == Type.FLOAT ? (float) value : value, 0);
+        }
+        if (type != null && operand.type() == type && Expression.isPrimitiveTypeName(typeName)) {
+            return operand;
+        }
+        return new Cast(typeName, operand);
+    }
+
+    private Node simplifyCall(Call call) {
+        if (!Expression.isMathCall(call) || call.type() != Type.DOUBLE) {
+            return call;
+        }
+        double[] values = new double[call.arguments.size()];
+        boolean allKnown = true;
+        for (int i = 0; i < values.length; i++) {
+            Literal literal = knownLiteral(call.arguments.get(i));
+            if (literal == null) {
+                allKnown = false;
+                break;
+            }
+            values[i] = call.arguments.get(i).type().isIntegral() ? literal.longValue : literal.doubleValue;
+        }
+        if (allKnown) {
+            double result = evaluateMath(call.name, values);
+            if (!Double.isNaN(result) && !Double.isInfinite(result)) {
+                return Literal.of(Type.DOUBLE, result, 0);
+            }
+        }
+        if (call.name.equals("pow")) {
+            Node base = call.arguments.get(0);
+            Literal exponent = knownLiteral(call.arguments.get(1));
+            if (base.type() == Type.DOUBLE) {
+                if (isValue(exponent, 1)) {
+                    return base;
+                }
+                if (isValue(exponent, 2) && base instanceof Name) {
+                    return new Binary("*", base, base);
+                }
+            }
+            if (isValue(exponent, 0) && base.isPure()) {
+                return Literal.of(Type.DOUBLE, 1.0, 0);
+            }
+        }
+        return call;
+    }
+
+    private static Literal fold(String operator, Type type, Literal left, Literal right) {
+        if (type.isIntegral()) {
+            long a = left.longValue;
+            long b = right.longValue;
+            if (!left.type().isIntegral() || !right.type().isIntegral()) {
+                return null;
+            }
+            long result;
+            switch (operator) {
+                case "+":
+                    result = a + b;
+                    break;
+                case "-":
+                    result = a - b;
+                    break;
+                case "*":
+                    result = a * b;
+                    break;
+                case "/":
+                    if (b == 0) {
+                        return null;
+                    }
+                    result = type == Type.INT ? (int) a / (int) b : a / b;
+                    break;
+                case "%":
+                    if (b == 0) {
+                        return null;
+                    }
+                    result = type == Type.INT ? (int) a % (int) b : a % b;
+                    break;
+                default:
+                    return null;
+            }
+            return Literal.of(type, 0, type == Type.INT ? (int) result : result);
+        }
+        double a = left.type().isIntegral() ? left.longValue : left.doubleValue;
+        double b = right.type().isIntegral() ? right.longValue : right.doubleValue;
+        double result;
+        if (type == Type.FLOAT) {
+            float x = (float) a;
+            float y = (float) b;
+            switch (operator) {
+                case "+":
+                    result = x + y;
+                    break;
+                case "-":
+                    result = x - y;
+                    break;
+                case "*":
+                    result = x * y;
+                    break;
+                case "/":
+                    result = x / y;
+                    break;
+                case "%":
+                    result = x % y;
+                    break;
+                default:
+                    return null;
+            }
+        } else {
+            switch (operator) {
+                case "+":
+                    result = a + b;
+                    break;
+                case "-":
+                    result = a - b;
+                    break;
+                case "*":
+                    result = a * b;
+                    break;
+                case "/":
+                    result = a / b;
+                    break;
+                case "%":
+                    result = a % b;
+                    break;
+                default:
+                    return null;
+            }
+        }
+        if (Double.isNaN(result) || Double.isInfinite(result)) {
+            return null;
+        }
+        return Literal.of(type, result, 0);
+    }
+
+    /**
+     * Evaluates a Math call of type double on constant arguments.
+     */
+    private static double evaluateMath(String name, double[] a) {
+        if (a.length == 1 && Expression.UNARY_MATH_FUNCTIONS.containsKey(name)) {
+            return Expression.UNARY_MATH_FUNCTIONS.get(name).applyAsDouble(a[0]);
+        }
+        if (a.length == 2 && Expression.BINARY_MATH_FUNCTIONS.containsKey(name)) {
+            return Expression.BINARY_MATH_FUNCTIONS.get(name).applyAsDouble(a[0], a[1]);
+        }
+        switch (name) {
+            case "signum": return Math.signum(a[0]);
+            case "ulp": return Math.ulp(a[0]);
+            case "abs": return Math.abs(a[0]);
+            case "copySign": return Math.copySign(a[0], a[1]);
+            case "max": return Math.max(a[0], a[1]);
+            case "min": return Math.min(a[0], a[1]);
+            default: return Double.NaN;
+        }
+    }
+
+    /**
+     * Replaces pure Math calls that occur more than once in the expressions with local variables,
+     * largest first, and returns the rewritten expressions. With arithmetic, pure arithmetic
+     * expressions are replaced as well. The locals are collected in declaration order.
+     */
+    private List<Node> eliminateCommonSubexpressions(List<Node> roots, boolean arithmetic) {
+        List<Node> expressions = new ArrayList<>(roots);
+        while (true) {
+            Map<String, Integer> counts = new HashMap<>();
+            Map<String, Node> candidates = new LinkedHashMap<>();
+            for (Node expression : expressions) {
+                collectCandidates(expression, arithmetic, counts, candidates);
+            }
+            for (Local local : locals) {
+                collectCandidates(local.definition, arithmetic, counts, candidates);
+            }
+            Node best = null;
+            for (Map.Entry<String, Node> candidate : candidates.entrySet()) {
+                if (counts.get(candidate.getKey()) > 1 && (best == null || candidate.getKey().length() > best.source().length())) {
+                    best = candidate.getValue();
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            Name name = new Name(newLocalName(), best.type(), true);
+            for (int i = 0; i < expressions.size(); i++) {
+                expressions.set(i, replace(expressions.get(i), best.source(), name));
+            }
+            for (Local local : locals) {
+                local.definition = replace(local.definition, best.source(), name);
+            }
+            // Later locals are smaller, and can only be used by the ones found before them.
+            locals.add(0, new Local(name.name, best.type(), best));
+        }
+        return expressions;
+    }
+
+    private String newLocalName() {
+        String name;
+        do {
+            name = LOCAL_PREFIX + localCount++;
+        } while (parameters.containsKey(name));
+        return name;
+    }
+
+    private void collectCandidates(Node node, boolean arithmetic, Map<String, Integer> counts, Map<String, Node> candidates) {
+        boolean candidate = node instanceof Call && Expression.isMathCall((Call) node) || arithmetic && node instanceof Binary;
+        if (candidate && node.type() != null && node.isPure()) {
+            String key = node.source();
+            Integer count = counts.get(key);
+            counts.put(key, count == null ? 1 : count + 1);
+            if (!candidates.containsKey(key)) {
+                candidates.put(key, node);
+            }
+        }
+        for (Node child : node.children()) {
+            collectCandidates(child, arithmetic, counts, candidates);
+        }
+    }
+
+    private Node replace(Node node, String source, Node replacement) {
+        if (node.source().equals(source)) {
+            return replacement;
+        }
+        if (node instanceof Unary) {
+            Unary unary = (Unary) node;
+            return new Unary(unary.operator, replace(unary.operand, source, replacement));
+        } else if (node instanceof Binary) {
+            Binary binary = (Binary) node;
+            return new Binary(binary.operator, replace(binary.left, source, replacement), replace(binary.right, source, replacement));
+        } else if (node instanceof Ternary) {
+            Ternary ternary = (Ternary) node;
+            return new Ternary(replace(ternary.condition, source, replacement), replace(ternary.whenTrue, source, replacement),
+                    replace(ternary.whenFalse, source, replacement));
+        } else if (node instanceof Cast) {
+            Cast cast = (Cast) node;
+            return new Cast(cast.typeName, replace(cast.operand, source, replacement));
+        } else if (node instanceof Call) {
+            Call call = (Call) node;
+            List<Node> arguments = new ArrayList<>(call.arguments.size());
+            for (Node argument : call.arguments) {
+                arguments.add(replace(argument, source, replacement));
+            }
+            return Expression.call(call.receiver, call.name, arguments);
+        } else if (node instanceof Member) {
+            Member member = (Member) node;
+            return new Member(replace(member.receiver, source, replacement), member.name);
+        } else if (node instanceof Index) {
+            Index index = (Index) node;
+            return new Index(replace(index.array, source, replacement), replace(index.index, source, replacement));
+        }
+        return node;
+    }
+
+    private static boolean hasType(Node node, Type type) {
+        return type != null && node.type() == type;
+    }
+
+    private static Literal knownLiteral(Node node) {
+        return node instanceof Literal && ((Literal) node).isKnown() ? (Literal) node : null;
+    }
+
+    private static boolean isValue(Literal literal, long value) {
+        if (literal == null) {
+            return false;
+        }
+        return literal.type().isIntegral() ? literal.longValue == value : literal.doubleValue == value;
+    }
+
+    private static int powerOfTwo(Literal literal) {
+        long value = literal.longValue;
+        if (!literal.type().isIntegral() || value <= 1 || Long.bitCount(value) != 1) {
+            return -1;
+        }
+        return Long.numberOfTrailingZeros(value);
+    }
+
+    private static final class Local {
+        final String name;
+        final Type type;
+        Node definition;
+
+        Local(String name, Type type, Node definition) {
+            this.name = name;
+            this.type = type;
+            this.definition = definition;
+        }
+    }
+}
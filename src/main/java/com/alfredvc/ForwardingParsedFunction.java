@@ -0,0 +1,129 @@
+package com.alfredvc;
+
+import java.util.LinkedHashSet;
+
+/**
+ * ParsedFunction forwarding every evaluate method to the function returned by {@link #delegate()}.
+ * Used by the ParsedFunction implementations that swap the function they evaluate at runtime.
+ *
+ * @param <T> the return type of the function.
+ */
+abstract class ForwardingParsedFunction<T> implements ParsedFunction<T> {
+
+    /**
+     * Returns the function the next evaluation is forwarded to.
+     *
+     * @return the current delegate.
+     */
+    protected abstract ParsedFunction<T> delegate();
+
+    @Override
+    public double evaluateToDouble(Object[] args) {
+        return delegate().evaluateToDouble(args);
+    }
+
+    @Override
+    public float evaluateToFloat(Object[] args) {
+        return delegate().evaluateToFloat(args);
+    }
+
+    @Override
+    public boolean evaluateToBoolean(Object[] args) {
+        return delegate().evaluateToBoolean(args);
+    }
+
+    @Override
+    public int evaluateToInteger(Object[] args) {
+        return delegate().evaluateToInteger(args);
+    }
+
+    @Override
+    public long evaluateToLong(Object[] args) {
+        return delegate().evaluateToLong(args);
+    }
+
+    @Override
+    public short evaluateToShort(Object[] args) {
+        return delegate().evaluateToShort(args);
+    }
+
+    @Override
+    public double evaluateToDouble(double a) {
+        return delegate().evaluateToDouble(a);
+    }
+
+    @Override
+    public double evaluateToDouble(double a, double b) {
+        return delegate().evaluateToDouble(a, b);
+    }
+
+    @Override
+    public double evaluateToDouble(double a, double b, double c) {
+        return delegate().evaluateToDouble(a, b, c);
+    }
+
+    @Override
+    public double evaluateToDouble(double[] args) {
+        return delegate().evaluateToDouble(args);
+    }
+
+    @Override
+    public boolean evaluateToBoolean(double a) {
+        return delegate().evaluateToBoolean(a);
+    }
+
+    @Override
+    public boolean evaluateToBoolean(double a, double b) {
+        return delegate().evaluateToBoolean(a, b);
+    }
+
+    @Override
+    public boolean evaluateToBoolean(double a, double b, double c) {
+        return delegate().evaluateToBoolean(a, b, c);
+    }
+
+    @Override
+    public boolean evaluateToBoolean(double[] args) {
+        return delegate().evaluateToBoolean(args);
+    }
+
+    @Override
+    public void evaluateToDouble(double[][] columns, double[] out, int from, int to) {
+        delegate().evaluateToDouble(columns, out, from, to);
+    }
+
+    @Override
+    public void evaluateToBoolean(double[][] columns, boolean[] out, int from, int to) {
+        delegate().evaluateToBoolean(columns, out, from, to);
+    }
+
+    @Override
+    public void evaluateToLong(double[][] columns, long[] out, int from, int to) {
+        delegate().evaluateToLong(columns, out, from, to);
+    }
+
+    @Override
+    public Object evaluateToObject(Object[] args) {
+        return delegate().evaluateToObject(args);
+    }
+
+    @Override
+    public T evaluate(Object[] args) {
+        return delegate().evaluate(args);
+    }
+
+    @Override
+    public String getFunctionString() {
+        return delegate().getFunctionString();
+    }
+
+    @Override
+    public LinkedHashSet<String> getVariableSet() {
+        return delegate().getVariableSet();
+    }
+
+    @Override
+    public String toString() {
+        return "ParsedFunction[" + getFunctionString() + "]";
+    }
+}
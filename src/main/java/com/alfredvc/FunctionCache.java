@@ -0,0 +1,282 @@
+package com.alfredvc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Bounded, thread safe cache of compiled ParsedFunction objects.
+ * <p>
+ * Entries are keyed by the whitespace normalized function string, so "double (Double x, y)-&gt;x+y"
+ * and "double(Double x,y)-&gt; x+y" share the same compiled function. When the cache holds more
+ * than the maximum size the least recently used entry is evicted.
+ * <p>
+ * Since the generated classes are stateless the same ParsedFunction can safely be handed out to
+ * several callers. A hit for a string that differs from the one the function was compiled from
+ * returns a thin wrapper whose {@link ParsedFunction#getFunctionString()} is the looked up string.
+ * Functions cached for a target interface cannot be wrapped, so they keep the string they were
+ * first compiled from.
+ */
+public final class FunctionCache {
+    public static final int DEFAULT_MAXIMUM_SIZE = 4096;
+
+    private final LinkedHashMap<String, ParsedFunction<?>> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private int maximumSize;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maximumSize the maximum number of functions kept in the cache.
+     */
+    public FunctionCache(int maximumSize) {
+        checkMaximumSize(maximumSize);
+        this.maximumSize = maximumSize;
+        this.entries = new LinkedHashMap<String, ParsedFunction<?>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ParsedFunction<?>> eldest) {
+                if (size() > FunctionCache.this.maximumSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached function for the given function string, compiling and caching it if it
+     * is not present. Compilation happens outside of the cache lock, so if two threads miss on the
+     * same string at the same time both compile it and the first one to finish wins.
+     *
+     * @param functionString the function string to look up.
+     * @param compiler       used to compile the function string on a miss.
+     * @return the cached or newly compiled function.
+     */
+    public ParsedFunction<?> get(String functionString, Function<String, ParsedFunction<?>> compiler) {
+        return get(functionString, null, compiler);
+    }
+
+    /**
+     * Returns the cached function for the given function string and target interface, compiling
+     * and caching it if it is not present. Functions compiled for different target interfaces are
+     * cached separately.
+     *
+     * @param functionString  the function string to look up.
+     * @param targetInterface the interface the function implements, or null if it only implements
+     *                        ParsedFunction.
+     * @param compiler        used to compile the function string on a miss.
+     * @return the cached or newly compiled function.
+     */
+    public ParsedFunction<?> get(String functionString, Class<?> targetInterface, Function<String, ParsedFunction<?>> compiler) {
+        String key = key(functionString, targetInterface);
+        ParsedFunction<?> function;
+        synchronized (entries) {
+            function = entries.get(key);
+        }
+        if (function != null) {
+            hits.incrementAndGet();
+            return targetInterface == null ? withFunctionString(function, functionString) : function;
+        }
+        misses.incrementAndGet();
+        ParsedFunction<?> compiled = compiler.apply(functionString);
+        synchronized (entries) {
+            function = entries.putIfAbsent(key, compiled);
+        }
+        if (function == null) {
+            return compiled;
+        }
+        return targetInterface == null ? withFunctionString(function, functionString) : function;
+    }
+
+    /**
+     * Returns the cached function for the given function string without compiling it. The lookup
+     * is not counted as a hit or a miss.
+     *
+     * @param functionString the function string to look up.
+     * @return the cached function, or null if it is not cached.
+     */
+    public ParsedFunction<?> getIfPresent(String functionString) {
+        ParsedFunction<?> function;
+        synchronized (entries) {
+            function = entries.get(key(functionString, null));
+        }
+        return function == null ? null : withFunctionString(function, functionString);
+    }
+
+    /**
+     * Looks up a function like {@link #getIfPresent(String)}, but counts the lookup as a hit or a
+     * miss.
+     */
+    ParsedFunction<?> lookup(String functionString) {
+        ParsedFunction<?> function = getIfPresent(functionString);
+        (function == null ? misses : hits).incrementAndGet();
+        return function;
+    }
+
+    /**
+     * Caches a function compiled outside of {@link #get(String, Function)}, unless a function is
+     * already cached for the string.
+     *
+     * @return the function that is cached for the string after the call.
+     */
+    ParsedFunction<?> put(String functionString, ParsedFunction<?> function) {
+        ParsedFunction<?> existing;
+        synchronized (entries) {
+            existing = entries.putIfAbsent(key(functionString, null), function);
+        }
+        return existing == null ? function : withFunctionString(existing, functionString);
+    }
+
+    /**
+     * Returns the given function, or a wrapper around it returning the given function string if
+     * the function was compiled from a different one.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> ParsedFunction<T> withFunctionString(ParsedFunction<T> function, String functionString) {
+        if (function instanceof Alias) {
+            function = ((Alias<T>) function).function;
+        }
+        return function.getFunctionString().equals(functionString) ? function : new Alias<>(function, functionString);
+    }
+
+    /**
+     * Removes all cached functions. The hit, miss and eviction counters are not reset.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaximumSize() {
+        synchronized (entries) {
+            return maximumSize;
+        }
+    }
+
+    /**
+     * Changes the maximum size of the cache, evicting the least recently used functions if the
+     * cache is larger than the new size.
+     *
+     * @param maximumSize the maximum number of functions kept in the cache.
+     */
+    public void setMaximumSize(int maximumSize) {
+        checkMaximumSize(maximumSize);
+        synchronized (entries) {
+            this.maximumSize = maximumSize;
+            Iterator<String> iterator = entries.keySet().iterator();
+            while (entries.size() > maximumSize && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "FunctionCache[size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    private static String key(String functionString, Class<?> targetInterface) {
+        String normalized = normalize(functionString);
+        return targetInterface == null ? normalized : normalized + '\u0000' + targetInterface.getName();
+    }
+
+    /**
+     * Normalizes the whitespace of a function string. Whitespace next to separators is dropped and
+     * every other run of whitespace is collapsed into a single space. String and character literals
+     * are left untouched.
+     *
+     * @param functionString the string to normalize.
+     * @return the normalized string.
+     */
+    static String normalize(String functionString) {
+        String trimmed = functionString.trim();
+        StringBuilder sb = new StringBuilder(trimmed.length());
+        char quote = 0;
+        boolean pendingSpace = false;
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (quote != 0) {
+                sb.append(c);
+                if (c == '\\' && i + 1 < trimmed.length()) {
+                    sb.append(trimmed.charAt(++i));
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+            } else {
+                if (pendingSpace && !isSeparator(c) && !isSeparator(sb.charAt(sb.length() - 1))) {
+                    sb.append(' ');
+                }
+                pendingSpace = false;
+                if (c == '"' || c == '\'') {
+                    quote = c;
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '(' || c == ')' || c == ',' || c == ';' || c == '{' || c == '}' || c == '[' || c == ']'
+                || c == '>';
+    }
+
+    /**
+     * A cached function seen through a function string that only differs in whitespace from the
+     * one it was compiled from.
+     */
+    private static final class Alias<T> extends ForwardingParsedFunction<T> {
+        private final ParsedFunction<T> function;
+        private final String functionString;
+
+        Alias(ParsedFunction<T> function, String functionString) {
+            this.function = function;
+            this.functionString = functionString;
+        }
+
+        @Override
+        protected ParsedFunction<T> delegate() {
+            return function;
+        }
+
+        @Override
+        public String getFunctionString() {
+            return functionString;
+        }
+    }
+
+    private static void checkMaximumSize(int maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("Maximum size must not be negative, was " + maximumSize);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.alfredvc;
+
+import java.nio.ByteBuffer;
+import java.security.ProtectionDomain;
+
+/**
+ * Class loader that defines generated function classes. Each loader only holds the classes it
+ * defined itself, so once every ParsedFunction created from it is unreachable the loader and all of
+ * its classes can be unloaded.
+ */
+final class FunctionClassLoader extends ClassLoader {
+
+    FunctionClassLoader(ClassLoader parent) {
+        super(parent);
+    }
+
+    Class<?> define(String name, byte[] bytecode) {
+        return defineClass(name, bytecode, 0, bytecode.length);
+    }
+
+    Class<?> define(String name, ByteBuffer bytecode) {
+        return defineClass(name, bytecode, (ProtectionDomain) null);
+    }
+
+    /**
+     * Returns the loader generated classes should delegate to. The context class loader is
+     * preferred so that user classes referenced by functions resolve, as long as it can see the
+     * ParsedFunction interface.
+     *
+     * @return the parent loader for generated classes.
+     */
+    static ClassLoader parentLoader() {
+        ClassLoader context = Thread.currentThread().getContextClassLoader();
+        if (context != null) {
+            try {
+                if (Class.forName(ParsedFunction.class.getName(), false, context) == ParsedFunction.class) {
+                    return context;
+                }
+            } catch (ClassNotFoundException e) {
+                // Fall through to the loader of the library.
+            }
+        }
+        return FunctionParser.class.getClassLoader();
+    }
+}
@@ -0,0 +1,788 @@
+package com.alfredvc;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates and defines the classes of compiled functions with Javassist, for FunctionParser.
+ * <p>
+ * This is the only class referring to Javassist. FunctionParser only calls into it when a function
+ * has to be compiled, so functions precompiled at build time by {@link FunctionPrecompiler} or
+ * loaded from a {@link BytecodeCache}, as well as interpreted functions, work without Javassist on
+ * the class path.
+ */
+final class FunctionCompiler {
+    private static final AtomicLong functionCounter = new AtomicLong();
+    private static final int MAX_PRIMITIVE_ENTRY_ARITY = 3;
+
+    static {
+        // The system path of the default pool cannot see classes outside java.base on Java 9+.
+        ClassPool.getDefault().appendClassPath(new LoaderClassPath(FunctionParser.class.getClassLoader()));
+    }
+
+    private FunctionCompiler() {
+        //Intentionally empty.
+    }
+
+    /**
+     * Compiles a function into a class of its own, see {@link FunctionParser#fromString(String)}.
+     * The bytecode is stored in the persistent cache of FunctionParser, if one is set.
+     */
+    static <T> ParsedFunction<T> compile(String functionString, Class<?> targetInterface) {
+        long start = System.nanoTime();
+        boolean instrumented = FunctionParser.isInstrumentationEnabled();
+        BytecodeCache persistentCache = instrumented ? null : FunctionParser.getBytecodeCache();
+        String methodString="";
+        try {
+            long functionId = functionCounter.incrementAndGet();
+            Definition definition = parse(functionString, "o" + functionId);
+
+            LoadingMode mode = FunctionParser.getLoadingMode();
+            methodString = getMainMethodString("public", definition.getEvaluateMethodName(), definition);
+            CtClass evalClass = generate(newScopedPool(), getClassNamePrefix(mode) + "Eval" + functionId, definition, methodString,
+                    targetInterface, instrumented);
+
+            byte[] bytecode = evalClass.toBytecode();
+            Class<?> clazz = defineClass(evalClass, bytecode, mode);
+            if (persistentCache != null) {
+                // The name of a hidden class has a suffix that cannot be defined again, store the binary name.
+                persistentCache.store(functionString, targetInterface, evalClass.getName(), definition.variables, bytecode);
+            }
+            ParsedFunction<T> function = FunctionParser.instantiate(clazz, definition.variables, functionString);
+            if (instrumented) {
+                attachMetrics(function, new FunctionMetrics(functionString, clazz.getName(), System.nanoTime() - start, bytecode.length));
+            }
+            return function;
+        } catch (CannotCompileException | IOException | NotFoundException e) {
+            throw new IllegalArgumentException("Error when parsing function: \n" + methodString , e);
+        }
+    }
+
+    /**
+     * Compiles a function into the bytecode of a class with the given name without defining it,
+     * for {@link FunctionPrecompiler}. The class is the one {@link #compile(String, Class)} generates
+     * for an uninstrumented function, and is instantiated by
+     * {@link FunctionParser#instantiate(Class, LinkedHashSet, String)}.
+     */
+    static byte[] precompile(String functionString, String className) {
+        String methodString = "";
+        try {
+            Definition definition = parse(functionString, "o" + functionCounter.incrementAndGet());
+            methodString = getMainMethodString("public", definition.getEvaluateMethodName(), definition);
+            CtClass evalClass = generate(newScopedPool(), className, definition, methodString, null, false);
+            byte[] bytecode = evalClass.toBytecode();
+            evalClass.detach();
+            return bytecode;
+        } catch (CannotCompileException | IOException | NotFoundException e) {
+            throw new IllegalArgumentException("Error when parsing function: \n" + methodString, e);
+        }
+    }
+
+    /**
+     * Generates the class of a single function, implementing ParsedFunction and, if it is not null,
+     * the target interface.
+     */
+    private static CtClass generate(ClassPool pool, String className, Definition definition, String mainMethodString,
+                                    Class<?> targetInterface, boolean instrumented) throws CannotCompileException, NotFoundException {
+        CtClass evalClass = pool.makeClass(className);
+
+        evalClass.addField(new CtField(pool.get("java.util.LinkedHashSet"), "variableSet", evalClass));
+        evalClass.addField(new CtField(pool.get("java.lang.String"), "functionString", evalClass));
+        if (instrumented) {
+            addMetricsField(evalClass, pool);
+        }
+
+        evalClass.setInterfaces(
+                new CtClass[]{pool.get("com.alfredvc.ParsedFunction")});
+
+        addEvaluateMethods(evalClass, definition, mainMethodString, definition.getEvaluateMethodName(), "public", instrumented);
+
+        if (targetInterface != null) {
+            evalClass.addInterface(pool.get(targetInterface.getName()));
+            addFunctionalMethod(evalClass, pool, FunctionParser.getFunctionalMethod(targetInterface), definition.returnType, definition.types);
+        }
+
+        addHelperMethods(evalClass);
+        addSetterMethods(evalClass);
+        return evalClass;
+    }
+
+    /**
+     * Compiles the given functions into one generated class. Every function becomes a private
+     * method of the class, and the evaluate methods switch on the index of the handle to call the
+     * right one.
+     */
+    static List<ParsedFunction<?>> compileBatch(List<String> functionStrings) {
+        long start = System.nanoTime();
+        boolean instrumented = FunctionParser.isInstrumentationEnabled();
+        String methodString = "";
+        try {
+            LoadingMode mode = FunctionParser.getLoadingMode();
+            String className = getClassNamePrefix(mode) + "EvalBatch" + functionCounter.incrementAndGet();
+            ClassPool pool = newScopedPool();
+            CtClass evalClass = pool.makeClass(className);
+
+            evalClass.addField(new CtField(CtClass.intType, "index", evalClass));
+            evalClass.addField(new CtField(pool.get("java.util.LinkedHashSet"), "variableSet", evalClass));
+            evalClass.addField(new CtField(pool.get("java.lang.String"), "functionString", evalClass));
+            if (instrumented) {
+                addMetricsField(evalClass, pool);
+            }
+
+            evalClass.setInterfaces(
+                    new CtClass[]{pool.get("com.alfredvc.ParsedFunction")});
+
+            List<Definition> definitions = new ArrayList<>();
+            Map<String, StringBuilder> dispatch = new LinkedHashMap<>();
+            for (int i = 0; i < functionStrings.size(); i++) {
+                Definition definition = parse(functionStrings.get(i), "o" + i);
+                definitions.add(definition);
+                String methodName = "f" + i;
+                methodString = getMainMethodString("private", methodName, definition);
+                for (EntryPoint entryPoint : addEvaluateMethods(evalClass, definition, methodString, methodName, "private", instrumented)) {
+                    StringBuilder cases = dispatch.get(entryPoint.declaration);
+                    if (cases == null) {
+                        cases = new StringBuilder();
+                        dispatch.put(entryPoint.declaration, cases);
+                    }
+                    cases.append("case ").append(i).append(": ");
+                    if (entryPoint.returnsValue) {
+                        cases.append("return ").append(methodName).append('(').append(entryPoint.arguments).append(");");
+                    } else {
+                        cases.append(methodName).append('(').append(entryPoint.arguments).append("); return;");
+                    }
+                }
+            }
+
+            for (Map.Entry<String, StringBuilder> entry : dispatch.entrySet()) {
+                methodString = "public " + entry.getKey() + "{switch (this.index) {" + entry.getValue()
+                        + "default: throw new UnsupportedOperationException();}}";
+                evalClass.addMethod(CtNewMethod.make(methodString, evalClass));
+            }
+
+            methodString = "public " + evalClass.getSimpleName() + "(int index, java.util.LinkedHashSet variableSet, java.lang.String functionString){"
+                    + "this.index = index; this.variableSet = variableSet; this.functionString = functionString;}";
+            evalClass.addConstructor(CtNewConstructor.make(methodString, evalClass));
+            addHelperMethods(evalClass);
+
+            byte[] bytecode = evalClass.toBytecode();
+            Class<?> clazz = defineClass(evalClass, bytecode, mode);
+            long compileTime = System.nanoTime() - start;
+            Constructor<?> constructor = clazz.getConstructor(int.class, LinkedHashSet.class, String.class);
+            List<ParsedFunction<?>> functions = new ArrayList<>(definitions.size());
+            for (int i = 0; i < definitions.size(); i++) {
+                Definition definition = definitions.get(i);
+                ParsedFunction<?> function = (ParsedFunction<?>) constructor.newInstance(i, definition.variables, definition.functionString);
+                if (instrumented) {
+                    attachMetrics(function, new FunctionMetrics(definition.functionString, clazz.getName(),
+                            compileTime / definitions.size(), bytecode.length / definitions.size()));
+                }
+                functions.add(function);
+            }
+            return functions;
+        } catch (CannotCompileException | IOException | InvocationTargetException | NoSuchMethodException | NotFoundException | IllegalAccessException | InstantiationException e) {
+            throw new IllegalArgumentException("Error when parsing function: \n" + methodString, e);
+        }
+    }
+
+    /**
+     * Compiles a function group into one generated class. The body of every function is inlined
+     * into a method taking the unboxed arguments, after the locals shared by the group; functions
+     * with statements get a method of their own, called from it.
+     */
+    static FunctionGroup compileGroup(List<String> functionStrings) {
+        String methodString = "";
+        try {
+            List<FunctionDeclaration> declarations = FunctionParser.parseAll(functionStrings);
+            Map<String, String> parameterTypes = FunctionParser.getParameterUnion(declarations);
+            ExpressionOptimizer.GroupResult optimized = ExpressionOptimizer.optimizeGroup(declarations, parameterTypes, FunctionParser.isOptimizationEnabled());
+
+            StringBuilder parameters = new StringBuilder();
+            StringBuilder unboxedArguments = new StringBuilder();
+            StringBuilder arrayArguments = new StringBuilder();
+            boolean allDoubles = !parameterTypes.isEmpty();
+            int index = 0;
+            for (Map.Entry<String, String> parameter : parameterTypes.entrySet()) {
+                String valueType = FunctionParser.getValueType(parameter.getValue());
+                parameters.append(valueType).append(' ').append(parameter.getKey()).append(", ");
+                unboxedArguments.append(getReplaceForVariableAndType(parameter.getValue(), index, "__args")).append(", ");
+                arrayArguments.append("__args[").append(index++).append("], ");
+                allDoubles &= valueType.equals("double");
+            }
+
+            LoadingMode mode = FunctionParser.getLoadingMode();
+            ClassPool pool = newScopedPool();
+            CtClass evalClass = pool.makeClass(getClassNamePrefix(mode) + "EvalGroup" + functionCounter.incrementAndGet());
+            evalClass.addField(new CtField(pool.get("java.util.LinkedHashSet"), "variableSet", evalClass));
+            evalClass.addField(new CtField(pool.get("java.util.List"), "functionStrings", evalClass));
+            evalClass.setInterfaces(new CtClass[]{pool.get("com.alfredvc.FunctionGroup")});
+
+            StringBuilder objectResults = new StringBuilder();
+            StringBuilder doubleResults = new StringBuilder();
+            boolean numeric = true;
+            for (int i = 0; i < declarations.size(); i++) {
+                FunctionDeclaration declaration = declarations.get(i);
+                String returnType = FunctionDeclaration.erase(declaration.getReturnType());
+                String valueType = FunctionParser.getValueType(returnType);
+                String value;
+                if (optimized.expressions.get(i) != null) {
+                    value = "(" + optimized.expressions.get(i) + ")";
+                } else if (!declaration.hasReturnStatement()) {
+                    value = "(" + declaration.getBody() + ")";
+                } else {
+                    StringBuilder ownParameters = new StringBuilder();
+                    StringBuilder ownArguments = new StringBuilder();
+                    for (FunctionDeclaration.Parameter parameter : declaration.getParameters()) {
+                        if (ownParameters.length() > 0) {
+                            ownParameters.append(", ");
+                            ownArguments.append(", ");
+                        }
+                        ownParameters.append(FunctionParser.getValueType(parameter.getErasedType())).append(' ').append(parameter.name);
+                        ownArguments.append(parameter.name);
+                    }
+                    methodString = "private " + (FunctionParser.supportedPrimitives.contains(valueType) ? valueType : returnType) + " f" + i
+                            + "(" + ownParameters + "){" + declaration.getBody() + "}";
+                    evalClass.addMethod(CtNewMethod.make(methodString, evalClass));
+                    value = "f" + i + "(" + ownArguments + ")";
+                }
+                if (FunctionParser.supportedPrimitives.contains(valueType)) {
+                    String result = "((" + valueType + ") " + value + ")";
+                    objectResults.append("__out[").append(i).append("] = ").append(FunctionParser.primitiveToClass.get(valueType))
+                            .append(".valueOf(").append(result).append(");");
+                    doubleResults.append("__out[").append(i).append("] = (double) ").append(result).append(';');
+                    numeric &= !valueType.equals("boolean");
+                } else {
+                    objectResults.append("__out[").append(i).append("] = ((").append(returnType).append(") ").append(value).append(");");
+                    numeric = false;
+                }
+            }
+
+            methodString = "private void fillObjects(" + parameters + "Object[] __out){" + optimized.prelude + objectResults + "}";
+            evalClass.addMethod(CtNewMethod.make(methodString, evalClass));
+            methodString = "public void evaluate(Object[] __args, Object[] __out){fillObjects(" + unboxedArguments + "__out);}";
+            evalClass.addMethod(CtNewMethod.make(methodString, evalClass));
+            if (numeric) {
+                methodString = "private void fillDoubles(" + parameters + "double[] __out){" + optimized.prelude + doubleResults + "}";
+                evalClass.addMethod(CtNewMethod.make(methodString, evalClass));
+                methodString = "public void evaluateToDouble(Object[] __args, double[] __out){fillDoubles(" + unboxedArguments + "__out);}";
+                evalClass.addMethod(CtNewMethod.make(methodString, evalClass));
+                if (allDoubles) {
+                    methodString = "public void evaluateToDouble(double[] __args, double[] __out){fillDoubles(" + arrayArguments + "__out);}";
+                    evalClass.addMethod(CtNewMethod.make(methodString, evalClass));
+                }
+            }
+
+            methodString = "public " + evalClass.getSimpleName() + "(java.util.LinkedHashSet variableSet, java.util.List functionStrings){"
+                    + "this.variableSet = variableSet; this.functionStrings = functionStrings;}";
+            evalClass.addConstructor(CtNewConstructor.make(methodString, evalClass));
+            evalClass.addMethod(CtNewMethod.make("public java.util.LinkedHashSet getVariableSet(){return this.variableSet;}", evalClass));
+            evalClass.addMethod(CtNewMethod.make("public java.util.List getFunctionStrings(){return this.functionStrings;}", evalClass));
+            evalClass.addMethod(CtNewMethod.make(
+                    "public java.lang.String toString(){return \"FunctionGroup\" + this.functionStrings;}", evalClass));
+
+            byte[] bytecode = evalClass.toBytecode();
+            Class<?> clazz = defineClass(evalClass, bytecode, mode);
+            return (FunctionGroup) clazz.getConstructor(LinkedHashSet.class, List.class).newInstance(
+                    new LinkedHashSet<>(parameterTypes.keySet()), Collections.unmodifiableList(new ArrayList<>(functionStrings)));
+        } catch (CannotCompileException | IOException | InvocationTargetException | NoSuchMethodException | NotFoundException | IllegalAccessException | InstantiationException e) {
+            throw new IllegalArgumentException("Error when parsing function group: \n" + methodString, e);
+        }
+    }
+
+    /**
+     * Compiles the predicates of a chain into one generated class that evaluates them in the given
+     * order. Every predicate gets a method of its own, which the JIT inlines into the chain.
+     */
+    static PredicateChain.Compiled compilePredicateChain(PredicateChain.Operator operator, List<FunctionDeclaration> declarations,
+                                                         Map<String, String> parameterTypes, int[] order) {
+        String methodString = "";
+        try {
+            List<String> names = new ArrayList<>(parameterTypes.keySet());
+            StringBuilder parameters = new StringBuilder();
+            StringBuilder arguments = new StringBuilder();
+            StringBuilder unboxedArguments = new StringBuilder();
+            StringBuilder arrayArguments = new StringBuilder();
+            StringBuilder columnArguments = new StringBuilder();
+            StringBuilder columns = new StringBuilder();
+            boolean allDoubles = true;
+            for (int i = 0; i < names.size(); i++) {
+                String type = parameterTypes.get(names.get(i));
+                String separator = i == 0 ? "" : ", ";
+                parameters.append(separator).append(FunctionParser.getValueType(type)).append(' ').append(names.get(i));
+                arguments.append(separator).append(names.get(i));
+                unboxedArguments.append(separator).append(getReplaceForVariableAndType(type, i, "__args"));
+                arrayArguments.append(separator).append("__args[").append(i).append(']');
+                columnArguments.append(separator).append("__c").append(i).append("[__i]");
+                columns.append("double[] __c").append(i).append(" = __columns[").append(i).append("]; ");
+                allDoubles &= FunctionParser.getValueType(type).equals("double");
+            }
+
+            LoadingMode mode = FunctionParser.getLoadingMode();
+            ClassPool pool = newScopedPool();
+            CtClass evalClass = pool.makeClass(getClassNamePrefix(mode) + "EvalChain" + functionCounter.incrementAndGet());
+            evalClass.setInterfaces(new CtClass[]{pool.get("com.alfredvc.PredicateChain$Compiled")});
+
+            String[] calls = new String[declarations.size()];
+            String[] unboxedCalls = new String[declarations.size()];
+            String[] columnCalls = new String[declarations.size()];
+            for (int p = 0; p < declarations.size(); p++) {
+                FunctionDeclaration declaration = declarations.get(p);
+                StringBuilder ownParameters = new StringBuilder();
+                StringBuilder ownArguments = new StringBuilder();
+                StringBuilder ownUnboxedArguments = new StringBuilder();
+                StringBuilder ownColumnArguments = new StringBuilder();
+                for (FunctionDeclaration.Parameter parameter : declaration.getParameters()) {
+                    String separator = ownParameters.length() == 0 ? "" : ", ";
+                    int index = names.indexOf(parameter.name);
+                    ownParameters.append(separator).append(FunctionParser.getValueType(parameter.getErasedType())).append(' ').append(parameter.name);
+                    ownArguments.append(separator).append(parameter.name);
+                    ownUnboxedArguments.append(separator).append(getReplaceForVariableAndType(parameterTypes.get(parameter.name), index, "__args"));
+                    ownColumnArguments.append(separator).append("__c").append(index).append("[__i]");
+                }
+                String returnType = "boolean";
+                ExpressionOptimizer.Result optimized = FunctionParser.isOptimizationEnabled() ? ExpressionOptimizer.optimize(declaration) : null;
+                String body;
+                if (optimized != null) {
+                    body = optimized.prelude + "return " + optimized.expression + ";";
+                } else if (declaration.hasReturnStatement()) {
+                    returnType = FunctionDeclaration.erase(declaration.getReturnType());
+                    body = declaration.getBody();
+                } else {
+                    body = "return " + declaration.getBody() + ";";
+                }
+                methodString = "private " + returnType + " p" + p + "(" + ownParameters + "){" + body + "}";
+                evalClass.addMethod(CtNewMethod.make(methodString, evalClass));
+                String unbox = returnType.equals("boolean") ? "" : ".booleanValue()";
+                calls[p] = "p" + p + "(" + ownArguments + ")" + unbox;
+                unboxedCalls[p] = "p" + p + "(" + ownUnboxedArguments + ")" + unbox;
+                columnCalls[p] = "p" + p + "(" + ownColumnArguments + ")" + unbox;
+            }
+
+            StringBuilder chain = new StringBuilder();
+            for (int p : order) {
+                chain.append(chain.length() == 0 ? "" : operator == PredicateChain.Operator.AND ? " && " : " || ").append(calls[p]);
+            }
+            methodString = "private boolean chain(" + parameters + "){return " + chain + ";}";
+            evalClass.addMethod(CtNewMethod.make(methodString, evalClass));
+            methodString = "public boolean test(Object[] __args){return chain(" + unboxedArguments + ");}";
+            evalClass.addMethod(CtNewMethod.make(methodString, evalClass));
+            StringBuilder predicates = new StringBuilder();
+            for (int p = 0; p < declarations.size(); p++) {
+                predicates.append("if (__p == ").append(p).append(") return ").append(unboxedCalls[p]).append("; ");
+            }
+            methodString = "public boolean testPredicate(int __p, Object[] __args){" + predicates
+                    + "throw new IndexOutOfBoundsException(\"Predicate \" + __p);}";
+            evalClass.addMethod(CtNewMethod.make(methodString, evalClass));
+
+            if (allDoubles) {
+                methodString = "public boolean test(double[] __args){return chain(" + arrayArguments + ");}";
+                evalClass.addMethod(CtNewMethod.make(methodString, evalClass));
+                methodString = "public int filter(double[][] __columns, int __from, int __to, int[] __selected, int __count){"
+                        + columns + "for (int __i = __from; __i < __to; __i++) {"
+                        + "if (chain(" + columnArguments + ")) {__selected[__count] = __i; __count++;}} return __count;}";
+                evalClass.addMethod(CtNewMethod.make(methodString, evalClass));
+                predicates.setLength(0);
+                for (int p = 0; p < declarations.size(); p++) {
+                    predicates.append("if (__p == ").append(p).append(") {for (int __i = __from; __i < __to; __i++) {")
+                            .append("if (").append(columnCalls[p]).append(") __count++;} return __count;} ");
+                }
+                methodString = "public int countPredicate(int __p, double[][] __columns, int __from, int __to){"
+                        + columns + "int __count = 0; " + predicates + "throw new IndexOutOfBoundsException(\"Predicate \" + __p);}";
+                evalClass.addMethod(CtNewMethod.make(methodString, evalClass));
+            }
+
+            byte[] bytecode = evalClass.toBytecode();
+            Class<?> clazz = defineClass(evalClass, bytecode, mode);
+            return (PredicateChain.Compiled) clazz.getConstructor().newInstance();
+        } catch (CannotCompileException | IOException | InvocationTargetException | NoSuchMethodException | NotFoundException | IllegalAccessException | InstantiationException e) {
+            throw new IllegalArgumentException("Error when parsing predicate chain: \n" + methodString, e);
+        }
+    }
+
+    /**
+     * Parses a function string into its return type, parameters and body. Unless every parameter
+     * is primitive, in which case the body takes them directly, the variables of the body are
+     * replaced with reads from the argument array argsName.
+     */
+    private static Definition parse(String functionString, String argsName) {
+        FunctionDeclaration declaration = FunctionDeclaration.parse(functionString);
+        List<FunctionDeclaration.Parameter> parameters = declaration.getParameters();
+        List<String> types = new ArrayList<>(parameters.size());
+        Map<String, String> replacements = new HashMap<>();
+        for (int i = 0; i < parameters.size(); i++) {
+            FunctionDeclaration.Parameter parameter = parameters.get(i);
+            String type = parameter.getErasedType();
+            types.add(type);
+            replacements.put(parameter.name, getReplaceForVariableAndType(type, i, argsName));
+        }
+        String returnType = FunctionDeclaration.erase(declaration.getReturnType());
+        boolean objectArguments = !FunctionParser.hasPrimitiveParameters(types);
+        ExpressionOptimizer.Result optimized = FunctionParser.isOptimizationEnabled() ? ExpressionOptimizer.optimize(declaration) : null;
+        if (optimized != null) {
+            return new Definition(functionString, returnType, types, declaration.getVariables(),
+                    optimized.expression, objectArguments ? FunctionDeclaration.substitute(optimized.expression, replacements) : null,
+                    optimized.prelude, objectArguments ? FunctionDeclaration.substitute(optimized.prelude, replacements) : null,
+                    argsName, false);
+        }
+        return new Definition(functionString, returnType, types, declaration.getVariables(),
+                declaration.getBody(), objectArguments ? declaration.substitute(replacements) : null, "", "", argsName,
+                declaration.hasReturnStatement());
+    }
+
+    /**
+     * Every compilation gets its own child of the default pool, so the generated CtClass never ends
+     * up in a pool shared between threads. The default pool is only used to look up existing
+     * classes, which it does under its own short lived lock.
+     */
+    private static ClassPool newScopedPool() {
+        ClassPool pool = new ClassPool(ClassPool.getDefault());
+        pool.appendClassPath(new LoaderClassPath(FunctionClassLoader.parentLoader()));
+        return pool;
+    }
+
+    private static String getClassNamePrefix(LoadingMode mode) {
+        return mode == LoadingMode.HIDDEN ? HiddenClassDefiner.PACKAGE_PREFIX : "";
+    }
+
+    private static Class<?> defineClass(CtClass evalClass, byte[] bytecode, LoadingMode mode) throws CannotCompileException {
+        if (mode == LoadingMode.HIDDEN) {
+            evalClass.detach();
+            return HiddenClassDefiner.define(bytecode);
+        }
+        if (mode == LoadingMode.SHARED) {
+            Class<?> clazz = evalClass.toClass();
+            evalClass.detach();
+            return clazz;
+        }
+        evalClass.detach();
+        return new FunctionClassLoader(FunctionClassLoader.parentLoader()).define(evalClass.getName(), bytecode);
+    }
+
+    /**
+     * Adds the field and setter holding the metrics of an instrumented function.
+     */
+    private static void addMetricsField(CtClass evalClass, ClassPool pool) throws CannotCompileException, NotFoundException {
+        evalClass.addField(new CtField(pool.get("com.alfredvc.FunctionMetrics"), "metrics", evalClass));
+        evalClass.addMethod(
+                CtNewMethod.make("public void setMetrics(com.alfredvc.FunctionMetrics m){this.metrics = m;}", evalClass)
+        );
+    }
+
+    private static void attachMetrics(Object function, FunctionMetrics metrics) {
+        try {
+            function.getClass().getMethod("setMetrics", FunctionMetrics.class).invoke(function, metrics);
+        } catch (InvocationTargetException | NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Error when instrumenting " + function.getClass().getName(), e);
+        }
+        FunctionParser.getMetricsRegistry().register(function, metrics);
+    }
+
+    /**
+     * Wraps the method containing the body of a function with calls to its metrics, so every
+     * evaluate method, which all end up calling it, is counted exactly once.
+     */
+    private static void instrument(CtMethod method) throws CannotCompileException, NotFoundException {
+        method.addLocalVariable("__start", CtClass.longType);
+        method.insertBefore("__start = this.metrics.enter();");
+        method.insertAfter("this.metrics.exit(__start);");
+        method.addCatch("{this.metrics.failed(); throw $e;}", method.getDeclaringClass().getClassPool().get("java.lang.Throwable"));
+    }
+
+    private static void addHelperMethods(CtClass evalClass) throws CannotCompileException {
+        evalClass.addMethod(
+                CtNewMethod.make("public java.util.LinkedHashSet getVariableSet(){return this.variableSet;}", evalClass)
+        );
+
+        evalClass.addMethod(
+                CtNewMethod.make("public java.lang.String getFunctionString(){return this.functionString;}", evalClass)
+        );
+
+        evalClass.addMethod(
+                CtNewMethod.make("public java.lang.String toString(){return \"ParsedFunction[\" + this.functionString + \"]\";}", evalClass)
+        );
+    }
+
+    private static void addSetterMethods(CtClass evalClass) throws CannotCompileException {
+        evalClass.addMethod(
+                CtNewMethod.make("public void setVariableSet(java.util.LinkedHashSet s){this.variableSet = s;}", evalClass)
+        );
+
+        evalClass.addMethod(
+                CtNewMethod.make("public void setFunctionString(java.lang.String s){this.functionString = s;}", evalClass)
+        );
+    }
+
+    /**
+     * Implements the method of a functional interface by calling the evaluate method generated for
+     * the function, converting the arguments and the result as needed.
+     */
+    private static void addFunctionalMethod(CtClass evalClass, ClassPool pool, Method method, String returnType, List<String> types) throws CannotCompileException, NotFoundException {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        if (parameterTypes.length != types.size()) {
+            throw new IllegalArgumentException(method + " takes " + parameterTypes.length
+                    + " arguments but the function takes " + types.size());
+        }
+        String methodNameAndReturnType = FunctionParser.getMethodNameAndReturnType(returnType);
+        String methodName = methodNameAndReturnType.substring(methodNameAndReturnType.indexOf(' ') + 1);
+        StringBuilder call = new StringBuilder(methodName).append('(');
+        if (FunctionParser.hasPrimitiveParameters(types)) {
+            for (int i = 0; i < types.size(); i++) {
+                if (i > 0) {
+                    call.append(", ");
+                }
+                if (parameterTypes[i].isPrimitive()) {
+                    call.append("((").append(types.get(i)).append(") $").append(i + 1).append(')');
+                } else {
+                    call.append("(((").append(FunctionParser.primitiveToClass.get(types.get(i))).append(") $").append(i + 1)
+                            .append(").").append(types.get(i)).append("Value())");
+                }
+            }
+        } else {
+            call.append("$args");
+        }
+        call.append(')');
+
+        Class<?> samReturnType = method.getReturnType();
+        boolean primitiveResult = FunctionParser.supportedPrimitives.contains(returnType);
+        String body;
+        if (samReturnType == void.class) {
+            body = "{" + call + ";}";
+        } else if (samReturnType.isPrimitive() && !primitiveResult) {
+            String wrapper = FunctionParser.primitiveToClass.get(samReturnType.getName());
+            body = "{return ((" + wrapper + ") " + call + ")." + samReturnType.getName() + "Value();}";
+        } else if (samReturnType.isPrimitive()) {
+            body = "{return (" + samReturnType.getTypeName() + ") " + call + ";}";
+        } else if (primitiveResult) {
+            body = "{return ($w) " + call + ";}";
+        } else {
+            body = "{return (" + samReturnType.getTypeName() + ") " + call + ";}";
+        }
+
+        CtClass[] parameters = new CtClass[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; i++) {
+            parameters[i] = pool.get(parameterTypes[i].getTypeName());
+        }
+        evalClass.addMethod(CtNewMethod.make(pool.get(samReturnType.getTypeName()), method.getName(), parameters,
+                new CtClass[0], body, evalClass));
+    }
+
+    private static String getParameterList(List<String> types, Set<String> variables) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        for (String variable : variables) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(types.get(i++)).append(' ').append(variable);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Adds the methods evaluating the function to the class, all named methodName. Functions with
+     * only primitive parameters are compiled into a method taking the parameters directly. The
+     * Object[] entry point unboxes its arguments and delegates to it, and if all parameters are
+     * doubles double[] and column batch entry points are added as well.
+     *
+     * @return the ParsedFunction entry points implemented by the added methods.
+     */
+    private static List<EntryPoint> addEvaluateMethods(CtClass evalClass, Definition definition, String mainMethodString,
+                                                       String methodName, String modifier, boolean instrumented)
+            throws CannotCompileException, NotFoundException {
+        CtMethod mainMethod = CtNewMethod.make(mainMethodString, evalClass);
+        if (instrumented) {
+            instrument(mainMethod);
+        }
+        evalClass.addMethod(mainMethod);
+        String methodNameAndReturnType = FunctionParser.getMethodNameAndReturnType(definition.returnType);
+        String javaReturnType = methodNameAndReturnType.substring(0, methodNameAndReturnType.indexOf(' '));
+        List<EntryPoint> entryPoints = new ArrayList<>();
+        if (!definition.hasPrimitiveParameters()) {
+            entryPoints.add(new EntryPoint(methodNameAndReturnType + "(Object[] args)", "args", true));
+            return entryPoints;
+        }
+        List<String> types = definition.types;
+        StringBuilder unboxedArguments = new StringBuilder();
+        StringBuilder arrayArguments = new StringBuilder();
+        StringBuilder doubleParameters = new StringBuilder();
+        StringBuilder doubleArguments = new StringBuilder();
+        boolean allDoubles = true;
+        for (int i = 0; i < types.size(); i++) {
+            if (i > 0) {
+                unboxedArguments.append(", ");
+                arrayArguments.append(", ");
+                doubleParameters.append(", ");
+                doubleArguments.append(", ");
+            }
+            unboxedArguments.append(getReplaceForVariableAndType(types.get(i), i, "args"));
+            arrayArguments.append("args[").append(i).append(']');
+            doubleParameters.append("double a").append(i);
+            doubleArguments.append('a').append(i);
+            allDoubles &= types.get(i).equals("double");
+        }
+        evalClass.addMethod(CtNewMethod.make(
+                modifier + " " + javaReturnType + " " + methodName + "(Object[] args){return " + methodName + "(" + unboxedArguments + ");}", evalClass));
+        entryPoints.add(new EntryPoint(methodNameAndReturnType + "(Object[] args)", "args", true));
+        if (allDoubles) {
+            evalClass.addMethod(CtNewMethod.make(
+                    modifier + " " + javaReturnType + " " + methodName + "(double[] args){return " + methodName + "(" + arrayArguments + ");}", evalClass));
+            entryPoints.add(new EntryPoint(methodNameAndReturnType + "(double[] args)", "args", true));
+            if (types.size() <= MAX_PRIMITIVE_ENTRY_ARITY) {
+                entryPoints.add(new EntryPoint(methodNameAndReturnType + "(" + doubleParameters + ")", doubleArguments.toString(), true));
+            }
+            if (javaReturnType.equals("double") || javaReturnType.equals("boolean") || javaReturnType.equals("long")) {
+                evalClass.addMethod(CtNewMethod.make(getBatchMethodString(modifier, javaReturnType, methodName, types.size()), evalClass));
+                String evaluateName = methodNameAndReturnType.substring(methodNameAndReturnType.indexOf(' ') + 1);
+                entryPoints.add(new EntryPoint("void " + evaluateName + "(double[][] columns, " + javaReturnType + "[] out, int from, int to)",
+                        "columns, out, from, to", false));
+            }
+        }
+        return entryPoints;
+    }
+
+    /**
+     * Builds a method evaluating the function over the rows from (inclusive) to to (exclusive) of
+     * the given columns. The columns are read into locals before the loop so the JIT only sees
+     * plain array accesses inside it.
+     */
+    private static String getBatchMethodString(String modifier, String returnType, String methodName, int columnCount) {
+        StringBuilder sb = new StringBuilder(modifier).append(" void ").append(methodName)
+                .append("(double[][] columns, ").append(returnType).append("[] out, int from, int to){");
+        StringBuilder arguments = new StringBuilder();
+        for (int i = 0; i < columnCount; i++) {
+            sb.append("double[] c").append(i).append(" = columns[").append(i).append("];");
+            if (i > 0) {
+                arguments.append(", ");
+            }
+            arguments.append('c').append(i).append("[i]");
+        }
+        sb.append("for (int i = from; i < to; i++) {out[i] = ").append(methodName).append('(').append(arguments).append(");}}");
+        return sb.toString();
+    }
+
+    /**
+     * Builds the method containing the body of the function. It takes the primitive parameters
+     * directly if the function only has primitive parameters, and the Object[] arguments otherwise.
+     */
+    private static String getMainMethodString(String modifier, String methodName, Definition definition) {
+        if (definition.hasPrimitiveParameters()) {
+            return getMethodString(modifier, methodName, getParameterList(definition.types, definition.variables),
+                    definition.returnType, definition.rawPrelude, definition.rawBody, definition.hasReturnStatement);
+        }
+        return getMethodString(modifier, methodName, "Object[] " + definition.argsName, definition.returnType,
+                definition.objectPrelude, definition.objectBody, definition.hasReturnStatement);
+    }
+
+    /**
+     * Builds a method returning the body. Expression bodies are returned, after the statements of
+     * the prelude, and bodies with a return statement are used as they are.
+     */
+    private static String getMethodString(String modifier, String methodName, String parameters, String returnType,
+                                          String prelude, String inputMethodBody, boolean hasReturnStatement) {
+        String methodString;
+        String methodBody = inputMethodBody;
+        if(FunctionParser.classToPrimitive.containsKey(returnType)) {
+            methodBody = returnType + ".valueOf(" + methodBody+ ")";
+        }
+        String methodNameAndReturnType = FunctionParser.getMethodNameAndReturnType(returnType);
+        String javaReturnType = methodNameAndReturnType.substring(0, methodNameAndReturnType.indexOf(' '));
+
+        if (hasReturnStatement) {
+            methodString = modifier + " " + javaReturnType + " " + methodName + "(" + parameters + "){" + methodBody + "}";
+        } else {
+            methodString = modifier + " " + javaReturnType + " " + methodName + "(" + parameters + "){" + prelude + "return ((" + returnType + ")(" + methodBody + "));}";
+        }
+        return methodString;
+    }
+
+    private static String getReplaceForVariableAndType(String type, int varNr, String argsName) {
+        String toReplace;
+        String returnType;
+        if (FunctionParser.supportedPrimitives.contains(type)) {
+            toReplace = "(((" + FunctionParser.primitiveToClass.get(type) + ") " + argsName + "[" + varNr + "])." + type + "Value())";
+        } else if (FunctionParser.classToPrimitive.containsKey(type)) {
+            returnType = FunctionParser.classToPrimitive.get(type);
+            toReplace = "(((" + type + ") " + argsName + "[" + varNr + "])." + returnType + "Value())";
+        } else {
+            toReplace = "((" + type + ") " + argsName + "[" + varNr + "])";
+        }
+        return toReplace;
+    }
+
+    /**
+     * A function string split into its parts.
+     */
+    private static final class Definition {
+        final String functionString;
+        final String returnType;
+        final List<String> types;
+        final LinkedHashSet<String> variables;
+        final String rawBody;
+        final String objectBody;
+        final String rawPrelude;
+        final String objectPrelude;
+        final String argsName;
+        final boolean hasReturnStatement;
+
+        Definition(String functionString, String returnType, List<String> types, LinkedHashSet<String> variables,
+                   String rawBody, String objectBody, String rawPrelude, String objectPrelude, String argsName,
+                   boolean hasReturnStatement) {
+            this.functionString = functionString;
+            this.returnType = returnType;
+            this.types = types;
+            this.variables = variables;
+            this.rawBody = rawBody;
+            this.objectBody = objectBody;
+            this.rawPrelude = rawPrelude;
+            this.objectPrelude = objectPrelude;
+            this.argsName = argsName;
+            this.hasReturnStatement = hasReturnStatement;
+        }
+
+        boolean hasPrimitiveParameters() {
+            return FunctionParser.hasPrimitiveParameters(types);
+        }
+
+        String getEvaluateMethodName() {
+            String methodNameAndReturnType = FunctionParser.getMethodNameAndReturnType(returnType);
+            return methodNameAndReturnType.substring(methodNameAndReturnType.indexOf(' ') + 1);
+        }
+    }
+
+    /**
+     * A ParsedFunction method implemented by a generated method, declared with the parameter names
+     * used in arguments.
+     */
+    private static final class EntryPoint {
+        final String declaration;
+        final String arguments;
+        final boolean returnsValue;
+
+        EntryPoint(String declaration, String arguments, boolean returnsValue) {
+            this.declaration = declaration;
+            this.arguments = arguments;
+            this.returnsValue = returnsValue;
+        }
+    }
+}
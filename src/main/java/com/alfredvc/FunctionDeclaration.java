@@ -0,0 +1,268 @@
+package com.alfredvc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The syntax tree of a function string: its return type, its parameters and the tokens of its body.
+ * <p>
+ * Function strings are parsed in a single pass over the tokens produced by {@link FunctionLexer}.
+ * Parameter types may be qualified, generic or array types, for example
+ * double(java.util.Map&lt;String, Double&gt; m, double[] xs)-&gt;m.get("a") + xs[0].
+ */
+final class FunctionDeclaration {
+    private final String returnType;
+    private final List<Parameter> parameters;
+    private final List<Token> body;
+    private final int bodyStart;
+    private final String functionString;
+
+    private FunctionDeclaration(String functionString, String returnType, List<Parameter> parameters, List<Token> body, int bodyStart) {
+        this.functionString = functionString;
+        this.returnType = returnType;
+        this.parameters = Collections.unmodifiableList(parameters);
+        this.body = Collections.unmodifiableList(body);
+        this.bodyStart = bodyStart;
+    }
+
+    /**
+     * Parses a function string.
+     *
+     * @param functionString the function string.
+     * @return the declaration of the function.
+     * @throws IllegalArgumentException if the function string is malformed.
+     */
+    static FunctionDeclaration parse(String functionString) {
+        List<Token> tokens = FunctionLexer.tokenize(functionString);
+        int i = nextSignificant(tokens, 0);
+        int typeStart = i;
+        int depth = 0;
+        while (i < tokens.size() && !(depth == 0 && tokens.get(i).is("("))) {
+            depth += angleDepth(tokens.get(i));
+            i = nextSignificant(tokens, i + 1);
+        }
+        if (i >= tokens.size()) {
+            throw new IllegalArgumentException("Missing parameter list in " + functionString);
+        }
+        String returnType = typeStart == i ? FunctionParser.DEFAULT_RETURN_TYPE : joinType(tokens, typeStart, i);
+
+        List<Parameter> parameters = new ArrayList<>();
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        String currentType = null;
+        i = nextSignificant(tokens, i + 1);
+        if (i < tokens.size() && tokens.get(i).is(")")) {
+            i = nextSignificant(tokens, i + 1);
+        } else {
+            while (true) {
+                int groupStart = i;
+                int last = -1;
+                int previous = -1;
+                depth = 0;
+                while (i < tokens.size() && !(depth == 0 && (tokens.get(i).is(",") || tokens.get(i).is(")")))) {
+                    depth += angleDepth(tokens.get(i));
+                    previous = last;
+                    last = i;
+                    i = nextSignificant(tokens, i + 1);
+                }
+                if (i >= tokens.size()) {
+                    throw new IllegalArgumentException("Unterminated parameter list in " + functionString);
+                }
+                if (last < 0 || tokens.get(last).kind != Token.Kind.IDENTIFIER) {
+                    throw new IllegalArgumentException("Missing parameter name near " + functionString.substring(tokens.get(groupStart).start, tokens.get(i).end()));
+                }
+                if (previous >= 0) {
+                    currentType = joinType(tokens, groupStart, last);
+                } else if (currentType == null) {
+                    throw new IllegalArgumentException("No argument type found in " + tokens.get(last).text);
+                }
+                String name = tokens.get(last).text;
+                if (!names.add(name)) {
+                    throw new IllegalArgumentException("Duplicate parameter " + name + " in " + functionString);
+                }
+                parameters.add(new Parameter(currentType, name));
+                boolean closed = tokens.get(i).is(")");
+                i = nextSignificant(tokens, i + 1);
+                if (closed) {
+                    break;
+                }
+            }
+        }
+        if (i >= tokens.size() || !tokens.get(i).is("->")) {
+            throw new IllegalArgumentException("Missing -> in " + functionString);
+        }
+        int bodyIndex = i + 1;
+        int bodyStart = tokens.get(i).end();
+        return new FunctionDeclaration(functionString, returnType, parameters, tokens.subList(bodyIndex, tokens.size()), bodyStart);
+    }
+
+    String getFunctionString() {
+        return functionString;
+    }
+
+    String getReturnType() {
+        return returnType;
+    }
+
+    List<Parameter> getParameters() {
+        return parameters;
+    }
+
+    LinkedHashSet<String> getVariables() {
+        LinkedHashSet<String> variables = new LinkedHashSet<>();
+        for (Parameter parameter : parameters) {
+            variables.add(parameter.name);
+        }
+        return variables;
+    }
+
+    List<Token> getBodyTokens() {
+        return body;
+    }
+
+    /**
+     * Returns the body exactly as written after the -&gt;.
+     */
+    String getBody() {
+        return functionString.substring(bodyStart);
+    }
+
+    /**
+     * Whether the body is a block of statements containing a return statement, rather than an
+     * expression.
+     */
+    boolean hasReturnStatement() {
+        for (Token token : body) {
+            if (token.kind == Token.Kind.IDENTIFIER && token.text.equals("return")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the body with every reference to a variable in the given map replaced by its value,
+     * in a single pass over the body tokens. Member names following a '.', and the contents of
+     * literals and comments, are never replaced.
+     *
+     * @param replacements the replacement of each variable.
+     * @return the rewritten body.
+     */
+    String substitute(Map<String, String> replacements) {
+        return substitute(body, replacements, functionString.length() - bodyStart);
+    }
+
+    /**
+     * Replaces the variables in a fragment of Java source, as {@link #substitute(Map)} does.
+     */
+    static String substitute(String source, Map<String, String> replacements) {
+        return substitute(FunctionLexer.tokenize(source), replacements, source.length());
+    }
+
+    private static String substitute(List<Token> tokens, Map<String, String> replacements, int length) {
+        StringBuilder sb = new StringBuilder(length + 16 * replacements.size());
+        Token previous = null;
+        for (Token token : tokens) {
+            String replacement = null;
+            if (token.kind == Token.Kind.IDENTIFIER && (previous == null || !previous.is("."))) {
+                replacement = replacements.get(token.text);
+            }
+            sb.append(replacement == null ? token.text : replacement);
+            if (token.isSignificant()) {
+                previous = token;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int nextSignificant(List<Token> tokens, int from) {
+        int i = from;
+        while (i < tokens.size() && !tokens.get(i).isSignificant()) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int angleDepth(Token token) {
+        if (token.kind != Token.Kind.OPERATOR) {
+            return 0;
+        }
+        int depth = 0;
+        for (int i = 0; i < token.text.length(); i++) {
+            char c = token.text.charAt(i);
+            if (c == '<') {
+                depth++;
+            } else if (c == '>') {
+                depth--;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Joins the significant tokens in [from, to) into a type name, keeping a single space only
+     * between two words, as in "? extends Number".
+     */
+    private static String joinType(List<Token> tokens, int from, int to) {
+        StringBuilder sb = new StringBuilder();
+        Token previous = null;
+        for (int i = from; i < to; i++) {
+            Token token = tokens.get(i);
+            if (!token.isSignificant()) {
+                continue;
+            }
+            if (previous != null && previous.kind == Token.Kind.IDENTIFIER && token.kind == Token.Kind.IDENTIFIER) {
+                sb.append(' ');
+            }
+            sb.append(token.text);
+            previous = token;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the given type without its type arguments, which is what Javassist can compile.
+     */
+    static String erase(String type) {
+        if (type.indexOf('<') < 0) {
+            return type;
+        }
+        StringBuilder sb = new StringBuilder(type.length());
+        int depth = 0;
+        for (int i = 0; i < type.length(); i++) {
+            char c = type.charAt(i);
+            if (c == '<') {
+                depth++;
+            } else if (c == '>') {
+                depth--;
+            } else if (depth == 0) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A parameter of a function. The type is kept as written, generics included.
+     */
+    static final class Parameter {
+        final String type;
+        final String name;
+
+        Parameter(String type, String name) {
+            this.type = type;
+            this.name = name;
+        }
+
+        String getErasedType() {
+            return erase(type);
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + name;
+        }
+    }
+}
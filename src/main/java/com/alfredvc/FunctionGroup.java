@@ -0,0 +1,65 @@
+package com.alfredvc;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * A group of functions evaluated together over the same arguments, compiled into a single
+ * generated method by {@link FunctionParser#fromStringsAsGroup(java.util.Collection)}.
+ * <p>
+ * The arguments are the union of the parameters of the functions, in the order of
+ * {@link #getVariableSet()}. Every argument is unboxed once per evaluation, subexpressions shared
+ * by the functions are computed once, and the result of the n-th function is written to out[n].
+ * <p>
+ * For example: FunctionGroup group = FunctionParser.fromStringsAsGroup(Arrays.asList(
+ * "double(double x, y)-&gt;Math.log(x) * y", "double(double x)-&gt;Math.log(x) + 1"));
+ * double[] out = new double[group.size()]; group.evaluateToDouble(new double[]{2.0, 3.0}, out);
+ */
+public interface FunctionGroup {
+
+    /**
+     * Evaluates every function, boxing the results.
+     *
+     * @param args the arguments, in the order of the variable set.
+     * @param out  receives the result of every function, must be at least as long as the group.
+     */
+    default void evaluate(Object[] args, Object[] out) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Evaluates every function, converting the results to double. Only supported if every
+     * function has a numeric return type.
+     *
+     * @param args the arguments, in the order of the variable set.
+     * @param out  receives the result of every function, must be at least as long as the group.
+     */
+    default void evaluateToDouble(Object[] args, double[] out) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Evaluates every function without boxing. Only supported if every function has a numeric
+     * return type and every parameter is a double.
+     *
+     * @param args the arguments, in the order of the variable set.
+     * @param out  receives the result of every function, must be at least as long as the group.
+     */
+    default void evaluateToDouble(double[] args, double[] out) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the function strings of the group, in the order of the results.
+     */
+    List<String> getFunctionStrings();
+
+    /**
+     * @return the names of the arguments, in the order they are passed.
+     */
+    LinkedHashSet<String> getVariableSet();
+
+    default int size() {
+        return getFunctionStrings().size();
+    }
+}
@@ -0,0 +1,112 @@
+package com.alfredvc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a function string into Java tokens in a single pass. String and character literals and
+ * comments are kept as single tokens, so their contents are never mistaken for identifiers.
+ */
+final class FunctionLexer {
+    private static final String[] OPERATORS = {
+            ">>>=", "<<=", ">>=", ">>>", "->", "::", "==", "!=", "<=", ">=", "&&", "||", "++", "--",
+            "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<", ">>"
+    };
+
+    private final String source;
+    private int position;
+
+    private FunctionLexer(String source) {
+        this.source = source;
+    }
+
+    static List<Token> tokenize(String source) {
+        return new FunctionLexer(source).tokenize();
+    }
+
+    private List<Token> tokenize() {
+        List<Token> tokens = new ArrayList<>();
+        while (position < source.length()) {
+            int start = position;
+            Token.Kind kind = next();
+            tokens.add(new Token(kind, source.substring(start, position), start));
+        }
+        return tokens;
+    }
+
+    private Token.Kind next() {
+        char c = source.charAt(position);
+        if (Character.isWhitespace(c)) {
+            while (position < source.length() && Character.isWhitespace(source.charAt(position))) {
+                position++;
+            }
+            return Token.Kind.WHITESPACE;
+        }
+        if (source.startsWith("//", position)) {
+            int end = source.indexOf('\n', position);
+            position = end < 0 ? source.length() : end;
+            return Token.Kind.COMMENT;
+        }
+        if (source.startsWith("/*", position)) {
+            int end = source.indexOf("*/", position + 2);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated comment at " + position + " in " + source);
+            }
+            position = end + 2;
+            return Token.Kind.COMMENT;
+        }
+        if (c == '"' || c == '\'') {
+            readQuoted(c);
+            return c == '"' ? Token.Kind.STRING : Token.Kind.CHARACTER;
+        }
+        if (Character.isJavaIdentifierStart(c)) {
+            while (position < source.length() && Character.isJavaIdentifierPart(source.charAt(position))) {
+                position++;
+            }
+            return Token.Kind.IDENTIFIER;
+        }
+        if (Character.isDigit(c) || (c == '.' && position + 1 < source.length() && Character.isDigit(source.charAt(position + 1)))) {
+            readNumber();
+            return Token.Kind.NUMBER;
+        }
+        for (String operator : OPERATORS) {
+            if (source.startsWith(operator, position)) {
+                position += operator.length();
+                return Token.Kind.OPERATOR;
+            }
+        }
+        position++;
+        return Token.Kind.OPERATOR;
+    }
+
+    private void readQuoted(char quote) {
+        int start = position++;
+        while (position < source.length()) {
+            char c = source.charAt(position++);
+            if (c == '\\') {
+                position++;
+            } else if (c == quote) {
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Unterminated literal at " + start + " in " + source);
+    }
+
+    private void readNumber() {
+        int start = position;
+        boolean hex = source.startsWith("0x", position) || source.startsWith("0X", position);
+        while (position < source.length()) {
+            char c = source.charAt(position);
+            boolean exponentSign = false;
+            if (position > start && (c == '+' || c == '-')) {
+                char previous = source.charAt(position - 1);
+                exponentSign = hex ? previous == 'p' || previous == 'P' : previous == 'e' || previous == 'E';
+            }
+            if (Character.isJavaIdentifierPart(c) || c == '.' || exponentSign) {
+                position++;
+            } else {
+                return;
+            }
+        }
+    }
+}
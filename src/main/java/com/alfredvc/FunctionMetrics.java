@@ -0,0 +1,106 @@
+package com.alfredvc;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a function compiled while instrumentation was enabled, see
+ * {@link FunctionParser#setInstrumentationEnabled(boolean)}.
+ * <p>
+ * The compile time, bytecode size and class name are recorded when the function is compiled. The
+ * generated class counts its invocations and the invocations that threw in striped counters, and
+ * measures the latency of one in {@link #SAMPLE_INTERVAL} invocations on average. For functions
+ * compiled together by {@link FunctionParser#fromStrings(java.util.Collection)} the compile time
+ * and bytecode size are the share of the generated class of every function.
+ */
+public final class FunctionMetrics {
+    /**
+     * Average number of invocations per latency sample, a power of two.
+     */
+    public static final int SAMPLE_INTERVAL = 64;
+    private static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    private final String functionString;
+    private final String className;
+    private final long compileTimeNanos;
+    private final int bytecodeSize;
+    private final LongAdder invocations = new LongAdder();
+    private final LongAdder exceptions = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    FunctionMetrics(String functionString, String className, long compileTimeNanos, int bytecodeSize) {
+        this.functionString = functionString;
+        this.className = className;
+        this.compileTimeNanos = compileTimeNanos;
+        this.bytecodeSize = bytecodeSize;
+    }
+
+    public String getFunctionString() {
+        return functionString;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public long getCompileTimeNanos() {
+        return compileTimeNanos;
+    }
+
+    public int getBytecodeSize() {
+        return bytecodeSize;
+    }
+
+    public long getInvocationCount() {
+        return invocations.sum();
+    }
+
+    public long getExceptionCount() {
+        return exceptions.sum();
+    }
+
+    /**
+     * @return the histogram of the sampled latencies.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Called by the generated class when the function is entered.
+     *
+     * @return the start time to pass to {@link #exit(long)}.
+     */
+    public long enter() {
+        invocations.increment();
+        if ((ThreadLocalRandom.current().nextInt() & (SAMPLE_INTERVAL - 1)) != 0) {
+            return NOT_SAMPLED;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Called by the generated class when the function returns.
+     *
+     * @param start the value returned by {@link #enter()}.
+     */
+    public void exit(long start) {
+        if (start != NOT_SAMPLED) {
+            latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Called by the generated class when the function throws.
+     */
+    public void failed() {
+        exceptions.increment();
+    }
+
+    @Override
+    public String toString() {
+        return "FunctionMetrics[" + functionString + ", class=" + className + ", compileTime=" + compileTimeNanos
+                + "ns, bytecode=" + bytecodeSize + "B, invocations=" + getInvocationCount() + ", exceptions="
+                + getExceptionCount() + ", " + latency + "]";
+    }
+}
@@ -0,0 +1,79 @@
+package com.alfredvc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Registry of the metrics of the functions compiled while instrumentation was enabled, see
+ * {@link FunctionParser#setInstrumentationEnabled(boolean)}.
+ * <p>
+ * Functions are only weakly referenced, so the metrics of a function disappear from the registry
+ * once the function is garbage collected.
+ */
+public final class FunctionMetricsRegistry {
+    private final Map<Object, FunctionMetrics> metrics = new WeakHashMap<>();
+
+    FunctionMetricsRegistry() {
+        //Intentionally empty.
+    }
+
+    void register(Object function, FunctionMetrics functionMetrics) {
+        synchronized (metrics) {
+            metrics.put(function, functionMetrics);
+        }
+    }
+
+    /**
+     * Returns the metrics of a function, which can be a ParsedFunction or a functional interface
+     * returned by {@link FunctionParser#fromString(String, Class)}.
+     *
+     * @param function the compiled function.
+     * @return its metrics, or null if it was not compiled with instrumentation enabled.
+     */
+    public FunctionMetrics get(Object function) {
+        synchronized (metrics) {
+            return metrics.get(function);
+        }
+    }
+
+    /**
+     * @return the metrics of all live instrumented functions.
+     */
+    public List<FunctionMetrics> getAll() {
+        synchronized (metrics) {
+            return new ArrayList<>(metrics.values());
+        }
+    }
+
+    /**
+     * Returns the metrics of the most invoked functions.
+     *
+     * @param limit the maximum number of metrics returned.
+     * @return the metrics, ordered by decreasing invocation count.
+     */
+    public List<FunctionMetrics> getHottest(int limit) {
+        List<FunctionMetrics> all = getAll();
+        Collections.sort(all, Comparator.comparingLong(FunctionMetrics::getInvocationCount).reversed());
+        return all.subList(0, Math.min(limit, all.size()));
+    }
+
+    public int size() {
+        synchronized (metrics) {
+            return metrics.size();
+        }
+    }
+
+    /**
+     * Removes all metrics. Functions that are still in use keep counting into their metrics, but
+     * these are no longer returned by the registry.
+     */
+    public void clear() {
+        synchronized (metrics) {
+            metrics.clear();
+        }
+    }
+}
@@ -1,28 +1,33 @@
 package com.alfredvc;
 
-import javassist.CannotCompileException;
-import javassist.ClassPool;
-import javassist.CtClass;
-import javassist.CtField;
-import javassist.CtNewMethod;
-import javassist.NotFoundException;
-
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Class used to parse strings into ParsedFunction objects.
  * <p>
- * Since only Object types can be passed as arguments then functions with primitive parameter types
- * are not allowed. Return types can however be primitive types. For example double(double f)-&gt;(3*f)
- * is NOT valid use the Object type instead double(Double f)-&gt;(3*f)
+ * Both parameter and return types can be primitive types. Functions whose parameters are all
+ * primitive, for example double(double x,y)-&gt;(3*x + y), are compiled into a method taking the
+ * primitive arguments directly, which can be called without allocating through
+ * {@link ParsedFunction#evaluateToDouble(double, double)} and the other primitive entry points. The
+ * Object[] entry points accept the boxed arguments for all functions.
  * <p>
  * Given strings have a similar syntax to Java functions: returnType(parameterType param1,param2)-&gt;
  * EXPRESSION returnType(parameterType param1,param2)-&gt; return EXPRESSION; returnType(parameterType1
@@ -38,14 +43,40 @@ import java.util.Set;
  */
 public class FunctionParser {
     public static final String DEFAULT_RETURN_TYPE = "Object";
+    /**
+     * Number of evaluations after which {@link #fromStringTiered(String)} compiles a function.
+     */
+    public static final int DEFAULT_COMPILE_THRESHOLD = 10000;
+    /**
+     * Default number of profiled rows between two reorderings of a predicate chain, see
+     * {@link #fromStringsAsPredicateChain(PredicateChain.Operator, Collection, int)}.
+     */
+    public static final int DEFAULT_REORDER_INTERVAL = 1024;
+    /**
+     * @deprecated function strings are now tokenized, these patterns are no longer used.
+     */
+    @Deprecated
     public static final String BEHIND = "(?<=\\(|\\)|\\.|\\*|\\+|\\-|\\/|\\s|^|\\%|\\?|;|\\{|\\}|,)";
+    /**
+     * @deprecated function strings are now tokenized, these patterns are no longer used.
+     */
+    @Deprecated
     public static final String AHEAD = "(?=\\(|\\)|\\.|\\*|\\+|\\-|\\/|\\s|$|\\%|;|\\?|\\{|\\}|,)";
     /**
      * Map of the supported primitive types
      */
     public static final Set<String> supportedPrimitives;
-    private static final Map<String, String> primitiveToClass;
-    private static final Map<String, String> classToPrimitive;
+    static final Map<String, String> primitiveToClass;
+    static final Map<String, String> classToPrimitive;
+    private static final FunctionCache cache = new FunctionCache(FunctionCache.DEFAULT_MAXIMUM_SIZE);
+    private static volatile boolean cacheEnabled = true;
+    private static volatile boolean optimizationEnabled;
+    private static volatile boolean instrumentationEnabled;
+    private static final FunctionMetricsRegistry metricsRegistry = new FunctionMetricsRegistry();
+    private static volatile LoadingMode loadingMode = LoadingMode.SHARED;
+    private static volatile BytecodeCache bytecodeCache;
+    private static volatile Executor compilationExecutor = ForkJoinPool.commonPool();
+    private static final int FUNCTIONS_PER_BATCH_CLASS = 256;
 
     static {
         Set<String> set = new HashSet<>();
@@ -96,133 +127,751 @@ public class FunctionParser {
      * There is currently no validation on the given functionString, and it can generate dangerous
      * functions or an error.
      *
+     * Compiled functions are cached, so parsing a string that only differs in whitespace from a
+     * previously parsed one reuses its compiled class, and the returned function still reports the
+     * given string from {@link ParsedFunction#getFunctionString()}. See {@link #setCacheEnabled(boolean)}.
+     *
      * @param functionString the string to be parsed
      * @param <T> the return type of the function.
      * @return a class implementing the ParsedFunction interface
      * @throws IllegalArgumentException are thrown with nested Javaassist exceptions, most of these
      *                                  exeptions are due to errors in the functionString.
      */
+    @SuppressWarnings("unchecked")
     public static <T> ParsedFunction<T> fromString(String functionString) {
-        String methodString="";
+        if (!cacheEnabled) {
+            return compile(functionString, null);
+        }
+        return (ParsedFunction<T>) cache.get(functionString, s -> compile(s, null));
+    }
+
+    /**
+     * Parses a string into a function on the compilation executor, so that threads which must not
+     * block are not held up by the compilation. See {@link #setCompilationExecutor(Executor)}.
+     *
+     * @param functionString the string to be parsed
+     * @param <T> the return type of the function.
+     * @return a future completed with the parsed function, or completed exceptionally with an
+     *         IllegalArgumentException if the string cannot be compiled.
+     */
+    public static <T> CompletableFuture<ParsedFunction<T>> fromStringAsync(String functionString) {
+        return CompletableFuture.supplyAsync(() -> FunctionParser.<T>fromString(functionString), compilationExecutor);
+    }
+
+    /**
+     * Returns a function that is only compiled when it is first evaluated. The compilation runs on
+     * the compilation executor, and until it finishes evaluations are done by the interpreter, see
+     * {@link #fromStringInterpreted(String)}. Evaluations of functions the interpreter does not
+     * support block until the compilation finishes.
+     *
+     * @param functionString the string to be parsed
+     * @param <T> the return type of the function.
+     * @return a lazily compiled function
+     */
+    public static <T> LazyParsedFunction<T> fromStringLazy(String functionString) {
+        return fromStringLazy(functionString, interpretedOrNull(functionString));
+    }
+
+    /**
+     * Returns a function that is only compiled when it is first evaluated. The compilation runs on
+     * the compilation executor, and until it finishes evaluations are done by the fallback, which
+     * must be equivalent to the function string.
+     *
+     * @param functionString the string to be parsed
+     * @param fallback evaluates the function until the compiled function is ready, or null to
+     *                 block every evaluation until the compilation finishes.
+     * @param <T> the return type of the function.
+     * @return a lazily compiled function
+     */
+    public static <T> LazyParsedFunction<T> fromStringLazy(String functionString, ParsedFunction<T> fallback) {
+        return new LazyParsedFunction<>(functionString, FunctionDeclaration.parse(functionString).getVariables(), fallback);
+    }
+
+    /**
+     * Parses a string into a function evaluated by an interpreter instead of a generated class.
+     * Parsing takes microseconds instead of the milliseconds a compilation takes, but evaluations
+     * are several times slower, so this suits functions that are only evaluated a few times.
+     * <p>
+     * Only single expressions over boolean and numeric parameters are supported: operators, the
+     * conditional operator, primitive casts and the java.lang.Math constants and functions.
+     *
+     * @param functionString the string to be parsed
+     * @param <T> the return type of the function.
+     * @return an interpreted function
+     * @throws IllegalArgumentException if the string is malformed or not supported by the
+     *                                  interpreter.
+     */
+    public static <T> ParsedFunction<T> fromStringInterpreted(String functionString) {
+        return InterpretedFunction.parse(functionString);
+    }
+
+    /**
+     * Returns a function that is interpreted until it has been evaluated
+     * {@link #DEFAULT_COMPILE_THRESHOLD} times, and compiled afterwards. See
+     * {@link #fromStringTiered(String, int)}.
+     *
+     * @param functionString the string to be parsed
+     * @param <T> the return type of the function.
+     * @return a function compiled once it has been evaluated often enough
+     */
+    public static <T> LazyParsedFunction<T> fromStringTiered(String functionString) {
+        return fromStringTiered(functionString, DEFAULT_COMPILE_THRESHOLD);
+    }
+
+    /**
+     * Returns a function that is interpreted until it has been evaluated the given number of
+     * times. The evaluation reaching the threshold starts compiling the function on the
+     * compilation executor, and the compiled function is swapped in once it is ready. Functions
+     * the interpreter does not support are compiled on their first evaluation, as with
+     * {@link #fromStringLazy(String)}.
+     *
+     * @param functionString the string to be parsed
+     * @param compileThreshold the number of evaluations that starts the compilation.
+     * @param <T> the return type of the function.
+     * @return a function compiled once it has been evaluated often enough
+     * @throws IllegalArgumentException if the threshold is less than one.
+     */
+    public static <T> LazyParsedFunction<T> fromStringTiered(String functionString, int compileThreshold) {
+        if (compileThreshold < 1) {
+            throw new IllegalArgumentException("Compile threshold must be positive: " + compileThreshold);
+        }
+        InterpretedFunction<T> interpreted = interpretedOrNull(functionString);
+        if (interpreted == null) {
+            return new LazyParsedFunction<>(functionString, FunctionDeclaration.parse(functionString).getVariables(), null);
+        }
+        return new LazyParsedFunction<>(functionString, interpreted.getVariableSet(), interpreted, compileThreshold);
+    }
+
+    /**
+     * Returns the interpreted function, or null if the interpreter does not support the string.
+     */
+    private static <T> InterpretedFunction<T> interpretedOrNull(String functionString) {
         try {
-            //TODO: validate functionString.
-            String argsName = "o" + System.currentTimeMillis();
-            LinkedHashSet<String> variables = new LinkedHashSet<>();
-            String[] tempSplit = functionString.split("\\(");
-            String returnType = tempSplit[0].equals("") ? DEFAULT_RETURN_TYPE : tempSplit[0].trim();
-            String paramsString = tempSplit[1].split("\\)")[0].trim();
-
-            String methodBody = getMethodBody(functionString);
-            String[] typesAndVariables = paramsString.split("\\,");
-            int varNr = 0;
-            String currentType = null;
-            String currentVar;
-            for (String typeAndVariables : typesAndVariables) {
-                String trimmed = typeAndVariables.trim();
-                String[] typeAndVariableSplit = trimmed.split("\\s+");
-                if (typeAndVariableSplit.length == 2) {
-                    currentType = typeAndVariableSplit[0];
-                    currentVar = typeAndVariableSplit[1];
-                } else if (typeAndVariableSplit.length == 1) {
-                    currentVar = typeAndVariableSplit[0];
-                } else {
-                    throw new IllegalArgumentException("Too many arguments near " + typeAndVariables);
+            return InterpretedFunction.parse(functionString);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a string into a function that can later be replaced while it is being evaluated, see
+     * {@link MutableParsedFunction#set(ParsedFunction)} and
+     * {@link MutableParsedFunction#recompile(String)}.
+     *
+     * @param functionString the string to be parsed
+     * @param <T> the return type of the function.
+     * @return a replaceable function, initially evaluating the given string
+     */
+    public static <T> MutableParsedFunction<T> fromStringMutable(String functionString) {
+        return new MutableParsedFunction<>(FunctionParser.<T>fromString(functionString));
+    }
+
+    /**
+     * Sets the executor asynchronous and lazy compilations run on. The default is the common
+     * ForkJoinPool.
+     *
+     * @param executor the executor compilations run on.
+     */
+    public static void setCompilationExecutor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Compilation executor must not be null");
+        }
+        compilationExecutor = executor;
+    }
+
+    public static Executor getCompilationExecutor() {
+        return compilationExecutor;
+    }
+
+    /**
+     * Parses many strings into functions at once. The functions are packed into a small number of
+     * generated classes with one method per function, which is much cheaper to compile and load
+     * than one class per function as done by {@link #fromString(String)}.
+     *
+     * The returned ParsedFunction objects are lightweight handles into the generated classes. They
+     * implement the same evaluate methods as functions returned by fromString, apart from the
+     * functional interfaces of {@link #fromString(String, Class)}. If the cache is enabled already
+     * cached functions are reused and the newly compiled ones are added to it. Functions
+     * precompiled at build time or found in the persistent cache, see
+     * {@link #setBytecodeCache(BytecodeCache)}, are loaded from there, but the batch classes are
+     * not stored in the persistent cache.
+     *
+     * @param functionStrings the strings to be parsed
+     * @param <T> the return type of the functions.
+     * @return the parsed functions, in the order of the given strings
+     * @throws IllegalArgumentException if any of the function strings cannot be compiled.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> List<ParsedFunction<T>> fromStrings(Collection<String> functionStrings) {
+        List<String> strings = new ArrayList<>(functionStrings);
+        ParsedFunction<?>[] functions = new ParsedFunction<?>[strings.size()];
+        boolean useCache = cacheEnabled;
+        Map<String, List<Integer>> missing = new LinkedHashMap<>();
+        for (int i = 0; i < strings.size(); i++) {
+            String functionString = strings.get(i);
+            if (useCache) {
+                functions[i] = cache.lookup(functionString);
+            }
+            if (functions[i] == null) {
+                ParsedFunction<?> stored = loadStored(functionString, null);
+                if (stored != null) {
+                    functions[i] = useCache ? cache.put(functionString, stored) : stored;
+                    continue;
+                }
+                String key = FunctionCache.normalize(functionString);
+                List<Integer> indices = missing.get(key);
+                if (indices == null) {
+                    indices = new ArrayList<>();
+                    missing.put(key, indices);
                 }
-                if (currentType == null) {
-                    throw new IllegalArgumentException("No argument type found in " + typeAndVariables);
+                indices.add(i);
+            }
+        }
+
+        List<List<Integer>> toCompile = new ArrayList<>(missing.values());
+        for (int from = 0; from < toCompile.size(); from += FUNCTIONS_PER_BATCH_CLASS) {
+            List<List<Integer>> batch = toCompile.subList(from, Math.min(toCompile.size(), from + FUNCTIONS_PER_BATCH_CLASS));
+            List<String> batchStrings = new ArrayList<>(batch.size());
+            for (List<Integer> indices : batch) {
+                batchStrings.add(strings.get(indices.get(0)));
+            }
+            List<ParsedFunction<?>> compiled = FunctionCompiler.compileBatch(batchStrings);
+            for (int i = 0; i < batch.size(); i++) {
+                ParsedFunction<?> function = compiled.get(i);
+                if (useCache) {
+                    function = cache.put(batchStrings.get(i), function);
+                }
+                for (int index : batch.get(i)) {
+                    functions[index] = FunctionCache.withFunctionString(function, strings.get(index));
+                }
+            }
+        }
+
+        List<ParsedFunction<T>> result = new ArrayList<>(functions.length);
+        for (ParsedFunction<?> function : functions) {
+            result.add((ParsedFunction<T>) function);
+        }
+        return result;
+    }
+
+    /**
+     * Compiles functions that are evaluated together over the same arguments into a single
+     * generated method filling a vector with the result of every function. The arguments are
+     * unboxed once, and subexpressions shared by the functions, such as Math.log(x) or y / z, are
+     * computed once for all of them. See {@link FunctionGroup}.
+     *
+     * The parameters of the group are the union of the parameters of the functions, in order of
+     * appearance. A parameter declared by several functions must have the same type in all of
+     * them, where a wrapper type and its primitive type are the same. Groups are not cached and
+     * not instrumented.
+     *
+     * @param functionStrings the strings to be parsed
+     * @return the compiled group
+     * @throws IllegalArgumentException if the parameters are incompatible or any of the function
+     *                                  strings cannot be compiled.
+     */
+    public static FunctionGroup fromStringsAsGroup(Collection<String> functionStrings) {
+        return FunctionCompiler.compileGroup(new ArrayList<>(functionStrings));
+    }
+
+    /**
+     * Compiles boolean functions into a {@link PredicateChain} that combines them with the given
+     * operator, reordering them every {@link #DEFAULT_REORDER_INTERVAL} profiled rows.
+     *
+     * @param operator        how the predicates are combined
+     * @param functionStrings the predicates, returning boolean or Boolean
+     * @return the compiled chain
+     * @throws IllegalArgumentException if a function does not return a boolean, the parameters are
+     *                                  incompatible or any of the function strings cannot be
+     *                                  compiled.
+     */
+    public static PredicateChain fromStringsAsPredicateChain(PredicateChain.Operator operator, Collection<String> functionStrings) {
+        return fromStringsAsPredicateChain(operator, functionStrings, DEFAULT_REORDER_INTERVAL);
+    }
+
+    /**
+     * Compiles boolean functions into a {@link PredicateChain} that combines them with the given
+     * operator into a single generated method. The parameters of the chain are the union of the
+     * parameters of the predicates, as for {@link #fromStringsAsGroup(Collection)}.
+     *
+     * @param operator        how the predicates are combined
+     * @param functionStrings the predicates, returning boolean or Boolean
+     * @param reorderInterval the number of profiled rows after which the predicates are reordered
+     *                        by their measured cost and selectivity, or 0 to only reorder them
+     *                        when {@link PredicateChain#reorder()} is called
+     * @return the compiled chain
+     * @throws IllegalArgumentException if the reorder interval is negative, a function does not
+     *                                  return a boolean, the parameters are incompatible or any of
+     *                                  the function strings cannot be compiled.
+     */
+    public static PredicateChain fromStringsAsPredicateChain(PredicateChain.Operator operator, Collection<String> functionStrings,
+                                                             int reorderInterval) {
+        if (reorderInterval < 0) {
+            throw new IllegalArgumentException("Reorder interval must not be negative: " + reorderInterval);
+        }
+        if (functionStrings.isEmpty()) {
+            throw new IllegalArgumentException("A predicate chain needs at least one predicate");
+        }
+        List<FunctionDeclaration> declarations = parseAll(new ArrayList<>(functionStrings));
+        for (FunctionDeclaration declaration : declarations) {
+            if (!getValueType(FunctionDeclaration.erase(declaration.getReturnType())).equals("boolean")) {
+                throw new IllegalArgumentException("Predicate does not return a boolean: " + declaration.getFunctionString());
+            }
+        }
+        return new PredicateChain(operator, declarations, getParameterUnion(declarations), reorderInterval);
+    }
+
+    /**
+     * Parses a string into a function that directly implements the given functional interface, so
+     * it can be passed to code taking for example a DoubleBinaryOperator or a Predicate without
+     * wrapping it in a lambda. The returned object also implements ParsedFunction.
+     *
+     * The single abstract method of the interface must take as many arguments as the function.
+     * Functions with primitive parameters are called directly with the primitive arguments, so
+     * for example fromString("double(double x,y)-&gt;x*y", DoubleBinaryOperator.class) neither
+     * boxes nor allocates. Other functions are called through their Object[] entry point.
+     *
+     * @param functionString  the string to be parsed
+     * @param targetInterface the functional interface the returned object implements
+     * @param <F>             the type of the functional interface
+     * @return an object implementing the functional interface and the ParsedFunction interface
+     * @throws IllegalArgumentException if the target is not a functional interface, its method
+     *                                  does not match the function, or the function string cannot
+     *                                  be compiled.
+     */
+    @SuppressWarnings("unchecked")
+    public static <F> F fromString(String functionString, Class<F> targetInterface) {
+        getFunctionalMethod(targetInterface);
+        if (!cacheEnabled) {
+            return (F) compile(functionString, targetInterface);
+        }
+        return (F) cache.get(functionString, targetInterface, s -> compile(s, targetInterface));
+    }
+
+    /**
+     * Compiles a specialized version of a function with some of its variables bound to constant
+     * values. The bound variables are removed from the parameter list and inlined into the body as
+     * literals, so the specialized function takes a smaller argument array and the JIT, or the
+     * optimization pass if it is enabled (see {@link #setOptimizationEnabled(boolean)}), can fold
+     * the constants through the body.
+     *
+     * For example, specializing "double(Double x, y, k)-&gt;x * k + y" with k = 2.0 compiles
+     * "double(Double x, Double y)-&gt;x * (2.0) + y".
+     *
+     * Only variables of primitive, wrapper and String types can be bound. Bodies assigning to a
+     * bound variable cannot be specialized.
+     *
+     * @param function the function to specialize
+     * @param values   the values of the variables to bind, by variable name
+     * @param <T>      the return type of the function.
+     * @return the specialized function
+     * @throws IllegalArgumentException if a variable does not exist, cannot hold its value, or the
+     *                                  specialized function cannot be compiled.
+     */
+    public static <T> ParsedFunction<T> specialize(ParsedFunction<T> function, Map<String, ?> values) {
+        return fromString(getSpecializedFunctionString(function.getFunctionString(), values));
+    }
+
+    /**
+     * Compiles a specialized version of a function with one of its variables bound to a constant
+     * value. See {@link #specialize(ParsedFunction, Map)}.
+     *
+     * @param function the function to specialize
+     * @param variable the name of the variable to bind
+     * @param value    the value of the variable
+     * @param <T>      the return type of the function.
+     * @return the specialized function, taking the remaining variables in the same order
+     * @throws IllegalArgumentException if the variable does not exist, cannot hold the value, or the
+     *                                  specialized function cannot be compiled.
+     */
+    public static <T> ParsedFunction<T> specialize(ParsedFunction<T> function, String variable, Object value) {
+        return specialize(function, Collections.singletonMap(variable, value));
+    }
+
+    /**
+     * Returns a method handle calling the given function directly, bound to the function. Functions
+     * with only primitive parameters take them unboxed, for example (double, double)double for
+     * "double(double x, y)-&gt;x * y", other functions take the argument array, for example
+     * (Object[])double for "double(Double x, y)-&gt;x * y". Functions with a non primitive return
+     * type return Object.
+     *
+     * Stored in a static final field the handle and the function bound to it are constants to the
+     * JIT, which can then inline the body of the function into its callers.
+     *
+     * @param function the function, as returned by {@link #fromString(String)}.
+     * @return a method handle evaluating the function.
+     * @throws IllegalArgumentException if the function string of the function cannot be parsed.
+     */
+    public static MethodHandle toMethodHandle(ParsedFunction<?> function) {
+        FunctionDeclaration declaration = FunctionDeclaration.parse(function.getFunctionString());
+        List<String> types = new ArrayList<>();
+        for (FunctionDeclaration.Parameter parameter : declaration.getParameters()) {
+            types.add(parameter.getErasedType());
+        }
+        String returnType = FunctionDeclaration.erase(declaration.getReturnType());
+        String methodNameAndReturnType = getMethodNameAndReturnType(returnType);
+        String methodName = methodNameAndReturnType.substring(methodNameAndReturnType.indexOf(' ') + 1);
+        Class<?> returnClass = supportedPrimitives.contains(returnType) ? getPrimitiveClass(returnType) : Object.class;
+        MethodType arrayType = MethodType.methodType(returnClass, Object[].class);
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            if (!hasPrimitiveParameters(types)) {
+                return lookup.findVirtual(ParsedFunction.class, methodName, arrayType).bindTo(function);
+            }
+            Class<?>[] parameterClasses = new Class<?>[types.size()];
+            for (int i = 0; i < parameterClasses.length; i++) {
+                parameterClasses[i] = getPrimitiveClass(types.get(i));
+            }
+            MethodType type = MethodType.methodType(returnClass, parameterClasses);
+            try {
+                return lookup.findVirtual(function.getClass(), methodName, type).bindTo(function);
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                // Batch and wrapped functions have no public typed method, go through the array.
+                return lookup.findVirtual(ParsedFunction.class, methodName, arrayType).bindTo(function)
+                        .asCollector(Object[].class, parameterClasses.length).asType(type);
+            }
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot create a method handle for " + function, e);
+        }
+    }
+
+    private static Class<?> getPrimitiveClass(String type) {
+        switch (type) {
+            case "double":
+                return double.class;
+            case "float":
+                return float.class;
+            case "int":
+                return int.class;
+            case "long":
+                return long.class;
+            case "boolean":
+                return boolean.class;
+            case "short":
+                return short.class;
+            default:
+                throw new IllegalArgumentException(type + " is not a supported primitive");
+        }
+    }
+
+    static String getSpecializedFunctionString(String functionString, Map<String, ?> values) {
+        FunctionDeclaration declaration = FunctionDeclaration.parse(functionString);
+        for (String variable : values.keySet()) {
+            if (!declaration.getVariables().contains(variable)) {
+                throw new IllegalArgumentException("Unknown variable " + variable + " in " + functionString);
+            }
+        }
+        Map<String, String> replacements = new HashMap<>();
+        StringBuilder parameters = new StringBuilder();
+        for (FunctionDeclaration.Parameter parameter : declaration.getParameters()) {
+            if (values.containsKey(parameter.name)) {
+                replacements.put(parameter.name, getLiteral(parameter, values.get(parameter.name)));
+            } else {
+                if (parameters.length() > 0) {
+                    parameters.append(", ");
                 }
-                variables.add(currentVar);
-                methodBody = methodBody.replaceAll(BEHIND + currentVar + AHEAD, getReplaceForVariableAndType(currentType, varNr, argsName));
-                varNr++;
+                parameters.append(parameter);
             }
+        }
+        return declaration.getReturnType() + "(" + parameters + ")->" + declaration.substitute(replacements);
+    }
 
+    /**
+     * Returns a Java literal of the given value, in the type of the given parameter.
+     */
+    private static String getLiteral(FunctionDeclaration.Parameter parameter, Object value) {
+        String type = parameter.getErasedType();
+        String primitive = classToPrimitive.containsKey(type) ? classToPrimitive.get(type) : type;
+        if (primitive.startsWith("java.lang.") && classToPrimitive.containsKey(primitive.substring("java.lang.".length()))) {
+            primitive = classToPrimitive.get(primitive.substring("java.lang.".length()));
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("Cannot bind " + parameter.name + " to null");
+        }
+        if (value instanceof Number) {
+            Number number = (Number) value;
+            switch (primitive) {
+                case "double":
+                    double d = number.doubleValue();
+                    if (Double.isNaN(d)) {
+                        return "Double.NaN";
+                    } else if (Double.isInfinite(d)) {
+                        return d > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+                    }
+                    return "(" + d + ")";
+                case "float":
+                    float f = number.floatValue();
+                    if (Float.isNaN(f)) {
+                        return "Float.NaN";
+                    } else if (Float.isInfinite(f)) {
+                        return f > 0 ? "Float.POSITIVE_INFINITY" : "Float.NEGATIVE_INFINITY";
+                    }
+                    return "(" + f + "f)";
+                case "long":
+                    return "(" + number.longValue() + "L)";
+                case "int":
+                    return "(" + number.intValue() + ")";
+                case "short":
+                    return "((short) " + number.shortValue() + ")";
+                case "byte":
+                    return "((byte) " + number.byteValue() + ")";
+                default:
+                    break;
+            }
+        } else if (value instanceof Boolean && primitive.equals("boolean")) {
+            return value.toString();
+        } else if (value instanceof Character && primitive.equals("char")) {
+            return "((char) " + (int) (Character) value + ")";
+        } else if (value instanceof String && (type.equals("String") || type.equals("java.lang.String"))) {
+            return getStringLiteral((String) value);
+        }
+        throw new IllegalArgumentException("Cannot bind " + parameter.name + " of type " + parameter.type + " to " + value
+                + ", only primitive, wrapper and String variables can be bound");
+    }
+
+    /**
+     * Returns a string literal of the given value. The Javassist compiler supports neither unicode
+     * nor octal escapes, so characters outside printable ASCII are appended as char constants.
+     */
+    private static String getStringLiteral(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 4).append("(\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c >= 0x20 && c < 0x7f) {
+                sb.append(c);
+            } else {
+                sb.append("\" + String.valueOf((char) ").append((int) c).append(") + \"");
+            }
+        }
+        return sb.append("\")").toString();
+    }
 
-            ClassPool pool = ClassPool.getDefault();
-            CtClass evalClass = pool.makeClass("Eval" + System.currentTimeMillis());
+    /**
+     * Returns the cache used by {@link #fromString(String)}, which can be used to inspect the hit,
+     * miss and eviction counters or to change the maximum size.
+     *
+     * @return the function cache.
+     */
+    public static FunctionCache getCache() {
+        return cache;
+    }
 
-            evalClass.addField(new CtField(pool.get("java.util.LinkedHashSet"), "variableSet", evalClass));
-            evalClass.addField(new CtField(pool.get("java.lang.String"), "functionString", evalClass));
+    /**
+     * Enables or disables caching of compiled functions. When disabled every call to
+     * {@link #fromString(String)} compiles a new class. Caching is enabled by default.
+     *
+     * @param enabled whether parsed functions should be cached.
+     */
+    public static void setCacheEnabled(boolean enabled) {
+        cacheEnabled = enabled;
+    }
 
-            evalClass.setInterfaces(
-                    new CtClass[]{pool.makeClass("com.alfredvc.ParsedFunction")});
+    public static boolean isCacheEnabled() {
+        return cacheEnabled;
+    }
 
+    /**
+     * Enables or disables the optimization pass run on expression bodies before they are compiled:
+     * constant folding, algebraic simplification, strength reduction and common subexpression
+     * elimination of pure java.lang.Math calls. Functions that are already cached are not
+     * recompiled. Optimization is disabled by default.
+     *
+     * @param enabled whether function bodies should be optimized.
+     */
+    public static void setOptimizationEnabled(boolean enabled) {
+        optimizationEnabled = enabled;
+    }
 
-            methodString = getMethodString(argsName, returnType, methodBody);
+    public static boolean isOptimizationEnabled() {
+        return optimizationEnabled;
+    }
 
+    /**
+     * Enables or disables instrumentation of compiled functions. Instrumented functions record
+     * their compile time, bytecode size and class name, count their invocations and failures and
+     * sample their latency into a {@link FunctionMetrics} found in {@link #getMetricsRegistry()}.
+     * Functions compiled while instrumentation is disabled do not contain any instrumentation
+     * code. Functions that are already cached are not recompiled, and instrumented functions are
+     * neither loaded from nor stored in the bytecode cache. Instrumentation is disabled by default.
+     *
+     * @param enabled whether compiled functions should be instrumented.
+     */
+    public static void setInstrumentationEnabled(boolean enabled) {
+        instrumentationEnabled = enabled;
+    }
 
-            evalClass.addMethod(CtNewMethod.make(methodString, evalClass));
+    public static boolean isInstrumentationEnabled() {
+        return instrumentationEnabled;
+    }
 
-            addHelperMethods(evalClass);
+    /**
+     * @return the registry holding the metrics of instrumented functions.
+     */
+    public static FunctionMetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
 
-            Class<ParsedFunction<T>> clazz = evalClass.toClass();
-            ParsedFunction<T> obj = clazz.newInstance();
-            clazz.getMethod("setVariableSet", java.util.LinkedHashSet.class).invoke(obj, variables);
-            clazz.getMethod("setFunctionString", java.lang.String.class).invoke(obj, functionString);
-            return obj;
-        } catch (CannotCompileException | InvocationTargetException | NoSuchMethodException | NotFoundException | IllegalAccessException | InstantiationException e) {
-            throw new IllegalArgumentException("Error when parsing function: \n" + methodString , e);
+    /**
+     * Sets where generated classes are defined. Long running applications that keep compiling new
+     * functions should use {@link LoadingMode#ISOLATED} so that classes of discarded functions can
+     * be unloaded. The default is {@link LoadingMode#SHARED}.
+     *
+     * @param mode the loading mode used by subsequent compilations.
+     */
+    public static void setLoadingMode(LoadingMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Loading mode must not be null");
+        }
+        if (mode == LoadingMode.HIDDEN && !HiddenClassDefiner.isSupported()) {
+            throw new IllegalArgumentException("Hidden classes require Java 15 or later");
         }
+        loadingMode = mode;
     }
 
-    private static void addHelperMethods(CtClass evalClass) throws CannotCompileException {
-        evalClass.addMethod(
-                CtNewMethod.make("public java.util.LinkedHashSet getVariableSet(){return this.variableSet;}", evalClass)
-        );
+    public static LoadingMode getLoadingMode() {
+        return loadingMode;
+    }
+
+    /**
+     * Sets the persistent cache the bytecode of compiled functions is stored in and loaded from.
+     * Functions found in it are defined without parsing or compiling them. Passing null disables
+     * the persistent cache, which is the default.
+     *
+     * @param cache the persistent cache, or null.
+     */
+    public static void setBytecodeCache(BytecodeCache cache) {
+        bytecodeCache = cache;
+    }
+
+    public static BytecodeCache getBytecodeCache() {
+        return bytecodeCache;
+    }
 
-        evalClass.addMethod(
-                CtNewMethod.make("public java.lang.String getFunctionString(){return this.functionString;}", evalClass)
-        );
+    /**
+     * Returns the function precompiled at build time or stored in the persistent cache, and only
+     * compiles it if there is none. Javassist is not loaded unless a function is compiled.
+     */
+    private static <T> ParsedFunction<T> compile(String functionString, Class<?> targetInterface) {
+        ParsedFunction<T> stored = loadStored(functionString, targetInterface);
+        return stored != null ? stored : FunctionCompiler.compile(functionString, targetInterface);
+    }
+
+    /**
+     * Returns the function precompiled at build time or stored in the persistent cache, or null if
+     * there is none or instrumentation is enabled.
+     */
+    private static <T> ParsedFunction<T> loadStored(String functionString, Class<?> targetInterface) {
+        if (instrumentationEnabled) {
+            return null;
+        }
+        if (targetInterface == null) {
+            ParsedFunction<T> precompiled = PrecompiledFunctions.get(functionString);
+            if (precompiled != null) {
+                return precompiled;
+            }
+        }
+        BytecodeCache persistentCache = bytecodeCache;
+        return persistentCache == null ? null : persistentCache.load(functionString, targetInterface);
+    }
 
-        evalClass.addMethod(
-                CtNewMethod.make("public java.lang.String toString(){return \"ParsedFunction[\" + this.functionString + \"]\";}", evalClass)
-        );
+    static List<FunctionDeclaration> parseAll(List<String> functionStrings) {
+        List<FunctionDeclaration> declarations = new ArrayList<>(functionStrings.size());
+        for (String functionString : functionStrings) {
+            declarations.add(FunctionDeclaration.parse(functionString));
+        }
+        return declarations;
+    }
 
-        evalClass.addMethod(
-                CtNewMethod.make("public void setVariableSet(java.util.LinkedHashSet s){this.variableSet = s;}", evalClass)
-        );
+    /**
+     * Returns the parameters of all the functions by name, in order of appearance, checking that
+     * every function declares a parameter with the same type.
+     */
+    static Map<String, String> getParameterUnion(List<FunctionDeclaration> declarations) {
+        Map<String, String> parameterTypes = new LinkedHashMap<>();
+        for (FunctionDeclaration declaration : declarations) {
+            for (FunctionDeclaration.Parameter parameter : declaration.getParameters()) {
+                String type = parameter.getErasedType();
+                String previous = parameterTypes.putIfAbsent(parameter.name, type);
+                if (previous != null && !getValueType(previous).equals(getValueType(type))) {
+                    throw new IllegalArgumentException("Parameter " + parameter.name + " is declared as " + previous
+                            + " and as " + type + " in " + declaration.getFunctionString());
+                }
+            }
+        }
+        return parameterTypes;
+    }
 
-        evalClass.addMethod(
-                CtNewMethod.make("public void setFunctionString(java.lang.String s){this.functionString = s;}", evalClass)
-        );
+    /**
+     * Returns the primitive type of a wrapper type, and any other type unchanged.
+     */
+    static String getValueType(String type) {
+        String primitive = classToPrimitive.get(type);
+        return primitive != null ? primitive : type;
     }
 
-    private static String getMethodString(String argsName, String returnType, String inputMethodBody) {
-        String methodString;
-        String methodBody = inputMethodBody;
-        if(classToPrimitive.containsKey(returnType)) {
-            methodBody = returnType + ".valueOf(" + methodBody+ ")";
+    /**
+     * Creates an instance of a class generated by {@link #compile(String, Class)} and sets its
+     * variable set and function string.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> ParsedFunction<T> instantiate(Class<?> clazz, LinkedHashSet<String> variables, String functionString) {
+        try {
+            ParsedFunction<T> obj = (ParsedFunction<T>) clazz.newInstance();
+            clazz.getMethod("setVariableSet", java.util.LinkedHashSet.class).invoke(obj, variables);
+            clazz.getMethod("setFunctionString", java.lang.String.class).invoke(obj, functionString);
+            return obj;
+        } catch (InvocationTargetException | NoSuchMethodException | IllegalAccessException | InstantiationException e) {
+            throw new IllegalArgumentException("Error when instantiating " + clazz.getName(), e);
         }
+    }
 
-        if (methodBody.split(BEHIND + "return" + AHEAD).length > 1) {
-            methodString = "public " + getMethodNameAndReturnType(returnType) + "(Object[] " + argsName + "){" + methodBody + "}";
-        } else {
-            methodString = "public " + getMethodNameAndReturnType(returnType) + "(Object[] " + argsName + "){return ((" + returnType + ")(" + methodBody + "));}";
+    static Method getFunctionalMethod(Class<?> targetInterface) {
+        if (targetInterface == null || !targetInterface.isInterface()) {
+            throw new IllegalArgumentException(targetInterface + " is not an interface");
         }
-        return methodString;
+        Method functionalMethod = null;
+        for (Method method : targetInterface.getMethods()) {
+            if (!Modifier.isAbstract(method.getModifiers()) || isObjectMethod(method)) {
+                continue;
+            }
+            if (functionalMethod != null) {
+                throw new IllegalArgumentException(targetInterface.getName() + " has more than one abstract method");
+            }
+            functionalMethod = method;
+        }
+        if (functionalMethod == null) {
+            throw new IllegalArgumentException(targetInterface.getName() + " has no abstract method");
+        }
+        return functionalMethod;
     }
 
-    private static String getMethodBody(String functionString) {
-        return functionString.substring(functionString.indexOf("->")+2);
+    private static boolean isObjectMethod(Method method) {
+        try {
+            Object.class.getMethod(method.getName(), method.getParameterTypes());
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
     }
 
-    private static String getReplaceForVariableAndType(String type, int varNr, String argsName) {
-        String toReplace;
-        String returnType;
-        if (classToPrimitive.containsKey(type)) {
-            returnType = classToPrimitive.get(type);
-            toReplace = "(((" + type + ") " + argsName + "[" + varNr + "])." + returnType + "Value())";
-        } else {
-            toReplace = "((" + type + ") " + argsName + "[" + varNr + "])";
+    static boolean hasPrimitiveParameters(List<String> types) {
+        for (String type : types) {
+            if (!supportedPrimitives.contains(type)) {
+                return false;
+            }
         }
-        return toReplace;
+        return !types.isEmpty();
     }
 
 
-    private static String getMethodNameAndReturnType(String returnType) {
+    static String getMethodNameAndReturnType(String returnType) {
         if (supportedPrimitives.contains(returnType)) {
             return returnType + " " + "evaluateTo" + primitiveToClass.get(returnType);
         } else {
             return "Object evaluateToObject";
         }
     }
+
 }
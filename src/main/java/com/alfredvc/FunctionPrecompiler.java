@@ -0,0 +1,213 @@
+package com.alfredvc;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Annotation processor compiling function strings at build time, registered as a service so javac
+ * runs it whenever FunctionParser is on the class path.
+ * <p>
+ * It compiles the function strings declared with {@link Precompile}, and the ones listed in the
+ * files given with the {@value #FILES_OPTION} option, one per line with blank lines and lines
+ * starting with # ignored. Every function is compiled into a class of the
+ * com.alfredvc.precompiled package named after a hash of its normalized function string, written
+ * next to the compiled classes, and the classes are listed in an index that
+ * {@link FunctionParser#fromString(String)} looks functions up in before compiling them. Functions
+ * are optimized if the {@value #OPTIMIZE_OPTION} option is true, see
+ * {@link FunctionParser#setOptimizationEnabled(boolean)}.
+ * <p>
+ * The processor also writes GraalVM native-image reflection and resource configuration for the
+ * classes and the index, so precompiled functions work in native images, where classes cannot be
+ * generated at runtime.
+ * <p>
+ * Functions are compiled against the class path of the processor, so they can only refer to
+ * classes of the JDK and of the libraries on it, not to classes compiled in the same build.
+ * For example, with Maven: &lt;compilerArgs&gt;&lt;arg&gt;-Afunctionparser.files=${basedir}/functions.txt&lt;/arg&gt;&lt;/compilerArgs&gt;
+ */
+public final class FunctionPrecompiler extends AbstractProcessor {
+    /**
+     * Option listing files of function strings to precompile, separated by commas.
+     */
+    public static final String FILES_OPTION = "functionparser.files";
+    /**
+     * Option enabling the optimization of precompiled functions.
+     */
+    public static final String OPTIMIZE_OPTION = "functionparser.optimize";
+    private static final String NATIVE_IMAGE_DIRECTORY = "META-INF/native-image/com.alfredvc/precompiled-functions/";
+
+    private final Map<String, String> classNames = new TreeMap<>();
+    private final Set<String> failed = new HashSet<>();
+    private boolean filesRead;
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton("*");
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return new HashSet<>(Arrays.asList(FILES_OPTION, OPTIMIZE_OPTION));
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (!filesRead) {
+            filesRead = true;
+            readFiles();
+        }
+        TypeElement precompile = processingEnv.getElementUtils().getTypeElement(Precompile.class.getName());
+        if (precompile != null && annotations.contains(precompile)) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(precompile)) {
+                for (String functionString : getFunctionStrings(element)) {
+                    precompile(functionString, element);
+                }
+            }
+        }
+        if (roundEnv.processingOver() && !classNames.isEmpty()) {
+            writeIndex();
+        }
+        return false;
+    }
+
+    private void readFiles() {
+        String files = processingEnv.getOptions().get(FILES_OPTION);
+        if (files == null || files.trim().isEmpty()) {
+            return;
+        }
+        for (String file : files.split(",")) {
+            List<String> lines;
+            try {
+                lines = Files.readAllLines(Paths.get(file.trim()), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                error("Cannot read function strings from " + file.trim() + ": " + e, null);
+                continue;
+            }
+            for (String line : lines) {
+                if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+                    precompile(line.trim(), null);
+                }
+            }
+        }
+    }
+
+    private List<String> getFunctionStrings(Element element) {
+        Precompile annotation = element.getAnnotation(Precompile.class);
+        if (annotation.value().length > 0) {
+            return Arrays.asList(annotation.value());
+        }
+        if (element.getKind() == ElementKind.FIELD && ((VariableElement) element).getConstantValue() instanceof String) {
+            return Collections.singletonList((String) ((VariableElement) element).getConstantValue());
+        }
+        error("@Precompile needs function strings, or a String constant to annotate", element);
+        return Collections.emptyList();
+    }
+
+    private void precompile(String functionString, Element origin) {
+        String key = FunctionCache.normalize(functionString);
+        if (classNames.containsKey(key) || failed.contains(key)) {
+            return;
+        }
+        String className = PrecompiledFunctions.PACKAGE + ".Function" + hash(key);
+        boolean optimizationEnabled = FunctionParser.isOptimizationEnabled();
+        FunctionParser.setOptimizationEnabled(Boolean.parseBoolean(processingEnv.getOptions().get(OPTIMIZE_OPTION)));
+        try {
+            byte[] bytecode = FunctionCompiler.precompile(functionString, className);
+            Filer filer = processingEnv.getFiler();
+            FileObject classFile = origin == null ? filer.createClassFile(className) : filer.createClassFile(className, origin);
+            try (OutputStream out = classFile.openOutputStream()) {
+                out.write(bytecode);
+            }
+            classNames.put(key, className);
+        } catch (IllegalArgumentException e) {
+            failed.add(key);
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            error("Cannot precompile " + functionString + ": " + cause.getMessage(), origin);
+        } catch (IOException e) {
+            failed.add(key);
+            error("Cannot write the class of " + functionString + ": " + e, origin);
+        } finally {
+            FunctionParser.setOptimizationEnabled(optimizationEnabled);
+        }
+    }
+
+    private void writeIndex() {
+        Properties index = new Properties();
+        index.putAll(classNames);
+        StringBuilder reflection = new StringBuilder("[\n");
+        for (String className : classNames.values()) {
+            reflection.append(reflection.length() > 2 ? ",\n" : "").append("  {\"name\": \"").append(className)
+                    .append("\", \"methods\": [{\"name\": \"<init>\", \"parameterTypes\": []}, ")
+                    .append("{\"name\": \"setVariableSet\", \"parameterTypes\": [\"java.util.LinkedHashSet\"]}, ")
+                    .append("{\"name\": \"setFunctionString\", \"parameterTypes\": [\"java.lang.String\"]}]}");
+        }
+        reflection.append("\n]\n");
+        String resources = "{\"resources\": {\"includes\": [{\"pattern\": \"\\\\Q" + PrecompiledFunctions.INDEX + "\\\\E\"}]}}\n";
+        Filer filer = processingEnv.getFiler();
+        try {
+            try (OutputStream out = filer.createResource(StandardLocation.CLASS_OUTPUT, "", PrecompiledFunctions.INDEX).openOutputStream()) {
+                index.store(out, "Functions precompiled by " + FunctionPrecompiler.class.getName());
+            }
+            try (Writer out = filer.createResource(StandardLocation.CLASS_OUTPUT, "", NATIVE_IMAGE_DIRECTORY + "reflect-config.json").openWriter()) {
+                out.write(reflection.toString());
+            }
+            try (Writer out = filer.createResource(StandardLocation.CLASS_OUTPUT, "", NATIVE_IMAGE_DIRECTORY + "resource-config.json").openWriter()) {
+                out.write(resources);
+            }
+        } catch (IOException e) {
+            error("Cannot write the index of precompiled functions: " + e, null);
+        }
+    }
+
+    private void error(String message, Element element) {
+        Messager messager = processingEnv.getMessager();
+        if (element == null) {
+            messager.printMessage(Diagnostic.Kind.ERROR, message);
+        } else {
+            messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+        }
+    }
+
+    private static String hash(String normalized) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(normalized.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 12; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
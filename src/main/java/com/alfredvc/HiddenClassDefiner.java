@@ -0,0 +1,70 @@
+package com.alfredvc;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Defines generated classes as hidden classes of this package, see {@link LoadingMode#HIDDEN}.
+ * MethodHandles.Lookup.defineHiddenClass only exists on Java 15 and later, so it is looked up
+ * reflectively while the library itself is compiled for Java 8.
+ */
+final class HiddenClassDefiner {
+    /**
+     * Hidden classes must be in the package of the lookup that defines them.
+     */
+    static final String PACKAGE_PREFIX = "com.alfredvc.";
+    private static final Method DEFINE_HIDDEN_CLASS;
+    private static final Object NO_OPTIONS;
+
+    static {
+        Method method = null;
+        Object options = null;
+        try {
+            Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(optionClass, 0);
+            method = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            // Hidden classes are not supported by this JVM.
+        }
+        DEFINE_HIDDEN_CLASS = method;
+        NO_OPTIONS = options;
+    }
+
+    private HiddenClassDefiner() {
+        //Intentionally empty.
+    }
+
+    static boolean isSupported() {
+        return DEFINE_HIDDEN_CLASS != null;
+    }
+
+    /**
+     * Defines and initializes a hidden class. No class options are given, so the class is not a
+     * nestmate of this package's classes and is unloaded as soon as it is unreachable.
+     *
+     * @param bytecode the class file, naming a class in this package.
+     * @return the hidden class.
+     */
+    static Class<?> define(byte[] bytecode) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Hidden classes require Java 15 or later");
+        }
+        try {
+            MethodHandles.Lookup lookup = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(MethodHandles.lookup(), bytecode, true, NO_OPTIONS);
+            return lookup.lookupClass();
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot define hidden class", e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Cannot define hidden class", cause);
+        }
+    }
+}
@@ -0,0 +1,1125 @@
+package com.alfredvc;
+
+import com.alfredvc.Expression.Type;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * ParsedFunction evaluating its body with a tree walking interpreter instead of a generated class.
+ * <p>
+ * Building the tree takes microseconds where generating and loading a class takes milliseconds,
+ * but every evaluation walks the tree and boxes its arguments, so interpretation only pays off for
+ * functions that are evaluated a few times. See {@link FunctionParser#fromStringInterpreted(String)}
+ * and {@link FunctionParser#fromStringTiered(String)}.
+ * <p>
+ * Only bodies made of a single expression over boolean and numeric parameters are supported:
+ * literals, arithmetic, bitwise, shift, comparison and logical operators, the conditional operator,
+ * casts to primitive types, and the java.lang.Math constants and functions. Expressions are
+ * evaluated with the types and conversions of Java, and the same evaluate methods as in the
+ * generated class are supported. The body is parsed into the same {@link Expression} tree as the
+ * optimizer uses, which is type checked into a tree of evaluation nodes.
+ *
+ * @param <T> the return type of the function.
+ */
+final class InterpretedFunction<T> implements ParsedFunction<T> {
+    private static final Map<String, Operator> OPERATORS = new HashMap<>();
+
+    static {
+        String[] symbols = {"+", "-", "*", "/", "%", "<<", ">>", ">>>", "&", "|", "^", "<", ">", "<=", ">=", "==", "!=", "&&", "||"};
+        for (int i = 0; i < symbols.length; i++) {
+            OPERATORS.put(symbols[i], Operator.values()[i]);
+        }
+    }
+
+    enum Operator {
+        ADD, SUBTRACT, MULTIPLY, DIVIDE, REMAINDER, SHIFT_LEFT, SHIFT_RIGHT, UNSIGNED_SHIFT_RIGHT, AND, OR, XOR,
+        LESS, GREATER, LESS_OR_EQUAL, GREATER_OR_EQUAL, EQUAL, NOT_EQUAL, CONDITIONAL_AND, CONDITIONAL_OR
+    }
+
+    private final String functionString;
+    private final LinkedHashSet<String> variableSet;
+    private final Node body;
+    private final Type returnKind;
+    private final boolean boxedResult;
+    private final boolean doubleParameters;
+
+    private InterpretedFunction(String functionString, LinkedHashSet<String> variableSet, Node body, Type returnKind,
+                                boolean boxedResult, boolean doubleParameters) {
+        this.functionString = functionString;
+        this.variableSet = variableSet;
+        this.body = body;
+        this.returnKind = returnKind;
+        this.boxedResult = boxedResult;
+        this.doubleParameters = doubleParameters;
+    }
+
+    /**
+     * Parses a function string into an interpreted function.
+     *
+     * @param functionString the string to be parsed.
+     * @param <T>            the return type of the function.
+     * @return the interpreted function.
+     * @throws IllegalArgumentException if the function string is malformed or uses syntax the
+     *                                  interpreter does not support.
+     */
+    static <T> InterpretedFunction<T> parse(String functionString) {
+        FunctionDeclaration declaration = FunctionDeclaration.parse(functionString);
+        Map<String, Parameter> parameters = new HashMap<>();
+        Map<String, Type> types = new HashMap<>();
+        boolean doubleParameters = !declaration.getParameters().isEmpty();
+        int index = 0;
+        for (FunctionDeclaration.Parameter parameter : declaration.getParameters()) {
+            String type = parameter.getErasedType();
+            boolean isShort = type.equals("short") || type.equals("Short") || type.equals("java.lang.Short");
+            Type kind = isShort ? Type.INT : Type.ofName(type);
+            if (kind == null) {
+                throw unsupported(functionString, "parameter type " + type);
+            }
+            doubleParameters &= type.equals("double");
+            parameters.put(parameter.name, new Parameter(kind, index++, isShort));
+            types.put(parameter.name, kind);
+        }
+
+        List<Token> tokens = new ArrayList<>();
+        for (Token token : declaration.getBodyTokens()) {
+            if (token.isSignificant()) {
+                tokens.add(token);
+            }
+        }
+        if (tokens.size() > 1 && tokens.get(0).is("{") && tokens.get(tokens.size() - 1).is("}")) {
+            tokens = tokens.subList(1, tokens.size() - 1);
+        }
+        if (!tokens.isEmpty() && tokens.get(0).kind == Token.Kind.IDENTIFIER && tokens.get(0).text.equals("return")
+                && tokens.get(tokens.size() - 1).is(";")) {
+            tokens = tokens.subList(1, tokens.size() - 1);
+        }
+        Expression.Node tree;
+        try {
+            tree = Expression.parse(tokens, types);
+        } catch (Expression.UnsupportedExpressionException e) {
+            throw unsupported(functionString, e.getMessage());
+        }
+        Node body = new Builder(functionString, parameters).build(tree);
+
+        String returnType = FunctionDeclaration.erase(declaration.getReturnType());
+        boolean boxedResult = !Expression.isPrimitiveTypeName(returnType);
+        Type returnKind = boxedResult && (returnType.equals("Object") || returnType.equals("java.lang.Object")) ? body.kind
+                : Type.ofName(returnType);
+        if (returnKind == null) {
+            throw unsupported(functionString, "return type " + returnType);
+        }
+        if (returnKind != body.kind && !(returnKind.isNumeric() && body.kind.isNumeric() && returnKind.compareTo(body.kind) > 0)) {
+            throw unsupported(functionString, body.kind + " body for return type " + returnType);
+        }
+        return new InterpretedFunction<>(functionString, declaration.getVariables(), body, returnKind, boxedResult, doubleParameters);
+    }
+
+    private static IllegalArgumentException unsupported(String functionString, String reason) {
+        return new IllegalArgumentException("Cannot interpret " + functionString + ": unsupported " + reason);
+    }
+
+    private void checkResult(Type kind) {
+        if (boxedResult || returnKind != kind) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private Object[] doubleArguments(double[] args) {
+        if (!doubleParameters || args.length != variableSet.size()) {
+            throw new UnsupportedOperationException();
+        }
+        Object[] boxed = new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            boxed[i] = args[i];
+        }
+        return boxed;
+    }
+
+    @Override
+    public double evaluateToDouble(Object[] args) {
+        checkResult(Type.DOUBLE);
+        return body.d(args);
+    }
+
+    @Override
+    public float evaluateToFloat(Object[] args) {
+        checkResult(Type.FLOAT);
+        return f(body, args);
+    }
+
+    @Override
+    public boolean evaluateToBoolean(Object[] args) {
+        checkResult(Type.BOOLEAN);
+        return body.z(args);
+    }
+
+    @Override
+    public int evaluateToInteger(Object[] args) {
+        checkResult(Type.INT);
+        return (int) body.l(args);
+    }
+
+    @Override
+    public long evaluateToLong(Object[] args) {
+        checkResult(Type.LONG);
+        return body.l(args);
+    }
+
+    @Override
+    public Object evaluateToObject(Object[] args) {
+        if (!boxedResult) {
+            throw new UnsupportedOperationException();
+        }
+        switch (returnKind) {
+            case INT:
+                return (int) body.l(args);
+            case LONG:
+                return body.l(args);
+            case FLOAT:
+                return f(body, args);
+            case DOUBLE:
+                return body.d(args);
+            default:
+                return body.z(args);
+        }
+    }
+
+    @Override
+    public double evaluateToDouble(double a) {
+        return evaluateToDouble(new double[]{a});
+    }
+
+    @Override
+    public double evaluateToDouble(double a, double b) {
+        return evaluateToDouble(new double[]{a, b});
+    }
+
+    @Override
+    public double evaluateToDouble(double a, double b, double c) {
+        return evaluateToDouble(new double[]{a, b, c});
+    }
+
+    @Override
+    public double evaluateToDouble(double[] args) {
+        checkResult(Type.DOUBLE);
+        return body.d(doubleArguments(args));
+    }
+
+    @Override
+    public boolean evaluateToBoolean(double a) {
+        return evaluateToBoolean(new double[]{a});
+    }
+
+    @Override
+    public boolean evaluateToBoolean(double a, double b) {
+        return evaluateToBoolean(new double[]{a, b});
+    }
+
+    @Override
+    public boolean evaluateToBoolean(double a, double b, double c) {
+        return evaluateToBoolean(new double[]{a, b, c});
+    }
+
+    @Override
+    public boolean evaluateToBoolean(double[] args) {
+        checkResult(Type.BOOLEAN);
+        return body.z(doubleArguments(args));
+    }
+
+    @Override
+    public void evaluateToDouble(double[][] columns, double[] out, int from, int to) {
+        double[] row = new double[columns.length];
+        for (int i = from; i < to; i++) {
+            for (int c = 0; c < columns.length; c++) {
+                row[c] = columns[c][i];
+            }
+            out[i] = evaluateToDouble(row);
+        }
+    }
+
+    @Override
+    public void evaluateToBoolean(double[][] columns, boolean[] out, int from, int to) {
+        double[] row = new double[columns.length];
+        for (int i = from; i < to; i++) {
+            for (int c = 0; c < columns.length; c++) {
+                row[c] = columns[c][i];
+            }
+            out[i] = evaluateToBoolean(row);
+        }
+    }
+
+    @Override
+    public void evaluateToLong(double[][] columns, long[] out, int from, int to) {
+        checkResult(Type.LONG);
+        double[] row = new double[columns.length];
+        for (int i = from; i < to; i++) {
+            for (int c = 0; c < columns.length; c++) {
+                row[c] = columns[c][i];
+            }
+            out[i] = body.l(doubleArguments(row));
+        }
+    }
+
+    @Override
+    public String getFunctionString() {
+        return functionString;
+    }
+
+    @Override
+    public LinkedHashSet<String> getVariableSet() {
+        return variableSet;
+    }
+
+    @Override
+    public String toString() {
+        return "ParsedFunction[" + functionString + "]";
+    }
+
+    /**
+     * Value of a numeric node converted to float, rounding once as Java does for long operands.
+     */
+    private static float f(Node node, Object[] args) {
+        return node.kind == Type.LONG ? (float) node.l(args) : (float) node.d(args);
+    }
+
+    /**
+     * Value of a numeric node converted to the given floating point kind.
+     */
+    private static double value(Node node, Type kind, Object[] args) {
+        return kind == Type.FLOAT ? f(node, args) : node.d(args);
+    }
+
+    /*
+     * Type checking.
+     */
+
+    /**
+     * Builds the evaluation tree of a parsed expression, checking its types.
+     */
+    private static final class Builder {
+        private final String functionString;
+        private final Map<String, Parameter> parameters;
+
+        Builder(String functionString, Map<String, Parameter> parameters) {
+            this.functionString = functionString;
+            this.parameters = parameters;
+        }
+
+        Node build(Expression.Node node) {
+            if (node instanceof Expression.Literal) {
+                return constant((Expression.Literal) node);
+            } else if (node instanceof Expression.Name) {
+                Parameter parameter = parameters.get(((Expression.Name) node).name);
+                if (parameter == null) {
+                    throw unsupported(functionString, node.source());
+                }
+                return parameter;
+            } else if (node instanceof Expression.Unary) {
+                return unary((Expression.Unary) node);
+            } else if (node instanceof Expression.Binary) {
+                Expression.Binary binary = (Expression.Binary) node;
+                return binary(OPERATORS.get(binary.operator), build(binary.left), build(binary.right));
+            } else if (node instanceof Expression.Ternary) {
+                return conditional((Expression.Ternary) node);
+            } else if (node instanceof Expression.Cast) {
+                return cast((Expression.Cast) node);
+            } else if (node instanceof Expression.Call && Expression.isMathCall((Expression.Call) node)) {
+                Expression.Call call = (Expression.Call) node;
+                List<Node> arguments = new ArrayList<>(call.arguments.size());
+                for (Expression.Node argument : call.arguments) {
+                    Node built = build(argument);
+                    if (!built.kind.isNumeric()) {
+                        throw unsupported(functionString, "Math argument of type " + built.kind);
+                    }
+                    arguments.add(built);
+                }
+                return mathCall(call.name, arguments);
+            }
+            throw unsupported(functionString, node.source());
+        }
+
+        private Node constant(Expression.Literal literal) {
+            if (literal.type == Type.BOOLEAN) {
+                return new Constant(Type.BOOLEAN, 0, 0, literal.text.equals("true"));
+            }
+            if (!literal.parsed) {
+                throw unsupported(functionString, "literal " + literal.text);
+            }
+            return new Constant(literal.type, literal.doubleValue, literal.longValue, false);
+        }
+
+        private Node unary(Expression.Unary unary) {
+            if (unary.operator.equals("-") && unary.operand instanceof Expression.Literal
+                    && unary.operand.type() != Type.BOOLEAN) {
+                // Negated so that the smallest int and long literals can be read.
+                return constant(Expression.Literal.parse(((Expression.Literal) unary.operand).text, true));
+            }
+            Node operand = build(unary.operand);
+            switch (unary.operator) {
+                case "!":
+                    if (operand.kind != Type.BOOLEAN) {
+                        throw unsupported(functionString, "! on " + operand.kind);
+                    }
+                    return new Not(operand);
+                case "~":
+                    if (!operand.kind.isIntegral()) {
+                        throw unsupported(functionString, "~ on " + operand.kind);
+                    }
+                    return new Complement(operand.kind, operand);
+                default:
+                    if (!operand.kind.isNumeric()) {
+                        throw unsupported(functionString, "sign of " + operand.kind);
+                    }
+                    Type kind = Type.promote(operand.kind, Type.INT);
+                    return unary.operator.equals("-") ? new Negate(kind, operand) : operand;
+            }
+        }
+
+        private Node binary(Operator operator, Node left, Node right) {
+            Type l = left.kind;
+            Type r = right.kind;
+            switch (operator) {
+                case ADD:
+                case SUBTRACT:
+                case MULTIPLY:
+                case DIVIDE:
+                case REMAINDER:
+                    if (l.isNumeric() && r.isNumeric()) {
+                        return new Arithmetic(operator, Type.promote(l, r), left, right);
+                    }
+                    break;
+                case SHIFT_LEFT:
+                case SHIFT_RIGHT:
+                case UNSIGNED_SHIFT_RIGHT:
+                    if (l.isIntegral() && r.isIntegral()) {
+                        return new Shift(operator, l, left, right);
+                    }
+                    break;
+                case AND:
+                case OR:
+                case XOR:
+                    if (l == Type.BOOLEAN && r == Type.BOOLEAN) {
+                        return new Bitwise(operator, Type.BOOLEAN, left, right);
+                    }
+                    if (l.isIntegral() && r.isIntegral()) {
+                        return new Bitwise(operator, Type.promote(l, r), left, right);
+                    }
+                    break;
+                case EQUAL:
+                case NOT_EQUAL:
+                    if (l == Type.BOOLEAN && r == Type.BOOLEAN) {
+                        return new Comparison(operator, Type.BOOLEAN, left, right);
+                    }
+                    // Fall through to the numeric comparison.
+                case LESS:
+                case GREATER:
+                case LESS_OR_EQUAL:
+                case GREATER_OR_EQUAL:
+                    if (l.isNumeric() && r.isNumeric()) {
+                        return new Comparison(operator, Type.promote(l, r), left, right);
+                    }
+                    break;
+                default:
+                    if (l == Type.BOOLEAN && r == Type.BOOLEAN) {
+                        return new Logical(operator == Operator.CONDITIONAL_AND, left, right);
+                    }
+                    break;
+            }
+            throw unsupported(functionString, "operator " + operator + " on " + l + " and " + r);
+        }
+
+        private Node conditional(Expression.Ternary ternary) {
+            Node condition = build(ternary.condition);
+            Node whenTrue = build(ternary.whenTrue);
+            Node whenFalse = build(ternary.whenFalse);
+            if (condition.kind != Type.BOOLEAN) {
+                throw unsupported(functionString, "condition of type " + condition.kind);
+            }
+            if (whenTrue.kind == Type.BOOLEAN && whenFalse.kind == Type.BOOLEAN) {
+                return new Conditional(Type.BOOLEAN, condition, whenTrue, whenFalse);
+            }
+            if (whenTrue.kind.isNumeric() && whenFalse.kind.isNumeric()) {
+                return new Conditional(Type.promote(whenTrue.kind, whenFalse.kind), condition, whenTrue, whenFalse);
+            }
+            throw unsupported(functionString, "conditional of " + whenTrue.kind + " and " + whenFalse.kind);
+        }
+
+        /**
+         * Casts to primitive types, and casts to wrapper types of operands of the wrapped type.
+         */
+        private Node cast(Expression.Cast cast) {
+            String type = cast.typeName;
+            boolean isShort = type.equals("short");
+            boolean primitive = Expression.isPrimitiveTypeName(type);
+            Type kind = isShort ? Type.INT : Type.ofName(type);
+            if (kind == null) {
+                throw unsupported(functionString, "cast to " + type);
+            }
+            Node operand = build(cast.operand);
+            if (!primitive || kind == Type.BOOLEAN || operand.kind == Type.BOOLEAN) {
+                if (operand.kind != kind) {
+                    throw unsupported(functionString, "cast of " + operand.kind + " to " + type);
+                }
+                return operand;
+            }
+            return new Cast(kind, isShort, operand);
+        }
+
+        private Node mathCall(String name, List<Node> arguments) {
+            int arity = arguments.size();
+            Node a = arity > 0 ? arguments.get(0) : null;
+            Node b = arity > 1 ? arguments.get(1) : null;
+            if (arity == 1 && Expression.UNARY_MATH_FUNCTIONS.containsKey(name)) {
+                return new UnaryMath(Expression.UNARY_MATH_FUNCTIONS.get(name), a);
+            }
+            if (arity == 2 && Expression.BINARY_MATH_FUNCTIONS.containsKey(name)) {
+                return new BinaryMath(Expression.BINARY_MATH_FUNCTIONS.get(name), a, b);
+            }
+            if (arity == 1 && name.equals("abs")) {
+                return new Abs(Type.promote(a.kind, Type.INT), a);
+            }
+            if (arity == 2 && (name.equals("max") || name.equals("min"))) {
+                return new MinMax(name.equals("max"), Type.promote(a.kind, b.kind), a, b);
+            }
+            // Math.signum, ulp, copySign and round have float overloads, chosen unless an argument is a double.
+            if (arity == 1 && (name.equals("signum") || name.equals("ulp") || name.equals("round"))) {
+                return new FloatOverload(name, a.kind == Type.DOUBLE ? Type.DOUBLE : Type.FLOAT, a, null);
+            }
+            if (arity == 2 && name.equals("copySign")) {
+                return new FloatOverload(name, a.kind == Type.DOUBLE || b.kind == Type.DOUBLE ? Type.DOUBLE : Type.FLOAT, a, b);
+            }
+            throw unsupported(functionString, "Math." + name + " with " + arity + " arguments");
+        }
+    }
+
+    /*
+     * Evaluation tree. Integral nodes compute longs in l, wrapped to int for INT nodes, and floating
+     * point nodes compute doubles in d, rounded to float for FLOAT nodes. Boolean nodes compute z.
+     */
+
+    private abstract static class Node {
+        final Type kind;
+
+        Node(Type kind) {
+            this.kind = kind;
+        }
+
+        double d(Object[] args) {
+            return l(args);
+        }
+
+        long l(Object[] args) {
+            return (long) d(args);
+        }
+
+        boolean z(Object[] args) {
+            throw new IllegalStateException(kind + " node has no boolean value");
+        }
+    }
+
+    private static final class Constant extends Node {
+        private final double doubleValue;
+        private final long longValue;
+        private final boolean booleanValue;
+
+        Constant(Type kind, double doubleValue, long longValue, boolean booleanValue) {
+            super(kind);
+            this.doubleValue = doubleValue;
+            this.longValue = longValue;
+            this.booleanValue = booleanValue;
+        }
+
+        @Override
+        double d(Object[] args) {
+            return kind.isIntegral() ? longValue : doubleValue;
+        }
+
+        @Override
+        long l(Object[] args) {
+            return kind.isIntegral() ? longValue : (long) doubleValue;
+        }
+
+        @Override
+        boolean z(Object[] args) {
+            return booleanValue;
+        }
+    }
+
+    /**
+     * Reads an argument with the same casts as the generated class, so arguments of the wrong type
+     * throw a ClassCastException.
+     */
+    private static final class Parameter extends Node {
+        private final int index;
+        private final boolean isShort;
+
+        Parameter(Type kind, int index, boolean isShort) {
+            super(kind);
+            this.index = index;
+            this.isShort = isShort;
+        }
+
+        @Override
+        double d(Object[] args) {
+            switch (kind) {
+                case FLOAT:
+                    return ((Float) args[index]).floatValue();
+                case DOUBLE:
+                    return ((Double) args[index]).doubleValue();
+                default:
+                    return l(args);
+            }
+        }
+
+        @Override
+        long l(Object[] args) {
+            switch (kind) {
+                case INT:
+                    return isShort ? ((Short) args[index]).shortValue() : ((Integer) args[index]).intValue();
+                case LONG:
+                    return ((Long) args[index]).longValue();
+                default:
+                    return (long) d(args);
+            }
+        }
+
+        @Override
+        boolean z(Object[] args) {
+            return ((Boolean) args[index]).booleanValue();
+        }
+    }
+
+    private static final class Negate extends Node {
+        private final Node operand;
+
+        Negate(Type kind, Node operand) {
+            super(kind);
+            this.operand = operand;
+        }
+
+        @Override
+        double d(Object[] args) {
+            if (kind.isIntegral()) {
+                return l(args);
+            }
+            return kind == Type.FLOAT ? -f(operand, args) : -operand.d(args);
+        }
+
+        @Override
+        long l(Object[] args) {
+            if (!kind.isIntegral()) {
+                return (long) d(args);
+            }
+            return kind == Type.INT ? -(int) operand.l(args) : -operand.l(args);
+        }
+    }
+
+    private static final class Complement extends Node {
+        private final Node operand;
+
+        Complement(Type kind, Node operand) {
+            super(kind);
+            this.operand = operand;
+        }
+
+        @Override
+        long l(Object[] args) {
+            return kind == Type.INT ? ~(int) operand.l(args) : ~operand.l(args);
+        }
+    }
+
+    private static final class Not extends Node {
+        private final Node operand;
+
+        Not(Node operand) {
+            super(Type.BOOLEAN);
+            this.operand = operand;
+        }
+
+        @Override
+        boolean z(Object[] args) {
+            return !operand.z(args);
+        }
+    }
+
+    private static final class Arithmetic extends Node {
+        private final Operator operator;
+        private final Node left;
+        private final Node right;
+
+        Arithmetic(Operator operator, Type kind, Node left, Node right) {
+            super(kind);
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        long l(Object[] args) {
+            if (kind == Type.INT) {
+                int x = (int) left.l(args);
+                int y = (int) right.l(args);
+                switch (operator) {
+                    case ADD:
+                        return x + y;
+                    case SUBTRACT:
+                        return x - y;
+                    case MULTIPLY:
+                        return x * y;
+                    case DIVIDE:
+                        return x / y;
+                    default:
+                        return x % y;
+                }
+            }
+            if (kind == Type.LONG) {
+                long x = left.l(args);
+                long y = right.l(args);
+                switch (operator) {
+                    case ADD:
+                        return x + y;
+                    case SUBTRACT:
+                        return x - y;
+                    case MULTIPLY:
+                        return x * y;
+                    case DIVIDE:
+                        return x / y;
+                    default:
+                        return x % y;
+                }
+            }
+            return (long) d(args);
+        }
+
+        @Override
+        double d(Object[] args) {
+            if (kind.isIntegral()) {
+                return l(args);
+            }
+            if (kind == Type.FLOAT) {
+                float x = f(left, args);
+                float y = f(right, args);
+                switch (operator) {
+                    case ADD:
+                        return x + y;
+                    case SUBTRACT:
+                        return x - y;
+                    case MULTIPLY:
+                        return x * y;
+                    case DIVIDE:
+                        return x / y;
+                    default:
+                        return x % y;
+                }
+            }
+            double x = left.d(args);
+            double y = right.d(args);
+            switch (operator) {
+                case ADD:
+                    return x + y;
+                case SUBTRACT:
+                    return x - y;
+                case MULTIPLY:
+                    return x * y;
+                case DIVIDE:
+                    return x / y;
+                default:
+                    return x % y;
+            }
+        }
+    }
+
+    private static final class Shift extends Node {
+        private final Operator operator;
+        private final Node left;
+        private final Node right;
+
+        Shift(Operator operator, Type kind, Node left, Node right) {
+            super(kind);
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        long l(Object[] args) {
+            long distance = right.l(args);
+            if (kind == Type.INT) {
+                int x = (int) left.l(args);
+                switch (operator) {
+                    case SHIFT_LEFT:
+                        return x << distance;
+                    case SHIFT_RIGHT:
+                        return x >> distance;
+                    default:
+                        return x >>> distance;
+                }
+            }
+            long x = left.l(args);
+            switch (operator) {
+                case SHIFT_LEFT:
+                    return x << distance;
+                case SHIFT_RIGHT:
+                    return x >> distance;
+                default:
+                    return x >>> distance;
+            }
+        }
+    }
+
+    private static final class Bitwise extends Node {
+        private final Operator operator;
+        private final Node left;
+        private final Node right;
+
+        Bitwise(Operator operator, Type kind, Node left, Node right) {
+            super(kind);
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        long l(Object[] args) {
+            long x = left.l(args);
+            long y = right.l(args);
+            long result;
+            switch (operator) {
+                case AND:
+                    result = x & y;
+                    break;
+                case OR:
+                    result = x | y;
+                    break;
+                default:
+                    result = x ^ y;
+                    break;
+            }
+            return kind == Type.INT ? (int) result : result;
+        }
+
+        @Override
+        boolean z(Object[] args) {
+            boolean x = left.z(args);
+            boolean y = right.z(args);
+            switch (operator) {
+                case AND:
+                    return x & y;
+                case OR:
+                    return x | y;
+                default:
+                    return x ^ y;
+            }
+        }
+    }
+
+    private static final class Comparison extends Node {
+        private final Operator operator;
+        private final Type operandKind;
+        private final Node left;
+        private final Node right;
+
+        Comparison(Operator operator, Type operandKind, Node left, Node right) {
+            super(Type.BOOLEAN);
+            this.operator = operator;
+            this.operandKind = operandKind;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean z(Object[] args) {
+            if (operandKind == Type.BOOLEAN) {
+                boolean equal = left.z(args) == right.z(args);
+                return operator == Operator.EQUAL ? equal : !equal;
+            }
+            if (operandKind.isIntegral()) {
+                long x = left.l(args);
+                long y = right.l(args);
+                switch (operator) {
+                    case LESS:
+                        return x < y;
+                    case GREATER:
+                        return x > y;
+                    case LESS_OR_EQUAL:
+                        return x <= y;
+                    case GREATER_OR_EQUAL:
+                        return x >= y;
+                    case EQUAL:
+                        return x == y;
+                    default:
+                        return x != y;
+                }
+            }
+            double x = value(left, operandKind, args);
+            double y = value(right, operandKind, args);
+            switch (operator) {
+                case LESS:
+                    return x < y;
+                case GREATER:
+                    return x > y;
+                case LESS_OR_EQUAL:
+                    return x <= y;
+                case GREATER_OR_EQUAL:
+                    return x >= y;
+                case EQUAL:
+                    return x == y;
+                default:
+                    return x != y;
+            }
+        }
+    }
+
+    private static final class Logical extends Node {
+        private final boolean and;
+        private final Node left;
+        private final Node right;
+
+        Logical(boolean and, Node left, Node right) {
+            super(Type.BOOLEAN);
+            this.and = and;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean z(Object[] args) {
+            return and ? left.z(args) && right.z(args) : left.z(args) || right.z(args);
+        }
+    }
+
+    private static final class Conditional extends Node {
+        private final Node condition;
+        private final Node whenTrue;
+        private final Node whenFalse;
+
+        Conditional(Type kind, Node condition, Node whenTrue, Node whenFalse) {
+            super(kind);
+            this.condition = condition;
+            this.whenTrue = whenTrue;
+            this.whenFalse = whenFalse;
+        }
+
+        @Override
+        double d(Object[] args) {
+            Node branch = condition.z(args) ? whenTrue : whenFalse;
+            return kind.isIntegral() ? branch.l(args) : value(branch, kind, args);
+        }
+
+        @Override
+        long l(Object[] args) {
+            Node branch = condition.z(args) ? whenTrue : whenFalse;
+            if (!kind.isIntegral()) {
+                return (long) value(branch, kind, args);
+            }
+            return kind == Type.INT ? (int) branch.l(args) : branch.l(args);
+        }
+
+        @Override
+        boolean z(Object[] args) {
+            return condition.z(args) ? whenTrue.z(args) : whenFalse.z(args);
+        }
+    }
+
+    private static final class Cast extends Node {
+        private final boolean isShort;
+        private final Node operand;
+
+        Cast(Type kind, boolean isShort, Node operand) {
+            super(kind);
+            this.isShort = isShort;
+            this.operand = operand;
+        }
+
+        @Override
+        long l(Object[] args) {
+            switch (kind) {
+                case INT: {
+                    int value = operand.kind.isIntegral() ? (int) operand.l(args) : (int) operand.d(args);
+                    return isShort ? (short) value : value;
+                }
+                case LONG:
+                    return operand.kind.isIntegral() ? operand.l(args) : (long) operand.d(args);
+                default:
+                    return (long) d(args);
+            }
+        }
+
+        @Override
+        double d(Object[] args) {
+            switch (kind) {
+                case FLOAT:
+                    return f(operand, args);
+                case DOUBLE:
+                    return operand.d(args);
+                default:
+                    return l(args);
+            }
+        }
+    }
+
+    private static final class UnaryMath extends Node {
+        private final DoubleUnaryOperator function;
+        private final Node argument;
+
+        UnaryMath(DoubleUnaryOperator function, Node argument) {
+            super(Type.DOUBLE);
+            this.function = function;
+            this.argument = argument;
+        }
+
+        @Override
+        double d(Object[] args) {
+            return function.applyAsDouble(argument.d(args));
+        }
+    }
+
+    private static final class BinaryMath extends Node {
+        private final DoubleBinaryOperator function;
+        private final Node left;
+        private final Node right;
+
+        BinaryMath(DoubleBinaryOperator function, Node left, Node right) {
+            super(Type.DOUBLE);
+            this.function = function;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double d(Object[] args) {
+            return function.applyAsDouble(left.d(args), right.d(args));
+        }
+    }
+
+    private static final class Abs extends Node {
+        private final Node argument;
+
+        Abs(Type kind, Node argument) {
+            super(kind);
+            this.argument = argument;
+        }
+
+        @Override
+        long l(Object[] args) {
+            switch (kind) {
+                case INT:
+                    return Math.abs((int) argument.l(args));
+                case LONG:
+                    return Math.abs(argument.l(args));
+                default:
+                    return (long) d(args);
+            }
+        }
+
+        @Override
+        double d(Object[] args) {
+            switch (kind) {
+                case FLOAT:
+                    return Math.abs(f(argument, args));
+                case DOUBLE:
+                    return Math.abs(argument.d(args));
+                default:
+                    return l(args);
+            }
+        }
+    }
+
+    private static final class MinMax extends Node {
+        private final boolean max;
+        private final Node left;
+        private final Node right;
+
+        MinMax(boolean max, Type kind, Node left, Node right) {
+            super(kind);
+            this.max = max;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        long l(Object[] args) {
+            if (!kind.isIntegral()) {
+                return (long) d(args);
+            }
+            long x = left.l(args);
+            long y = right.l(args);
+            return max ? Math.max(x, y) : Math.min(x, y);
+        }
+
+        @Override
+        double d(Object[] args) {
+            if (kind.isIntegral()) {
+                return l(args);
+            }
+            if (kind == Type.FLOAT) {
+                float x = f(left, args);
+                float y = f(right, args);
+                return max ? Math.max(x, y) : Math.min(x, y);
+            }
+            double x = left.d(args);
+            double y = right.d(args);
+            return max ? Math.max(x, y) : Math.min(x, y);
+        }
+    }
+
+    /**
+     * Math functions with float and double overloads. Math.round returns an int or a long, the
+     * others a float or a double.
+     */
+    private static final class FloatOverload extends Node {
+        private final String name;
+        private final boolean floatArguments;
+        private final Node first;
+        private final Node second;
+
+        FloatOverload(String name, Type argumentKind, Node first, Node second) {
+            super(name.equals("round") ? (argumentKind == Type.FLOAT ? Type.INT : Type.LONG) : argumentKind);
+            this.name = name;
+            this.floatArguments = argumentKind == Type.FLOAT;
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        long l(Object[] args) {
+            if (!kind.isIntegral()) {
+                return (long) d(args);
+            }
+            return floatArguments ? Math.round(f(first, args)) : Math.round(first.d(args));
+        }
+
+        @Override
+        double d(Object[] args) {
+            if (kind.isIntegral()) {
+                return l(args);
+            }
+            if (floatArguments) {
+                float x = f(first, args);
+                switch (name) {
+                    case "signum":
+                        return Math.signum(x);
+                    case "ulp":
+                        return Math.ulp(x);
+                    default:
+                        return Math.copySign(x, f(second, args));
+                }
+            }
+            double x = first.d(args);
+            switch (name) {
+                case "signum":
+                    return Math.signum(x);
+                case "ulp":
+                    return Math.ulp(x);
+                default:
+                    return Math.copySign(x, second.d(args));
+            }
+        }
+    }
+}
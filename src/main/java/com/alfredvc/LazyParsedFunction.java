@@ -0,0 +1,106 @@
+package com.alfredvc;
+
+import java.util.LinkedHashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ParsedFunction that is only compiled when it is first evaluated.
+ * <p>
+ * The first evaluation starts compiling the function on the compilation executor of
+ * FunctionParser. Until the compiled class is ready evaluations go to the fallback function, and
+ * once it is ready the compiled function is swapped in. Without a fallback every evaluation
+ * blocks until the compilation finishes. {@link FunctionParser#fromStringLazy(String)} uses the
+ * interpreter as the fallback where it supports the function. With a compile threshold the compilation is only started once the
+ * fallback has been evaluated that many times, so functions that are only evaluated a few times are
+ * never compiled.
+ *
+ * @param <T> the return type of the function.
+ */
+public final class LazyParsedFunction<T> extends ForwardingParsedFunction<T> {
+    private final String functionString;
+    private final LinkedHashSet<String> variableSet;
+    private final ParsedFunction<T> fallback;
+    private final int compileThreshold;
+    private final AtomicInteger evaluations = new AtomicInteger();
+    private volatile ParsedFunction<T> compiled;
+    private volatile CompletableFuture<ParsedFunction<T>> compilation;
+
+    LazyParsedFunction(String functionString, LinkedHashSet<String> variableSet, ParsedFunction<T> fallback) {
+        this(functionString, variableSet, fallback, 0);
+    }
+
+    LazyParsedFunction(String functionString, LinkedHashSet<String> variableSet, ParsedFunction<T> fallback,
+                       int compileThreshold) {
+        this.functionString = functionString;
+        this.variableSet = variableSet;
+        this.fallback = fallback;
+        this.compileThreshold = compileThreshold;
+    }
+
+    @Override
+    protected ParsedFunction<T> delegate() {
+        ParsedFunction<T> current = compiled;
+        if (current != null) {
+            return current;
+        }
+        if (fallback != null && compilation == null && evaluations.incrementAndGet() < compileThreshold) {
+            return fallback;
+        }
+        CompletableFuture<ParsedFunction<T>> future = compile();
+        if (fallback != null) {
+            return fallback;
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Starts compiling the function if that has not been done yet.
+     *
+     * @return the compilation, completed with the compiled function once it is ready.
+     */
+    public CompletableFuture<ParsedFunction<T>> compile() {
+        CompletableFuture<ParsedFunction<T>> future = compilation;
+        if (future == null) {
+            synchronized (this) {
+                future = compilation;
+                if (future == null) {
+                    CompletableFuture<ParsedFunction<T>> started = FunctionParser.fromStringAsync(functionString);
+                    future = started.thenApply(function -> {
+                        compiled = function;
+                        return function;
+                    });
+                    compilation = future;
+                }
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Returns whether the compiled function has been swapped in.
+     *
+     * @return true if evaluations go to the compiled function.
+     */
+    public boolean isCompiled() {
+        return compiled != null;
+    }
+
+    @Override
+    public String getFunctionString() {
+        return functionString;
+    }
+
+    @Override
+    public LinkedHashSet<String> getVariableSet() {
+        return variableSet;
+    }
+}
@@ -0,0 +1,26 @@
+package com.alfredvc;
+
+/**
+ * Controls where FunctionParser defines the classes it generates. In all modes every function is
+ * compiled in its own scoped ClassPool and the CtClass is detached once the class is defined.
+ */
+public enum LoadingMode {
+    /**
+     * Generated classes are defined in the context class loader. They stay loaded for the lifetime
+     * of that class loader.
+     */
+    SHARED,
+    /**
+     * Every generated class is defined in its own child class loader, and is unloaded once the
+     * ParsedFunction is no longer reachable.
+     */
+    ISOLATED,
+    /**
+     * Generated classes are defined as hidden classes in the com.alfredvc package through
+     * MethodHandles.Lookup.defineHiddenClass, without a class loader of their own and without the
+     * reflective access Javassist's toClass needs. They are unloaded once the ParsedFunction is no
+     * longer reachable, and classes referenced by functions are resolved against the class loader
+     * of the library. Requires Java 15 or later.
+     */
+    HIDDEN
+}
@@ -0,0 +1,141 @@
+package com.alfredvc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MutableCallSite;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ParsedFunction whose compiled function can be atomically replaced while it is being evaluated.
+ * <p>
+ * The evaluate methods read the current function from a volatile field and call it, so they cost
+ * one more call than the function itself, and a call site evaluating several generations sees
+ * several receiver classes. Code that needs the function inlined should keep the handle returned by
+ * {@link #dynamicInvoker()} in a static final field: its target is the current function, constant
+ * to the JIT, and a replacement deoptimizes the code it was folded into. MutableBenchmark in the
+ * benchmarks module compares the two. Nothing keeps a reference to a replaced function, so its
+ * class can be unloaded if it was compiled with {@link LoadingMode#ISOLATED} or
+ * {@link LoadingMode#HIDDEN}.
+ * <p>
+ * {@link #set(ParsedFunction)} always applies, so of concurrent calls the last one to run wins. A
+ * {@link #recompile(String)} is discarded if it finishes after a later set or recompile was
+ * applied.
+ *
+ * @param <T> the return type of the function.
+ */
+public final class MutableParsedFunction<T> extends ForwardingParsedFunction<T> {
+    private final AtomicLong requested = new AtomicLong();
+    private long applied;
+    private volatile ParsedFunction<T> current;
+    private volatile MutableCallSite evaluateSite;
+
+    MutableParsedFunction(ParsedFunction<T> initial) {
+        set(initial);
+    }
+
+    @Override
+    protected ParsedFunction<T> delegate() {
+        return current;
+    }
+
+    /**
+     * @return the function evaluations currently go to.
+     */
+    public ParsedFunction<T> get() {
+        return current;
+    }
+
+    /**
+     * Replaces the function evaluations go to. The replacement always applies, also over a
+     * {@link #recompile(String)} requested earlier that has not finished yet.
+     *
+     * @param function the new function.
+     * @throws IllegalArgumentException if the function is null, or if {@link #dynamicInvoker()} was
+     *                                  called and the function takes other parameter types or
+     *                                  returns another type than the current one.
+     */
+    public synchronized void set(ParsedFunction<T> function) {
+        // Drawing the ticket under the lock keeps it above every applied one.
+        apply(function, requested.incrementAndGet());
+    }
+
+    /**
+     * Compiles the given function string on the compilation executor of FunctionParser and
+     * replaces the current function with it once it is compiled. Evaluations keep going to the
+     * current function in the meantime, and if the compilation fails the current function is kept.
+     *
+     * @param functionString the function string to compile.
+     * @return a future completed with the compiled function once it is swapped in, or completed
+     *         exceptionally if it cannot be compiled or has been replaced by a later request.
+     */
+    public CompletableFuture<ParsedFunction<T>> recompile(String functionString) {
+        long ticket = requested.incrementAndGet();
+        return FunctionParser.<T>fromStringAsync(functionString).thenApply(function -> {
+            if (!apply(function, ticket)) {
+                throw new IllegalStateException("Replaced by a later request: " + functionString);
+            }
+            return function;
+        });
+    }
+
+    /**
+     * Returns a method handle evaluating the current function, with the type returned by
+     * {@link FunctionParser#toMethodHandle(ParsedFunction)}. The handle follows replacements, which
+     * from then on must keep the parameter and return types of the function.
+     *
+     * @return a method handle evaluating the current function.
+     */
+    public MethodHandle dynamicInvoker() {
+        MutableCallSite site = evaluateSite;
+        if (site == null) {
+            synchronized (this) {
+                site = evaluateSite;
+                if (site == null) {
+                    site = new MutableCallSite(FunctionParser.toMethodHandle(current));
+                    evaluateSite = site;
+                }
+            }
+        }
+        return site.dynamicInvoker();
+    }
+
+    /**
+     * @return the number of replacements requested so far, including the initial function.
+     */
+    public long getGeneration() {
+        return requested.get();
+    }
+
+    private synchronized boolean apply(ParsedFunction<T> function, long ticket) {
+        if (function == null) {
+            throw new IllegalArgumentException("Function must not be null");
+        }
+        if (ticket < applied) {
+            return false;
+        }
+        MutableCallSite site = evaluateSite;
+        if (site != null) {
+            MethodHandle handle = FunctionParser.toMethodHandle(function);
+            if (!handle.type().equals(site.type())) {
+                throw new IllegalArgumentException("Cannot replace a function of type " + site.type() + " with "
+                        + function.getFunctionString() + " of type " + handle.type());
+            }
+            site.setTarget(handle);
+            MutableCallSite.syncAll(new MutableCallSite[]{site});
+        }
+        current = function;
+        applied = ticket;
+        return true;
+    }
+
+    @Override
+    public String getFunctionString() {
+        return current.getFunctionString();
+    }
+
+    @Override
+    public LinkedHashSet<String> getVariableSet() {
+        return current.getVariableSet();
+    }
+}
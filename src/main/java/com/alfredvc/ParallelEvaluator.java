@@ -0,0 +1,587 @@
+package com.alfredvc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Evaluates a ParsedFunction over large inputs in parallel.
+ * <p>
+ * The input is either a set of double columns, one per parameter in the order of the variable set,
+ * or a Spliterator of Object[] argument tuples. It is split into chunks which are evaluated on a
+ * ForkJoinPool or on a caller supplied Executor. Results are written into a preallocated output
+ * array, at the same index as the row they were computed from, or reduced into a sum, minimum,
+ * maximum or count. Column inputs are evaluated through the batch methods of ParsedFunction, such
+ * as {@link ParsedFunction#evaluateToDouble(double[][], double[], int, int)}, and reductions run
+ * them over blocks of {@link #BLOCK_SIZE} rows copied out of the columns.
+ * <p>
+ * Generated functions are stateless, so a single ParsedFunction can safely be evaluated from all
+ * chunks at the same time.
+ * <p>
+ * For example: ParsedFunction func = FunctionParser.fromString("double(double x,y)-&gt;x*y");
+ * double total = new ParallelEvaluator().sum(func, new double[][]{xs, ys});
+ */
+public final class ParallelEvaluator {
+    public static final int DEFAULT_MINIMUM_CHUNK_SIZE = 4096;
+    /**
+     * Number of rows evaluated by a single batch call while reducing columns.
+     */
+    public static final int BLOCK_SIZE = 1024;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final Executor executor;
+    private final int parallelism;
+    private final int minimumChunkSize;
+
+    /**
+     * Creates an evaluator running on the common ForkJoinPool.
+     */
+    public ParallelEvaluator() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ParallelEvaluator(ForkJoinPool pool) {
+        this(pool, pool.getParallelism(), DEFAULT_MINIMUM_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates an evaluator running on the given executor. If the executor is a ForkJoinPool the
+     * chunks are forked and joined recursively, otherwise every chunk is submitted as its own task.
+     *
+     * @param executor         runs the chunks.
+     * @param parallelism      the number of threads of the executor, used to size the chunks.
+     * @param minimumChunkSize the smallest number of rows evaluated by a single task.
+     */
+    public ParallelEvaluator(Executor executor, int parallelism, int minimumChunkSize) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor must not be null");
+        }
+        if (parallelism < 1 || minimumChunkSize < 1) {
+            throw new IllegalArgumentException("Parallelism and minimum chunk size must be positive");
+        }
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.minimumChunkSize = minimumChunkSize;
+    }
+
+    /**
+     * Evaluates a function with double parameters for every row of the columns.
+     *
+     * @param function the function, whose parameters must all be doubles.
+     * @param columns  one array per parameter.
+     * @param out      receives the result of every row, must be at least as long as the columns.
+     */
+    public void evaluateToDouble(ParsedFunction<?> function, double[][] columns, double[] out) {
+        int rows = rowCount(columns);
+        checkOutput(out.length, rows);
+        forEachChunk(rows, (from, to) -> function.evaluateToDouble(columns, out, from, to));
+    }
+
+    /**
+     * Evaluates a predicate with double parameters for every row of the columns.
+     *
+     * @param predicate the predicate, whose parameters must all be doubles.
+     * @param columns   one array per parameter.
+     * @param out       receives the mask of results, must be at least as long as the columns.
+     */
+    public void evaluateToBoolean(ParsedFunction<?> predicate, double[][] columns, boolean[] out) {
+        int rows = rowCount(columns);
+        checkOutput(out.length, rows);
+        forEachChunk(rows, (from, to) -> predicate.evaluateToBoolean(columns, out, from, to));
+    }
+
+    /**
+     * Evaluates a function with double parameters returning a long for every row of the columns.
+     *
+     * @param function the function, whose parameters must all be doubles.
+     * @param columns  one array per parameter.
+     * @param out      receives the result of every row, must be at least as long as the columns.
+     */
+    public void evaluateToLong(ParsedFunction<?> function, double[][] columns, long[] out) {
+        int rows = rowCount(columns);
+        checkOutput(out.length, rows);
+        forEachChunk(rows, (from, to) -> function.evaluateToLong(columns, out, from, to));
+    }
+
+    public double sum(ParsedFunction<?> function, double[][] columns) {
+        double[] partials = reduceColumns(function, columns, 0.0, DoubleReduction.SUM);
+        double sum = 0.0;
+        for (double partial : partials) {
+            sum += partial;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the smallest result of the function over the rows of the columns, or
+     * Double.POSITIVE_INFINITY if there are no rows.
+     */
+    public double min(ParsedFunction<?> function, double[][] columns) {
+        double[] partials = reduceColumns(function, columns, Double.POSITIVE_INFINITY, DoubleReduction.MIN);
+        double min = Double.POSITIVE_INFINITY;
+        for (double partial : partials) {
+            min = Math.min(min, partial);
+        }
+        return min;
+    }
+
+    /**
+     * Returns the largest result of the function over the rows of the columns, or
+     * Double.NEGATIVE_INFINITY if there are no rows.
+     */
+    public double max(ParsedFunction<?> function, double[][] columns) {
+        double[] partials = reduceColumns(function, columns, Double.NEGATIVE_INFINITY, DoubleReduction.MAX);
+        double max = Double.NEGATIVE_INFINITY;
+        for (double partial : partials) {
+            max = Math.max(max, partial);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the number of rows of the columns the predicate holds for.
+     */
+    public long count(ParsedFunction<?> predicate, double[][] columns) {
+        int rows = rowCount(columns);
+        long[] partials = new long[chunkCount(rows)];
+        int chunkSize = chunkSize(rows);
+        forEachChunk(rows, (from, to) -> {
+            double[][] block = newBlock(columns.length, from, to);
+            boolean[] results = new boolean[block[0].length];
+            long count = 0;
+            for (int start = from; start < to; start += BLOCK_SIZE) {
+                int length = copyBlock(columns, block, start, to);
+                predicate.evaluateToBoolean(block, results, 0, length);
+                for (int i = 0; i < length; i++) {
+                    if (results[i]) {
+                        count++;
+                    }
+                }
+            }
+            partials[from / chunkSize] = count;
+        });
+        long count = 0;
+        for (long partial : partials) {
+            count += partial;
+        }
+        return count;
+    }
+
+    public long sumLong(ParsedFunction<?> function, double[][] columns) {
+        long[] partials = reduceColumnsToLong(function, columns, 0L, LongReduction.SUM);
+        long sum = 0L;
+        for (long partial : partials) {
+            sum += partial;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the smallest result of the function over the rows of the columns, or Long.MAX_VALUE
+     * if there are no rows.
+     */
+    public long minLong(ParsedFunction<?> function, double[][] columns) {
+        long[] partials = reduceColumnsToLong(function, columns, Long.MAX_VALUE, LongReduction.MIN);
+        long min = Long.MAX_VALUE;
+        for (long partial : partials) {
+            min = Math.min(min, partial);
+        }
+        return min;
+    }
+
+    /**
+     * Returns the largest result of the function over the rows of the columns, or Long.MIN_VALUE
+     * if there are no rows.
+     */
+    public long maxLong(ParsedFunction<?> function, double[][] columns) {
+        long[] partials = reduceColumnsToLong(function, columns, Long.MIN_VALUE, LongReduction.MAX);
+        long max = Long.MIN_VALUE;
+        for (long partial : partials) {
+            max = Math.max(max, partial);
+        }
+        return max;
+    }
+
+    /**
+     * Evaluates the function for every argument tuple of the spliterator, writing the result of
+     * the n-th tuple into out[n]. The spliterator must be SUBSIZED, as for example the ones of
+     * arrays and ArrayLists are, so the position of every chunk is known.
+     *
+     * @param function the function.
+     * @param tuples   the argument arrays.
+     * @param out      receives the results.
+     */
+    public void evaluateToDouble(ParsedFunction<?> function, Spliterator<Object[]> tuples, double[] out) {
+        List<Spliterator<Object[]>> chunks = split(tuples, true);
+        int[] offsets = offsets(chunks, out.length);
+        forEachChunk(chunks, (chunk, index) -> {
+            int[] position = {offsets[index]};
+            chunk.forEachRemaining(args -> out[position[0]++] = function.evaluateToDouble(args));
+        });
+    }
+
+    /**
+     * Evaluates the function for every argument tuple of the spliterator, writing the result of
+     * the n-th tuple into out[n]. See {@link #evaluateToDouble(ParsedFunction, Spliterator, double[])}.
+     *
+     * @param function the function.
+     * @param tuples   the argument arrays.
+     * @param out      receives the results.
+     */
+    public void evaluateToLong(ParsedFunction<?> function, Spliterator<Object[]> tuples, long[] out) {
+        List<Spliterator<Object[]>> chunks = split(tuples, true);
+        int[] offsets = offsets(chunks, out.length);
+        forEachChunk(chunks, (chunk, index) -> {
+            int[] position = {offsets[index]};
+            chunk.forEachRemaining(args -> out[position[0]++] = function.evaluateToLong(args));
+        });
+    }
+
+    public double sum(ParsedFunction<?> function, Spliterator<Object[]> tuples) {
+        double[] partials = reduceTuples(function, tuples, 0.0, DoubleReduction.SUM);
+        double sum = 0.0;
+        for (double partial : partials) {
+            sum += partial;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the smallest result of the function over the tuples, or Double.POSITIVE_INFINITY if
+     * there are none.
+     */
+    public double min(ParsedFunction<?> function, Spliterator<Object[]> tuples) {
+        double[] partials = reduceTuples(function, tuples, Double.POSITIVE_INFINITY, DoubleReduction.MIN);
+        double min = Double.POSITIVE_INFINITY;
+        for (double partial : partials) {
+            min = Math.min(min, partial);
+        }
+        return min;
+    }
+
+    /**
+     * Returns the largest result of the function over the tuples, or Double.NEGATIVE_INFINITY if
+     * there are none.
+     */
+    public double max(ParsedFunction<?> function, Spliterator<Object[]> tuples) {
+        double[] partials = reduceTuples(function, tuples, Double.NEGATIVE_INFINITY, DoubleReduction.MAX);
+        double max = Double.NEGATIVE_INFINITY;
+        for (double partial : partials) {
+            max = Math.max(max, partial);
+        }
+        return max;
+    }
+
+    public long sumLong(ParsedFunction<?> function, Spliterator<Object[]> tuples) {
+        long[] partials = reduceTuplesToLong(function, tuples, 0L, LongReduction.SUM);
+        long sum = 0L;
+        for (long partial : partials) {
+            sum += partial;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the smallest result of the function over the tuples, or Long.MAX_VALUE if there are
+     * none.
+     */
+    public long minLong(ParsedFunction<?> function, Spliterator<Object[]> tuples) {
+        long[] partials = reduceTuplesToLong(function, tuples, Long.MAX_VALUE, LongReduction.MIN);
+        long min = Long.MAX_VALUE;
+        for (long partial : partials) {
+            min = Math.min(min, partial);
+        }
+        return min;
+    }
+
+    /**
+     * Returns the largest result of the function over the tuples, or Long.MIN_VALUE if there are
+     * none.
+     */
+    public long maxLong(ParsedFunction<?> function, Spliterator<Object[]> tuples) {
+        long[] partials = reduceTuplesToLong(function, tuples, Long.MIN_VALUE, LongReduction.MAX);
+        long max = Long.MIN_VALUE;
+        for (long partial : partials) {
+            max = Math.max(max, partial);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the number of tuples the predicate holds for.
+     */
+    public long count(ParsedFunction<?> predicate, Spliterator<Object[]> tuples) {
+        List<Spliterator<Object[]>> chunks = split(tuples, false);
+        long[] partials = new long[chunks.size()];
+        forEachChunk(chunks, (chunk, index) -> {
+            long[] count = {0};
+            chunk.forEachRemaining(args -> {
+                if (predicate.evaluateToBoolean(args)) {
+                    count[0]++;
+                }
+            });
+            partials[index] = count[0];
+        });
+        long count = 0;
+        for (long partial : partials) {
+            count += partial;
+        }
+        return count;
+    }
+
+    private double[] reduceColumns(ParsedFunction<?> function, double[][] columns, double identity, DoubleReduction reduction) {
+        int rows = rowCount(columns);
+        double[] partials = new double[chunkCount(rows)];
+        int chunkSize = chunkSize(rows);
+        forEachChunk(rows, (from, to) -> {
+            double[][] block = newBlock(columns.length, from, to);
+            double[] results = new double[block[0].length];
+            double result = identity;
+            for (int start = from; start < to; start += BLOCK_SIZE) {
+                int length = copyBlock(columns, block, start, to);
+                function.evaluateToDouble(block, results, 0, length);
+                for (int i = 0; i < length; i++) {
+                    result = reduction.apply(result, results[i]);
+                }
+            }
+            partials[from / chunkSize] = result;
+        });
+        return partials;
+    }
+
+    private long[] reduceColumnsToLong(ParsedFunction<?> function, double[][] columns, long identity, LongReduction reduction) {
+        int rows = rowCount(columns);
+        long[] partials = new long[chunkCount(rows)];
+        int chunkSize = chunkSize(rows);
+        forEachChunk(rows, (from, to) -> {
+            double[][] block = newBlock(columns.length, from, to);
+            long[] results = new long[block[0].length];
+            long result = identity;
+            for (int start = from; start < to; start += BLOCK_SIZE) {
+                int length = copyBlock(columns, block, start, to);
+                function.evaluateToLong(block, results, 0, length);
+                for (int i = 0; i < length; i++) {
+                    result = reduction.apply(result, results[i]);
+                }
+            }
+            partials[from / chunkSize] = result;
+        });
+        return partials;
+    }
+
+    private double[] reduceTuples(ParsedFunction<?> function, Spliterator<Object[]> tuples, double identity, DoubleReduction reduction) {
+        List<Spliterator<Object[]>> chunks = split(tuples, false);
+        double[] partials = new double[chunks.size()];
+        forEachChunk(chunks, (chunk, index) -> {
+            double[] result = {identity};
+            chunk.forEachRemaining(args -> result[0] = reduction.apply(result[0], function.evaluateToDouble(args)));
+            partials[index] = result[0];
+        });
+        return partials;
+    }
+
+    private long[] reduceTuplesToLong(ParsedFunction<?> function, Spliterator<Object[]> tuples, long identity, LongReduction reduction) {
+        List<Spliterator<Object[]>> chunks = split(tuples, false);
+        long[] partials = new long[chunks.size()];
+        forEachChunk(chunks, (chunk, index) -> {
+            long[] result = {identity};
+            chunk.forEachRemaining(args -> result[0] = reduction.apply(result[0], function.evaluateToLong(args)));
+            partials[index] = result[0];
+        });
+        return partials;
+    }
+
+    private static double[][] newBlock(int columnCount, int from, int to) {
+        return new double[columnCount][Math.min(BLOCK_SIZE, to - from)];
+    }
+
+    /**
+     * Copies the rows from start to at most one block further, but not past to, into the block.
+     *
+     * @return the number of rows copied.
+     */
+    private static int copyBlock(double[][] columns, double[][] block, int start, int to) {
+        int length = Math.min(BLOCK_SIZE, to - start);
+        for (int c = 0; c < columns.length; c++) {
+            System.arraycopy(columns[c], start, block[c], 0, length);
+        }
+        return length;
+    }
+
+    private static int rowCount(double[][] columns) {
+        if (columns.length == 0) {
+            throw new IllegalArgumentException("At least one column is required");
+        }
+        int rows = columns[0].length;
+        for (double[] column : columns) {
+            if (column.length != rows) {
+                throw new IllegalArgumentException("All columns must have the same length");
+            }
+        }
+        return rows;
+    }
+
+    private static void checkOutput(int outputLength, int rows) {
+        if (outputLength < rows) {
+            throw new IllegalArgumentException("Output has room for " + outputLength + " results but there are " + rows + " rows");
+        }
+    }
+
+    private int chunkSize(int rows) {
+        int target = (rows + parallelism * CHUNKS_PER_THREAD - 1) / (parallelism * CHUNKS_PER_THREAD);
+        return Math.max(minimumChunkSize, target);
+    }
+
+    private int chunkCount(int rows) {
+        int chunkSize = chunkSize(rows);
+        return Math.max(1, (rows + chunkSize - 1) / chunkSize);
+    }
+
+    private void forEachChunk(int rows, RangeTask task) {
+        int chunkSize = chunkSize(rows);
+        run(chunkCount(rows), chunk -> task.run(chunk * chunkSize, Math.min(rows, (chunk + 1) * chunkSize)));
+    }
+
+    private <S> void forEachChunk(List<S> chunks, ChunkTask<S> task) {
+        run(chunks.size(), chunk -> task.run(chunks.get(chunk), chunk));
+    }
+
+    /**
+     * Splits the spliterator into chunks of roughly the chunk size, in encounter order.
+     */
+    private List<Spliterator<Object[]>> split(Spliterator<Object[]> tuples, boolean requireSizes) {
+        if (requireSizes && !tuples.hasCharacteristics(Spliterator.SUBSIZED)) {
+            throw new IllegalArgumentException("Writing into an output array requires a SUBSIZED spliterator");
+        }
+        long estimate = tuples.estimateSize();
+        int chunkSize = chunkSize(estimate >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) estimate);
+        List<Spliterator<Object[]>> chunks = new ArrayList<>();
+        addChunks(tuples, chunkSize, chunks);
+        return chunks;
+    }
+
+    private static void addChunks(Spliterator<Object[]> tuples, int chunkSize, List<Spliterator<Object[]>> chunks) {
+        Spliterator<Object[]> prefix = tuples.estimateSize() > chunkSize ? tuples.trySplit() : null;
+        if (prefix == null) {
+            chunks.add(tuples);
+            return;
+        }
+        addChunks(prefix, chunkSize, chunks);
+        addChunks(tuples, chunkSize, chunks);
+    }
+
+    private static int[] offsets(List<Spliterator<Object[]>> chunks, int outputLength) {
+        int[] offsets = new int[chunks.size()];
+        long offset = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = (int) offset;
+            offset += chunks.get(i).getExactSizeIfKnown();
+        }
+        checkOutput(outputLength, (int) Math.min(Integer.MAX_VALUE, offset));
+        return offsets;
+    }
+
+    private void run(int chunkCount, IntConsumer chunk) {
+        if (chunkCount == 1) {
+            chunk.accept(0);
+        } else if (executor instanceof ForkJoinPool) {
+            ((ForkJoinPool) executor).invoke(new ChunkAction(chunk, 0, chunkCount));
+        } else {
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                int index = i;
+                futures[i] = CompletableFuture.runAsync(() -> chunk.accept(index), executor);
+            }
+            try {
+                CompletableFuture.allOf(futures).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static final class ChunkAction extends RecursiveAction {
+        private final IntConsumer chunk;
+        private final int from;
+        private final int to;
+
+        ChunkAction(IntConsumer chunk, int from, int to) {
+            this.chunk = chunk;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                chunk.accept(from);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ChunkAction(chunk, from, middle), new ChunkAction(chunk, middle, to));
+            }
+        }
+    }
+
+    private interface RangeTask {
+        void run(int from, int to);
+    }
+
+    private interface ChunkTask<S> {
+        void run(S chunk, int index);
+    }
+
+    private enum DoubleReduction {
+        SUM {
+            @Override
+            double apply(double a, double b) {
+                return a + b;
+            }
+        },
+        MIN {
+            @Override
+            double apply(double a, double b) {
+                return Math.min(a, b);
+            }
+        },
+        MAX {
+            @Override
+            double apply(double a, double b) {
+                return Math.max(a, b);
+            }
+        };
+
+        abstract double apply(double a, double b);
+    }
+
+    private enum LongReduction {
+        SUM {
+            @Override
+            long apply(long a, long b) {
+                return a + b;
+            }
+        },
+        MIN {
+            @Override
+            long apply(long a, long b) {
+                return Math.min(a, b);
+            }
+        },
+        MAX {
+            @Override
+            long apply(long a, long b) {
+                return Math.max(a, b);
+            }
+        };
+
+        abstract long apply(long a, long b);
+    }
+}
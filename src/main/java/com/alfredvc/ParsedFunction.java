@@ -15,6 +15,10 @@ import java.util.LinkedHashSet;
  * FunctionParser.fromString("java.awt.Point(java.awt.Point a,b)-&gt;return new java.awt.Point(a.x +
  * b.x,a.y + b.y);"); Object[] args = {new Point(3, 5), new Point(5, 2)}; Point result =
  * func.evaluate(args);
+ * <p>
+ * For example: for a function with primitive double parameters; ParsedFunction func =
+ * FunctionParser.fromString("double(double x,y)-&gt;x*y"); double result = func.evaluateToDouble(3.0,
+ * 4.0);
  *
  * @param <T> the return type of the function. Only used if the return type is an Object and not a
  *            supported primitive.
@@ -45,6 +49,108 @@ public interface ParsedFunction<T> {
         throw new UnsupportedOperationException();
     }
 
+    /*
+     * Entry points for functions whose parameters are all doubles, for example
+     * double(double x,y)->x*y. These avoid boxing the arguments and allocating an argument array.
+     */
+
+    default double evaluateToDouble(double a) {
+        throw new UnsupportedOperationException();
+    }
+
+    default double evaluateToDouble(double a, double b) {
+        throw new UnsupportedOperationException();
+    }
+
+    default double evaluateToDouble(double a, double b, double c) {
+        throw new UnsupportedOperationException();
+    }
+
+    default double evaluateToDouble(double[] args) {
+        throw new UnsupportedOperationException();
+    }
+
+    default boolean evaluateToBoolean(double a) {
+        throw new UnsupportedOperationException();
+    }
+
+    default boolean evaluateToBoolean(double a, double b) {
+        throw new UnsupportedOperationException();
+    }
+
+    default boolean evaluateToBoolean(double a, double b, double c) {
+        throw new UnsupportedOperationException();
+    }
+
+    default boolean evaluateToBoolean(double[] args) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Evaluates the function for every row from (inclusive) to to (exclusive), reading the i-th
+     * argument of a row from columns[i] and writing the result into out. Only available for
+     * functions whose parameters are all doubles.
+     *
+     * @param columns one array per parameter, in the order of the variable set
+     * @param out     the array the results are written to, at the same index as the row
+     * @param from    the first row to evaluate
+     * @param to      the row after the last row to evaluate
+     */
+    default void evaluateToDouble(double[][] columns, double[] out, int from, int to) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Evaluates a predicate for every row from (inclusive) to to (exclusive), writing a mask of the
+     * results into out. See {@link #evaluateToDouble(double[][], double[], int, int)}.
+     *
+     * @param columns one array per parameter, in the order of the variable set
+     * @param out     the mask the results are written to, at the same index as the row
+     * @param from    the first row to evaluate
+     * @param to      the row after the last row to evaluate
+     */
+    default void evaluateToBoolean(double[][] columns, boolean[] out, int from, int to) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Evaluates a function returning a long for every row from (inclusive) to to (exclusive). See
+     * {@link #evaluateToDouble(double[][], double[], int, int)}.
+     *
+     * @param columns one array per parameter, in the order of the variable set
+     * @param out     the array the results are written to, at the same index as the row
+     * @param from    the first row to evaluate
+     * @param to      the row after the last row to evaluate
+     */
+    default void evaluateToLong(double[][] columns, long[] out, int from, int to) {
+        throw new UnsupportedOperationException();
+    }
+
+    /*
+     * Entry points taking the arguments from a reusable buffer, see ArgumentLayout. Buffers of
+     * functions whose parameters are all doubles are evaluated without boxing.
+     */
+
+    default double evaluateToDouble(ArgumentBuffer arguments) {
+        return arguments.isPrimitive() ? evaluateToDouble(arguments.doubleArguments()) : evaluateToDouble(arguments.objectArguments());
+    }
+
+    default boolean evaluateToBoolean(ArgumentBuffer arguments) {
+        return arguments.isPrimitive() ? evaluateToBoolean(arguments.doubleArguments()) : evaluateToBoolean(arguments.objectArguments());
+    }
+
+    default long evaluateToLong(ArgumentBuffer arguments) {
+        return evaluateToLong(arguments.objectArguments());
+    }
+
+    default int evaluateToInteger(ArgumentBuffer arguments) {
+        return evaluateToInteger(arguments.objectArguments());
+    }
+
+    default T evaluate(ArgumentBuffer arguments) {
+        return evaluate(arguments.objectArguments());
+    }
+
     default Object evaluateToObject(Object[] args) {
         throw new UnsupportedOperationException();
     }
@@ -0,0 +1,26 @@
+package com.alfredvc;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares function strings to be compiled at build time by {@link FunctionPrecompiler}, so that
+ * {@link FunctionParser#fromString(String)} returns them without compiling anything at runtime.
+ * <p>
+ * On a type the function strings are given as the value. On a String constant the value may be
+ * left out, and the constant itself is precompiled.
+ * <p>
+ * For example: {@code @Precompile({"double(double x, y)->x * y", "int(int n)->n + 1"})}, or
+ * {@code @Precompile static final String DISTANCE = "double(double x, y)->Math.sqrt(x * x + y * y)";}
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target({ElementType.TYPE, ElementType.FIELD})
+public @interface Precompile {
+
+    /**
+     * @return the function strings to precompile.
+     */
+    String[] value() default {};
+}
@@ -0,0 +1,97 @@
+package com.alfredvc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Registry of the functions compiled at build time by {@link FunctionPrecompiler}.
+ * <p>
+ * Every jar or class directory with precompiled functions carries an index mapping the whitespace
+ * normalized function strings to the names of their classes, see {@link #INDEX}. The indexes
+ * visible to the class loader FunctionParser defines classes in are read the first time a function
+ * is looked up. Precompiled classes are instantiated through reflection like the ones read from a
+ * {@link BytecodeCache}, which does not need Javassist.
+ */
+final class PrecompiledFunctions {
+    /**
+     * Location of the index of precompiled functions, a properties file.
+     */
+    static final String INDEX = "META-INF/com.alfredvc/precompiled-functions.properties";
+    /**
+     * Package of the precompiled classes.
+     */
+    static final String PACKAGE = "com.alfredvc.precompiled";
+
+    private PrecompiledFunctions() {
+        //Intentionally empty.
+    }
+
+    /**
+     * @param functionString the function string.
+     * @param <T>            the return type of the function.
+     * @return a new instance of the precompiled function, or null if the function was not
+     *         precompiled.
+     */
+    static <T> ParsedFunction<T> get(String functionString) {
+        Index index = Index.INSTANCE;
+        if (index.classNames.isEmpty()) {
+            return null;
+        }
+        String className = index.classNames.get(FunctionCache.normalize(functionString));
+        if (className == null) {
+            return null;
+        }
+        Class<?> clazz;
+        try {
+            clazz = Class.forName(className, true, index.loader);
+        } catch (ClassNotFoundException e) {
+            // An index without its classes, compile the function instead.
+            return null;
+        }
+        return FunctionParser.instantiate(clazz, FunctionDeclaration.parse(functionString).getVariables(), functionString);
+    }
+
+    /**
+     * @return the number of precompiled functions visible to FunctionParser.
+     */
+    static int size() {
+        return Index.INSTANCE.classNames.size();
+    }
+
+    /**
+     * The merged indexes, read once by the holder idiom.
+     */
+    private static final class Index {
+        static final Index INSTANCE = new Index(FunctionClassLoader.parentLoader());
+
+        final ClassLoader loader;
+        final Map<String, String> classNames;
+
+        Index(ClassLoader loader) {
+            this.loader = loader;
+            Map<String, String> entries = new HashMap<>();
+            try {
+                Enumeration<URL> resources = loader.getResources(INDEX);
+                while (resources.hasMoreElements()) {
+                    Properties properties = new Properties();
+                    try (InputStream in = resources.nextElement().openStream()) {
+                        properties.load(in);
+                    }
+                    for (String functionString : properties.stringPropertyNames()) {
+                        entries.putIfAbsent(functionString, properties.getProperty(functionString));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read " + INDEX, e);
+            }
+            this.classNames = Collections.unmodifiableMap(entries);
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package com.alfredvc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Boolean functions combined with AND or OR into a single generated method that short-circuits,
+ * created by {@link FunctionParser#fromStringsAsPredicateChain(Operator, java.util.Collection, int)}.
+ * <p>
+ * One row in {@link #SAMPLE_INTERVAL} on average is profiled: every predicate is evaluated for it
+ * on its own, and the chain records how often each predicate passes and how long it takes. Rows
+ * filtered with {@link #filter(double[][], int, int, int[])} are profiled in blocks of
+ * {@link #PROFILE_BLOCK} rows, which measures the cost of cheap predicates far more precisely than
+ * single rows. After the configured number of profiled rows the predicates are sorted by their cost
+ * divided by the probability that they end the evaluation, so cheap predicates that reject most
+ * rows of an AND chain come first, and the chain is recompiled in the background on the
+ * compilation executor of FunctionParser if the expected cost per row drops by at least a tenth.
+ * The recorded statistics are halved at every reordering, so the order follows the data.
+ * <p>
+ * Since predicates are reordered, and profiled rows evaluate all of them, predicates must be free of
+ * side effects and must not rely on an earlier predicate of the chain, for example one checking
+ * for null. A predicate that throws while a row is profiled is recorded as not passing for that
+ * row.
+ */
+public final class PredicateChain {
+    /**
+     * Average number of rows per profiled row, a power of two.
+     */
+    public static final int SAMPLE_INTERVAL = 64;
+    /**
+     * Number of consecutive rows profiled together by {@link #filter(double[][], int, int, int[])}.
+     */
+    public static final int PROFILE_BLOCK = 64;
+    private static final double MIN_IMPROVEMENT = 0.9;
+
+    /**
+     * How the predicates of a chain are combined.
+     */
+    public enum Operator {
+        AND, OR
+    }
+
+    /**
+     * A chain compiled in a given order. Implemented by the generated classes, the arguments are
+     * passed in the order of the variable set of the chain and predicates are numbered in the order
+     * of the function strings.
+     */
+    public interface Compiled {
+
+        boolean test(Object[] args);
+
+        default boolean test(double[] args) {
+            throw new UnsupportedOperationException();
+        }
+
+        boolean testPredicate(int predicate, Object[] args);
+
+        /**
+         * Writes the index of every row from (inclusive) to to (exclusive) that passes the chain into
+         * selected, starting at count.
+         *
+         * @return count plus the number of rows written.
+         */
+        default int filter(double[][] columns, int from, int to, int[] selected, int count) {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @return the number of rows from (inclusive) to to (exclusive) that pass the predicate.
+         */
+        default int countPredicate(int predicate, double[][] columns, int from, int to) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final Operator operator;
+    private final List<FunctionDeclaration> declarations;
+    private final Map<String, String> parameterTypes;
+    private final List<String> functionStrings;
+    private final LinkedHashSet<String> variableSet;
+    private final boolean doubleParameters;
+    private final int reorderInterval;
+    private final AtomicLong filteredRows = new AtomicLong();
+    private final AtomicBoolean reordering = new AtomicBoolean();
+    private final Object compileLock = new Object();
+    // Guarded by this.
+    private final double[] evaluations;
+    private final double[] passes;
+    private final double[] nanos;
+    private long profiledRows;
+    private volatile Compiled compiled;
+    private volatile int[] order;
+
+    PredicateChain(Operator operator, List<FunctionDeclaration> declarations, Map<String, String> parameterTypes, int reorderInterval) {
+        this.operator = operator;
+        this.declarations = declarations;
+        this.parameterTypes = parameterTypes;
+        this.reorderInterval = reorderInterval;
+        List<String> strings = new ArrayList<>(declarations.size());
+        for (FunctionDeclaration declaration : declarations) {
+            strings.add(declaration.getFunctionString());
+        }
+        this.functionStrings = Collections.unmodifiableList(strings);
+        this.variableSet = new LinkedHashSet<>(parameterTypes.keySet());
+        boolean allDoubles = true;
+        for (String type : parameterTypes.values()) {
+            allDoubles &= FunctionParser.getValueType(type).equals("double");
+        }
+        this.doubleParameters = allDoubles;
+        this.evaluations = new double[declarations.size()];
+        this.passes = new double[declarations.size()];
+        this.nanos = new double[declarations.size()];
+        int[] initial = new int[declarations.size()];
+        for (int i = 0; i < initial.length; i++) {
+            initial[i] = i;
+        }
+        this.compiled = FunctionCompiler.compilePredicateChain(operator, declarations, parameterTypes, initial);
+        this.order = initial;
+    }
+
+    /**
+     * Evaluates the chain for one row.
+     *
+     * @param args the arguments, in the order of the variable set.
+     * @return whether the row passes the chain.
+     */
+    public boolean test(Object[] args) {
+        Compiled current = compiled;
+        if ((ThreadLocalRandom.current().nextInt() & (SAMPLE_INTERVAL - 1)) == 0) {
+            profile(current, args);
+        }
+        return current.test(args);
+    }
+
+    /**
+     * Evaluates the chain for one row without boxing. Only available for chains whose parameters
+     * are all doubles.
+     *
+     * @param args the arguments, in the order of the variable set.
+     * @return whether the row passes the chain.
+     * @throws IllegalStateException if a parameter of the chain is not a double.
+     */
+    public boolean test(double[] args) {
+        checkDoubleParameters();
+        Compiled current = compiled;
+        if ((ThreadLocalRandom.current().nextInt() & (SAMPLE_INTERVAL - 1)) == 0) {
+            Object[] boxed = new Object[args.length];
+            for (int i = 0; i < args.length; i++) {
+                boxed[i] = args[i];
+            }
+            profile(current, boxed);
+        }
+        return current.test(args);
+    }
+
+    /**
+     * Evaluates the chain for every row from (inclusive) to to (exclusive), reading the i-th
+     * argument of a row from columns[i], and writes the indexes of the rows that pass into selected.
+     * Only available for chains whose parameters are all doubles.
+     *
+     * @param columns  one array per parameter, in the order of the variable set
+     * @param from     the first row to evaluate
+     * @param to       the row after the last row to evaluate
+     * @param selected receives the indexes of the rows that pass, in increasing order, must have
+     *                 room for to - from indexes
+     * @return the number of rows that pass
+     * @throws IllegalStateException if a parameter of the chain is not a double.
+     */
+    public int filter(double[][] columns, int from, int to, int[] selected) {
+        checkDoubleParameters();
+        Compiled current = compiled;
+        long period = (long) SAMPLE_INTERVAL * PROFILE_BLOCK;
+        long seen = filteredRows.getAndAdd(to - from);
+        long blocks = (seen + to - from) / period - seen / period;
+        if (blocks > 0) {
+            profile(current, columns, from, (int) Math.min(to, from + blocks * PROFILE_BLOCK));
+        }
+        return current.filter(columns, from, to, selected, 0);
+    }
+
+    /**
+     * Sorts the predicates by their measured cost and selectivity now, and recompiles the chain
+     * before returning if the expected cost per row drops by at least a tenth.
+     *
+     * @return whether the order of the predicates changed.
+     */
+    public boolean reorder() {
+        synchronized (compileLock) {
+            int[] current = order;
+            int[] candidate;
+            synchronized (this) {
+                candidate = rank(current);
+                for (int i = 0; i < evaluations.length; i++) {
+                    evaluations[i] /= 2;
+                    passes[i] /= 2;
+                    nanos[i] /= 2;
+                }
+                profiledRows = 0;
+            }
+            if (candidate == null) {
+                return false;
+            }
+            compiled = FunctionCompiler.compilePredicateChain(operator, declarations, parameterTypes, candidate);
+            order = candidate;
+            return true;
+        }
+    }
+
+    /**
+     * @return the function strings of the predicates, in the order they were given.
+     */
+    public List<String> getFunctionStrings() {
+        return functionStrings;
+    }
+
+    /**
+     * @return the function strings of the predicates, in the order they are currently evaluated.
+     */
+    public List<String> getOrder() {
+        List<String> current = new ArrayList<>(order.length);
+        for (int predicate : order) {
+            current.add(functionStrings.get(predicate));
+        }
+        return current;
+    }
+
+    /**
+     * @return the names of the arguments, in the order they are passed.
+     */
+    public LinkedHashSet<String> getVariableSet() {
+        return variableSet;
+    }
+
+    public Operator getOperator() {
+        return operator;
+    }
+
+    /**
+     * @param predicate the index of the predicate in {@link #getFunctionStrings()}.
+     * @return the fraction of the profiled rows that passed the predicate, or NaN if no row was
+     *         profiled since the last reordering.
+     */
+    public synchronized double getSelectivity(int predicate) {
+        return passes[predicate] / evaluations[predicate];
+    }
+
+    /**
+     * @param predicate the index of the predicate in {@link #getFunctionStrings()}.
+     * @return the average time the predicate took on the profiled rows, in nanoseconds, or NaN if
+     *         no row was profiled since the last reordering.
+     */
+    public synchronized double getCostNanos(int predicate) {
+        return nanos[predicate] / evaluations[predicate];
+    }
+
+    @Override
+    public String toString() {
+        return "PredicateChain[" + operator + ", " + getOrder() + "]";
+    }
+
+    private void checkDoubleParameters() {
+        if (!doubleParameters) {
+            throw new IllegalStateException("Only available for chains whose parameters are all doubles: " + this);
+        }
+    }
+
+    private void profile(Compiled current, Object[] args) {
+        long[] rowPasses = new long[declarations.size()];
+        long[] rowNanos = new long[declarations.size()];
+        for (int p = 0; p < rowPasses.length; p++) {
+            long start = System.nanoTime();
+            try {
+                rowPasses[p] = current.testPredicate(p, args) ? 1 : 0;
+            } catch (RuntimeException e) {
+                rowPasses[p] = 0;
+            }
+            rowNanos[p] = System.nanoTime() - start;
+        }
+        record(rowPasses, rowNanos, 1);
+    }
+
+    private void profile(Compiled current, double[][] columns, int from, int to) {
+        long[] blockPasses = new long[declarations.size()];
+        long[] blockNanos = new long[declarations.size()];
+        for (int p = 0; p < blockPasses.length; p++) {
+            long start = System.nanoTime();
+            try {
+                blockPasses[p] = current.countPredicate(p, columns, from, to);
+            } catch (RuntimeException e) {
+                blockPasses[p] = countRows(current, p, columns, from, to);
+            }
+            blockNanos[p] = System.nanoTime() - start;
+        }
+        record(blockPasses, blockNanos, to - from);
+    }
+
+    /**
+     * Counts the rows that pass a predicate one at a time, for blocks in which it throws, so only
+     * the rows it throws for are recorded as not passing.
+     */
+    private static long countRows(Compiled current, int predicate, double[][] columns, int from, int to) {
+        long count = 0;
+        Object[] row = new Object[columns.length];
+        for (int i = from; i < to; i++) {
+            for (int c = 0; c < columns.length; c++) {
+                row[c] = columns[c][i];
+            }
+            try {
+                count += current.testPredicate(predicate, row) ? 1 : 0;
+            } catch (RuntimeException e) {
+                // Recorded as not passing.
+            }
+        }
+        return count;
+    }
+
+    private void record(long[] newPasses, long[] newNanos, int rows) {
+        boolean due;
+        synchronized (this) {
+            for (int p = 0; p < newPasses.length; p++) {
+                evaluations[p] += rows;
+                passes[p] += newPasses[p];
+                nanos[p] += newNanos[p];
+            }
+            profiledRows += rows;
+            due = reorderInterval > 0 && profiledRows >= reorderInterval;
+        }
+        if (due && reordering.compareAndSet(false, true)) {
+            CompletableFuture.runAsync(() -> {
+                try {
+                    reorder();
+                } finally {
+                    reordering.set(false);
+                }
+            }, FunctionParser.getCompilationExecutor());
+        }
+    }
+
+    /**
+     * Returns the predicates sorted by cost divided by the probability of ending the evaluation,
+     * or null if a predicate was not profiled or the sorted order is not cheaper enough than the
+     * current one.
+     */
+    private int[] rank(int[] current) {
+        double[] costs = new double[evaluations.length];
+        double[] endings = new double[evaluations.length];
+        for (int p = 0; p < costs.length; p++) {
+            if (evaluations[p] == 0) {
+                return null;
+            }
+            costs[p] = nanos[p] / evaluations[p];
+            double passing = passes[p] / evaluations[p];
+            endings[p] = operator == Operator.AND ? 1 - passing : passing;
+        }
+        Integer[] sorted = new Integer[costs.length];
+        for (int p = 0; p < sorted.length; p++) {
+            sorted[p] = current[p];
+        }
+        Arrays.sort(sorted, Comparator.comparingDouble(p -> endings[p] == 0 ? Double.POSITIVE_INFINITY : costs[p] / endings[p]));
+        int[] candidate = new int[sorted.length];
+        for (int p = 0; p < candidate.length; p++) {
+            candidate[p] = sorted[p];
+        }
+        if (Arrays.equals(candidate, current)
+                || expectedCost(candidate, costs, endings) > MIN_IMPROVEMENT * expectedCost(current, costs, endings)) {
+            return null;
+        }
+        return candidate;
+    }
+
+    private static double expectedCost(int[] order, double[] costs, double[] endings) {
+        double cost = 0;
+        double reached = 1;
+        for (int p : order) {
+            cost += reached * costs[p];
+            reached *= 1 - endings[p];
+        }
+        return cost;
+    }
+}
@@ -0,0 +1,576 @@
+package com.alfredvc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates a ParsedFunction for every record of a CSV or fixed width binary file, streaming the
+ * results to a channel.
+ * <p>
+ * The variables of the function, in the order of {@link ParsedFunction#getVariableSet()}, are read
+ * from the columns of the same name when a CSV file has a header, and otherwise from the first
+ * columns of every record in order. The file is memory mapped one segment at a time and numbers
+ * are parsed straight from the mapped bytes into reused column arrays, which are evaluated in
+ * chunks with {@link ParsedFunction#evaluateToDouble(double[][], double[], int, int)}, so memory
+ * use does not depend on the size of the file. Results are written in the order of the records:
+ * one per line for CSV input, and as 8 byte doubles in the byte order of the input for binary
+ * input.
+ * <p>
+ * In parallel mode the segments are evaluated on an executor. At most parallelism segments are in
+ * flight at a time, and their results are buffered until they can be written in order.
+ * <p>
+ * For example:
+ * <pre>
+ * ParsedFunction f = FunctionParser.fromString("double(double x, y)-&gt;x * y");
+ * try (FileChannel out = FileChannel.open(output, CREATE, WRITE)) {
+ *     long rows = StreamingEvaluator.csv(',', true).evaluateToDouble(f, input, out);
+ * }
+ * </pre>
+ */
+public final class StreamingEvaluator {
+    /**
+     * Number of records evaluated at a time.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+    /**
+     * Number of bytes mapped at a time, and evaluated by a single task in parallel mode.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+    /**
+     * Longest result of Double.toString, plus the line separator.
+     */
+    private static final int MAXIMUM_TEXT_LENGTH = 25;
+    private static final long MAXIMUM_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /**
+     * Types of the fields of binary records.
+     */
+    public enum FieldType {
+        INT(4), LONG(8), FLOAT(4), DOUBLE(8);
+
+        final int size;
+
+        FieldType(int size) {
+            this.size = size;
+        }
+    }
+
+    private final byte delimiter;
+    private final boolean header;
+    private final ByteOrder order;
+    private final FieldType[] fields;
+    private final int[] fieldOffsets;
+    private final int recordSize;
+    private final Executor executor;
+    private final int parallelism;
+    private final int chunkSize;
+    private final int segmentSize;
+
+    private StreamingEvaluator(byte delimiter, boolean header, ByteOrder order, FieldType[] fields, Executor executor,
+                               int parallelism, int chunkSize, int segmentSize) {
+        this.delimiter = delimiter;
+        this.header = header;
+        this.order = order;
+        this.fields = fields;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+        this.segmentSize = segmentSize;
+        int size = 0;
+        fieldOffsets = new int[fields == null ? 0 : fields.length];
+        for (int i = 0; i < fieldOffsets.length; i++) {
+            fieldOffsets[i] = size;
+            size += fields[i].size;
+        }
+        recordSize = size;
+    }
+
+    /**
+     * Returns an evaluator for CSV files. Fields must be unquoted numbers in any format accepted by
+     * Double.parseDouble, optionally surrounded by spaces, and lines end with LF or CRLF. Blank
+     * lines are skipped.
+     *
+     * @param delimiter separates the fields of a line, must be an ASCII character.
+     * @param header    whether the first line holds the names of the columns.
+     * @return a sequential CSV evaluator.
+     */
+    public static StreamingEvaluator csv(char delimiter, boolean header) {
+        if (delimiter >= 0x80 || delimiter == '\n' || delimiter == '\r' || delimiter == ' ') {
+            throw new IllegalArgumentException("Unsupported delimiter " + delimiter);
+        }
+        return new StreamingEvaluator((byte) delimiter, header, null, null, null, 1, DEFAULT_CHUNK_SIZE, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Returns an evaluator for files of fixed width binary records.
+     *
+     * @param order  the byte order of the fields and of the written results.
+     * @param fields the types of the fields of a record, in order.
+     * @return a sequential binary evaluator.
+     */
+    public static StreamingEvaluator binary(ByteOrder order, FieldType... fields) {
+        if (order == null || fields.length == 0) {
+            throw new IllegalArgumentException("A byte order and at least one field are required");
+        }
+        return new StreamingEvaluator((byte) 0, false, order, fields.clone(), null, 1, DEFAULT_CHUNK_SIZE, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Returns a copy of this evaluator that evaluates segments of the file on the given executor.
+     *
+     * @param executor    runs the segments.
+     * @param parallelism the number of segments evaluated at the same time.
+     * @return a parallel evaluator.
+     */
+    public StreamingEvaluator parallel(Executor executor, int parallelism) {
+        if (executor == null || parallelism < 1) {
+            throw new IllegalArgumentException("An executor and a positive parallelism are required");
+        }
+        return new StreamingEvaluator(delimiter, header, order, fields, executor, parallelism, chunkSize, segmentSize);
+    }
+
+    /**
+     * @param chunkSize the number of records evaluated at a time.
+     * @return a copy of this evaluator with the given chunk size.
+     */
+    public StreamingEvaluator withChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        return new StreamingEvaluator(delimiter, header, order, fields, executor, parallelism, chunkSize, segmentSize);
+    }
+
+    /**
+     * @param segmentSize the number of bytes mapped at a time, which must hold at least one line or
+     *                    record.
+     * @return a copy of this evaluator with the given segment size.
+     */
+    public StreamingEvaluator withSegmentSize(int segmentSize) {
+        if (segmentSize < Math.max(1, recordSize)) {
+            throw new IllegalArgumentException("Segment size must hold a record: " + segmentSize);
+        }
+        return new StreamingEvaluator(delimiter, header, order, fields, executor, parallelism, chunkSize, segmentSize);
+    }
+
+    /**
+     * Evaluates the function for every record of the input file and writes the results to the
+     * output channel.
+     *
+     * @param function the function, whose parameters must all be doubles.
+     * @param input    the CSV or binary file.
+     * @param output   receives the results, in the order of the records.
+     * @return the number of records evaluated.
+     * @throws IOException              if the input cannot be read, is malformed, or the output cannot
+     *                                  be written.
+     * @throws IllegalArgumentException if the function does not take doubles, or a variable has no
+     *                                  column.
+     */
+    public long evaluateToDouble(ParsedFunction<?> function, Path input, WritableByteChannel output) throws IOException {
+        ArgumentLayout layout = ArgumentLayout.of(function);
+        if (!layout.isPrimitive()) {
+            throw new IllegalArgumentException("Streaming evaluation requires double parameters: " + function.getFunctionString());
+        }
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long start = 0;
+            int[] variableOfField;
+            if (header) {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                start = readLine(channel, 0, line);
+                variableOfField = mapHeader(layout, new String(line.toByteArray(), StandardCharsets.UTF_8));
+            } else {
+                if (fields != null && fields.length < layout.size()) {
+                    throw new IllegalArgumentException("Records have " + fields.length + " fields but "
+                            + function.getFunctionString() + " has " + layout.size() + " variables");
+                }
+                variableOfField = new int[layout.size()];
+                for (int i = 0; i < variableOfField.length; i++) {
+                    variableOfField[i] = i;
+                }
+            }
+            if (executor == null) {
+                return evaluateRange(function, channel, start, channel.size(), variableOfField, buffer -> {
+                    while (buffer.hasRemaining()) {
+                        output.write(buffer);
+                    }
+                });
+            }
+            return evaluateParallel(function, channel, start, variableOfField, output);
+        }
+    }
+
+    private int[] mapHeader(ArgumentLayout layout, String line) {
+        String[] names = line.split(Pattern.quote(String.valueOf((char) delimiter)), -1);
+        int[] variableOfField = new int[names.length];
+        boolean[] found = new boolean[layout.size()];
+        List<String> variables = layout.getNames();
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim();
+            if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\"")) {
+                name = name.substring(1, name.length() - 1);
+            }
+            variableOfField[i] = variables.indexOf(name);
+            if (variableOfField[i] >= 0) {
+                found[variableOfField[i]] = true;
+            }
+        }
+        for (int i = 0; i < found.length; i++) {
+            if (!found[i]) {
+                throw new IllegalArgumentException("No column " + variables.get(i) + " in header " + Arrays.toString(names));
+            }
+        }
+        return variableOfField;
+    }
+
+    private long evaluateParallel(ParsedFunction<?> function, FileChannel channel, long start, int[] variableOfField,
+                                  WritableByteChannel output) throws IOException {
+        long size = channel.size();
+        Deque<CompletableFuture<Segment>> inFlight = new ArrayDeque<>();
+        long rows = 0;
+        try {
+            long position = start;
+            while (position < size) {
+                long from = position;
+                long to = segmentEnd(channel, from, size);
+                inFlight.add(CompletableFuture.supplyAsync(() -> {
+                    Segment segment = new Segment();
+                    try {
+                        segment.rows = evaluateRange(function, channel, from, to, variableOfField,
+                                buffer -> segment.write(buffer.array(), buffer.position(), buffer.remaining()));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return segment;
+                }, executor));
+                position = to;
+                if (inFlight.size() >= parallelism) {
+                    rows += write(inFlight.remove(), output);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                rows += write(inFlight.remove(), output);
+            }
+            return rows;
+        } finally {
+            // Segments still running after a failure must not outlive the channel.
+            for (CompletableFuture<Segment> segment : inFlight) {
+                segment.handle((result, error) -> null).join();
+            }
+        }
+    }
+
+    private static long write(CompletableFuture<Segment> future, WritableByteChannel output) throws IOException {
+        Segment segment;
+        try {
+            segment = future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        ByteBuffer buffer = segment.toByteBuffer();
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+        }
+        return segment.rows;
+    }
+
+    /**
+     * Returns the end of the segment starting at the given position: a whole number of records,
+     * or the end of the line the segment size falls into.
+     */
+    private long segmentEnd(FileChannel channel, long position, long size) throws IOException {
+        if (fields != null) {
+            return Math.min(size, position + Math.max(recordSize, segmentSize / recordSize * recordSize));
+        }
+        if (position + segmentSize >= size) {
+            return size;
+        }
+        return readLine(channel, position + segmentSize, null);
+    }
+
+    /**
+     * Reads from the given position up to the next line feed, copying the bytes before it into
+     * line if it is not null.
+     *
+     * @return the position after the line feed, or the size of the file if there is none.
+     */
+    private long readLine(FileChannel channel, long position, ByteArrayOutputStream line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long offset = position;
+        while (channel.read(buffer, offset) > 0) {
+            buffer.flip();
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    if (line != null) {
+                        line.write(buffer.array(), 0, i);
+                    }
+                    return offset + i + 1;
+                }
+            }
+            if (line != null) {
+                if (line.size() + buffer.limit() > segmentSize) {
+                    throw new IOException("Line longer than " + segmentSize + " bytes at byte " + position);
+                }
+                line.write(buffer.array(), 0, buffer.limit());
+            }
+            offset += buffer.limit();
+            buffer.clear();
+        }
+        return channel.size();
+    }
+
+    private long evaluateRange(ParsedFunction<?> function, FileChannel channel, long from, long to, int[] variableOfField,
+                               Sink sink) throws IOException {
+        int variables = 0;
+        for (int variable : variableOfField) {
+            variables = Math.max(variables, variable + 1);
+        }
+        double[][] columns = new double[variables][chunkSize];
+        double[] results = new double[chunkSize];
+        ByteBuffer out = ByteBuffer.allocate(chunkSize * (fields != null ? 8 : MAXIMUM_TEXT_LENGTH));
+        if (order != null) {
+            out.order(order);
+        }
+        long rows = 0;
+        long position = from;
+        while (position < to) {
+            long size = Math.min(segmentSize, to - position);
+            boolean last = position + size == to;
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            int read;
+            while ((read = fields != null ? readRecords(window, variableOfField, columns)
+                    : readLines(window, position, last, variableOfField, columns)) > 0) {
+                function.evaluateToDouble(columns, results, 0, read);
+                out.clear();
+                for (int i = 0; i < read; i++) {
+                    if (fields != null) {
+                        out.putDouble(results[i]);
+                    } else {
+                        String text = Double.toString(results[i]);
+                        for (int c = 0; c < text.length(); c++) {
+                            out.put((byte) text.charAt(c));
+                        }
+                        out.put((byte) '\n');
+                    }
+                }
+                out.flip();
+                sink.write(out);
+                rows += read;
+            }
+            if (window.position() == 0) {
+                throw new IOException((fields != null ? "Truncated record" : "Line longer than " + segmentSize + " bytes")
+                        + " at byte " + position);
+            }
+            position += window.position();
+        }
+        return rows;
+    }
+
+    /**
+     * Reads up to a chunk of whole records from the window into the columns.
+     */
+    private int readRecords(ByteBuffer window, int[] variableOfField, double[][] columns) {
+        window.order(order);
+        int count = Math.min(chunkSize, window.remaining() / recordSize);
+        int position = window.position();
+        for (int row = 0; row < count; row++) {
+            for (int field = 0; field < variableOfField.length; field++) {
+                int variable = variableOfField[field];
+                if (variable < 0) {
+                    continue;
+                }
+                int offset = position + fieldOffsets[field];
+                switch (fields[field]) {
+                    case INT:
+                        columns[variable][row] = window.getInt(offset);
+                        break;
+                    case LONG:
+                        columns[variable][row] = window.getLong(offset);
+                        break;
+                    case FLOAT:
+                        columns[variable][row] = window.getFloat(offset);
+                        break;
+                    default:
+                        columns[variable][row] = window.getDouble(offset);
+                        break;
+                }
+            }
+            position += recordSize;
+        }
+        window.position(position);
+        return count;
+    }
+
+    /**
+     * Reads up to a chunk of lines from the window into the columns. A line without a line feed is
+     * only read at the end of the range, otherwise it is left for the next window.
+     */
+    private int readLines(ByteBuffer window, long base, boolean last, int[] variableOfField, double[][] columns) throws IOException {
+        int limit = window.limit();
+        int position = window.position();
+        int rows = 0;
+        while (rows < chunkSize && position < limit) {
+            int end = position;
+            while (end < limit && window.get(end) != '\n') {
+                end++;
+            }
+            if (end == limit && !last) {
+                break;
+            }
+            int contentEnd = end > position && window.get(end - 1) == '\r' ? end - 1 : end;
+            if (contentEnd > position) {
+                readLine(window, base, position, contentEnd, variableOfField, columns, rows++);
+            }
+            position = Math.min(end + 1, limit);
+        }
+        window.position(position);
+        return rows;
+    }
+
+    private void readLine(ByteBuffer window, long base, int from, int to, int[] variableOfField, double[][] columns,
+                          int row) throws IOException {
+        int field = 0;
+        int start = from;
+        while (true) {
+            int end = start;
+            while (end < to && window.get(end) != delimiter) {
+                end++;
+            }
+            if (field < variableOfField.length && variableOfField[field] >= 0) {
+                columns[variableOfField[field]][row] = parseNumber(window, start, end, base);
+            }
+            field++;
+            if (end >= to) {
+                break;
+            }
+            start = end + 1;
+        }
+        if (field < variableOfField.length) {
+            throw new IOException("Line with " + field + " fields where " + variableOfField.length + " are expected at byte " + (base + from));
+        }
+    }
+
+    /**
+     * Parses a decimal number without creating a String. Numbers of up to 18 significant digits
+     * whose value is an exact double times an exact power of ten are computed with a single
+     * rounding, which is correctly rounded; anything else goes through Double.parseDouble.
+     */
+    static double parseNumber(ByteBuffer buffer, int from, int to, long base) throws IOException {
+        while (from < to && buffer.get(from) == ' ') {
+            from++;
+        }
+        while (to > from && buffer.get(to - 1) == ' ') {
+            to--;
+        }
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean fraction = false;
+        for (; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b == '.' && !fraction) {
+                fraction = true;
+                continue;
+            }
+            if (b < '0' || b > '9') {
+                break;
+            }
+            anyDigit = true;
+            if (mantissa != 0 || b != '0') {
+                if (++digits > 18) {
+                    return parseSlowly(buffer, from, to, base);
+                }
+                mantissa = mantissa * 10 + (b - '0');
+            }
+            if (fraction) {
+                exponent--;
+            }
+        }
+        if (anyDigit && i < to && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                negativeExponent = buffer.get(i) == '-';
+                i++;
+            }
+            int value = 0;
+            int start = i;
+            for (; i < to && buffer.get(i) >= '0' && buffer.get(i) <= '9' && value < 1000; i++) {
+                value = value * 10 + (buffer.get(i) - '0');
+            }
+            if (i == start) {
+                return parseSlowly(buffer, from, to, base);
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        if (!anyDigit || i != to) {
+            return parseSlowly(buffer, from, to, base);
+        }
+        if (mantissa == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+        if (mantissa > MAXIMUM_EXACT_MANTISSA || exponent < -22 || exponent > 22) {
+            return parseSlowly(buffer, from, to, base);
+        }
+        double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        return negative ? -value : value;
+    }
+
+    private static double parseSlowly(ByteBuffer buffer, int from, int to, long base) throws IOException {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        String text = new String(bytes, StandardCharsets.ISO_8859_1);
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed number '" + text + "' at byte " + (base + from), e);
+        }
+    }
+
+    private interface Sink {
+        void write(ByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * Results of a segment evaluated in parallel, waiting to be written.
+     */
+    private static final class Segment extends ByteArrayOutputStream {
+        long rows;
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
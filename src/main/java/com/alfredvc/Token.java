@@ -0,0 +1,45 @@
+package com.alfredvc;
+
+/**
+ * A token of a function string, produced by {@link FunctionLexer}. Tokens cover the whole string,
+ * including whitespace and comments, so concatenating their text gives back the original string.
+ */
+final class Token {
+
+    enum Kind {
+        IDENTIFIER,
+        NUMBER,
+        STRING,
+        CHARACTER,
+        OPERATOR,
+        WHITESPACE,
+        COMMENT
+    }
+
+    final Kind kind;
+    final String text;
+    final int start;
+
+    Token(Kind kind, String text, int start) {
+        this.kind = kind;
+        this.text = text;
+        this.start = start;
+    }
+
+    int end() {
+        return start + text.length();
+    }
+
+    boolean is(String operator) {
+        return kind == Kind.OPERATOR && text.equals(operator);
+    }
+
+    boolean isSignificant() {
+        return kind != Kind.WHITESPACE && kind != Kind.COMMENT;
+    }
+
+    @Override
+    public String toString() {
+        return kind + "[" + text + "]";
+    }
+}
@@ -0,0 +1,131 @@
+package com.alfredvc;
+
+import org.junit.Test;
+
+import java.awt.Point;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for ArgumentLayout and ArgumentBuffer.
+ */
+public class ArgumentLayoutTest {
+
+    @Test
+    public void testSlots() {
+        ArgumentLayout layout = ArgumentLayout.of(FunctionParser.fromString("double(Double x, y, z)->x + y * z"));
+        assertThat(layout.slot("x"), is(0));
+        assertThat(layout.slot("z"), is(2));
+        assertThat(layout.name(1), is("y"));
+        assertThat(layout.getNames(), is(equalTo(Arrays.asList("x", "y", "z"))));
+        assertThat(layout.isPrimitive(), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownVariable() {
+        ArgumentLayout.of(FunctionParser.fromString("double(Double x)->x")).slot("y");
+    }
+
+    @Test
+    public void testPrimitiveBufferBySlotAndName() {
+        ParsedFunction f = FunctionParser.fromString("double(double x, y)->x - y");
+        ArgumentLayout layout = ArgumentLayout.of(f);
+        assertThat(layout.isPrimitive(), is(true));
+        ArgumentBuffer arguments = layout.newBuffer();
+        arguments.set(layout.slot("y"), 1.0).set("x", 5.0);
+        assertThat(f.evaluateToDouble(arguments), is(4.0));
+        arguments.set("y", Integer.valueOf(7));
+        assertThat(f.evaluateToDouble(arguments), is(-2.0));
+    }
+
+    @Test
+    public void testObjectBufferFromMap() {
+        ParsedFunction f = FunctionParser.fromString("boolean(java.awt.Point p, Integer limit)->p.x + p.y > limit");
+        ArgumentBuffer arguments = ArgumentLayout.of(f).newBuffer();
+        Map<String, Object> values = new HashMap<>();
+        values.put("limit", 4);
+        values.put("p", new Point(2, 3));
+        assertThat(f.evaluateToBoolean(arguments.setAll(values)), is(true));
+        values.put("limit", 5);
+        assertThat(f.evaluateToBoolean(arguments.setAll(values)), is(false));
+    }
+
+    @Test
+    public void testObjectReturnTypeWithPrimitiveLayout() {
+        ParsedFunction<String> f = FunctionParser.fromString("String(double x, y)->x + \":\" + y");
+        ArgumentBuffer arguments = ArgumentLayout.of(f).newBuffer().set(0, 1.5).set(1, 2.0);
+        assertThat(f.evaluate(arguments), is(equalTo("1.5:2.0")));
+    }
+
+    @Test
+    public void testIntegralLayout() {
+        ParsedFunction f = FunctionParser.fromString("long(long x, int n)->x << n");
+        ArgumentBuffer arguments = ArgumentLayout.of(f).newBuffer().set("x", 3L).set("n", 2);
+        assertThat(f.evaluateToLong(arguments), is(12L));
+        assertThat(f.evaluateToLong(arguments.set("n", 1.0)), is(6L));
+        Map<String, Object> values = new HashMap<>();
+        values.put("x", 5);
+        values.put("n", 1L);
+        assertThat(f.evaluateToLong(arguments.setAll(values)), is(10L));
+    }
+
+    @Test
+    public void testBoxedLayout() {
+        ParsedFunction f = FunctionParser.fromString("double(Double x, Integer k, Short s)->x * k + s");
+        ArgumentBuffer arguments = ArgumentLayout.of(f).newBuffer().set(0, 1.5).set(1, 3).set(2, 1);
+        assertThat(f.evaluateToDouble(arguments), is(5.5));
+        assertThat(f.evaluateToDouble(arguments.set(0, 2).set("k", Double.valueOf(2))), is(5.0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFractionForIntegralParameter() {
+        ArgumentLayout.of(FunctionParser.fromString("int(int n)->n")).newBuffer().set(0, 2.5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOverflowForIntParameter() {
+        ArgumentLayout.of(FunctionParser.fromString("int(Integer n)->n")).newBuffer().set("n", 1L << 40);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingValueInMap() {
+        ParsedFunction f = FunctionParser.fromString("double(double x, y)->x - y");
+        ArgumentLayout.of(f).newBuffer().setAll(new HashMap<String, Object>());
+    }
+
+    @Test
+    public void testReset() {
+        ParsedFunction<Object> f = FunctionParser.fromString("Object(Object o)->o");
+        ArgumentBuffer arguments = ArgumentLayout.of(f).newBuffer().set("o", "value");
+        assertThat(f.evaluate(arguments), is((Object) "value"));
+        assertThat(f.evaluate(arguments.reset()) == null, is(true));
+    }
+
+    @Test
+    public void testPrimitiveBufferDoesNotAllocate() {
+        ParsedFunction f = FunctionParser.fromString("double(double x, y, z, w)->x * y + z - w");
+        ArgumentLayout layout = ArgumentLayout.of(f);
+        int x = layout.slot("x");
+        int w = layout.slot("w");
+        ArgumentBuffer arguments = layout.newBuffer().set("y", 2.0).set("z", 1.0);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        double sum = 0;
+        for (int i = 0; i < 10000; i++) {
+            sum += f.evaluateToDouble(arguments.set(x, i).set(w, 1.0));
+        }
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000000; i++) {
+            sum += f.evaluateToDouble(arguments.set(x, i).set(w, 1.0));
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        assertThat(sum > 0, is(true));
+        assertThat("allocated " + allocated + " bytes", allocated < 64 * 1024, is(true));
+    }
+}
@@ -0,0 +1,196 @@
+package com.alfredvc;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.DoubleUnaryOperator;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for BytecodeCache.
+ */
+public class BytecodeCacheTest {
+    private static final String FUNCTION = "double(Double x,y)->x * y + 201";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("cache").toPath();
+        FunctionParser.setCacheEnabled(false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        BytecodeCache cache = FunctionParser.getBytecodeCache();
+        if (cache != null) {
+            cache.close();
+        }
+        FunctionParser.setBytecodeCache(null);
+        FunctionParser.setCacheEnabled(true);
+    }
+
+    private BytecodeCache reopen() throws IOException {
+        BytecodeCache previous = FunctionParser.getBytecodeCache();
+        if (previous != null) {
+            previous.close();
+        }
+        BytecodeCache cache = BytecodeCache.open(directory);
+        FunctionParser.setBytecodeCache(cache);
+        return cache;
+    }
+
+    @Test
+    public void testFunctionIsLoadedFromPackInLaterRun() throws IOException {
+        BytecodeCache first = reopen();
+        ParsedFunction compiled = FunctionParser.fromString(FUNCTION);
+        assertThat(first.getMissCount(), is(1L));
+        assertThat(first.size(), is(1));
+
+        BytecodeCache second = reopen();
+        ParsedFunction loaded = FunctionParser.fromString("  double (Double x, y) -> x * y + 201");
+        assertThat(second.getHitCount(), is(1L));
+        assertThat(loaded.getClass().getName(), is(compiled.getClass().getName()));
+        assertThat(loaded.getClass().getClassLoader() instanceof FunctionClassLoader, is(true));
+        assertThat(loaded.evaluateToDouble(new Object[]{2.0, 3.0}), is(207.0));
+        assertThat(loaded.getVariableSet(), is(equalTo(new LinkedHashSet<>(Arrays.asList("x", "y")))));
+        assertThat(loaded.getFunctionString(), is("  double (Double x, y) -> x * y + 201"));
+    }
+
+    @Test
+    public void testHiddenClassIsLoadedFromPackInLaterRun() throws IOException {
+        Assume.assumeTrue(HiddenClassDefiner.isSupported());
+        FunctionParser.setLoadingMode(LoadingMode.HIDDEN);
+        try {
+            BytecodeCache first = reopen();
+            FunctionParser.fromString(FUNCTION);
+            assertThat(first.getMissCount(), is(1L));
+
+            BytecodeCache second = reopen();
+            ParsedFunction loaded = FunctionParser.fromString(FUNCTION);
+            assertThat(second.getCorruptEntryCount(), is(0L));
+            assertThat(second.getHitCount(), is(1L));
+            assertThat(loaded.evaluateToDouble(new Object[]{2.0, 3.0}), is(207.0));
+            assertThat(reopen().size(), is(1));
+        } finally {
+            FunctionParser.setLoadingMode(LoadingMode.SHARED);
+        }
+    }
+
+    @Test
+    public void testTargetInterfaceIsPartOfKey() throws IOException {
+        BytecodeCache cache = reopen();
+        FunctionParser.fromString("double(double x)->x + 202");
+        DoubleUnaryOperator f = FunctionParser.fromString("double(double x)->x + 202", DoubleUnaryOperator.class);
+        assertThat(cache.getMissCount(), is(2L));
+        reopen();
+        f = FunctionParser.fromString("double(double x)->x + 202", DoubleUnaryOperator.class);
+        assertThat(f.applyAsDouble(1.0), is(203.0));
+        assertThat(FunctionParser.getBytecodeCache().getHitCount(), is(1L));
+    }
+
+    @Test
+    public void testCorruptEntryIsRecompiled() throws IOException {
+        reopen();
+        FunctionParser.fromString(FUNCTION);
+        FunctionParser.getBytecodeCache().close();
+        FunctionParser.setBytecodeCache(null);
+
+        Path pack = directory.resolve(BytecodeCache.PACK_FILE_NAME);
+        try (RandomAccessFile file = new RandomAccessFile(pack.toFile(), "rw")) {
+            long position = file.length() - 10;
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xFF);
+        }
+
+        BytecodeCache corrupt = reopen();
+        assertThat(corrupt.getCorruptEntryCount(), is(1L));
+        assertThat(corrupt.size(), is(0));
+        ParsedFunction recompiled = FunctionParser.fromString(FUNCTION);
+        assertThat(recompiled.evaluateToDouble(new Object[]{2.0, 3.0}), is(207.0));
+        assertThat(corrupt.getMissCount(), is(1L));
+
+        BytecodeCache repaired = reopen();
+        assertThat(repaired.getCorruptEntryCount(), is(0L));
+        FunctionParser.fromString(FUNCTION);
+        assertThat(repaired.getHitCount(), is(1L));
+    }
+
+    @Test
+    public void testPackWithOtherFormatIsReset() throws IOException {
+        reopen();
+        FunctionParser.fromString(FUNCTION);
+        FunctionParser.getBytecodeCache().close();
+        FunctionParser.setBytecodeCache(null);
+
+        try (RandomAccessFile file = new RandomAccessFile(directory.resolve(BytecodeCache.PACK_FILE_NAME).toFile(), "rw")) {
+            file.seek(4);
+            file.writeInt(-1);
+        }
+
+        BytecodeCache reset = reopen();
+        assertThat(reset.size(), is(0));
+        assertThat(FunctionParser.fromString(FUNCTION).evaluateToDouble(new Object[]{1.0, 1.0}), is(202.0));
+        assertThat(reopen().size(), is(1));
+    }
+
+    @Test
+    public void testStoredFunctionIsNotAppendedAgain() throws IOException {
+        BytecodeCache cache = reopen();
+        ParsedFunction compiled = FunctionParser.fromString(FUNCTION);
+        long size = Files.size(cache.getPackFile());
+        cache.store(FUNCTION, null, compiled.getClass().getName(), compiled.getVariableSet(), new byte[16]);
+        assertThat(Files.size(cache.getPackFile()), is(size));
+    }
+
+    @Test
+    public void testPackIsCompactedOnOpen() throws IOException {
+        Path pack = directory.resolve(BytecodeCache.PACK_FILE_NAME);
+        // Opened before the function is stored, as by another process.
+        BytecodeCache other = BytecodeCache.open(directory);
+        BytecodeCache first = reopen();
+        FunctionParser.fromString(FUNCTION);
+        first.close();
+
+        FunctionParser.setBytecodeCache(other);
+        FunctionParser.fromString(FUNCTION);
+        assertThat(other.getMissCount(), is(1L));
+        long withDuplicate = Files.size(pack);
+
+        BytecodeCache compacted = reopen();
+        assertThat(Files.size(pack) < withDuplicate, is(true));
+        assertThat(compacted.size(), is(1));
+        assertThat(FunctionParser.fromString(FUNCTION).evaluateToDouble(new Object[]{2.0, 3.0}), is(207.0));
+        assertThat(compacted.getHitCount(), is(1L));
+    }
+
+    @Test
+    public void testBatchLoadsFromPack() throws IOException {
+        reopen();
+        FunctionParser.fromString(FUNCTION);
+        BytecodeCache second = reopen();
+        List<ParsedFunction<Object>> functions = FunctionParser.fromStrings(Arrays.asList(FUNCTION, "double(Double x)->x + 203"));
+        assertThat(second.getHitCount(), is(1L));
+        assertThat(functions.get(0).evaluateToDouble(new Object[]{2.0, 3.0}), is(207.0));
+        assertThat(functions.get(1).evaluateToDouble(new Object[]{1.0}), is(204.0));
+    }
+}
@@ -0,0 +1,143 @@
+package com.alfredvc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for ExpressionOptimizer.
+ */
+public class ExpressionOptimizerTest {
+    private static final double[] VALUES = {-3.5, -0.0, 0.0, 1.0, 2.0, 7.25, Double.NaN, Double.POSITIVE_INFINITY};
+
+    @After
+    public void tearDown() {
+        FunctionParser.setOptimizationEnabled(false);
+        FunctionParser.setCacheEnabled(true);
+    }
+
+    private static String optimize(String functionString) {
+        ExpressionOptimizer.Result result = ExpressionOptimizer.optimize(FunctionDeclaration.parse(functionString));
+        return result == null ? null : result.prelude + result.expression;
+    }
+
+    @Test
+    public void testConstantFolding() {
+        assertThat(optimize("double(double r)->2*3.5*r"), is(equalTo("7.0 * r")));
+        assertThat(optimize("double(double r)->2 * Math.PI * r"), is(equalTo("6.283185307179586 * r")));
+        assertThat(optimize("double(double x)->x + Math.sqrt(16) - (double) 3 / 2"), is(equalTo("(x + 4.0) - 1.5")));
+        assertThat(optimize("int(int x)->x + 7 / 2"), is(equalTo("x + 3")));
+        assertThat(optimize("String(String s)->s + 1 * 2"), is(equalTo("s + 2")));
+    }
+
+    @Test
+    public void testAlgebraicSimplification() {
+        assertThat(optimize("int(int x)->x * 1 + 0"), is(equalTo("x")));
+        assertThat(optimize("double(Double x)->x * 1.0 + 0"), is(equalTo("x + 0")));
+        assertThat(optimize("double(double x)->x / 1 - 0.0"), is(equalTo("x")));
+        assertThat(optimize("long(long x)->0 * x + x"), is(equalTo("x")));
+    }
+
+    @Test
+    public void testStrengthReduction() {
+        assertThat(optimize("double(double x)->Math.pow(x, 2) + x / 4"), is(equalTo("(x * x) + (x * 0.25)")));
+        assertThat(optimize("double(double x)->x * 2"), is(equalTo("x + x")));
+        assertThat(optimize("int(int x)->x * 8"), is(equalTo("x << 3")));
+    }
+
+    @Test
+    public void testGroupSharesSubexpressionsAcrossFunctions() {
+        List<FunctionDeclaration> declarations = Arrays.asList(
+                FunctionDeclaration.parse("double(double x, y, z)->Math.log(x) * (y / z)"),
+                FunctionDeclaration.parse("double(double x, y, z)->Math.log(x) + y / z"),
+                FunctionDeclaration.parse("double(double x)->{ return x; }"));
+        Map<String, String> parameterTypes = new LinkedHashMap<>();
+        parameterTypes.put("x", "double");
+        parameterTypes.put("y", "double");
+        parameterTypes.put("z", "double");
+        ExpressionOptimizer.GroupResult result = ExpressionOptimizer.optimizeGroup(declarations, parameterTypes, true);
+        assertThat(result.prelude, containsString("Math.log(x);"));
+        assertThat(result.prelude, containsString("y / z;"));
+        assertThat(result.expressions.get(0), not(containsString("Math.log")));
+        assertThat(result.expressions.get(1), not(containsString("/")));
+        assertThat(result.expressions.get(2), is(nullValue()));
+    }
+
+    @Test
+    public void testCommonSubexpressionElimination() {
+        assertThat(optimize("double(double a, b)->Math.sqrt(a*a+b*b) / (1 + Math.sqrt(a*a+b*b))"),
+                is(equalTo("double __cse0 = Math.sqrt((a * a) + (b * b)); __cse0 / (1 + __cse0)")));
+        assertThat(optimize("double(double a)->Math.exp(Math.sin(a)) + Math.exp(Math.sin(a)) * Math.sin(a)"),
+                is(equalTo("double __cse1 = Math.sin(a); double __cse0 = Math.exp(__cse1); __cse0 + (__cse0 * __cse1)")));
+    }
+
+    @Test
+    public void testUnchangedBodies() {
+        assertThat(optimize("double(double x)->x / 3"), is(nullValue()));
+        assertThat(optimize("int(int x)->x + 1 / 0"), is(nullValue()));
+        assertThat(optimize("Object(Double x)->new Double(x * 1)"), is(nullValue()));
+        assertThat(optimize("double(double x)->{double y = x * 1; return y;}"), is(nullValue()));
+    }
+
+    @Test
+    public void testOptimizedFunctionsGiveSameResults() {
+        String[] functions = {
+                "double(double a, b)->Math.sqrt(a*a+b*b) / (1 + Math.sqrt(a*a+b*b)) * 2 * 3.5",
+                "double(Double a, b)->Math.pow(a, 2.0) + b / 4 - 0.0 + Math.pow(b, 1.0)",
+                "double(double a, b)->a * 1.0 + 0 + b * 2 + Math.max(a, b) - Math.max(a, b)",
+                "boolean(double a, b)->a * 1 > b / 2 && Math.abs(a) == Math.abs(a)",
+        };
+        FunctionParser.setCacheEnabled(false);
+        for (String function : functions) {
+            FunctionParser.setOptimizationEnabled(false);
+            ParsedFunction plain = FunctionParser.fromString(function);
+            FunctionParser.setOptimizationEnabled(true);
+            ParsedFunction optimized = FunctionParser.fromString(function);
+            for (double a : VALUES) {
+                for (double b : VALUES) {
+                    Object[] args = {a, b};
+                    if (function.startsWith("boolean")) {
+                        assertThat(function, optimized.evaluateToBoolean(args), is(plain.evaluateToBoolean(args)));
+                    } else {
+                        assertThat(function, Double.doubleToLongBits(optimized.evaluateToDouble(args)),
+                                is(Double.doubleToLongBits(plain.evaluateToDouble(args))));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFoldedBodiesStartingWithLiterals() {
+        FunctionParser.setCacheEnabled(false);
+        FunctionParser.setOptimizationEnabled(true);
+        ParsedFunction boxed = FunctionParser.fromString("double(Double x)->2 * 3.5 * x");
+        assertThat(boxed.evaluateToDouble(new Object[]{2.0}), is(14.0));
+        ParsedFunction circumference = FunctionParser.fromString("double(double r)->2 * Math.PI * r");
+        assertThat(circumference.evaluateToDouble(new Object[]{0.5}), is(Math.PI));
+        assertThat(circumference.evaluateToDouble(0.5), is(Math.PI));
+        ParsedFunction root = FunctionParser.fromString("double(double r)->Math.sqrt(16) + r");
+        assertThat(root.evaluateToDouble(1.0), is(5.0));
+        ParsedFunction exponent = FunctionParser.fromString("double(Double x)->1e-3 * x + 0");
+        assertThat(exponent.evaluateToDouble(new Object[]{2000.0}), is(2.0));
+    }
+
+    @Test
+    public void testOptimizedIntegralFunction() {
+        FunctionParser.setCacheEnabled(false);
+        FunctionParser.setOptimizationEnabled(true);
+        ParsedFunction f = FunctionParser.fromString("long(Long x, Integer y)->x * 8 + y * 1 + 0 + Math.abs(y) * Math.abs(y)");
+        assertThat(f.evaluateToLong(new Object[]{-3L, -2}), is(-22L));
+    }
+}
@@ -0,0 +1,104 @@
+package com.alfredvc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for FunctionCache.
+ */
+public class FunctionCacheTest {
+
+    @After
+    public void enableCache() {
+        FunctionParser.setCacheEnabled(true);
+    }
+
+    @Test
+    public void testNormalize() {
+        assertThat(FunctionCache.normalize("  double (  Double   x , y )  ->  x  +  y "), is(equalTo("double(Double x,y)->x + y")));
+        assertThat(FunctionCache.normalize("double(Double x,y)->x + y"), is(equalTo("double(Double x,y)->x + y")));
+    }
+
+    @Test
+    public void testNormalizeKeepsStringLiterals() {
+        assertThat(FunctionCache.normalize("String(String s)->s + \"  a  \""), is(equalTo("String(String s)->s + \"  a  \"")));
+    }
+
+    @Test
+    public void testWhitespaceVariantsShareCompiledFunction() {
+        ParsedFunction first = FunctionParser.fromString("double(Double x,y)->x * y + 17");
+        ParsedFunction second = FunctionParser.fromString("  double ( Double x, y ) -> x * y + 17");
+        assertThat(FunctionParser.fromString("double(Double x,y)->x * y + 17"), is(sameInstance(first)));
+        assertThat(second.evaluateToDouble(new Object[]{2.0, 3.0}), is(23.0));
+        assertThat(FunctionCache.withFunctionString(second, first.getFunctionString()), is(sameInstance(first)));
+    }
+
+    @Test
+    public void testHitsReturnTheGivenFunctionString() {
+        String compiled = "double(Double x,y)->x * y - 23";
+        String variant = "  double ( Double x, y ) -> x * y - 23";
+        ParsedFunction first = FunctionParser.fromString(compiled);
+        ParsedFunction second = FunctionParser.fromString(variant);
+        assertThat(first.getFunctionString(), is(compiled));
+        assertThat(second.getFunctionString(), is(variant));
+        assertThat(second.toString(), is("ParsedFunction[" + variant + "]"));
+        assertThat(second.getVariableSet(), is(first.getVariableSet()));
+        assertThat(second.evaluateToDouble(new Object[]{2.0, 3.0}), is(-17.0));
+        List<ParsedFunction<Double>> batch = FunctionParser.fromStrings(Arrays.asList(variant, compiled, "double(Double x,y)->x*y - 23"));
+        assertThat(batch.get(0).getFunctionString(), is(variant));
+        assertThat(batch.get(1), is(sameInstance(first)));
+        assertThat(batch.get(2).getFunctionString(), is("double(Double x,y)->x*y - 23"));
+    }
+
+    @Test
+    public void testCacheCanBeDisabled() {
+        FunctionParser.setCacheEnabled(false);
+        ParsedFunction first = FunctionParser.fromString("double(Double x)->x * 19");
+        ParsedFunction second = FunctionParser.fromString("double(Double x)->x * 19");
+        assertThat(second, is(not(sameInstance(first))));
+    }
+
+    @Test
+    public void testCounters() {
+        FunctionCache cache = new FunctionCache(2);
+        ParsedFunction a = cache.get("double(Double x)->x", FunctionParser::fromString);
+        assertThat(cache.get("double(Double x)->x", FunctionParser::fromString), is(sameInstance(a)));
+        cache.get("double(Double x)->x + 1", FunctionParser::fromString);
+        cache.get("double(Double x)->x + 2", FunctionParser::fromString);
+        assertThat(cache.getHitCount(), is(1L));
+        assertThat(cache.getMissCount(), is(3L));
+        assertThat(cache.getEvictionCount(), is(1L));
+        assertThat(cache.size(), is(2));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        FunctionCache cache = new FunctionCache(2);
+        cache.get("double(Double x)->x", FunctionParser::fromString);
+        cache.get("double(Double x)->x + 1", FunctionParser::fromString);
+        cache.get("double(Double x)->x", FunctionParser::fromString);
+        cache.get("double(Double x)->x + 2", FunctionParser::fromString);
+        assertThat(cache.getIfPresent("double(Double x)->x") == null, is(false));
+        assertThat(cache.getIfPresent("double(Double x)->x + 1") == null, is(true));
+    }
+
+    @Test
+    public void testSetMaximumSizeEvicts() {
+        FunctionCache cache = new FunctionCache(4);
+        cache.get("double(Double x)->x", FunctionParser::fromString);
+        cache.get("double(Double x)->x + 1", FunctionParser::fromString);
+        cache.get("double(Double x)->x + 2", FunctionParser::fromString);
+        cache.setMaximumSize(1);
+        assertThat(cache.size(), is(1));
+        assertThat(cache.getEvictionCount(), is(2L));
+    }
+}
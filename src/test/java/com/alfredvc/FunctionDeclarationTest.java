@@ -0,0 +1,91 @@
+package com.alfredvc;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for FunctionLexer and FunctionDeclaration.
+ */
+public class FunctionDeclarationTest {
+
+    @Test
+    public void testTokensCoverWholeString() {
+        String source = "double(Double x)-> /* x */ x * 1.5e-3 + \"x\\\"y\".length() // x";
+        StringBuilder sb = new StringBuilder();
+        for (Token token : FunctionLexer.tokenize(source)) {
+            sb.append(token.text);
+        }
+        assertThat(sb.toString(), is(equalTo(source)));
+    }
+
+    @Test
+    public void testSignature() {
+        FunctionDeclaration declaration = FunctionDeclaration.parse(" double ( Double x, y , java.util.List l)-> x + y");
+        assertThat(declaration.getReturnType(), is("double"));
+        assertThat(declaration.getVariables(), is(equalTo(new LinkedHashSet<>(Arrays.asList("x", "y", "l")))));
+        assertThat(declaration.getParameters().get(1).type, is("Double"));
+        assertThat(declaration.getParameters().get(2).type, is("java.util.List"));
+        assertThat(declaration.getBody(), is(" x + y"));
+        assertThat(declaration.hasReturnStatement(), is(false));
+    }
+
+    @Test
+    public void testGenericParameterTypes() {
+        FunctionDeclaration declaration = FunctionDeclaration.parse(
+                "java.util.List<String>(java.util.Map<String, java.util.List<Integer>> m, double[] xs, ys)->null");
+        assertThat(declaration.getReturnType(), is("java.util.List<String>"));
+        assertThat(declaration.getParameters().get(0).type, is("java.util.Map<String,java.util.List<Integer>>"));
+        assertThat(declaration.getParameters().get(0).getErasedType(), is("java.util.Map"));
+        assertThat(declaration.getParameters().get(2).type, is("double[]"));
+    }
+
+    @Test
+    public void testDefaultReturnTypeAndNoParameters() {
+        FunctionDeclaration declaration = FunctionDeclaration.parse("()->{return 1;}");
+        assertThat(declaration.getReturnType(), is(FunctionParser.DEFAULT_RETURN_TYPE));
+        assertThat(declaration.getParameters().isEmpty(), is(true));
+        assertThat(declaration.hasReturnStatement(), is(true));
+    }
+
+    @Test
+    public void testSubstituteSkipsLiteralsCommentsAndMembers() {
+        FunctionDeclaration declaration = FunctionDeclaration.parse("String(java.awt.Point x, String s)->x.x + \"x\" + s /* x */ + 'x'");
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("x", "A");
+        replacements.put("s", "B");
+        assertThat(declaration.substitute(replacements), is(equalTo("A.x + \"x\" + B /* x */ + 'x'")));
+    }
+
+    @Test
+    public void testReturnInsideLiteralIsNotAStatement() {
+        assertThat(FunctionDeclaration.parse("String(String s)->s + \" return \"").hasReturnStatement(), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateParameter() {
+        FunctionDeclaration.parse("double(Double x, x)->x");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingType() {
+        FunctionDeclaration.parse("double(x)->x");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingArrow() {
+        FunctionDeclaration.parse("double(Double x) x");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnterminatedString() {
+        FunctionDeclaration.parse("String(String s)->s + \"abc");
+    }
+}
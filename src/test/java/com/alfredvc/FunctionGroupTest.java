@@ -0,0 +1,114 @@
+package com.alfredvc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for FunctionGroup.
+ */
+public class FunctionGroupTest {
+    private static final List<String> FUNCTIONS = Arrays.asList(
+            "double(double x, y, z)->Math.log(x) * (y / z)",
+            "double(double x, y, z)->Math.log(x) + y / z",
+            "double(double y, x)->Math.sqrt(x * x + y * y)",
+            "double(double z)->z * 2 + 1");
+
+    @After
+    public void tearDown() {
+        FunctionParser.setOptimizationEnabled(false);
+    }
+
+    private static void assertMatchesIndividualFunctions(FunctionGroup group) {
+        double[][] arguments = {{2.0, 3.0, 4.0}, {0.5, -1.5, 7.25}, {10.0, 0.0, -2.0}};
+        for (double[] args : arguments) {
+            double[] out = new double[group.size()];
+            double[] boxedOut = new double[group.size()];
+            Object[] objects = new Object[group.size()];
+            group.evaluateToDouble(args, out);
+            group.evaluateToDouble(new Object[]{args[0], args[1], args[2]}, boxedOut);
+            group.evaluate(new Object[]{args[0], args[1], args[2]}, objects);
+            for (int i = 0; i < group.size(); i++) {
+                ParsedFunction<?> function = FunctionParser.fromString(FUNCTIONS.get(i));
+                Object[] ownArgs = new Object[function.getVariableSet().size()];
+                int j = 0;
+                for (String name : function.getVariableSet()) {
+                    ownArgs[j++] = args[name.charAt(0) - 'x'];
+                }
+                double expected = function.evaluateToDouble(ownArgs);
+                assertThat(out[i], is(expected));
+                assertThat(boxedOut[i], is(expected));
+                assertThat(objects[i], is((Object) expected));
+            }
+        }
+    }
+
+    @Test
+    public void testGroupMatchesIndividualFunctions() {
+        FunctionGroup group = FunctionParser.fromStringsAsGroup(FUNCTIONS);
+        assertThat(group.getVariableSet(), contains("x", "y", "z"));
+        assertThat(group.getFunctionStrings(), is(FUNCTIONS));
+        assertMatchesIndividualFunctions(group);
+    }
+
+    @Test
+    public void testOptimizedGroupMatchesIndividualFunctions() {
+        FunctionParser.setOptimizationEnabled(true);
+        assertMatchesIndividualFunctions(FunctionParser.fromStringsAsGroup(FUNCTIONS));
+    }
+
+    @Test
+    public void testMixedReturnTypesAndStatements() {
+        FunctionGroup group = FunctionParser.fromStringsAsGroup(Arrays.asList(
+                "int(Integer n)->n * 3",
+                "boolean(int n, double d)->n > d",
+                "String(int n)->\"n=\" + n",
+                "long(long m)->{ long r = 1; for (int i = 0; i < m; i++) r *= 2; return r; }"));
+        Object[] out = new Object[group.size()];
+        group.evaluate(new Object[]{4, 2.5, 5L}, out);
+        assertThat(Arrays.asList(out), contains((Object) 12, true, "n=4", 32L));
+        try {
+            group.evaluateToDouble(new Object[]{4, 2.5, 5L}, new double[4]);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // the group has a boolean and a String result
+        }
+    }
+
+    @Test
+    public void testNumericGroupWithoutDoubleParameters() {
+        FunctionGroup group = FunctionParser.fromStringsAsGroup(Arrays.asList("int(int a, b)->a / b", "long(long c)->c << 40"));
+        double[] out = new double[2];
+        group.evaluateToDouble(new Object[]{7, 2, 1L}, out);
+        assertThat(out[0], is(3.0));
+        assertThat(out[1], is((double) (1L << 40)));
+        try {
+            group.evaluateToDouble(new double[]{7, 2, 1}, out);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // the parameters are not doubles
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIncompatibleParametersAreRejected() {
+        FunctionParser.fromStringsAsGroup(Arrays.asList("double(double x)->x", "int(int x)->x"));
+    }
+
+    @Test
+    public void testWrapperAndPrimitiveParametersAreCompatible() {
+        FunctionGroup group = FunctionParser.fromStringsAsGroup(Arrays.asList("double(Double x)->x + 1", "double(double x)->x * 2"));
+        double[] out = new double[2];
+        group.evaluateToDouble(new double[]{1.5}, out);
+        assertThat(out[0], is(2.5));
+        assertThat(out[1], is(3.0));
+        assertThat(group.toString(), is("FunctionGroup" + group.getFunctionStrings()));
+    }
+}
@@ -0,0 +1,128 @@
+package com.alfredvc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.DoubleBinaryOperator;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for FunctionMetrics and the instrumentation of generated classes.
+ */
+public class FunctionMetricsTest {
+
+    @Before
+    public void setUp() {
+        FunctionParser.setCacheEnabled(false);
+        FunctionParser.setInstrumentationEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        FunctionParser.setInstrumentationEnabled(false);
+        FunctionParser.setCacheEnabled(true);
+        FunctionParser.getMetricsRegistry().clear();
+    }
+
+    @Test
+    public void testCompileMetricsAreRecorded() {
+        ParsedFunction f = FunctionParser.fromString("double(Double x, y)->x * y");
+        FunctionMetrics metrics = FunctionParser.getMetricsRegistry().get(f);
+        assertThat(metrics.getClassName(), is(f.getClass().getName()));
+        assertThat(metrics.getFunctionString(), is("double(Double x, y)->x * y"));
+        assertThat(metrics.getCompileTimeNanos(), is(greaterThan(0L)));
+        assertThat(metrics.getBytecodeSize(), is(greaterThan(0)));
+        assertThat(metrics.getInvocationCount(), is(0L));
+    }
+
+    @Test
+    public void testEveryEntryPointIsCountedOnce() {
+        ParsedFunction f = FunctionParser.fromString("double(double x, y)->x * y");
+        int n = 10000;
+        for (int i = 0; i < n; i++) {
+            assertThat(f.evaluateToDouble(new Object[]{2.0, 3.0}), is(6.0));
+            assertThat(f.evaluateToDouble(new double[]{2.0, 3.0}), is(6.0));
+            assertThat(f.evaluateToDouble(2.0, 3.0), is(6.0));
+        }
+        FunctionMetrics metrics = FunctionParser.getMetricsRegistry().get(f);
+        assertThat(metrics.getInvocationCount(), is(3L * n));
+        assertThat(metrics.getExceptionCount(), is(0L));
+        assertThat(metrics.getLatency().getCount(), is(greaterThan(0L)));
+        assertThat(metrics.getLatency().getCount(), is(lessThanOrEqualTo(3L * n)));
+    }
+
+    @Test
+    public void testExceptionsAreCounted() {
+        ParsedFunction f = FunctionParser.fromString("int(Integer x)->10 / x");
+        assertThat(f.evaluateToInteger(new Object[]{5}), is(2));
+        try {
+            f.evaluateToInteger(new Object[]{0});
+            fail();
+        } catch (ArithmeticException e) {
+            // Expected, the exception is rethrown unchanged.
+        }
+        FunctionMetrics metrics = FunctionParser.getMetricsRegistry().get(f);
+        assertThat(metrics.getInvocationCount(), is(2L));
+        assertThat(metrics.getExceptionCount(), is(1L));
+    }
+
+    @Test
+    public void testTargetInterfaceIsInstrumented() {
+        DoubleBinaryOperator f = FunctionParser.fromString("double(double x, y)->x + y", DoubleBinaryOperator.class);
+        assertThat(f.applyAsDouble(1.0, 2.0), is(3.0));
+        assertThat(FunctionParser.getMetricsRegistry().get(f).getInvocationCount(), is(1L));
+    }
+
+    @Test
+    public void testBatchFunctionsHaveTheirOwnMetrics() {
+        List<ParsedFunction<Object>> functions = FunctionParser.fromStrings(Arrays.asList(
+                "double(Double x)->x + 1", "double(Double x)->x + 2"));
+        functions.get(0).evaluateToDouble(new Object[]{1.0});
+        functions.get(1).evaluateToDouble(new Object[]{1.0});
+        functions.get(1).evaluateToDouble(new Object[]{1.0});
+        FunctionMetricsRegistry registry = FunctionParser.getMetricsRegistry();
+        assertThat(registry.get(functions.get(0)).getInvocationCount(), is(1L));
+        assertThat(registry.get(functions.get(1)).getInvocationCount(), is(2L));
+        assertThat(registry.get(functions.get(1)).getClassName(), is(registry.get(functions.get(0)).getClassName()));
+        assertThat(registry.getHottest(1).get(0), is(registry.get(functions.get(1))));
+    }
+
+    @Test
+    public void testDisabledInstrumentationGeneratesNoCode() {
+        FunctionParser.setInstrumentationEnabled(false);
+        ParsedFunction f = FunctionParser.fromString("double(Double x)->x + 1");
+        assertThat(FunctionParser.getMetricsRegistry().get(f), is(nullValue()));
+        try {
+            f.getClass().getDeclaredField("metrics");
+            fail();
+        } catch (NoSuchFieldException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getPercentileNanos(99), is(0L));
+        for (int i = 0; i < 90; i++) {
+            histogram.record(100);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(5000);
+        }
+        assertThat(histogram.getCount(), is(100L));
+        assertThat(histogram.getMeanNanos(), is(590.0));
+        assertThat(histogram.getPercentileNanos(50), is(127L));
+        assertThat(histogram.getPercentileNanos(90), is(127L));
+        assertThat(histogram.getPercentileNanos(99), is(8191L));
+    }
+}
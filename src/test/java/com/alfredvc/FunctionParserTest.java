@@ -3,11 +3,15 @@ package com.alfredvc;
 import javassist.CannotCompileException;
 import javassist.NotFoundException;
 
-import org.junit.Ignore;
+import org.junit.Assume;
 import org.junit.Test;
 
 import java.awt.*;
 import java.awt.geom.Arc2D;
+import java.lang.invoke.MethodHandle;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -15,16 +19,22 @@ import java.util.Date;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
-
-import javax.script.Invocable;
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
-import javax.script.ScriptException;
-
-import jdk.nashorn.api.scripting.NashornScriptEngine;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoublePredicate;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Function;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -89,115 +99,6 @@ public class FunctionParserTest {
         assertThat(constraintFromString.evaluateToDouble(args), is(expectedResult));
     }
 
-    /**
-     * Simple test to evaluate the performance of generated methods vs compiled methods.
-     */
-    @Test
-    @Ignore
-    public void performanceComparisonWithPrimitives() {
-        ParsedFunction constraintFromString = FunctionParser.fromString("double(Double x,y,z,f)->x*y + y + z*z + x*f");
-        Object[] args = {1.0, 2.0, 3.0, 4.0};
-
-        // Warmup
-        for (int a = 0; a < 10; a++) {
-            for (long i = 0; i < 1000000000L; i++) {
-                constraintFromString.evaluateToDouble(args);
-                func(1.0, 2.0, 3.0, 4.0);
-            }
-        }
-
-        long start1 = System.nanoTime();
-        for (long i = 0; i < 1000000000L; i++) {
-            constraintFromString.evaluateToDouble(args);
-        }
-        long end1 = System.nanoTime();
-        long start2 = System.nanoTime();
-        for (long i = 0; i < 1000000000L; i++) {
-            func(1.0, 2.0, 3.0, 4.0);
-        }
-        long end2 = System.nanoTime();
-        long fromStringTime = ((end1 - start1) / 1000000L);
-        long functionTime = ((end2 - start2) / 1000000L);
-        double percentageDifference = ((double) functionTime / (double) fromStringTime);
-
-        System.out.printf("Method generated from function was %.3fx slower than compiled method", percentageDifference);
-    }
-
-    /**
-     * Simple test to evaluate the performance of generated primitive vs generic methods
-     */
-    @Test
-    @Ignore
-    public void performanceComparisonPrimitiveGeneric() {
-        ParsedFunction constraintFromStringPrimitive = FunctionParser.fromString("double(Double x,y,z,f)->x*y + y + z*z + x*f");
-        ParsedFunction<Double> constraintFromStringGeneric = FunctionParser.fromString("Double(Double x,y,z,f)->Double.valueOf(x*y + y + z*z + x*f)");
-        Object[] args = {1.0, 2.0, 3.0, 4.0};
-
-        // Warmup
-        for (int a = 0; a < 100; a++) {
-            for (long i = 0; i < 1000000000L; i++) {
-                constraintFromStringPrimitive.evaluateToDouble(args);
-                constraintFromStringGeneric.evaluate(args);
-            }
-        }
-
-        long start1 = System.nanoTime();
-        for (long i = 0; i < 1000000000L; i++) {
-            constraintFromStringPrimitive.evaluateToDouble(args);
-        }
-        long end1 = System.nanoTime();
-        long start2 = System.nanoTime();
-        for (long i = 0; i < 1000000000L; i++) {
-            constraintFromStringGeneric.evaluate(args);
-        }
-        long end2 = System.nanoTime();
-        long fromStringTime = ((end1 - start1) / 1000000L);
-        long functionTime = ((end2 - start2) / 1000000L);
-        double percentageDifference = ((double) functionTime / (double) fromStringTime);
-
-        System.out.printf("Method generic method was %.3fx slower than the primitive method.", percentageDifference);
-    }
-
-    /**
-     * Simple test to evaluate the performance of generated methods vs JavaScript methods via ScriptEngine
-     */
-    @Test
-    @Ignore
-    public void performanceComparisonScriptingEngine() throws ScriptException, NoSuchMethodException {
-        ParsedFunction constraintFromStringPrimitive = FunctionParser.fromString("double(Double x,y,z,f)->x*y + y + z*z + x*f");
-        ScriptEngine engine = new ScriptEngineManager().getEngineByName("nashorn");
-        engine.eval("var f1 = function(x,y,z,f){return x*y + y + z*z + x*f;}");
-        Invocable invocable = (Invocable) engine;
-        Object[] args = {1.0, 2.0, 3.0, 4.0};
-
-        //Warmup
-        for (int a = 0; a < 10; a++) {
-            for (long i = 0; i < 10000000L; i++) {
-                constraintFromStringPrimitive.evaluateToDouble(args);
-                invocable.invokeFunction("f1",  args);
-            }
-        }
-
-        long start1 = System.nanoTime();
-        for (long i = 0; i < 10000000000L; i++) {
-            constraintFromStringPrimitive.evaluateToDouble(args);
-        }
-        long end1 = System.nanoTime();
-        long start2 = System.nanoTime();
-        for (long i = 0; i < 100000000L; i++) {
-            invocable.invokeFunction("f1",  args);
-        }
-        long end2 = System.nanoTime();
-        long generatedTime = ((end1 - start1) / 1000000L);
-        long scriptTime = ((end2 - start2) / 1000000L);
-        System.out.println("Generated " + generatedTime);
-        System.out.println("Script " + scriptTime);
-        double percentageDifference = ((double) scriptTime / (double) generatedTime);
-
-        System.out.printf("JavaScript method was %.3fx slower than the generated method.", percentageDifference);
-    }
-
-
     @Test
     public void testGetVariableSet() {
         LinkedHashSet<String> expectedSet = new LinkedHashSet<>(Arrays.asList("x", "y", "z", "f"));
@@ -213,10 +114,6 @@ public class FunctionParserTest {
         assertThat(pointParsedFunction.evaluate(args), is(expectedResult));
     }
 
-    private double func(double x, double y, double z, double f) {
-        return (x * y + y + z * z + x * f);
-    }
-
     @Test
     public void testBooleanFuction() {
         ParsedFunction booleanParsedFunction = FunctionParser.fromString("boolean (Integer x,y,z)-> x + y < z");
@@ -256,7 +153,7 @@ public class FunctionParserTest {
         Object[] args = new Object[]{2.0, 3.0};
         boolean expectedResult = false;
         String functionString = "Boolean(Double x,y)->x > y";
-        ParsedFunction<Double> f = FunctionParser.fromString(functionString);
+        ParsedFunction<Boolean> f = FunctionParser.fromString(functionString);
         assertThat(f.evaluate(args) , is(expectedResult));
     }
 
@@ -283,4 +180,409 @@ public class FunctionParserTest {
         Object[] args = new Object[]{Arrays.asList(1.0,2.0,3.0,4.0,5.0)};
         assertThat(function.evaluateToDouble(args), is(expectedResult));
     }
+
+    @Test
+    public void testIsolatedLoadingEvaluates() {
+        FunctionParser.setLoadingMode(LoadingMode.ISOLATED);
+        try {
+            ParsedFunction<Point> f = FunctionParser.fromString("java.awt.Point(java.awt.Point a,b)->return new java.awt.Point(a.x * b.x,a.y * b.y);");
+            assertThat(f.evaluate(new Object[]{new Point(3, 5), new Point(5, 2)}), is(new Point(15, 10)));
+            assertThat(f.getClass().getClassLoader() instanceof FunctionClassLoader, is(true));
+        } finally {
+            FunctionParser.setLoadingMode(LoadingMode.SHARED);
+        }
+    }
+
+    @Test
+    public void testIsolatedClassIsUnloadedWhenUnreachable() throws InterruptedException {
+        FunctionParser.setLoadingMode(LoadingMode.ISOLATED);
+        FunctionParser.setCacheEnabled(false);
+        WeakReference<Class<?>> classReference;
+        try {
+            ParsedFunction f = FunctionParser.fromString("double(Double x)->x * 31");
+            assertThat(f.evaluateToDouble(new Object[]{2.0}), is(62.0));
+            classReference = new WeakReference<>(f.getClass());
+        } finally {
+            FunctionParser.setLoadingMode(LoadingMode.SHARED);
+            FunctionParser.setCacheEnabled(true);
+        }
+        for (int i = 0; i < 50 && classReference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertThat(classReference.get() == null, is(true));
+    }
+
+    @Test
+    public void testHiddenLoadingEvaluates() throws Exception {
+        Assume.assumeTrue(HiddenClassDefiner.isSupported());
+        FunctionParser.setLoadingMode(LoadingMode.HIDDEN);
+        FunctionParser.setCacheEnabled(false);
+        try {
+            ParsedFunction f = FunctionParser.fromString("double(double x, y)->x * y + 1");
+            assertThat(f.evaluateToDouble(new Object[]{2.0, 3.0}), is(7.0));
+            assertThat(f.evaluateToDouble(2.0, 3.0), is(7.0));
+            assertThat(f.getClass().getName().startsWith("com.alfredvc.Eval"), is(true));
+            assertThat(Class.class.getMethod("isHidden").invoke(f.getClass()), is(true));
+
+            List<ParsedFunction<Object>> batch = FunctionParser.fromStrings(Arrays.asList("double(Double x)->x + 1", "double(Double x)->x + 2"));
+            assertThat(batch.get(1).evaluateToDouble(new Object[]{1.0}), is(3.0));
+        } finally {
+            FunctionParser.setLoadingMode(LoadingMode.SHARED);
+            FunctionParser.setCacheEnabled(true);
+        }
+    }
+
+    @Test
+    public void testHiddenClassIsUnloadedWhenUnreachable() throws InterruptedException {
+        Assume.assumeTrue(HiddenClassDefiner.isSupported());
+        FunctionParser.setLoadingMode(LoadingMode.HIDDEN);
+        FunctionParser.setCacheEnabled(false);
+        WeakReference<Class<?>> classReference;
+        try {
+            ParsedFunction f = FunctionParser.fromString("double(Double x)->x * 37");
+            assertThat(f.evaluateToDouble(new Object[]{2.0}), is(74.0));
+            classReference = new WeakReference<>(f.getClass());
+        } finally {
+            FunctionParser.setLoadingMode(LoadingMode.SHARED);
+            FunctionParser.setCacheEnabled(true);
+        }
+        for (int i = 0; i < 50 && classReference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertThat(classReference.get() == null, is(true));
+    }
+
+    @Test
+    public void testMethodHandle() throws Throwable {
+        MethodHandle primitive = FunctionParser.toMethodHandle(FunctionParser.fromString("double(double x, y)->x * y"));
+        assertThat((double) primitive.invokeExact(2.0, 3.0), is(6.0));
+
+        MethodHandle boxed = FunctionParser.toMethodHandle(FunctionParser.fromString("long(Long x, y)->x * y"));
+        assertThat((long) boxed.invokeExact(new Object[]{2L, 3L}), is(6L));
+
+        MethodHandle object = FunctionParser.toMethodHandle(FunctionParser.fromString("String(String s)->s.trim()"));
+        assertThat((Object) object.invokeExact(new Object[]{" a "}), is("a"));
+
+        List<ParsedFunction<Object>> batch = FunctionParser.fromStrings(Arrays.asList("int(int x)->x + 1", "int(int x)->x + 2"));
+        MethodHandle batched = FunctionParser.toMethodHandle(batch.get(1));
+        assertThat((int) batched.invokeExact(1), is(3));
+    }
+
+    /**
+     * Compiles and discards isolated functions, and checks that their classes are unloaded so the
+     * number of loaded classes, and with it metaspace, stays bounded.
+     */
+    @Test
+    public void isolatedClassesAreUnloaded() {
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+        FunctionParser.setLoadingMode(LoadingMode.ISOLATED);
+        FunctionParser.setCacheEnabled(false);
+        try {
+            FunctionParser.fromString("double(Double x)->x * -1").evaluateToDouble(new Object[]{1.0});
+            System.gc();
+            int before = classLoading.getLoadedClassCount();
+            int functions = 2000;
+            for (int i = 0; i < functions; i++) {
+                ParsedFunction f = FunctionParser.fromString("double(Double x)->x * " + i);
+                assertThat(f.evaluateToDouble(new Object[]{1.0}), is((double) i));
+            }
+            int growth = classLoading.getLoadedClassCount() - before;
+            for (int attempt = 0; attempt < 10 && growth >= functions / 10; attempt++) {
+                System.gc();
+                growth = classLoading.getLoadedClassCount() - before;
+            }
+            assertThat("loaded classes grew by " + growth, growth < functions / 10, is(true));
+        } finally {
+            FunctionParser.setLoadingMode(LoadingMode.SHARED);
+            FunctionParser.setCacheEnabled(true);
+        }
+    }
+
+    @Test
+    public void testParallelCompilationStress() throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(32);
+        try {
+            for (LoadingMode mode : LoadingMode.values()) {
+                FunctionParser.setLoadingMode(mode);
+                List<Future<Double>> results = new ArrayList<>();
+                for (int i = 0; i < 2000; i++) {
+                    String functionString = "double(Double x,y)->x * y + " + i + " + " + mode.ordinal();
+                    results.add(executor.submit(() -> FunctionParser.fromString(functionString).evaluateToDouble(new Object[]{2.0, 3.0})));
+                }
+                for (int i = 0; i < results.size(); i++) {
+                    assertThat(results.get(i).get(), is(6.0 + i + mode.ordinal()));
+                }
+            }
+        } finally {
+            FunctionParser.setLoadingMode(LoadingMode.SHARED);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPrimitiveParameters() {
+        ParsedFunction f = FunctionParser.fromString("double(double x, y)->x * y + 1");
+        assertThat(f.evaluateToDouble(3.0, 4.0), is(13.0));
+        assertThat(f.evaluateToDouble(new double[]{3.0, 4.0}), is(13.0));
+        assertThat(f.evaluateToDouble(new Object[]{3.0, 4.0}), is(13.0));
+    }
+
+    @Test
+    public void testMixedPrimitiveParameters() {
+        ParsedFunction f = FunctionParser.fromString("long(long x, int n)->x << n");
+        assertThat(f.evaluateToLong(new Object[]{3L, 2}), is(12L));
+    }
+
+    @Test
+    public void testPrimitiveParametersWithStatementBody() {
+        ParsedFunction f = FunctionParser.fromString("boolean(double x, y, z)->double m = Math.max(x, y); return m > z;");
+        assertThat(f.evaluateToBoolean(1.0, 5.0, 4.0), is(true));
+        assertThat(f.evaluateToBoolean(new double[]{1.0, 2.0, 4.0}), is(false));
+    }
+
+    @Test
+    public void testPrimitiveParametersWithObjectReturnType() {
+        ParsedFunction<Point> f = FunctionParser.fromString("java.awt.Point(int x, y)->new java.awt.Point(x, y)");
+        assertThat(f.evaluate(new Object[]{1, 2}), is(new Point(1, 2)));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testPrimitiveEntryPointRequiresPrimitiveParameters() {
+        ParsedFunction f = FunctionParser.fromString("double(Double x, y)->x * y");
+        f.evaluateToDouble(3.0, 4.0);
+    }
+
+    @Test
+    public void testPrimitiveEvaluationDoesNotAllocate() {
+        ParsedFunction f = FunctionParser.fromString("double(double x, y)->x * y + x");
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        double sum = 0;
+        for (int i = 0; i < 10000; i++) {
+            sum += f.evaluateToDouble(i, 2.0);
+        }
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000000; i++) {
+            sum += f.evaluateToDouble(i, 2.0);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        assertThat(sum > 0, is(true));
+        assertThat("allocated " + allocated + " bytes", allocated < 64 * 1024, is(true));
+    }
+
+    @Test
+    public void testFunctionalInterfaceWithPrimitiveParameters() {
+        DoubleBinaryOperator f = FunctionParser.fromString("double(double x, y)->x * y - 1", DoubleBinaryOperator.class);
+        assertThat(f.applyAsDouble(3.0, 4.0), is(11.0));
+        assertThat(((ParsedFunction) f).evaluateToDouble(3.0, 4.0), is(11.0));
+    }
+
+    @Test
+    public void testFunctionalInterfaceWithObjectParameters() {
+        Predicate<Point> f = FunctionParser.fromString("boolean(java.awt.Point p)->p.x > p.y", Predicate.class);
+        assertThat(f.test(new Point(3, 1)), is(true));
+        assertThat(f.test(new Point(1, 3)), is(false));
+    }
+
+    @Test
+    public void testFunctionalInterfaceConvertsArgumentsAndResult() {
+        ToDoubleFunction<Double> toDouble = FunctionParser.fromString("double(double x)->x / 2", ToDoubleFunction.class);
+        assertThat(toDouble.applyAsDouble(3.0), is(1.5));
+        IntUnaryOperator intOperator = FunctionParser.fromString("int(int x)->x * 3", IntUnaryOperator.class);
+        assertThat(intOperator.applyAsInt(4), is(12));
+        Function<Double, Double> function = FunctionParser.fromString("double(Double x)->x + 0.5", Function.class);
+        assertThat(function.apply(1.0), is(1.5));
+        DoublePredicate fromObjectResult = FunctionParser.fromString("Boolean(double x)->x > 2", DoublePredicate.class);
+        assertThat(fromObjectResult.test(3.0), is(true));
+        Comparator<Integer> comparator = FunctionParser.fromString("int(Integer a, b)->a - b", Comparator.class);
+        assertThat(comparator.compare(5, 3), is(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFunctionalInterfaceArityMismatch() {
+        FunctionParser.fromString("double(double x, y)->x * y", DoubleUnaryOperator.class);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFunctionalInterfaceRequiresSingleAbstractMethod() {
+        FunctionParser.fromString("double(double x)->x", List.class);
+    }
+
+    @Test
+    public void testBatchEvaluation() {
+        ParsedFunction f = FunctionParser.fromString("double(double x, y)->x * y + 1");
+        double[][] columns = {{1, 2, 3, 4}, {5, 6, 7, 8}};
+        double[] out = new double[4];
+        f.evaluateToDouble(columns, out, 1, 3);
+        assertThat(out[0], is(0.0));
+        assertThat(out[1], is(13.0));
+        assertThat(out[2], is(22.0));
+        assertThat(out[3], is(0.0));
+    }
+
+    @Test
+    public void testBatchPredicateMask() {
+        ParsedFunction f = FunctionParser.fromString("boolean(double x, y, z)->x + y > z");
+        double[][] columns = {{1, 2, 3}, {1, 2, 3}, {3, 3, 3}};
+        boolean[] mask = new boolean[3];
+        f.evaluateToBoolean(columns, mask, 0, 3);
+        assertThat(mask[0], is(false));
+        assertThat(mask[1], is(true));
+        assertThat(mask[2], is(true));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testBatchEvaluationRequiresDoubleParameters() {
+        ParsedFunction f = FunctionParser.fromString("double(Double x)->x * 2");
+        f.evaluateToDouble(new double[][]{{1}}, new double[1], 0, 1);
+    }
+
+    @Test
+    public void testFromStrings() {
+        List<ParsedFunction<Object>> functions = FunctionParser.fromStrings(Arrays.asList(
+                "double(Double x,y)->x * y + 101",
+                "boolean(Integer x,y)->x > y",
+                "java.awt.Point(java.awt.Point a,b)->return new java.awt.Point(a.x + b.x + 101,a.y + b.y);",
+                "Double(Double x)->x + 101.0",
+                "long(long x, int n)->(x << n) + 101"));
+        assertThat(functions.get(0).evaluateToDouble(new Object[]{2.0, 3.0}), is(107.0));
+        assertThat(functions.get(1).evaluateToBoolean(new Object[]{3, 2}), is(true));
+        assertThat(functions.get(2).evaluate(new Object[]{new Point(1, 2), new Point(3, 4)}), is((Object) new Point(105, 6)));
+        assertThat(functions.get(3).evaluate(new Object[]{1.0}), is((Object) 102.0));
+        assertThat(functions.get(4).evaluateToLong(new Object[]{1L, 2}), is(105L));
+        assertThat(functions.get(0).getVariableSet(), is(equalTo(new LinkedHashSet<>(Arrays.asList("x", "y")))));
+        assertThat(functions.get(1).getFunctionString(), is("boolean(Integer x,y)->x > y"));
+        assertThat(functions.get(1).toString(), is("ParsedFunction[boolean(Integer x,y)->x > y]"));
+    }
+
+    @Test
+    public void testFromStringsPrimitiveEntryPoints() {
+        List<ParsedFunction<Object>> functions = FunctionParser.fromStrings(Arrays.asList(
+                "double(double x,y)->x * y + 102",
+                "boolean(double x)->x > 102"));
+        ParsedFunction<Object> f = functions.get(0);
+        assertThat(f.evaluateToDouble(2.0, 3.0), is(108.0));
+        assertThat(f.evaluateToDouble(new double[]{2.0, 3.0}), is(108.0));
+        double[] out = new double[2];
+        f.evaluateToDouble(new double[][]{{1, 2}, {3, 4}}, out, 0, 2);
+        assertThat(out[1], is(110.0));
+        assertThat(functions.get(1).evaluateToBoolean(103.0), is(true));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testFromStringsUnsupportedEntryPoint() {
+        List<ParsedFunction<Object>> functions = FunctionParser.fromStrings(Arrays.asList(
+                "double(double x,y)->x * y + 103",
+                "boolean(double x)->x > 103"));
+        functions.get(1).evaluateToDouble(new Object[]{1.0});
+    }
+
+    @Test
+    public void testFromStringsSpansSeveralClassesAndUsesCache() {
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            strings.add("double(Double x)->x * " + i + " + 104");
+        }
+        strings.add("double(Double x)->x * 0 + 104");
+        List<ParsedFunction<Object>> functions = FunctionParser.fromStrings(strings);
+        for (int i = 0; i < 600; i++) {
+            assertThat(functions.get(i).evaluateToDouble(new Object[]{2.0}), is(2.0 * i + 104));
+        }
+        assertThat(functions.get(600), is(sameInstance(functions.get(0))));
+        assertThat(FunctionParser.fromString("double(Double x)->x * 7 + 104"), is(sameInstance((ParsedFunction) functions.get(7))));
+    }
+
+    @Test
+    public void testFromStringsReportsInvalidFunction() {
+        try {
+            FunctionParser.fromStrings(Arrays.asList("double(Double x)->x * 105", "double(Double x)->x *"));
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage().contains(" f1("), is(true));
+            return;
+        }
+        throw new AssertionError("Expected an IllegalArgumentException");
+    }
+
+    @Test
+    public void testFromStringAsync() throws InterruptedException, ExecutionException {
+        CompletableFuture<ParsedFunction<Object>> future = FunctionParser.fromStringAsync("double(Double x,y)->x * y + 106");
+        assertThat(future.get().evaluateToDouble(new Object[]{2.0, 3.0}), is(112.0));
+    }
+
+    @Test
+    public void testFromStringAsyncCompletesExceptionally() throws InterruptedException {
+        CompletableFuture<ParsedFunction<Object>> future = FunctionParser.fromStringAsync("double(Double x,y)->x *");
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof IllegalArgumentException, is(true));
+            return;
+        }
+        throw new AssertionError("Expected an ExecutionException");
+    }
+
+    @Test
+    public void testVariableNamesInLiteralsAndMembersAreKept() {
+        ParsedFunction<String> f = FunctionParser.fromString("String(java.awt.Point x, String y)->x.x + \" x \" + y");
+        assertThat(f.evaluate(new Object[]{new java.awt.Point(7, 8), "y"}), is(equalTo("7 x y")));
+    }
+
+    @Test
+    public void testGenericParameterTypes() {
+        ParsedFunction f = FunctionParser.fromString("double(java.util.Map<String, Double> m, String key)->((Double) m.get(key)).doubleValue() * 2");
+        java.util.Map<String, Double> m = new java.util.HashMap<>();
+        m.put("a", 21.0);
+        assertThat(f.evaluateToDouble(new Object[]{m, "a"}), is(42.0));
+    }
+
+    @Test
+    public void testNoParameters() {
+        assertThat(FunctionParser.fromString("double()->Math.PI * 2").evaluateToDouble(new Object[0]), is(Math.PI * 2));
+    }
+
+    @Test
+    public void testBind() {
+        ParsedFunction f = FunctionParser.fromString("double(Double x, y, k)->x * k + y");
+        ParsedFunction bound = FunctionParser.specialize(f, "k", -2.5);
+        assertThat(bound.getFunctionString(), is(equalTo("double(Double x, Double y)->x * (-2.5) + y")));
+        assertThat(bound.getVariableSet(), is(equalTo(new LinkedHashSet<>(Arrays.asList("x", "y")))));
+        assertThat(bound.evaluateToDouble(new Object[]{2.0, 1.0}), is(-4.0));
+    }
+
+    @Test
+    public void testSpecializePrimitiveFunction() {
+        ParsedFunction f = FunctionParser.fromString("double(double x, k, n)->Math.pow(x, k) * n");
+        java.util.Map<String, Object> values = new java.util.HashMap<>();
+        values.put("k", 2);
+        values.put("n", 0.5f);
+        ParsedFunction specialized = FunctionParser.specialize(f, values);
+        assertThat(specialized.evaluateToDouble(3.0), is(4.5));
+    }
+
+    @Test
+    public void testBindStringAndBoolean() {
+        ParsedFunction<String> f = FunctionParser.fromString("String(String a, b, Boolean upper)->upper ? (a + b).toUpperCase() : a + b");
+        ParsedFunction<String> bound = FunctionParser.specialize(FunctionParser.specialize(f, "b", " \"q\"\n\u0001\u00e9"), "upper", true);
+        assertThat(bound.evaluate(new Object[]{"p"}), is(equalTo("P \"Q\"\n\u0001\u00c9")));
+    }
+
+    @Test
+    public void testBindChar() {
+        String specialized = FunctionParser.getSpecializedFunctionString("int(java.lang.Object o, char c, int n)->c + n",
+                java.util.Collections.singletonMap("c", 'A'));
+        assertThat(specialized, is(equalTo("int(java.lang.Object o, int n)->((char) 65) + n")));
+        assertThat(FunctionParser.fromString(specialized).evaluateToInteger(new Object[]{null, 1}), is(66));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBindUnknownVariable() {
+        FunctionParser.specialize(FunctionParser.fromString("double(Double x)->x"), "y", 1.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBindUnsupportedType() {
+        FunctionParser.specialize(FunctionParser.fromString("double(java.awt.Point p, Double x)->p.x * x"), "p", new java.awt.Point(1, 2));
+    }
 }
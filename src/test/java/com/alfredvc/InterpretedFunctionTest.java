@@ -0,0 +1,167 @@
+package com.alfredvc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for InterpretedFunction, comparing interpreted results with the compiled ones.
+ */
+public class InterpretedFunctionTest {
+
+    @After
+    public void resetExecutor() {
+        FunctionParser.setCompilationExecutor(ForkJoinPool.commonPool());
+    }
+
+    private static void assertSameAsCompiled(String functionString, Object... args) {
+        Object compiled = FunctionParser.fromString(functionString).evaluate(args);
+        Object interpreted = FunctionParser.fromStringInterpreted(functionString).evaluate(args);
+        assertThat(functionString, interpreted, is(equalTo(compiled)));
+    }
+
+    @Test
+    public void testIntegerArithmetic() {
+        assertSameAsCompiled("Integer(int a, b)->a * b + a / b - a % b", 7, -3);
+        assertSameAsCompiled("Integer(int a, b)->a * b", Integer.MAX_VALUE, 3);
+        assertSameAsCompiled("Integer(int a)->-a", Integer.MIN_VALUE);
+        assertSameAsCompiled("Integer(int a, b)->(a << b) ^ (a >> 2) | (a >>> 30) & ~b", -12345, 35);
+        assertSameAsCompiled("Integer(Integer a, short b)->a - b + 0x7fffffff + 010", 4, (short) 5);
+        assertSameAsCompiled("Integer(int a)->a + -2147483648", 1);
+        assertSameAsCompiled("Long(long a, int b)->a * b + 9223372036854775807L + (a << b)", 3L, 40);
+    }
+
+    @Test
+    public void testFloatingPointArithmetic() {
+        assertSameAsCompiled("Double(double x, y)->x * y / 3 - y % 0.7", 2.5, -1.25);
+        assertSameAsCompiled("Float(float x, int i)->x / 3 + i * 0.1f", 1.7f, 3);
+        assertSameAsCompiled("Float(long a)->a + 1f", 123456789123L);
+        assertSameAsCompiled("Double(long a, float f)->a * f + 1e3 + 1000d", 7L, 0.1f);
+        assertSameAsCompiled("Double(double x)->x / 0", 1.0);
+    }
+
+    @Test
+    public void testBooleansAndComparisons() {
+        assertSameAsCompiled("Boolean(double x, y)->x < y && !(x == y) || x >= 3", 1.0, 2.0);
+        assertSameAsCompiled("Boolean(int a, long b)->a != b || a <= b", 5, 5L);
+        assertSameAsCompiled("Boolean(boolean p, q)->p && q || !p == q", true, false);
+        assertSameAsCompiled("Boolean(float f, double d)->f > d", 0.1f, 0.1);
+    }
+
+    @Test
+    public void testShortCircuitSkipsRightOperand() {
+        assertSameAsCompiled("Boolean(int a, b)->b != 0 && a / b > 1", 5, 0);
+        assertSameAsCompiled("Integer(int a, b)->b == 0 ? 0 : a / b", 5, 0);
+    }
+
+    @Test
+    public void testConditionalAndCasts() {
+        assertSameAsCompiled("Double(double x)->x > 0 ? x : -x * 2", -3.5);
+        assertSameAsCompiled("Long(int a, long b)->a > 0 ? a : b", -1, 1L << 40);
+        assertSameAsCompiled("Integer(double x)->(int) x + (short) 70000 + (int) (long) 1e19", 2.9);
+        assertSameAsCompiled("Float(double x)->(float) x + (float) 1L", 0.1);
+    }
+
+    @Test
+    public void testMathFunctions() {
+        assertSameAsCompiled("Double(double x, y)->Math.sqrt(x) + Math.pow(x, y) + Math.atan2(y, x) + Math.floor(-x)", 2.0, 3.0);
+        assertSameAsCompiled("Double(double x)->Math.sin(x * Math.PI) + Math.log(Math.E) + java.lang.Math.exp(x)", 0.25);
+        assertSameAsCompiled("Integer(int a, b)->Math.abs(a) + Math.max(a, b) + Math.min(a, b)", -7, 3);
+        assertSameAsCompiled("Long(int a, long b)->Math.max((long) a, b) + Math.round(2.5) + Math.round((float) a)", -7, 3L);
+        assertSameAsCompiled("Float(float f)->Math.abs(f) + Math.signum(f) + Math.copySign(1f, f)", -0.5f);
+        assertSameAsCompiled("Double(double x)->Math.signum(x) + Math.ulp(x) + Math.hypot(x, 4.0)", 3.0);
+    }
+
+    @Test
+    public void testPrimitiveEntryPoints() {
+        ParsedFunction<Double> f = FunctionParser.fromStringInterpreted("double(double x, y)->x * y + 1");
+        assertThat(f.evaluateToDouble(2.0, 3.0), is(7.0));
+        assertThat(f.evaluateToDouble(new double[]{2.0, 3.0}), is(7.0));
+        assertThat(f.evaluateToDouble(new Object[]{2.0, 3.0}), is(7.0));
+        double[] out = new double[2];
+        f.evaluateToDouble(new double[][]{{1.0, 2.0}, {3.0, 4.0}}, out, 0, 2);
+        assertThat(out[0], is(4.0));
+        assertThat(out[1], is(9.0));
+        assertThat(f.getVariableSet(), is(equalTo(new LinkedHashSet<>(Arrays.asList("x", "y")))));
+        assertThat(f.toString(), is("ParsedFunction[double(double x, y)->x * y + 1]"));
+
+        ParsedFunction<Boolean> p = FunctionParser.fromStringInterpreted("boolean(double x)->x > 1");
+        assertThat(p.evaluateToBoolean(2.0), is(true));
+        assertThat(FunctionParser.<Boolean>fromStringInterpreted("boolean(boolean p, q)->p ^ q").evaluateToBoolean(new Object[]{true, false}), is(true));
+        assertThat(FunctionParser.fromStringInterpreted("int(int a)->0b101 + 1_000 + a").evaluateToInteger(new Object[]{1}), is(1006));
+        assertThat(FunctionParser.fromStringInterpreted("long(int a)->a * 2").evaluateToLong(new Object[]{3}), is(6L));
+        assertThat(FunctionParser.fromStringInterpreted("int(int a)->{ return a * 2; }").evaluateToInteger(new Object[]{3}), is(6));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testOtherReturnTypeIsUnsupported() {
+        FunctionParser.fromStringInterpreted("double(double x)->x").evaluateToInteger(new Object[]{1.0});
+    }
+
+    @Test
+    public void testUnsupportedFunctionsAreRejected() {
+        String[] unsupported = {
+                "double(double x)->double y = x * 2; return y;",
+                "double(java.util.List l)->l.size()",
+                "double(double x)->Math.random()",
+                "int(double x)->x",
+                "double(double x)->x++",
+                "String(double x)->\"x\" + x",
+                "int(int a)->a +",
+        };
+        for (String functionString : unsupported) {
+            try {
+                FunctionParser.fromStringInterpreted(functionString);
+                fail(functionString);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testTieredCompilesAfterThreshold() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        Executor blocked = command -> new Thread(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            command.run();
+        }).start();
+        FunctionParser.setCompilationExecutor(blocked);
+
+        LazyParsedFunction<Object> f = FunctionParser.fromStringTiered("double(double x, y)->x * y + 401", 3);
+        assertThat(f.evaluateToDouble(2.0, 3.0), is(407.0));
+        assertThat(f.evaluateToDouble(2.0, 3.0), is(407.0));
+        release.countDown();
+        assertThat(f.isCompiled(), is(false));
+        assertThat(f.evaluateToDouble(2.0, 3.0), is(407.0));
+        f.compile().join();
+        assertThat(f.isCompiled(), is(true));
+        assertThat(f.evaluateToDouble(2.0, 3.0), is(407.0));
+    }
+
+    @Test
+    public void testTieredCompilesUnsupportedFunctionsOnFirstUse() {
+        LazyParsedFunction<Object> f = FunctionParser.fromStringTiered("double(double x)->double y = x * 2; return y + 402;");
+        assertThat(f.evaluateToDouble(1.0), is(404.0));
+        assertThat(f.isCompiled(), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTieredRejectsNonPositiveThreshold() {
+        FunctionParser.fromStringTiered("double(double x)->x", 0);
+    }
+}
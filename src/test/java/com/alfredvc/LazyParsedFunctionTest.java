@@ -0,0 +1,107 @@
+package com.alfredvc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for LazyParsedFunction.
+ */
+public class LazyParsedFunctionTest {
+
+    @After
+    public void resetExecutor() {
+        FunctionParser.setCompilationExecutor(ForkJoinPool.commonPool());
+    }
+
+    @Test
+    public void testCompiledOnFirstUse() {
+        LazyParsedFunction<Object> f = FunctionParser.fromStringLazy("double(Double x,y)->x * y + 301");
+        assertThat(f.isCompiled(), is(false));
+        assertThat(f.getVariableSet(), is(equalTo(new LinkedHashSet<>(Arrays.asList("x", "y")))));
+        assertThat(f.evaluateToDouble(new Object[]{2.0, 3.0}), is(307.0));
+        f.compile().join();
+        assertThat(f.isCompiled(), is(true));
+        assertThat(f.evaluateToDouble(new Object[]{2.0, 3.0}), is(307.0));
+        assertThat(f.toString(), is("ParsedFunction[double(Double x,y)->x * y + 301]"));
+    }
+
+    @Test
+    public void testInterpretedUntilCompiled() {
+        CountDownLatch release = new CountDownLatch(1);
+        FunctionParser.setCompilationExecutor(command -> new Thread(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            command.run();
+        }).start());
+        LazyParsedFunction<Object> f = FunctionParser.fromStringLazy("double(double x,y)->x * y + 303");
+        assertThat(f.evaluateToDouble(2.0, 3.0), is(309.0));
+        assertThat(f.isCompiled(), is(false));
+        release.countDown();
+        f.compile().join();
+        assertThat(f.isCompiled(), is(true));
+    }
+
+    @Test
+    public void testUninterpretableFunctionWaitsForCompilation() {
+        LazyParsedFunction<Object> f = FunctionParser.fromStringLazy("int(String s)->s.length()");
+        assertThat(f.evaluateToInteger(new Object[]{"abc"}), is(3));
+        assertThat(f.isCompiled(), is(true));
+    }
+
+    @Test
+    public void testFallbackIsUsedUntilCompiled() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        Executor blocked = command -> new Thread(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            command.run();
+        }).start();
+        FunctionParser.setCompilationExecutor(blocked);
+
+        ParsedFunction<Object> fallback = new ParsedFunction<Object>() {
+            @Override
+            public double evaluateToDouble(double a, double b) {
+                return -1;
+            }
+
+            @Override
+            public String getFunctionString() {
+                return "fallback";
+            }
+
+            @Override
+            public LinkedHashSet<String> getVariableSet() {
+                return new LinkedHashSet<>(Arrays.asList("x", "y"));
+            }
+        };
+        LazyParsedFunction<Object> f = FunctionParser.fromStringLazy("double(double x,y)->x * y + 302", fallback);
+        assertThat(f.evaluateToDouble(2.0, 3.0), is(-1.0));
+        assertThat(f.isCompiled(), is(false));
+        release.countDown();
+        f.compile().join();
+        assertThat(f.evaluateToDouble(2.0, 3.0), is(308.0));
+        assertThat(f.isCompiled(), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompilationErrorIsThrownOnUse() {
+        LazyParsedFunction<Object> f = FunctionParser.fromStringLazy("double(Double x)->x *");
+        f.evaluateToDouble(new Object[]{1.0});
+    }
+}
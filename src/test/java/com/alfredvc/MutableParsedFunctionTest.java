@@ -0,0 +1,134 @@
+package com.alfredvc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for MutableParsedFunction.
+ */
+public class MutableParsedFunctionTest {
+
+    @After
+    public void tearDown() {
+        FunctionParser.setCompilationExecutor(ForkJoinPool.commonPool());
+        FunctionParser.setLoadingMode(LoadingMode.SHARED);
+        FunctionParser.setCacheEnabled(true);
+    }
+
+    @Test
+    public void testSetReplacesFunction() {
+        MutableParsedFunction<Object> f = FunctionParser.fromStringMutable("double(double x, y)->x + y");
+        assertThat(f.evaluateToDouble(2.0, 3.0), is(5.0));
+        assertThat(f.evaluateToDouble(new Object[]{2.0, 3.0}), is(5.0));
+        f.set(FunctionParser.fromString("double(double a, b)->a * b"));
+        assertThat(f.evaluateToDouble(2.0, 3.0), is(6.0));
+        assertThat(f.getFunctionString(), is("double(double a, b)->a * b"));
+        assertThat(f.getVariableSet(), is(equalTo(new LinkedHashSet<>(Arrays.asList("a", "b")))));
+        assertThat(f.getGeneration(), is(2L));
+    }
+
+    @Test
+    public void testRecompileSwapsWhenCompiled() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        Executor blocked = command -> new Thread(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            command.run();
+        }).start();
+        MutableParsedFunction<Object> f = FunctionParser.fromStringMutable("double(double x)->x + 1");
+        FunctionParser.setCompilationExecutor(blocked);
+        CompletableFuture<ParsedFunction<Object>> recompiled = f.recompile("double(double x)->x + 2");
+        assertThat(f.evaluateToDouble(1.0), is(2.0));
+        release.countDown();
+        assertThat(recompiled.join(), is(f.get()));
+        assertThat(f.evaluateToDouble(1.0), is(3.0));
+    }
+
+    @Test
+    public void testFailedRecompileKeepsFunction() {
+        MutableParsedFunction<Object> f = FunctionParser.fromStringMutable("double(double x)->x + 1");
+        try {
+            f.recompile("double(double x)->x +").join();
+            fail();
+        } catch (CompletionException e) {
+            assertThat(e.getCause(), is(instanceOf(IllegalArgumentException.class)));
+        }
+        assertThat(f.evaluateToDouble(1.0), is(2.0));
+    }
+
+    @Test
+    public void testLaterRequestWins() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        Executor blocked = command -> new Thread(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            command.run();
+        }).start();
+        MutableParsedFunction<Object> f = FunctionParser.fromStringMutable("double(double x)->x + 1");
+        FunctionParser.setCompilationExecutor(blocked);
+        CompletableFuture<ParsedFunction<Object>> stale = f.recompile("double(double x)->x + 2");
+        f.set(FunctionParser.fromString("double(double x)->x + 3"));
+        release.countDown();
+        try {
+            stale.join();
+            fail();
+        } catch (CompletionException e) {
+            assertThat(e.getCause(), is(instanceOf(IllegalStateException.class)));
+        }
+        assertThat(f.evaluateToDouble(1.0), is(4.0));
+    }
+
+    @Test
+    public void testDynamicInvokerFollowsReplacements() throws Throwable {
+        MutableParsedFunction<Object> f = FunctionParser.fromStringMutable("double(double x, y)->x + y");
+        MethodHandle invoker = f.dynamicInvoker();
+        assertThat((double) invoker.invokeExact(2.0, 3.0), is(5.0));
+        f.set(FunctionParser.fromString("double(double x, y)->x - y"));
+        assertThat((double) invoker.invokeExact(2.0, 3.0), is(-1.0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDynamicInvokerRejectsOtherType() {
+        MutableParsedFunction<Object> f = FunctionParser.fromStringMutable("double(double x, y)->x + y");
+        f.dynamicInvoker();
+        f.set(FunctionParser.fromString("double(double x)->x"));
+    }
+
+    @Test
+    public void testReplacedClassIsUnloaded() throws InterruptedException {
+        FunctionParser.setLoadingMode(LoadingMode.ISOLATED);
+        FunctionParser.setCacheEnabled(false);
+        MutableParsedFunction<Object> f = FunctionParser.fromStringMutable("double(double x)->x * 41");
+        assertThat(f.evaluateToDouble(2.0), is(82.0));
+        WeakReference<Class<?>> classReference = new WeakReference<>(f.get().getClass());
+        f.set(FunctionParser.fromString("double(double x)->x * 43"));
+        assertThat(f.evaluateToDouble(2.0), is(86.0));
+        for (int i = 0; i < 50 && classReference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertThat(classReference.get() == null, is(true));
+    }
+}
@@ -0,0 +1,163 @@
+package com.alfredvc;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Spliterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for ParallelEvaluator.
+ */
+public class ParallelEvaluatorTest {
+    private static final int ROWS = 100000;
+
+    private final ParallelEvaluator evaluator = new ParallelEvaluator(new ForkJoinPool(4), 4, 1000);
+
+    private static double[][] columns() {
+        double[] x = new double[ROWS];
+        double[] y = new double[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            x[i] = i;
+            y[i] = 2;
+        }
+        return new double[][]{x, y};
+    }
+
+    private static Object[][] tuples() {
+        Object[][] tuples = new Object[ROWS][];
+        for (int i = 0; i < ROWS; i++) {
+            tuples[i] = new Object[]{(long) i, 2L};
+        }
+        return tuples;
+    }
+
+    @Test
+    public void testEvaluateColumns() {
+        ParsedFunction f = FunctionParser.fromString("double(double x, y)->x * y");
+        double[] out = new double[ROWS];
+        evaluator.evaluateToDouble(f, columns(), out);
+        for (int i = 0; i < ROWS; i++) {
+            assertThat(out[i], is(2.0 * i));
+        }
+    }
+
+    @Test
+    public void testEvaluateColumnsToMask() {
+        ParsedFunction f = FunctionParser.fromString("boolean(double x, y)->x % y == 0");
+        boolean[] out = new boolean[ROWS];
+        evaluator.evaluateToBoolean(f, columns(), out);
+        for (int i = 0; i < ROWS; i++) {
+            assertThat(out[i], is(i % 2 == 0));
+        }
+    }
+
+    @Test
+    public void testColumnReductions() {
+        ParsedFunction f = FunctionParser.fromString("double(double x, y)->x * y");
+        double[][] columns = columns();
+        assertThat(evaluator.sum(f, columns), is(closeTo((double) ROWS * (ROWS - 1), 1e-6)));
+        assertThat(evaluator.min(f, columns), is(0.0));
+        assertThat(evaluator.max(f, columns), is(2.0 * (ROWS - 1)));
+        ParsedFunction predicate = FunctionParser.fromString("boolean(double x, y)->x < 10 * y");
+        assertThat(evaluator.count(predicate, columns), is(20L));
+    }
+
+    @Test
+    public void testColumnReductionsUseBatchMethod() {
+        int[] calls = {0};
+        ParsedFunction<Double> f = new ParsedFunction<Double>() {
+            @Override
+            public void evaluateToDouble(double[][] columns, double[] out, int from, int to) {
+                synchronized (calls) {
+                    calls[0]++;
+                }
+                for (int i = from; i < to; i++) {
+                    out[i] = columns[0][i] * columns[1][i];
+                }
+            }
+
+            @Override
+            public String getFunctionString() {
+                return "double(double x, y)->x * y";
+            }
+
+            @Override
+            public LinkedHashSet<String> getVariableSet() {
+                return new LinkedHashSet<>(Arrays.asList("x", "y"));
+            }
+        };
+        assertThat(evaluator.sum(f, columns()), is(closeTo((double) ROWS * (ROWS - 1), 1e-6)));
+        assertThat(calls[0], is(lessThanOrEqualTo(ROWS / ParallelEvaluator.BLOCK_SIZE + 16)));
+    }
+
+    @Test
+    public void testLongColumnReductions() {
+        ParsedFunction f = FunctionParser.fromString("long(double x, y)->(long) (x * y)");
+        double[][] columns = columns();
+        long[] out = new long[ROWS];
+        evaluator.evaluateToLong(f, columns, out);
+        assertThat(out[ROWS - 1], is(2L * (ROWS - 1)));
+        assertThat(evaluator.sumLong(f, columns), is((long) ROWS * (ROWS - 1)));
+        assertThat(evaluator.minLong(f, columns), is(0L));
+        assertThat(evaluator.maxLong(f, columns), is(2L * (ROWS - 1)));
+    }
+
+    @Test
+    public void testEvaluateTuples() {
+        ParsedFunction f = FunctionParser.fromString("long(Long x, y)->x * y");
+        long[] out = new long[ROWS];
+        evaluator.evaluateToLong(f, Arrays.spliterator(tuples()), out);
+        for (int i = 0; i < ROWS; i++) {
+            assertThat(out[i], is(2L * i));
+        }
+    }
+
+    @Test
+    public void testTupleReductions() {
+        ParsedFunction f = FunctionParser.fromString("long(Long x, y)->x * y");
+        assertThat(evaluator.sumLong(f, Arrays.spliterator(tuples())), is((long) ROWS * (ROWS - 1)));
+        assertThat(evaluator.minLong(f, Arrays.spliterator(tuples())), is(0L));
+        assertThat(evaluator.maxLong(f, Arrays.spliterator(tuples())), is(2L * (ROWS - 1)));
+        ParsedFunction d = FunctionParser.fromString("double(Long x, y)->x / (double) y");
+        assertThat(evaluator.max(d, Arrays.spliterator(tuples())), is((ROWS - 1) / 2.0));
+        ParsedFunction predicate = FunctionParser.fromString("boolean(Long x, y)->x >= y");
+        assertThat(evaluator.count(predicate, Arrays.spliterator(tuples())), is(ROWS - 2L));
+    }
+
+    @Test
+    public void testCallerSuppliedExecutor() {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            ParallelEvaluator custom = new ParallelEvaluator(executor, 3, 100);
+            ParsedFunction f = FunctionParser.fromString("double(double x, y)->x + y");
+            double[] out = new double[ROWS];
+            custom.evaluateToDouble(f, columns(), out);
+            assertThat(out[ROWS - 1], is(ROWS + 1.0));
+            assertThat(custom.sum(f, columns()), is(closeTo((double) ROWS * (ROWS - 1) / 2 + 2.0 * ROWS, 1e-6)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutputArrayTooSmall() {
+        ParsedFunction f = FunctionParser.fromString("double(double x, y)->x + y");
+        evaluator.evaluateToDouble(f, columns(), new double[10]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsizedSpliteratorCannotFillOutput() {
+        ParsedFunction f = FunctionParser.fromString("double(Long x, y)->x + y");
+        Spliterator<Object[]> unsized = Arrays.asList(tuples()).stream().filter(t -> true).spliterator();
+        evaluator.evaluateToDouble(f, unsized, new double[ROWS]);
+    }
+}
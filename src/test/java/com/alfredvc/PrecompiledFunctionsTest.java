@@ -0,0 +1,99 @@
+package com.alfredvc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the functions precompiled by FunctionPrecompiler while compiling this class.
+ */
+@Precompile({"double(double x, y)->Math.sqrt(x * x + y * y)", "String(String s, Integer n)->s + n"})
+public class PrecompiledFunctionsTest {
+    @Precompile
+    static final String CONSTANT = "long(long a, b)->{ long r = 1; for (int i = 0; i < b; i++) r *= a; return r; }";
+
+    @After
+    public void tearDown() {
+        FunctionParser.setCacheEnabled(true);
+        FunctionParser.setInstrumentationEnabled(false);
+    }
+
+    @Test
+    public void testPrecompiledFunctionsAreNotCompiled() {
+        FunctionParser.setCacheEnabled(false);
+        assertThat(PrecompiledFunctions.size(), is(3));
+        ParsedFunction<?> distance = FunctionParser.fromString("double(double x,  y)->Math.sqrt( x * x + y * y )");
+        assertThat(distance.getClass().getName(), startsWith(PrecompiledFunctions.PACKAGE + ".Function"));
+        assertThat(distance.evaluateToDouble(3, 4), is(5.0));
+        assertThat(distance.getVariableSet().toString(), is("[x, y]"));
+        assertThat(distance.getFunctionString(), is("double(double x,  y)->Math.sqrt( x * x + y * y )"));
+
+        ParsedFunction<?> concatenation = FunctionParser.fromString("String(String s, Integer n)->s + n");
+        assertThat(concatenation.getClass().getName(), startsWith(PrecompiledFunctions.PACKAGE));
+        assertThat(concatenation.evaluate(new Object[]{"n=", 3}), is((Object) "n=3"));
+
+        ParsedFunction<?> power = FunctionParser.fromString(CONSTANT);
+        assertThat(power.getClass().getName(), startsWith(PrecompiledFunctions.PACKAGE));
+        assertThat(power.evaluateToLong(new Object[]{3L, 4L}), is(81L));
+    }
+
+    @Test
+    public void testOtherFunctionsAreCompiled() {
+        FunctionParser.setCacheEnabled(false);
+        ParsedFunction<?> function = FunctionParser.fromString("double(double x, y)->Math.sqrt(x * x - y * y)");
+        assertThat(function.getClass().getName().startsWith(PrecompiledFunctions.PACKAGE), is(false));
+        FunctionParser.setInstrumentationEnabled(true);
+        function = FunctionParser.fromString("double(double x, y)->Math.sqrt(x * x + y * y)");
+        assertThat(function.getClass().getName().startsWith(PrecompiledFunctions.PACKAGE), is(false));
+    }
+
+    @Test
+    public void testPrecompiledFunctionsWorkWithoutJavassist() throws Exception {
+        URL[] urls = {
+                FunctionParser.class.getProtectionDomain().getCodeSource().getLocation(),
+                PrecompiledFunctionsTest.class.getProtectionDomain().getCodeSource().getLocation()};
+        ClassLoader previous = Thread.currentThread().getContextClassLoader();
+        try (URLClassLoader loader = new URLClassLoader(urls, ClassLoader.getSystemClassLoader().getParent())) {
+            Thread.currentThread().setContextClassLoader(loader);
+            try {
+                loader.loadClass("javassist.ClassPool");
+                fail();
+            } catch (ClassNotFoundException e) {
+                // Javassist is not visible to the loader
+            }
+            Class<?> parser = loader.loadClass(FunctionParser.class.getName());
+            Object distance = parser.getMethod("fromString", String.class).invoke(null, "double(double x, y)->Math.sqrt(x * x + y * y)");
+            Method evaluate = loader.loadClass(ParsedFunction.class.getName()).getMethod("evaluateToDouble", double.class, double.class);
+            assertThat(evaluate.invoke(distance, 6.0, 8.0), is((Object) 10.0));
+            Object interpreted = parser.getMethod("fromStringInterpreted", String.class).invoke(null, "double(double x, y)->x * y");
+            assertThat(evaluate.invoke(interpreted, 6.0, 8.0), is((Object) 48.0));
+        } finally {
+            Thread.currentThread().setContextClassLoader(previous);
+        }
+    }
+
+    @Test
+    public void testPrecompiledBytecodeDefinesFunction() {
+        String className = PrecompiledFunctions.PACKAGE + ".Test";
+        byte[] bytecode = FunctionCompiler.precompile("int(int n)->n * 2", className);
+        Class<?> clazz = new FunctionClassLoader(FunctionClassLoader.parentLoader()).define(className, bytecode);
+        ParsedFunction<?> function = FunctionParser.instantiate(clazz, new LinkedHashSet<>(Arrays.asList("n")), "int(int n)->n * 2");
+        assertThat(function.evaluateToInteger(new Object[]{21}), is(42));
+        try {
+            FunctionCompiler.precompile("int(int n)->n *", PrecompiledFunctions.PACKAGE + ".Broken");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // the function string does not compile
+        }
+    }
+}
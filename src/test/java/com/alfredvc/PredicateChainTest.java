@@ -0,0 +1,147 @@
+package com.alfredvc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for PredicateChain.
+ */
+public class PredicateChainTest {
+    private static final int ROWS = 100000;
+    private static final List<String> PREDICATES = Arrays.asList(
+            "boolean(double x)->Math.sin(x) * Math.cos(x) < 2",
+            "boolean(double x, y)->x + y > 0.5",
+            "boolean(double y)->y < 0.01");
+
+    private final double[][] columns = new double[2][ROWS];
+
+    public PredicateChainTest() {
+        Random random = new Random(42);
+        for (int i = 0; i < ROWS; i++) {
+            columns[0][i] = random.nextDouble();
+            columns[1][i] = random.nextDouble();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        FunctionParser.setOptimizationEnabled(false);
+    }
+
+    private static boolean expected(PredicateChain.Operator operator, double x, double y) {
+        boolean first = Math.sin(x) * Math.cos(x) < 2;
+        boolean second = x + y > 0.5;
+        boolean third = y < 0.01;
+        return operator == PredicateChain.Operator.AND ? first && second && third : first || second || third;
+    }
+
+    private void assertMatchesPredicates(PredicateChain chain) {
+        int[] selected = new int[ROWS];
+        int count = chain.filter(columns, 0, ROWS, selected);
+        int next = 0;
+        for (int i = 0; i < ROWS; i++) {
+            boolean passes = expected(chain.getOperator(), columns[0][i], columns[1][i]);
+            assertThat(chain.test(new double[]{columns[0][i], columns[1][i]}), is(passes));
+            if (i % 100 == 0) {
+                assertThat(chain.test(new Object[]{columns[0][i], columns[1][i]}), is(passes));
+            }
+            if (passes) {
+                assertThat(selected[next++], is(i));
+            }
+        }
+        assertThat(count, is(next));
+    }
+
+    @Test
+    public void testChainMatchesPredicates() {
+        for (PredicateChain.Operator operator : PredicateChain.Operator.values()) {
+            PredicateChain chain = FunctionParser.fromStringsAsPredicateChain(operator, PREDICATES, 0);
+            assertMatchesPredicates(chain);
+            chain.reorder();
+            assertMatchesPredicates(chain);
+        }
+    }
+
+    @Test
+    public void testReorderPutsSelectivePredicatesFirst() {
+        PredicateChain and = FunctionParser.fromStringsAsPredicateChain(PredicateChain.Operator.AND, PREDICATES, 0);
+        and.filter(columns, 0, ROWS, new int[ROWS]);
+        assertThat(and.getSelectivity(0), is(1.0));
+        assertThat(and.getSelectivity(2), closeTo(0.01, 0.01));
+        assertThat(and.reorder(), is(true));
+        assertThat(and.getOrder().get(0), is(PREDICATES.get(2)));
+        assertThat(and.getFunctionStrings(), is(PREDICATES));
+
+        PredicateChain or = FunctionParser.fromStringsAsPredicateChain(PredicateChain.Operator.OR, PREDICATES, 0);
+        or.filter(columns, 0, ROWS, new int[ROWS]);
+        or.reorder();
+        assertThat(or.getOrder().get(2), is(PREDICATES.get(2)));
+    }
+
+    @Test
+    public void testChainReordersItself() throws InterruptedException {
+        FunctionParser.setOptimizationEnabled(true);
+        PredicateChain chain = FunctionParser.fromStringsAsPredicateChain(PredicateChain.Operator.AND, PREDICATES, 256);
+        int[] selected = new int[1000];
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!chain.getOrder().get(0).equals(PREDICATES.get(2)) && System.currentTimeMillis() < deadline) {
+            for (int from = 0; from < ROWS; from += 1000) {
+                chain.filter(columns, from, from + 1000, selected);
+            }
+            Thread.sleep(10);
+        }
+        assertThat(chain.getOrder().get(0), is(PREDICATES.get(2)));
+        assertMatchesPredicates(chain);
+    }
+
+    @Test
+    public void testObjectParametersAndStatements() {
+        PredicateChain chain = FunctionParser.fromStringsAsPredicateChain(PredicateChain.Operator.AND, Arrays.asList(
+                "Boolean(String s)->s.length() > 2",
+                "boolean(String s, int n)->{ for (int i = 0; i < n; i++) { if (s.charAt(i) == 'x') return false; } return true; }"));
+        assertThat(chain.getVariableSet().toString(), is("[s, n]"));
+        assertThat(chain.test(new Object[]{"abcd", 4}), is(true));
+        assertThat(chain.test(new Object[]{"abxd", 4}), is(false));
+        assertThat(chain.test(new Object[]{"ab", 0}), is(false));
+    }
+
+    @Test
+    public void testOnlyThrowingRowsAreProfiledAsNotPassing() {
+        PredicateChain chain = FunctionParser.fromStringsAsPredicateChain(PredicateChain.Operator.AND,
+                Arrays.asList("boolean(double x)->10 / (int) x >= 0"), 0);
+        double[] x = new double[PredicateChain.SAMPLE_INTERVAL * PredicateChain.PROFILE_BLOCK];
+        for (int i = 1; i < x.length; i++) {
+            x[i] = i;
+        }
+        try {
+            chain.filter(new double[][]{x}, 0, x.length, new int[x.length]);
+        } catch (ArithmeticException e) {
+            // The first row divides by zero.
+        }
+        assertThat(chain.getSelectivity(0), is((PredicateChain.PROFILE_BLOCK - 1) / (double) PredicateChain.PROFILE_BLOCK));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFilterNeedsDoubleParameters() {
+        FunctionParser.fromStringsAsPredicateChain(PredicateChain.Operator.OR, Arrays.asList("boolean(int n)->n > 0"))
+                .filter(new double[1][1], 0, 1, new int[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonBooleanPredicateIsRejected() {
+        FunctionParser.fromStringsAsPredicateChain(PredicateChain.Operator.AND, Arrays.asList("boolean(double x)->x > 0", "double(double x)->x"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeReorderIntervalIsRejected() {
+        FunctionParser.fromStringsAsPredicateChain(PredicateChain.Operator.AND, PREDICATES, -1);
+    }
+}
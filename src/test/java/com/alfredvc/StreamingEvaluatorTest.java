@@ -0,0 +1,170 @@
+package com.alfredvc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for StreamingEvaluator.
+ */
+public class StreamingEvaluatorTest {
+    private static final int ROWS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ParsedFunction<?> function = FunctionParser.fromString("double(double x, y)->x * y + 1");
+
+    private Path csv(String header, int rows) throws IOException {
+        StringBuilder text = new StringBuilder(header == null ? "" : header + "\r\n");
+        for (int i = 0; i < rows; i++) {
+            text.append(i).append(", 0.5,").append(i * 0.25).append("\r\n");
+        }
+        Path input = folder.newFile().toPath();
+        Files.write(input, text.toString().getBytes(StandardCharsets.US_ASCII));
+        return input;
+    }
+
+    private List<String> evaluate(StreamingEvaluator evaluator, Path input, long expectedRows) throws IOException {
+        Path output = folder.newFile().toPath();
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+            assertThat(evaluator.evaluateToDouble(function, input, channel), is(expectedRows));
+        }
+        return Files.readAllLines(output, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testCsvWithHeaderMapsColumnsByName() throws IOException {
+        List<String> lines = evaluate(StreamingEvaluator.csv(',', true), csv("y, z ,x", ROWS), ROWS);
+        assertThat(lines.size(), is(ROWS));
+        for (int i = 0; i < ROWS; i++) {
+            assertThat(Double.parseDouble(lines.get(i)), is(i * (i * 0.25) + 1));
+        }
+    }
+
+    @Test
+    public void testCsvWithoutHeaderUsesFirstColumns() throws IOException {
+        List<String> lines = evaluate(StreamingEvaluator.csv(',', false), csv(null, ROWS), ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            assertThat(Double.parseDouble(lines.get(i)), is(i * 0.5 + 1));
+        }
+    }
+
+    @Test
+    public void testSmallSegmentsAndChunks() throws IOException {
+        Path input = csv("y,z,x", ROWS);
+        List<String> expected = evaluate(StreamingEvaluator.csv(',', true), input, ROWS);
+        assertThat(evaluate(StreamingEvaluator.csv(',', true).withSegmentSize(100).withChunkSize(7), input, ROWS), is(expected));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            StreamingEvaluator parallel = StreamingEvaluator.csv(',', true).parallel(executor, 4).withSegmentSize(1000);
+            assertThat(evaluate(parallel, input, ROWS), is(expected));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testNumbersParseLikeDoubleParseDouble() throws IOException {
+        Random random = new Random(42);
+        String[] numbers = new String[ROWS];
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < ROWS; i++) {
+            switch (i % 4) {
+                case 0:
+                    numbers[i] = Double.toString(random.nextDouble() * Math.pow(10, random.nextInt(40) - 20));
+                    break;
+                case 1:
+                    numbers[i] = Long.toString(random.nextLong() >> random.nextInt(64));
+                    break;
+                case 2:
+                    numbers[i] = String.format("%.6f", random.nextGaussian() * 1000);
+                    break;
+                default:
+                    numbers[i] = Double.toString(Double.longBitsToDouble(random.nextLong() & 0x7fefffffffffffffL));
+                    break;
+            }
+            text.append(numbers[i]).append('\n');
+        }
+        text.append("NaN\n-0.0\n1e400\n");
+        Path input = folder.newFile().toPath();
+        Files.write(input, text.toString().getBytes(StandardCharsets.US_ASCII));
+
+        ParsedFunction<?> identity = FunctionParser.fromString("double(double x)->x");
+        Path output = folder.newFile().toPath();
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+            StreamingEvaluator.csv(',', false).evaluateToDouble(identity, input, channel);
+        }
+        List<String> lines = Files.readAllLines(output, StandardCharsets.US_ASCII);
+        for (int i = 0; i < ROWS; i++) {
+            assertThat(numbers[i], lines.get(i), is(Double.toString(Double.parseDouble(numbers[i]))));
+        }
+        assertThat(lines.subList(ROWS, ROWS + 3).toString(), is("[NaN, -0.0, Infinity]"));
+    }
+
+    @Test
+    public void testBinaryRecords() throws IOException {
+        ByteBuffer records = ByteBuffer.allocate(ROWS * 16).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < ROWS; i++) {
+            records.putInt(i).putDouble(i * 0.5).putFloat(7f);
+        }
+        Path input = folder.newFile().toPath();
+        Files.write(input, records.array());
+
+        Path output = folder.newFile().toPath();
+        StreamingEvaluator evaluator = StreamingEvaluator.binary(ByteOrder.LITTLE_ENDIAN,
+                StreamingEvaluator.FieldType.INT, StreamingEvaluator.FieldType.DOUBLE, StreamingEvaluator.FieldType.FLOAT)
+                .withSegmentSize(1000);
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+            assertThat(evaluator.evaluateToDouble(function, input, channel), is((long) ROWS));
+        }
+        ByteBuffer results = ByteBuffer.wrap(Files.readAllBytes(output)).order(ByteOrder.LITTLE_ENDIAN);
+        assertThat(results.remaining(), is(ROWS * 8));
+        for (int i = 0; i < ROWS; i++) {
+            assertThat(results.getDouble(), is(i * (i * 0.5) + 1));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedRecordIsRejected() throws IOException {
+        Path input = folder.newFile().toPath();
+        Files.write(input, new byte[20]);
+        evaluate(StreamingEvaluator.binary(ByteOrder.BIG_ENDIAN, StreamingEvaluator.FieldType.DOUBLE, StreamingEvaluator.FieldType.DOUBLE), input, 1);
+    }
+
+    @Test
+    public void testMalformedInputIsRejected() throws IOException {
+        Path input = folder.newFile().toPath();
+        Files.write(input, "x,y\n1,2\n3,abc\n".getBytes(StandardCharsets.US_ASCII));
+        try {
+            evaluate(StreamingEvaluator.csv(',', true), input, 2);
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Malformed number 'abc' at byte 10"));
+        }
+        Files.write(input, "x,z\n1,2\n".getBytes(StandardCharsets.US_ASCII));
+        try {
+            evaluate(StreamingEvaluator.csv(',', true), input, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), is("No column y in header [x, z]"));
+        }
+    }
+}